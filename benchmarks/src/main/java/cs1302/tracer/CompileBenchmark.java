@@ -0,0 +1,65 @@
+package cs1302.tracer;
+
+import cs1302.tracer.CompilationHelper.CompilationResult;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Measures parsing and compiling programs with {@link CompilationHelper#compile(String)}. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CompileBenchmark {
+
+  /** The number of methods in the compiled program. */
+  @Param({"1", "100", "1000"})
+  public int methods;
+
+  private String source;
+
+  /** Generate a program with the requested number of methods. */
+  @Setup
+  public void generateSource() {
+    StringBuilder sb = new StringBuilder("public class Main {\n");
+    for (int i = 0; i < methods; i++) {
+      sb.append(String.format("  static int method%d(int x) {%n", i));
+      sb.append(String.format("    int y = x * %d;%n", i));
+      sb.append("    return y + 1;\n");
+      sb.append("  }\n");
+    } // for
+    sb.append("  public static void main(String[] args) {\n");
+    sb.append("    int total = 0;\n");
+    for (int i = 0; i < methods; i++) {
+      sb.append(String.format("    total += method%d(total);%n", i));
+    } // for
+    sb.append("  }\n");
+    sb.append("}\n");
+    source = sb.toString();
+  }
+
+  /**
+   * Compile the program into a fresh working directory, then delete it.
+   *
+   * @return The compilation result, so that the compilation isn't optimized away.
+   * @throws IOException If the working directory couldn't be written.
+   */
+  @Benchmark
+  public CompilationResult compile() throws IOException {
+    try (CompilationResult compilationResult = CompilationHelper.compile(source)) {
+      return compilationResult;
+    } // try
+  }
+}
@@ -0,0 +1,90 @@
+package cs1302.tracer;
+
+import cs1302.tracer.trace.LaunchProfile;
+import cs1302.tracer.trace.TraceBudget;
+import cs1302.tracer.trace.TraceResult;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the end-to-end latency of tracing a program with each {@link LaunchProfile}, from
+ * compiling it to its last snapshot, for a program that runs for a moment and one that allocates a
+ * lot.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LaunchProfileBenchmark {
+
+  /** The profile that the program's JVM is launched with. */
+  @Param({"SHORT", "DEFAULT", "HEAVY"})
+  public LaunchProfile profile;
+
+  /** The kind of program to trace. */
+  @Param({"short", "allocating"})
+  public String program;
+
+  private Tracer tracer;
+
+  private String source;
+
+  /** Create a tracer for the requested profile, and the requested program. */
+  @Setup
+  public void createTracer() {
+    tracer =
+        new Tracer(
+            TraceOptions.DEFAULT.withBudget(TraceBudget.UNLIMITED.withLaunchProfile(profile)));
+    String body =
+        switch (program) {
+          case "short" ->
+              """
+                  int total = 0;
+                  for (int i = 0; i < 10; i++) {
+                    total += i;
+                  }
+                  System.out.println(total);
+              """;
+          case "allocating" ->
+              """
+                  java.util.List<int[]> kept = new java.util.ArrayList<>();
+                  long total = 0;
+                  for (int i = 0; i < 2_000_000; i++) {
+                    int[] block = new int[64];
+                    block[i % 64] = i;
+                    total += block[i % 64];
+                    if (i % 1000 == 0) {
+                      kept.add(block);
+                    }
+                  }
+                  System.out.println(total + kept.size());
+              """;
+          default -> throw new IllegalArgumentException("Unknown program " + program);
+        };
+    source =
+        "public class Main {\n  public static void main(String[] args) {\n" + body + "  }\n}\n";
+  }
+
+  /**
+   * Compile and trace the program, snapshotting the end of its main method.
+   *
+   * @return The trace, so that it isn't optimized away.
+   * @throws TraceException If the program couldn't be traced.
+   */
+  @Benchmark
+  public TraceResult trace() throws TraceException {
+    return tracer.trace(source);
+  }
+}
@@ -0,0 +1,576 @@
+package cs1302.tracer;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import picocli.CommandLine;
+import picocli.CommandLine.Command;
+import picocli.CommandLine.Option;
+import picocli.CommandLine.Parameters;
+
+/**
+ * Replays a corpus of programs against the tracer at a fixed concurrency, and optionally a fixed
+ * arrival rate, and reports latency, errors, throughput and memory use. Programs are traced either
+ * in this JVM with {@link Tracer}, or by running the tracer's CLI once per trace.
+ */
+@Command(
+    name = "load-test",
+    description = "Measure the tracer's latency and throughput under load.",
+    mixinStandardHelpOptions = true)
+public class LoadTest implements Runnable {
+
+  /** The upper bounds of the latency histogram's buckets, in milliseconds. */
+  private static final long[] HISTOGRAM_BOUNDS_MILLIS = {
+    100, 250, 500, 1_000, 2_500, 5_000, 10_000, 25_000, 60_000, Long.MAX_VALUE
+  };
+
+  /** How often memory use is sampled, in milliseconds. */
+  private static final long MEMORY_SAMPLE_MILLIS = 100;
+
+  @Option(
+      names = {"--corpus"},
+      paramLabel = "PATH",
+      description =
+          "A directory of .java files, or a manifest in the format of `trace-batch`, whose "
+              + "programs are replayed.")
+  Path corpus = null;
+
+  @Option(
+      names = {"--generate"},
+      paramLabel = "KIND",
+      description =
+          "Add a generated pathological program to the corpus. KIND is one of: "
+              + "${COMPLETION-CANDIDATES}.")
+  List<PathologicalProgram> generated = new ArrayList<>();
+
+  @Option(
+      names = {"--size"},
+      paramLabel = "N",
+      description = "How big to make generated programs. Defaults to 1000.")
+  int size = 1000;
+
+  @Option(
+      names = {"--concurrency", "-c"},
+      paramLabel = "N",
+      description = "The maximum number of traces in flight. Defaults to 4.")
+  int concurrency = 4;
+
+  @Option(
+      names = {"--rate"},
+      paramLabel = "PER_SECOND",
+      description =
+          "Start traces at this rate, whether or not earlier ones have finished, and measure "
+              + "latency from when each trace should have started. Without this, a new trace "
+              + "starts as soon as one finishes.")
+  Double rate = null;
+
+  @Option(
+      names = {"--requests", "-n"},
+      paramLabel = "N",
+      description = "The number of traces to run, cycling through the corpus. Defaults to 100.")
+  int requests = 100;
+
+  @Option(
+      names = {"--cli"},
+      paramLabel = "JAR",
+      description =
+          "Trace each program by running `java -jar JAR trace` instead of tracing it in this "
+              + "JVM.")
+  Path cliJar = null;
+
+  @Option(
+      names = {"--json"},
+      paramLabel = "FILE",
+      description = "Also write the report to FILE as JSON.")
+  Path jsonReport = null;
+
+  @Parameters(
+      paramLabel = "TRACE_OPTIONS",
+      description = "Options for the trace command that apply to every program, given after `--`.")
+  List<String> traceOptions = new ArrayList<>();
+
+  /**
+   * A program to replay.
+   *
+   * @param name The name the program is reported under.
+   * @param source The program's source code.
+   * @param options The trace command options to trace the program with.
+   */
+  record LoadProgram(String name, String source, List<String> options) {}
+
+  /**
+   * The outcome of one trace.
+   *
+   * @param program The program that was traced.
+   * @param latency How long the trace took, from when it was supposed to start.
+   * @param error Why the trace failed, or empty if it succeeded.
+   */
+  record Sample(LoadProgram program, Duration latency, Optional<String> error) {}
+
+  public static void main(String[] args) {
+    System.exit(new CommandLine(new LoadTest()).execute(args));
+  } // main
+
+  /** Run the load test and print its report to stdout. */
+  @Override
+  public void run() {
+    List<LoadProgram> programs;
+    try {
+      if (concurrency < 1 || requests < 1 || (rate != null && rate <= 0)) {
+        throw new IllegalArgumentException(
+            "The concurrency, number of requests and rate must be positive.");
+      } // if
+      programs = loadCorpus();
+    } catch (IOException | IllegalArgumentException cause) {
+      System.err.println("Unable to load corpus: " + cause.getMessage());
+      System.exit(1);
+      return;
+    } // try
+
+    MemorySampler memory = new MemorySampler();
+    Thread sampler = Thread.ofPlatform().daemon().start(memory);
+    Queue<Sample> samples = new ConcurrentLinkedQueue<>();
+    Semaphore inFlight = new Semaphore(concurrency);
+    long startTime = System.nanoTime();
+    try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+      for (int i = 0; i < requests; i++) {
+        LoadProgram program = programs.get(i % programs.size());
+        long arrivalTime;
+        if (rate != null) {
+          // open loop: traces arrive on schedule, and wait for a slot if the tracer falls behind
+          arrivalTime = startTime + (long) (i * TimeUnit.SECONDS.toNanos(1) / rate);
+          sleepUntil(arrivalTime);
+        } else {
+          // closed loop: a trace arrives as soon as a slot frees up
+          inFlight.acquireUninterruptibly();
+          arrivalTime = System.nanoTime();
+        } // if
+        boolean holdsSlot = rate == null;
+        executor.submit(
+            () -> {
+              if (!holdsSlot) {
+                inFlight.acquireUninterruptibly();
+              } // if
+              try {
+                Optional<String> error = traceOnce(program);
+                samples.add(
+                    new Sample(program, Duration.ofNanos(System.nanoTime() - arrivalTime), error));
+              } finally {
+                inFlight.release();
+              } // try
+            });
+      } // for
+    } // try
+    Duration elapsed = Duration.ofNanos(System.nanoTime() - startTime);
+    sampler.interrupt();
+
+    JSONObject report = report(new ArrayList<>(samples), elapsed, memory);
+    if (jsonReport != null) {
+      try {
+        Files.writeString(jsonReport, report.toString(2));
+      } catch (IOException cause) {
+        System.err.println("Unable to write report: " + cause.getMessage());
+        System.exit(1);
+      } // try
+    } // if
+  }
+
+  /**
+   * Trace a program once.
+   *
+   * @param program The program to trace.
+   * @return Why the trace failed, or empty if it succeeded.
+   */
+  private Optional<String> traceOnce(LoadProgram program) {
+    try {
+      if (cliJar == null) {
+        App.Trace trace = new App.Trace();
+        new CommandLine(trace).parseArgs(program.options().toArray(String[]::new));
+        Tracer tracer = new Tracer(trace.options());
+        tracer.serialize(program.source(), tracer.trace(program.source())).toString();
+      } else {
+        traceWithCli(program);
+      } // if
+      return Optional.empty();
+    } catch (Exception cause) {
+      return Optional.of(
+          Optional.ofNullable(cause.getMessage())
+              .orElse(cause.toString())
+              .lines()
+              .findFirst()
+              .orElse(cause.toString()));
+    } // try
+  }
+
+  /**
+   * Trace a program by running the tracer's CLI in a new JVM.
+   *
+   * @param program The program to trace.
+   * @throws IOException If the CLI couldn't be run or failed.
+   * @throws InterruptedException If interrupted while waiting for the CLI.
+   */
+  private void traceWithCli(LoadProgram program) throws IOException, InterruptedException {
+    Path sourceFile = Files.createTempFile("load-test", ".java");
+    try {
+      Files.writeString(sourceFile, program.source());
+      List<String> command = new ArrayList<>();
+      command.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+      command.addAll(List.of("-jar", cliJar.toString(), "trace", "-i", sourceFile.toString()));
+      command.addAll(program.options());
+      Process process =
+          new ProcessBuilder(command)
+              .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+              .redirectError(ProcessBuilder.Redirect.PIPE)
+              .start();
+      String stderr = new String(process.getErrorStream().readAllBytes());
+      if (process.waitFor() != 0) {
+        throw new IOException(stderr.isBlank() ? "The tracer exited with an error." : stderr);
+      } // if
+    } finally {
+      Files.deleteIfExists(sourceFile);
+    } // try
+  }
+
+  /**
+   * Load the programs to replay: the corpus, then the generated programs.
+   *
+   * @return The programs.
+   * @throws IOException If the corpus couldn't be read.
+   * @throws IllegalArgumentException If there are no programs.
+   */
+  private List<LoadProgram> loadCorpus() throws IOException {
+    List<LoadProgram> programs = new ArrayList<>();
+    if (corpus != null && Files.isDirectory(corpus)) {
+      try (Stream<Path> paths = Files.walk(corpus)) {
+        for (Path path : paths.filter(p -> p.toString().endsWith(".java")).sorted().toList()) {
+          programs.add(
+              new LoadProgram(
+                  corpus.relativize(path).toString(), Files.readString(path), traceOptions));
+        } // for
+      } // try
+    } else if (corpus != null) {
+      Path manifestDir = corpus.toAbsolutePath().getParent();
+      for (String line : Files.readAllLines(corpus)) {
+        String stripped = line.strip();
+        if (stripped.isEmpty() || stripped.startsWith("#")) {
+          continue;
+        } // if
+        String[] fields = stripped.split("\\s+");
+        List<String> options = new ArrayList<>(traceOptions);
+        options.addAll(Arrays.asList(fields).subList(1, fields.length));
+        programs.add(
+            new LoadProgram(fields[0], Files.readString(manifestDir.resolve(fields[0])), options));
+      } // for
+    } // if
+
+    for (PathologicalProgram program : generated) {
+      List<String> options = new ArrayList<>(traceOptions);
+      options.addAll(program.traceOptions());
+      programs.add(
+          new LoadProgram(
+              program.name().toLowerCase() + "(" + size + ")", program.source(size), options));
+    } // for
+
+    if (programs.isEmpty()) {
+      throw new IllegalArgumentException("Give a --corpus or at least one --generate.");
+    } // if
+    return programs;
+  }
+
+  /**
+   * Sleep until a point in time.
+   *
+   * @param nanoTime The value of {@link System#nanoTime()} to sleep until.
+   */
+  private static void sleepUntil(long nanoTime) {
+    long remaining;
+    while ((remaining = nanoTime - System.nanoTime()) > 0) {
+      try {
+        TimeUnit.NANOSECONDS.sleep(remaining);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      } // try
+    } // while
+  }
+
+  /**
+   * Print a report of the load test to stdout.
+   *
+   * @param samples The outcome of every trace.
+   * @param elapsed How long the load test took.
+   * @param memory The memory use that was sampled during the load test.
+   * @return The report as JSON, with durations in milliseconds and memory in bytes.
+   */
+  private JSONObject report(List<Sample> samples, Duration elapsed, MemorySampler memory) {
+    long failed = samples.stream().filter(s -> s.error().isPresent()).count();
+    List<Long> latencies = samples.stream().map(s -> s.latency().toMillis()).sorted().toList();
+    double seconds = elapsed.toNanos() / 1e9;
+
+    System.out.printf(
+        "Traces:      %d (%d failed, %.1f%%)%n",
+        samples.size(), failed, 100.0 * failed / samples.size());
+    System.out.printf("Duration:    %.2fs%n", seconds);
+    System.out.printf("Throughput:  %.2f traces/s%n", samples.size() / seconds);
+    System.out.printf(
+        "Latency:     p50 %dms  p90 %dms  p99 %dms  max %dms%n",
+        percentile(latencies, 50),
+        percentile(latencies, 90),
+        percentile(latencies, 99),
+        latencies.getLast());
+
+    System.out.println("Histogram:");
+    long[] histogram = new long[HISTOGRAM_BOUNDS_MILLIS.length];
+    for (long latency : latencies) {
+      int bucket = 0;
+      while (latency > HISTOGRAM_BOUNDS_MILLIS[bucket]) {
+        bucket++;
+      } // while
+      histogram[bucket]++;
+    } // for
+    long tallest = Arrays.stream(histogram).max().orElse(1);
+    JSONArray histogramJson = new JSONArray();
+    for (int i = 0; i < histogram.length; i++) {
+      String bound =
+          HISTOGRAM_BOUNDS_MILLIS[i] == Long.MAX_VALUE
+              ? "inf"
+              : String.valueOf(HISTOGRAM_BOUNDS_MILLIS[i]);
+      System.out.printf(
+          "  <= %6sms | %-40s %d%n",
+          bound, "#".repeat((int) (40 * histogram[i] / tallest)), histogram[i]);
+      histogramJson.put(new JSONObject().put("leMillis", bound).put("count", histogram[i]));
+    } // for
+
+    System.out.printf(
+        "Peak RSS:    tracer %s, largest debuggee %s, all debuggees %s%n",
+        mebibytes(memory.peakTracerBytes()),
+        mebibytes(memory.peakDebuggeeBytes()),
+        mebibytes(memory.peakTotalDebuggeeBytes()));
+
+    // per-program breakdown, in corpus order
+    Map<String, List<Sample>> byProgram = new LinkedHashMap<>();
+    for (Sample sample : samples) {
+      byProgram.computeIfAbsent(sample.program().name(), n -> new ArrayList<>()).add(sample);
+    } // for
+    JSONObject programsJson = new JSONObject();
+    System.out.println("Programs:");
+    for (Map.Entry<String, List<Sample>> entry : byProgram.entrySet()) {
+      List<Long> programLatencies =
+          entry.getValue().stream().map(s -> s.latency().toMillis()).sorted().toList();
+      long programFailed = entry.getValue().stream().filter(s -> s.error().isPresent()).count();
+      System.out.printf(
+          "  %-32s %4d traces  %3d failed  p50 %6dms  p99 %6dms%n",
+          entry.getKey(),
+          programLatencies.size(),
+          programFailed,
+          percentile(programLatencies, 50),
+          percentile(programLatencies, 99));
+      entry.getValue().stream()
+          .flatMap(s -> s.error().stream())
+          .findFirst()
+          .ifPresent(error -> System.out.println("      first error: " + error));
+      programsJson.put(
+          entry.getKey(),
+          new JSONObject()
+              .put("traces", programLatencies.size())
+              .put("failed", programFailed)
+              .put("p50Millis", percentile(programLatencies, 50))
+              .put("p99Millis", percentile(programLatencies, 99)));
+    } // for
+
+    return new JSONObject()
+        .put("traces", samples.size())
+        .put("failed", failed)
+        .put("errorRate", (double) failed / samples.size())
+        .put("durationMillis", elapsed.toMillis())
+        .put("throughputPerSecond", samples.size() / seconds)
+        .put("concurrency", concurrency)
+        .put("rate", rate == null ? JSONObject.NULL : rate)
+        .put("mode", cliJar == null ? "in-process" : "cli")
+        .put(
+            "latencyMillis",
+            new JSONObject()
+                .put("p50", percentile(latencies, 50))
+                .put("p90", percentile(latencies, 90))
+                .put("p99", percentile(latencies, 99))
+                .put("max", latencies.getLast()))
+        .put("histogram", histogramJson)
+        .put(
+            "peakRssBytes",
+            new JSONObject()
+                .put("tracer", bytesJson(memory.peakTracerBytes()))
+                .put("largestDebuggee", bytesJson(memory.peakDebuggeeBytes()))
+                .put("allDebuggees", bytesJson(memory.peakTotalDebuggeeBytes())))
+        .put("programs", programsJson);
+  }
+
+  /**
+   * Get a percentile of sorted values, using the nearest-rank method.
+   *
+   * @param sorted The values, in ascending order.
+   * @param percentile The percentile, from 1 to 100.
+   * @return The value at the percentile.
+   */
+  private static long percentile(List<Long> sorted, int percentile) {
+    int rank = (int) Math.ceil(percentile / 100.0 * sorted.size());
+    return sorted.get(Math.max(0, rank - 1));
+  }
+
+  /**
+   * Format a number of bytes for the report.
+   *
+   * @param bytes The number of bytes, or empty if it couldn't be measured.
+   * @return The number of mebibytes, or "unavailable".
+   */
+  private static String mebibytes(OptionalLong bytes) {
+    return bytes.isEmpty()
+        ? "unavailable"
+        : String.format("%d MiB", bytes.getAsLong() / (1024 * 1024));
+  }
+
+  /**
+   * Convert a number of bytes for the JSON report.
+   *
+   * @param bytes The number of bytes, or empty if it couldn't be measured.
+   * @return The number of bytes, or "unavailable".
+   */
+  private static Object bytesJson(OptionalLong bytes) {
+    return bytes.isEmpty() ? "unavailable" : bytes.getAsLong();
+  }
+
+  /**
+   * Samples the resident set size of the tracer and of every debuggee until interrupted. A process
+   * is a debuggee if it was started with the JDWP agent, and the tracer is every other process in
+   * this process tree: this JVM, plus the CLI JVMs when tracing with the CLI. Only works on Linux.
+   */
+  static final class MemorySampler implements Runnable {
+
+    private final AtomicLong peakTracerBytes = new AtomicLong(-1);
+
+    private final AtomicLong peakDebuggeeBytes = new AtomicLong(-1);
+
+    private final AtomicLong peakTotalDebuggeeBytes = new AtomicLong(-1);
+
+    @Override
+    public void run() {
+      while (!Thread.currentThread().isInterrupted()) {
+        sample();
+        try {
+          Thread.sleep(MEMORY_SAMPLE_MILLIS);
+        } catch (InterruptedException e) {
+          return;
+        } // try
+      } // while
+    }
+
+    /**
+     * Take one sample of every process in this process tree. A total is only sampled if all of the
+     * processes it adds up could be read.
+     */
+    private void sample() {
+      Optional<Long> ownBytes = rss(ProcessHandle.current());
+      long cliBytes = 0;
+      long totalDebuggeeBytes = 0;
+      boolean sawDebuggee = false;
+      for (ProcessHandle process : ProcessHandle.current().descendants().toList()) {
+        Optional<Long> bytes = rss(process);
+        if (bytes.isEmpty()) {
+          continue;
+        } // if
+        boolean isDebuggee =
+            process.info().arguments().stream()
+                .flatMap(Arrays::stream)
+                .anyMatch(argument -> argument.startsWith("-agentlib:jdwp"));
+        if (isDebuggee) {
+          peakDebuggeeBytes.accumulateAndGet(bytes.get(), Math::max);
+          totalDebuggeeBytes += bytes.get();
+          sawDebuggee = true;
+        } else {
+          cliBytes += bytes.get();
+        } // if
+      } // for
+      if (ownBytes.isPresent()) {
+        peakTracerBytes.accumulateAndGet(ownBytes.get() + cliBytes, Math::max);
+      } // if
+      if (sawDebuggee) {
+        peakTotalDebuggeeBytes.accumulateAndGet(totalDebuggeeBytes, Math::max);
+      } // if
+    }
+
+    /**
+     * Read the resident set size of a process from {@code /proc}.
+     *
+     * @param process The process.
+     * @return The process's resident set size in bytes, or empty if it couldn't be read.
+     */
+    private static Optional<Long> rss(ProcessHandle process) {
+      try {
+        for (String line : Files.readAllLines(Path.of("/proc", "" + process.pid(), "status"))) {
+          if (line.startsWith("VmRSS:")) {
+            return Optional.of(Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024);
+          } // if
+        } // for
+      } catch (IOException | NumberFormatException e) {
+        // the process exited, or this isn't Linux
+      } // try
+      return Optional.empty();
+    }
+
+    /**
+     * Get the largest resident set size of the tracer seen so far: this JVM plus any CLI JVMs it
+     * started.
+     *
+     * @return The size in bytes, or empty if this JVM's size couldn't be read.
+     */
+    OptionalLong peakTracerBytes() {
+      return peak(peakTracerBytes);
+    }
+
+    /**
+     * Get the largest resident set size of a single debuggee seen so far.
+     *
+     * @return The size in bytes, or empty if no debuggee's size could be read.
+     */
+    OptionalLong peakDebuggeeBytes() {
+      return peak(peakDebuggeeBytes);
+    }
+
+    /**
+     * Get the largest resident set size of all debuggees at once seen so far.
+     *
+     * @return The size in bytes, or empty if no debuggee's size could be read.
+     */
+    OptionalLong peakTotalDebuggeeBytes() {
+      return peak(peakTotalDebuggeeBytes);
+    }
+
+    /**
+     * Get a peak that is -1 until it is first sampled.
+     *
+     * @param peak The peak.
+     * @return The peak, or empty if it was never sampled.
+     */
+    private static OptionalLong peak(AtomicLong peak) {
+      long bytes = peak.get();
+      return bytes < 0 ? OptionalLong.empty() : OptionalLong.of(bytes);
+    }
+  }
+}
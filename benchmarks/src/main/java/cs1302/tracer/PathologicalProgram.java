@@ -0,0 +1,132 @@
+package cs1302.tracer;
+
+import java.util.List;
+
+/**
+ * Programs that stress a particular part of the tracer, for load tests. Each one scales with a
+ * size, and comes with the trace options that make it expensive to trace.
+ */
+public enum PathologicalProgram {
+
+  /** Recurses {@code size} frames deep and is snapshotted at the bottom. */
+  DEEP_RECURSION {
+    @Override
+    public String source(int size) {
+      return String.format(
+          """
+          public class Main {
+            static int depth(int n) {
+              if (n == 0) {
+                return 0; // snapshot
+              }
+              return 1 + depth(n - 1);
+            }
+
+            public static void main(String[] args) {
+              System.out.println(depth(%d));
+            }
+          }
+          """,
+          size);
+    }
+
+    @Override
+    public List<String> traceOptions() {
+      return List.of("-b", "4");
+    }
+  },
+
+  /** Fills a list and a map with {@code size} elements each, snapshotted at the end of main. */
+  BIG_COLLECTION {
+    @Override
+    public String source(int size) {
+      return String.format(
+          """
+          import java.util.ArrayList;
+          import java.util.HashMap;
+          import java.util.List;
+          import java.util.Map;
+
+          public class Main {
+            public static void main(String[] args) {
+              List<Integer> list = new ArrayList<>();
+              Map<String, Integer> map = new HashMap<>();
+              for (int i = 0; i < %d; i++) {
+                list.add(i);
+                map.put("k" + i, i);
+              }
+            }
+          }
+          """,
+          size);
+    }
+
+    @Override
+    public List<String> traceOptions() {
+      return List.of();
+    }
+  },
+
+  /** Prints {@code size} lines, so every snapshot copies a lot of output. */
+  PRINT_LOOP {
+    @Override
+    public String source(int size) {
+      return String.format(
+          """
+          public class Main {
+            public static void main(String[] args) {
+              for (int i = 0; i < %d; i++) {
+                System.out.println("line " + i + " of output from a chatty program");
+              }
+            }
+          }
+          """,
+          size);
+    }
+
+    @Override
+    public List<String> traceOptions() {
+      return List.of();
+    }
+  },
+
+  /** Reaches a breakpoint inside a loop {@code size} times. */
+  HOT_LOOP_BREAKPOINT {
+    @Override
+    public String source(int size) {
+      return String.format(
+          """
+          public class Main {
+            public static void main(String[] args) {
+              long total = 0;
+              for (int i = 0; i < %d; i++) {
+                total += i; // snapshot
+              }
+              System.out.println(total);
+            }
+          }
+          """,
+          size);
+    }
+
+    @Override
+    public List<String> traceOptions() {
+      return List.of("-b", "5");
+    }
+  };
+
+  /**
+   * Generate the program.
+   *
+   * @param size How big to make the program's pathological behavior.
+   * @return The program's source code.
+   */
+  public abstract String source(int size);
+
+  /**
+   * Get the trace command options that the program should be traced with.
+   *
+   * @return The trace options.
+   */
+  public abstract List<String> traceOptions();
+}
@@ -0,0 +1,65 @@
+package cs1302.tracer.serialize;
+
+import cs1302.tracer.trace.ExecutionSnapshot;
+import cs1302.tracer.trace.HeapShape;
+import java.util.concurrent.TimeUnit;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures serializing large snapshots with {@link PyTutorSerializer#serialize(String,
+ * ExecutionSnapshot)}. The snapshots are built in memory, so no debuggee is involved.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SerializeBenchmark {
+
+  /** The shape of the snapshot's heap. */
+  @Param public HeapShape shape;
+
+  /** The number of fields, nodes, elements or entries in the snapshot's heap. */
+  @Param({"100", "10000"})
+  public int size;
+
+  /** True if strings should be inlined, which changes how the heap is walked. */
+  @Param({"false", "true"})
+  public boolean inlineStrings;
+
+  private String source;
+
+  private ExecutionSnapshot snapshot;
+
+  private PyTutorSerializer serializer;
+
+  /** Build the snapshot. */
+  @Setup
+  public void buildSnapshot() {
+    source = shape.source(size);
+    snapshot = shape.snapshot(size);
+    serializer = new PyTutorSerializer(false, inlineStrings, false);
+  }
+
+  /**
+   * Serialize the snapshot.
+   *
+   * @return The serialized snapshot.
+   */
+  @Benchmark
+  public JSONObject serialize() {
+    return serializer.serialize(source, snapshot);
+  }
+}
@@ -0,0 +1,219 @@
+package cs1302.tracer.trace;
+
+import cs1302.tracer.trace.ExecutionSnapshot.Field;
+import cs1302.tracer.trace.ExecutionSnapshot.StackSnapshot;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * The shapes of synthetic heaps that benchmarks snapshot and serialize. Each shape can be built
+ * either by a program that a debuggee runs, or directly as the snapshot that the tracer would take
+ * of that program. Either way, the local variable {@code root} of main refers to the heap.
+ */
+public enum HeapShape {
+
+  /** An object with many int fields. */
+  WIDE_OBJECT {
+    @Override
+    String declarations(int size) {
+      StringBuilder sb = new StringBuilder("  static class Wide {\n");
+      for (int i = 0; i < size; i++) {
+        sb.append(String.format("    int f%d = %d;%n", i, i));
+      } // for
+      return sb.append("  }\n").toString();
+    }
+
+    @Override
+    String build(int size) {
+      return "    Object root = new Wide();\n";
+    }
+
+    @Override
+    Map<Long, TraceValue> heap(int size) {
+      List<Field> fields = new ArrayList<>();
+      for (int i = 0; i < size; i++) {
+        fields.add(new Field(false, "int", "f" + i, new TraceValue.Primitive.Integer(i)));
+      } // for
+      return Map.of(ROOT_ID, new TraceValue.Object("Heap$Wide", fields));
+    }
+  },
+
+  /** A singly linked list of many nodes. */
+  DEEP_LIST {
+    @Override
+    String declarations(int size) {
+      return """
+               static class Node {
+                 int value;
+                 Node next;
+
+                 Node(int value, Node next) {
+                   this.value = value;
+                   this.next = next;
+                 }
+               }
+             """;
+    }
+
+    @Override
+    String build(int size) {
+      return String.format(
+          "    Node root = null;%n    for (int i = 0; i < %d; i++) {%n"
+              + "      root = new Node(i, root);%n    }%n",
+          size);
+    }
+
+    @Override
+    Map<Long, TraceValue> heap(int size) {
+      Map<Long, TraceValue> heap = new HashMap<>();
+      for (int i = 0; i < size; i++) {
+        long id = ROOT_ID + i;
+        TraceValue next = i == size - 1 ? new TraceValue.Null() : new TraceValue.Reference(id + 1);
+        heap.put(
+            id,
+            new TraceValue.Object(
+                "Heap$Node",
+                List.of(
+                    new Field(false, "int", "value", new TraceValue.Primitive.Integer(i)),
+                    new Field(false, "Heap$Node", "next", next))));
+      } // for
+      return heap;
+    }
+  },
+
+  /** An int array with many elements. */
+  BIG_ARRAY {
+    @Override
+    String declarations(int size) {
+      return "";
+    }
+
+    @Override
+    String build(int size) {
+      return String.format(
+          "    int[] root = new int[%d];%n    for (int i = 0; i < root.length; i++) {%n"
+              + "      root[i] = i;%n    }%n",
+          size);
+    }
+
+    @Override
+    Map<Long, TraceValue> heap(int size) {
+      List<TraceValue> elements = new ArrayList<>();
+      for (int i = 0; i < size; i++) {
+        elements.add(new TraceValue.Primitive.Integer(i));
+      } // for
+      return Map.of(ROOT_ID, new TraceValue.List("int[]", elements));
+    }
+  },
+
+  /** A hash map with many entries. */
+  LARGE_MAP {
+    @Override
+    String declarations(int size) {
+      return "";
+    }
+
+    @Override
+    String build(int size) {
+      return String.format(
+          "    java.util.Map<Integer, String> root = new java.util.HashMap<>();%n"
+              + "    for (int i = 0; i < %d; i++) {%n      root.put(i, \"v\" + i);%n    }%n",
+          size);
+    }
+
+    @Override
+    Map<Long, TraceValue> heap(int size) {
+      Map<Long, TraceValue> heap = new HashMap<>();
+      Map<TraceValue, TraceValue> entries = new HashMap<>();
+      for (int i = 0; i < size; i++) {
+        long keyId = ROOT_ID + 1 + 2L * i;
+        long valueId = keyId + 1;
+        entries.put(new TraceValue.Reference(keyId), new TraceValue.Reference(valueId));
+        heap.put(keyId, new TraceValue.Primitive.Integer(i));
+        heap.put(valueId, new TraceValue.String("v" + i));
+      } // for
+      heap.put(ROOT_ID, new TraceValue.Map(entries));
+      return heap;
+    }
+  };
+
+  /** The unique ID of the root object in built snapshots. */
+  private static final long ROOT_ID = 1;
+
+  /** The comment that marks the line to snapshot in generated programs. */
+  private static final String SNAPSHOT_MARKER = "// snapshot";
+
+  /**
+   * Get the declarations of the classes that the heap is built out of.
+   *
+   * @param size The size of the heap.
+   * @return Nested class declarations for the generated program.
+   */
+  abstract String declarations(int size);
+
+  /**
+   * Get the statements that build the heap into the local variable {@code root}.
+   *
+   * @param size The size of the heap.
+   * @return Statements for the generated program's main method.
+   */
+  abstract String build(int size);
+
+  /**
+   * Get the heap that the tracer would snapshot, with the root object at ID {@link #ROOT_ID}.
+   *
+   * @param size The size of the heap.
+   * @return The heap.
+   */
+  abstract Map<Long, TraceValue> heap(int size);
+
+  /**
+   * Generate a program that builds a heap of this shape and then reaches {@link #snapshotLine}.
+   *
+   * @param size The size of the heap.
+   * @return The program's source code.
+   */
+  public String source(int size) {
+    return "public class Heap {\n"
+        + declarations(size)
+        + "  public static void main(String[] args) {\n"
+        + build(size)
+        + "    System.out.print(\"\"); "
+        + SNAPSHOT_MARKER
+        + "\n  }\n}\n";
+  }
+
+  /**
+   * Get the line of a generated program that should be snapshotted, once the heap is built.
+   *
+   * @param source A program generated by {@link #source(int)}.
+   * @return The line number.
+   */
+  public static int snapshotLine(String source) {
+    List<String> lines = source.lines().toList();
+    for (int i = 0; i < lines.size(); i++) {
+      if (lines.get(i).endsWith(SNAPSHOT_MARKER)) {
+        return i + 1;
+      } // if
+    } // for
+    throw new IllegalArgumentException("The program has no snapshot line.");
+  }
+
+  /**
+   * Build the snapshot that the tracer would take of a generated program at its snapshot line.
+   *
+   * @param size The size of the heap.
+   * @return The snapshot.
+   */
+  public ExecutionSnapshot snapshot(int size) {
+    String source = source(size);
+    Field root = new Field(false, "java.lang.Object", "root", new TraceValue.Reference(ROOT_ID));
+    StackSnapshot main =
+        new StackSnapshot("main", snapshotLine(source), List.of(root), Optional.empty());
+    return new ExecutionSnapshot(
+        List.of(main), List.of(), List.of(), heap(size), new byte[0], new byte[0]);
+  }
+}
@@ -0,0 +1,83 @@
+package cs1302.tracer.trace;
+
+import com.sun.jdi.Value;
+import java.util.ArrayList;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures reading a live debuggee's state over JDI: {@link DebugTraceHelper#snapshotTheWorld}
+ * walks the whole heap, and {@link TraceValue#fromJdiValue} converts only the root object. The
+ * debuggee is launched once per trial and stays suspended at the same breakpoint throughout.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SnapshotBenchmark {
+
+  /** The shape of the debuggee's heap. */
+  @Param public HeapShape shape;
+
+  /** The number of fields, nodes, elements or entries in the debuggee's heap. */
+  @Param({"100", "1000"})
+  public int size;
+
+  private SuspendedDebuggee debuggee;
+
+  private Value root;
+
+  /**
+   * Launch the debuggee and run it until its heap is built.
+   *
+   * @throws Exception If the debuggee couldn't be launched.
+   */
+  @Setup(Level.Trial)
+  public void launchDebuggee() throws Exception {
+    String source = shape.source(size);
+    debuggee = SuspendedDebuggee.launch(source, HeapShape.snapshotLine(source));
+    root = debuggee.local("root");
+  }
+
+  /** Kill the debuggee. */
+  @TearDown(Level.Trial)
+  public void killDebuggee() {
+    debuggee.close();
+  }
+
+  /**
+   * Snapshot the debuggee's stack, statics and heap.
+   *
+   * @return The snapshot.
+   * @throws Exception If the debuggee's state couldn't be read.
+   */
+  @Benchmark
+  public ExecutionSnapshot snapshotTheWorld() throws Exception {
+    return debuggee.snapshot();
+  }
+
+  /**
+   * Convert the root of the debuggee's heap, without following its references.
+   *
+   * @return The converted root.
+   */
+  @Benchmark
+  public TraceValue fromJdiValue() {
+    return TraceValue.fromJdiValue(debuggee.thread(), root, Optional.of(new ArrayList<>()));
+  }
+}
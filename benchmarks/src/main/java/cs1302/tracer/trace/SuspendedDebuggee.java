@@ -0,0 +1,174 @@
+package cs1302.tracer.trace;
+
+import com.github.javaparser.JavaParser;
+import com.github.javaparser.ParserConfiguration;
+import com.github.javaparser.ParserConfiguration.LanguageLevel;
+import com.github.javaparser.ast.CompilationUnit;
+import com.github.javaparser.symbolsolver.JavaSymbolSolver;
+import com.github.javaparser.symbolsolver.resolution.typesolvers.CombinedTypeSolver;
+import com.github.javaparser.symbolsolver.resolution.typesolvers.JavaParserTypeSolver;
+import com.github.javaparser.symbolsolver.resolution.typesolvers.ReflectionTypeSolver;
+import com.sun.jdi.ReferenceType;
+import com.sun.jdi.StackFrame;
+import com.sun.jdi.ThreadReference;
+import com.sun.jdi.Value;
+import com.sun.jdi.VirtualMachine;
+import com.sun.jdi.event.BreakpointEvent;
+import com.sun.jdi.event.ClassPrepareEvent;
+import com.sun.jdi.event.Event;
+import com.sun.jdi.event.EventSet;
+import com.sun.jdi.event.VMDeathEvent;
+import com.sun.jdi.event.VMDisconnectEvent;
+import com.sun.jdi.request.BreakpointRequest;
+import com.sun.jdi.request.EventRequest;
+import cs1302.tracer.CompilationHelper;
+import cs1302.tracer.CompilationHelper.CompilationResult;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * A debuggee that is held suspended at a breakpoint so that its state can be snapshotted over and
+ * over. The JDI mirrors of the debuggee's stack frames are cached while it stays suspended, so
+ * repeated snapshots don't pay for fetching them again.
+ */
+final class SuspendedDebuggee implements AutoCloseable {
+
+  private final CompilationResult compilationResult;
+
+  private final VirtualMachine vm;
+
+  private final ThreadReference thread;
+
+  private final List<ReferenceType> loadedClasses;
+
+  private final SourceIndex sourceIndex;
+
+  private SuspendedDebuggee(
+      CompilationResult compilationResult,
+      VirtualMachine vm,
+      ThreadReference thread,
+      List<ReferenceType> loadedClasses,
+      SourceIndex sourceIndex) {
+    this.compilationResult = compilationResult;
+    this.vm = vm;
+    this.thread = thread;
+    this.loadedClasses = loadedClasses;
+    this.sourceIndex = sourceIndex;
+  }
+
+  /**
+   * Compile and launch a program, and run it until it reaches a line.
+   *
+   * @param source The program to run.
+   * @param line The line to suspend the program at.
+   * @return The suspended program.
+   * @throws Exception If the program couldn't be compiled or launched, or ended before reaching the
+   *     line.
+   */
+  static SuspendedDebuggee launch(String source, int line) throws Exception {
+    CompilationResult compilationResult = CompilationHelper.compile(source);
+    CombinedTypeSolver typeSolver = new CombinedTypeSolver();
+    typeSolver.add(new ReflectionTypeSolver());
+    typeSolver.add(new JavaParserTypeSolver(compilationResult.classPath().getFirst()));
+    CompilationUnit parsedSource =
+        new JavaParser(
+                new ParserConfiguration()
+                    .setSymbolResolver(new JavaSymbolSolver(typeSolver))
+                    .setLanguageLevel(LanguageLevel.CURRENT))
+            .parse(source)
+            .getResult()
+            .orElseThrow();
+    SourceIndex sourceIndex = new SourceIndex(parsedSource);
+
+    // launched the way the tracer launches programs, so the JVM is tuned and uses the warmup
+    // archive like a traced program's would
+    VirtualMachine vm =
+        DebugTraceHelper.await(
+            DebugTraceHelper.launch(
+                compilationResult.classPath(),
+                compilationResult.mainClass(),
+                TraceBudget.UNLIMITED,
+                new TraceMetrics()));
+    DebugTraceHelper.requestClassPrepares(vm, compilationResult.compiledClassNames());
+    List<ReferenceType> loadedClasses = new ArrayList<>();
+    while (true) {
+      EventSet eventSet = vm.eventQueue().remove();
+      for (Event event : eventSet) {
+        switch (event) {
+          case ClassPrepareEvent cpe -> {
+            loadedClasses.add(cpe.referenceType());
+            if (cpe.referenceType().name().equals(compilationResult.mainClass())) {
+              BreakpointRequest breakpoint =
+                  vm.eventRequestManager()
+                      .createBreakpointRequest(cpe.referenceType().locationsOfLine(line).get(0));
+              breakpoint.setSuspendPolicy(EventRequest.SUSPEND_ALL);
+              breakpoint.enable();
+            } // if
+          }
+          case BreakpointEvent bpe -> {
+            // leave the event set unresumed so the program stays where it is
+            return new SuspendedDebuggee(
+                compilationResult, vm, bpe.thread(), loadedClasses, sourceIndex);
+          }
+          case VMDeathEvent vde -> throw new IllegalStateException("The program ended early.");
+          case VMDisconnectEvent vde -> throw new IllegalStateException("The program ended early.");
+          default -> {}
+        } // switch
+      } // for
+      eventSet.resume();
+    } // while
+  }
+
+  /**
+   * Take a snapshot of the program's entire state, as the tracer does at a breakpoint.
+   *
+   * @return The snapshot.
+   * @throws Exception If the program's state couldn't be read.
+   */
+  ExecutionSnapshot snapshot() throws Exception {
+    return DebugTraceHelper.snapshotTheWorld(
+        thread,
+        loadedClasses,
+        new ByteArrayOutputStream(),
+        new ByteArrayOutputStream(),
+        sourceIndex,
+        Optional.empty(),
+        ThreadCapture.BREAKPOINT_THREAD);
+  }
+
+  /**
+   * Get the value of a local variable in the suspended frame.
+   *
+   * @param name The variable's name.
+   * @return The variable's value.
+   * @throws Exception If the frame couldn't be read.
+   */
+  Value local(String name) throws Exception {
+    StackFrame frame = thread.frame(0);
+    return frame.getValue(frame.visibleVariableByName(name));
+  }
+
+  /**
+   * Get the thread that reached the breakpoint.
+   *
+   * @return The suspended thread.
+   */
+  ThreadReference thread() {
+    return thread;
+  }
+
+  /** Kill the program and delete its compiled classes. */
+  @Override
+  public void close() {
+    vm.process().destroyForcibly();
+    try {
+      vm.process().waitFor();
+    } catch (InterruptedException e) {
+      // the classes are deleted anyway, and whoever interrupted us still gets to see it
+      Thread.currentThread().interrupt();
+    }
+    compilationResult.close();
+  }
+}
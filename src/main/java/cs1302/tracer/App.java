@@ -1,27 +1,53 @@
 package cs1302.tracer;
 
-import com.github.javaparser.ParseProblemException;
-import com.github.javaparser.ParserConfiguration.LanguageLevel;
-import com.github.javaparser.StaticJavaParser;
-import com.github.javaparser.ast.CompilationUnit;
-import com.github.javaparser.symbolsolver.JavaSymbolSolver;
-import com.github.javaparser.symbolsolver.resolution.typesolvers.CombinedTypeSolver;
-import com.github.javaparser.symbolsolver.resolution.typesolvers.JavaParserTypeSolver;
-import com.github.javaparser.symbolsolver.resolution.typesolvers.ReflectionTypeSolver;
 import cs1302.tracer.CompilationHelper.CompilationResult;
+import cs1302.tracer.TraceCache.CachedTrace;
 import cs1302.tracer.serialize.PyTutorSerializer;
+import cs1302.tracer.trace.CaptureSpec;
 import cs1302.tracer.trace.DebugTraceHelper;
-import cs1302.tracer.trace.ExecutionSnapshot;
+import cs1302.tracer.trace.DebuggeeHostPool;
+import cs1302.tracer.trace.ExceptionFilter;
+import cs1302.tracer.trace.HitPolicy;
+import cs1302.tracer.trace.LaunchProfile;
+import cs1302.tracer.trace.LineCounting;
+import cs1302.tracer.trace.ProgramInput;
+import cs1302.tracer.trace.SharedArchive;
+import cs1302.tracer.trace.ThreadCapture;
+import cs1302.tracer.trace.TraceBudget;
+import cs1302.tracer.trace.TraceMetrics;
+import cs1302.tracer.trace.TraceRecording;
+import cs1302.tracer.trace.TraceResult;
+import cs1302.tracer.trace.TraceResult.Termination;
+import cs1302.tracer.trace.TraceSession;
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.time.Duration;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.OptionalLong;
 import java.util.Scanner;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import org.fusesource.jansi.Ansi;
 import org.fusesource.jansi.AnsiConsole;
 import org.json.JSONArray;
@@ -29,6 +55,8 @@ import org.json.JSONObject;
 import picocli.CommandLine;
 import picocli.CommandLine.Command;
 import picocli.CommandLine.Option;
+import picocli.CommandLine.ParameterException;
+import picocli.CommandLine.Parameters;
 
 /** Entry point for the tracer program. */
 @Command(name = "code-tracer")
@@ -38,7 +66,10 @@ public class App {
     int exitCode =
         new CommandLine(new App())
             .addSubcommand(new Trace())
+            .addSubcommand(new TraceBatch())
+            .addSubcommand(new Session())
             .addSubcommand(new ListBreakpoints())
+            .addSubcommand(new Warmup())
             .addSubcommand(new ShowLicenses())
             .execute(args);
 
@@ -55,9 +86,119 @@ public class App {
 
     @Option(
         names = {"--input", "-i"},
-        description = "Input path to Java source file (defaults to stdin if omitted).")
+        description =
+            "Input path to Java source file (defaults to stdin if omitted), or to a directory of "
+                + "source files laid out by package, which are compiled together.")
     File input = null;
 
+    @Option(
+        names = {"--class-path", "-cp"},
+        paramLabel = "PATH",
+        description =
+            "Use the already-compiled program in PATH, a list of class directories and jars "
+                + "separated like java's -classpath, instead of compiling --input. Its classes "
+                + "should be compiled with debug information (javac -g). Requires --main-class.")
+    String classPath = null;
+
+    @Option(
+        names = {"--main-class"},
+        paramLabel = "CLASS",
+        description =
+            "The binary name of the main class of the program in --class-path or in a directory "
+                + "--input. Defaults to the one class with a main method in a directory --input.")
+    String mainClass = null;
+
+    @Option(
+        names = {"--source-path"},
+        paramLabel = "PATH",
+        description =
+            "The source roots of the program in --class-path, separated the same way. Defaults "
+                + "to its directories.")
+    String sourcePath = null;
+
+    /**
+     * Get the already-compiled program given on the command line.
+     *
+     * @return The program, or empty if the program's source is given instead.
+     * @throws IllegalArgumentException If the options are incomplete.
+     */
+    protected Optional<PrebuiltProgram> prebuiltProgram() {
+      if (classPath == null) {
+        if (sourcePath != null) {
+          throw new IllegalArgumentException("--source-path needs --class-path.");
+        } // if
+        if (mainClass != null && (input == null || !input.isDirectory())) {
+          throw new IllegalArgumentException(
+              "--main-class needs --class-path or a directory --input.");
+        } // if
+        return Optional.empty();
+      } // if
+      if (mainClass == null) {
+        throw new IllegalArgumentException("--class-path needs --main-class.");
+      } // if
+      List<Path> classPathEntries = splitPath(classPath);
+      List<Path> sourceRoots =
+          sourcePath == null
+              ? classPathEntries.stream().filter(Files::isDirectory).toList()
+              : splitPath(sourcePath);
+      return Optional.of(new PrebuiltProgram(classPathEntries, mainClass, sourceRoots));
+    } // prebuiltProgram
+
+    /**
+     * Get the multi-file project given on the command line.
+     *
+     * @return The project, or empty if {@code input} isn't a directory or the program is already
+     *     compiled.
+     * @throws RuntimeException if an IO exception occured
+     */
+    protected Optional<SourceProject> sourceProject() {
+      if (classPath != null || input == null || !input.isDirectory()) {
+        return Optional.empty();
+      } // if
+      try {
+        return Optional.of(SourceProject.of(input.toPath(), Optional.ofNullable(mainClass)));
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      } // try
+    } // sourceProject
+
+    /**
+     * Split a list of paths that are separated like java's -classpath.
+     *
+     * @param paths The list of paths.
+     * @return The paths.
+     */
+    private static List<Path> splitPath(String paths) {
+      return Arrays.stream(paths.split(Pattern.quote(File.pathSeparator)))
+          .filter(p -> !p.isEmpty())
+          .map(Path::of)
+          .toList();
+    } // splitPath
+
+    /**
+     * Read the source code to show for the program given on the command line: the main class of the
+     * already-compiled program or of the project, or {@code input}.
+     *
+     * @param prebuiltProgram The already-compiled program, if there is one.
+     * @param sourceProject The multi-file project, if there is one.
+     * @return The source code.
+     * @throws RuntimeException if an IO exception occured
+     */
+    protected String readInputFile(
+        Optional<PrebuiltProgram> prebuiltProgram, Optional<SourceProject> sourceProject) {
+      try {
+        if (prebuiltProgram.isPresent()) {
+          return prebuiltProgram.get().mainSource();
+        } else if (sourceProject.isPresent()) {
+          return sourceProject.get().mainSource();
+        } else {
+          return readInputFile();
+        } // if
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      } // try
+    } // readInputFile
+
     /**
      * Read the entirety of {@code input} into a string. If {@code input} is null, it reads and
      * returns the content of stdin.
@@ -83,30 +224,6 @@ public class App {
         }
       }
     } // readInputFile
-
-    /**
-     * Parse the given Java source code string.
-     *
-     * @param source The Java source code to parse.
-     * @param sourceRoot The root directory containing {@code source}'s source tree. If present,
-     *     will be used to get more information when resolving types.
-     * @return The parsed Java source code.
-     * @throws ParseProblemException If parsing failed.
-     */
-    protected CompilationUnit parseSource(String source, Optional<Path> sourceRoot) {
-      CombinedTypeSolver combinedTypeSolver = new CombinedTypeSolver();
-      combinedTypeSolver.add(new ReflectionTypeSolver());
-      sourceRoot.ifPresent(sr -> combinedTypeSolver.add(new JavaParserTypeSolver(sr)));
-      JavaSymbolSolver symbolSolver = new JavaSymbolSolver(combinedTypeSolver);
-
-      StaticJavaParser.getParserConfiguration()
-          .setSymbolResolver(symbolSolver)
-          .setLanguageLevel(LanguageLevel.CURRENT);
-
-      CompilationUnit cu = StaticJavaParser.parse(source);
-
-      return cu;
-    }
   }
 
   /** Run a trace. */
@@ -148,59 +265,880 @@ public class App {
                 + "one snapshot at the end of the program's main method.")
     List<Integer> breakpoints = null;
 
+    @Option(
+        names = {"--capture"},
+        paramLabel = "LINE=PATHS",
+        description =
+            "Only capture the given comma-separated variable or field paths (e.g. "
+                + "`list.head,i`) and the objects reachable from them when the breakpoint on LINE "
+                + "is reached. Use -1 as LINE for the end of the main method. Breakpoints without "
+                + "this option capture the program's entire state.")
+    Map<Integer, String> captures = null;
+
+    @Option(
+        names = {"--capture-depth"},
+        paramLabel = "DEPTH",
+        description =
+            "The maximum number of references to follow from a value captured with --capture. "
+                + "Objects that are further away are output without their fields. Unlimited if "
+                + "omitted.")
+    Integer captureDepth = null;
+
+    @Option(
+        names = {"--hits"},
+        paramLabel = "LINE=POLICY",
+        description =
+            "Choose which times the breakpoint on LINE is reached should be snapshotted. "
+                + "POLICY is one of `all`, `first:N`, `last:N`, `every:K` (hits K, 2K, ...), or "
+                + "`FROM-TO`. Defaults to `all` with --accumulate-breakpoints and `last:1` "
+                + "otherwise.")
+    Map<Integer, String> hits = null;
+
+    @Option(
+        names = {"--threads"},
+        description =
+            "Also snapshot the stacks of the program's other threads, platform and virtual, that "
+                + "are running its code. Objects that several threads share are only output once.")
+    boolean allThreads = false;
+
+    @Option(
+        names = {"--thread-filter"},
+        paramLabel = "REGEX",
+        description =
+            "With --threads, only snapshot the other threads whose whole names match REGEX.")
+    Pattern threadFilter = null;
+
+    @Option(
+        names = {"--suspend"},
+        paramLabel = "POLICY",
+        description =
+            "Which threads a breakpoint stops: ALL (every thread, so the snapshot shows one "
+                + "instant of the whole program) or THREAD (only the thread that reached it, so "
+                + "the other threads keep running, but the objects they change may be caught "
+                + "midway). THREAD can't be combined with --threads. Defaults to ${DEFAULT-VALUE}.")
+    ThreadCapture.SuspendPolicy suspendPolicy = ThreadCapture.SuspendPolicy.ALL;
+
+    @Option(
+        names = {"--exceptions"},
+        paramLabel = "FILTER",
+        description =
+            "Snapshot the first exception that passes FILTER where it is thrown: UNCAUGHT (one "
+                + "that the program doesn't catch, which ends its thread), CAUGHT (one that the "
+                + "program catches), ALL, or NONE. The snapshot is marked with an `exception` "
+                + "event. Defaults to ${DEFAULT-VALUE}.")
+    ExceptionFilter exceptions = ExceptionFilter.UNCAUGHT;
+
+    @Option(
+        names = {"--line-counts"},
+        description =
+            "Count how many times each line of the program runs, and output the counts for a "
+                + "heatmap under `line_counts`. Lines aren't snapshotted to be counted, so this "
+                + "costs far less than a breakpoint on every line.")
+    boolean lineCounts = false;
+
+    @Option(
+        names = {"--line-count-threshold"},
+        paramLabel = "N",
+        description =
+            "With --line-counts, count each line exactly up to N times. After that, only every "
+                + "Nth run of the line is counted, and its count is an estimate. Defaults to "
+                + "${DEFAULT-VALUE}.")
+    int lineCountThreshold = LineCounting.DEFAULT_THRESHOLD;
+
+    @Option(
+        names = {"--timeout"},
+        paramLabel = "SECONDS",
+        description =
+            "Kill the program if it runs for longer than SECONDS and output the snapshots taken "
+                + "before then. Unlimited if omitted.")
+    Double timeout = null;
+
+    @Option(
+        names = {"--max-hits"},
+        paramLabel = "N",
+        description = "Kill the program once breakpoints have been reached N times in total.")
+    Long maxHits = null;
+
+    @Option(
+        names = {"--max-output"},
+        paramLabel = "BYTES",
+        description =
+            "Kill the program once it has printed more than BYTES bytes to stdout and stderr.")
+    Long maxOutput = null;
+
+    @Option(
+        names = {"--max-heap"},
+        paramLabel = "SIZE",
+        description =
+            "The maximum heap size of the program (e.g. `256m`), as with java's -Xmx option. The "
+                + "program is stopped if it runs out of memory.")
+    String maxHeap = null;
+
+    @Option(
+        names = {"--launch-profile"},
+        paramLabel = "PROFILE",
+        description =
+            "How to tune the program's JVM: SHORT (only the quick JIT compiler, the serial "
+                + "collector and a small initial heap, for programs that run for a moment), "
+                + "DEFAULT (the JVM's defaults), HEAVY (the parallel collector and a bigger heap), "
+                + "or AUTO (SHORT, or HEAVY for the later runs of a program with --inputs once one "
+                + "of its runs took 2 seconds or more, or DEFAULT on a single processor). "
+                + "Defaults to AUTO.")
+    LaunchProfile launchProfile = LaunchProfile.AUTO;
+
+    @Option(
+        names = {"--cache-dir"},
+        paramLabel = "DIR",
+        description =
+            "Reuse traces of identical programs with identical options from DIR, and store new "
+                + "traces there. Traces of programs that were stopped early aren't stored.")
+    Path cacheDir = null;
+
+    @Option(
+        names = {"--timings"},
+        description =
+            "Output a JSON summary of how long each phase of the trace took and how much work it "
+                + "did to stderr.")
+    boolean timings = false;
+
+    @Option(
+        names = {"--arg"},
+        paramLabel = "ARG",
+        description =
+            "An argument to pass to the program's main method. Repeat it to pass several, in "
+                + "order.")
+    List<String> programArgs = null;
+
+    @Option(
+        names = {"--stdin"},
+        paramLabel = "FILE",
+        description =
+            "Give the program the contents of FILE on stdin. Without this, the program's stdin "
+                + "is empty.")
+    Path stdinFile = null;
+
+    @Option(
+        names = {"--inputs"},
+        paramLabel = "MANIFEST",
+        description =
+            "Trace the program once for each line of MANIFEST, and output an array with one "
+                + "trace per line. Each line is the path of a file to give the program on stdin "
+                + "(relative to the manifest), or `-` for none, followed by the program's "
+                + "arguments. Blank lines and lines starting with # are ignored. The program is "
+                + "only compiled once, and the runs aren't cached.")
+    Path inputs = null;
+
+    @Option(
+        names = {"--jobs"},
+        paramLabel = "N",
+        description =
+            "With --inputs, the maximum number of runs to trace at once. Defaults to the number "
+                + "of processors, or fewer if there isn't enough free memory for that many.")
+    int jobs = TraceScheduler.hostConcurrencyLimit(TraceScheduler.DEFAULT_BYTES_PER_TRACE);
+
+    @Option(
+        names = {"--shared-jvms"},
+        description =
+            "With --inputs, run the program in up to --jobs long-lived JVMs that each trace one "
+                + "run after another, with a class loader per run, instead of starting a JVM for "
+                + "every run. The JDK's own state, like system properties, is shared between "
+                + "runs; a run that exits the JVM, is stopped early or leaves threads running "
+                + "gets a new JVM.")
+    boolean sharedJvms = false;
+
     /** Run and trace a compiled Java program and output the resulting trace JSON to stdout. */
     @Override
     public void run() {
-      String source = readInputFile();
-
       // run a trace
       try {
-        CompilationResult compilationResult = CompilationHelper.compile(source);
-        CompilationUnit cu = parseSource(source, Optional.of(compilationResult.classPath()));
+        long startTime = System.nanoTime();
+        TraceMetrics metrics = new TraceMetrics();
+        Optional<PrebuiltProgram> prebuiltProgram = prebuiltProgram();
+        Optional<SourceProject> sourceProject = sourceProject();
+        if (inputs != null) {
+          if (prebuiltProgram.isPresent() || sourceProject.isPresent()) {
+            throw new IllegalArgumentException("--inputs only traces a single source file.");
+          } // if
+          traceInputs(startTime, metrics);
+          return;
+        } // if
+        if (sharedJvms) {
+          throw new IllegalArgumentException("--shared-jvms only applies with --inputs.");
+        } // if
+        ProgramInput programInput = programInput();
+        CachedTrace trace;
+        if (prebuiltProgram.isPresent() || sourceProject.isPresent()) {
+          // compiled classes can change without their source changing, and a project's other
+          // files aren't part of a cache key, so neither is cached
+          Tracer tracer = new Tracer(options());
+          TraceResult result =
+              prebuiltProgram.isPresent()
+                  ? tracer.trace(prebuiltProgram.get(), programInput, metrics)
+                  : tracer.trace(sourceProject.get(), programInput, metrics);
+          String source = readInputFile(prebuiltProgram, sourceProject);
+          trace =
+              new CachedTrace(
+                  tracer.serialize(source, programInput, result, metrics).toString(),
+                  result.termination(),
+                  false);
+        } else {
+          TraceCache cache = new TraceCache(0, Optional.ofNullable(cacheDir));
+          trace = cache.getOrTrace(new Tracer(options()), readInputFile(), programInput, metrics);
+        } // if
+        trace
+            .termination()
+            .ifPresent(t -> System.err.println("Trace stopped early: " + t.message()));
+        System.out.println(trace.json());
+        if (timings) {
+          Duration elapsed = Duration.ofNanos(System.nanoTime() - startTime);
+          System.err.println(timingsJson(metrics, elapsed, trace.cached()));
+        } // if
+      } catch (Throwable cause) {
+        System.err.println("Unable to generate trace!");
+        if (verbose) {
+          cause.printStackTrace();
+        } // if
+        System.exit(1);
+      } // try
+    }
+
+    /**
+     * Trace the program once for each line of the --inputs manifest, and output an array of the
+     * traces to stdout.
+     *
+     * @param startTime When the trace command started, from {@link System#nanoTime()}.
+     * @param metrics The metrics to record every run's phases in.
+     */
+    private void traceInputs(long startTime, TraceMetrics metrics)
+        throws IOException, TraceException {
+      if (programArgs != null || stdinFile != null) {
+        throw new IllegalArgumentException("--inputs can't be combined with --arg or --stdin.");
+      } // if
+      List<ProgramInput> programInputs = readInputs();
+      String source = readInputFile();
+      List<TraceResult> results;
+      Tracer tracer;
+      if (sharedJvms) {
+        try (DebuggeeHostPool hosts = new DebuggeeHostPool(jobs, Optional.ofNullable(maxHeap))) {
+          tracer = new Tracer(options(), hosts);
+          results = tracer.trace(source, programInputs, jobs, metrics);
+        } // try
+      } else {
+        tracer = new Tracer(options());
+        results = tracer.trace(source, programInputs, jobs, metrics);
+      } // if
+      JSONArray traces = new JSONArray();
+      for (int i = 0; i < results.size(); i++) {
+        int run = i + 1;
+        results
+            .get(i)
+            .termination()
+            .ifPresent(t -> System.err.println("Trace " + run + " stopped early: " + t.message()));
+        traces.put(tracer.serialize(source, programInputs.get(i), results.get(i), metrics));
+      } // for
+      System.out.println(traces);
+      if (timings) {
+        Duration elapsed = Duration.ofNanos(System.nanoTime() - startTime);
+        System.err.println(timingsJson(metrics, elapsed, false));
+      } // if
+    }
+
+    /**
+     * Get the program's arguments and stdin given on the command line.
+     *
+     * @return The program's input.
+     * @throws IOException If the stdin file couldn't be read.
+     */
+    ProgramInput programInput() throws IOException {
+      return new ProgramInput(
+          programArgs == null ? List.of() : programArgs,
+          stdinFile == null ? "" : Files.readString(stdinFile));
+    }
+
+    /**
+     * Read the program's inputs from the --inputs manifest.
+     *
+     * @return One input per run, in manifest order.
+     * @throws IOException If the manifest or a stdin file couldn't be read.
+     */
+    private List<ProgramInput> readInputs() throws IOException {
+      Path manifestDir = inputs.toAbsolutePath().getParent();
+      List<ProgramInput> programInputs = new ArrayList<>();
+      for (String line : Files.readAllLines(inputs)) {
+        String stripped = line.strip();
+        if (stripped.isEmpty() || stripped.startsWith("#")) {
+          continue;
+        } // if
+
+        String[] fields = stripped.split("\\s+");
+        String stdin =
+            fields[0].equals("-") ? "" : Files.readString(manifestDir.resolve(fields[0]));
+        programInputs.add(new ProgramInput(Arrays.asList(fields).subList(1, fields.length), stdin));
+      } // for
+      return programInputs;
+    }
+
+    /**
+     * Summarize where a trace spent its time and how much work it did.
+     *
+     * @param metrics The trace's metrics.
+     * @param elapsed How long the whole trace took.
+     * @param cached True if the trace came from the cache, in which case every phase is zero.
+     * @return The summary, with durations in milliseconds.
+     */
+    static JSONObject timingsJson(TraceMetrics metrics, Duration elapsed, boolean cached) {
+      JSONObject phases = new JSONObject();
+      metrics
+          .phaseDurations()
+          .forEach(
+              (phase, duration) ->
+                  phases.put(camelCase(phase.name()), duration.toNanos() / 1_000_000.0));
+      return new JSONObject()
+          .put("cached", cached)
+          .put("totalMillis", elapsed.toNanos() / 1_000_000.0)
+          .put("phaseMillis", phases)
+          .put("breakpointHits", metrics.breakpointHits())
+          .put("snapshots", metrics.snapshots())
+          .put("objectsVisited", metrics.objectsVisited())
+          .put("jdwpCommands", metrics.jdwpCommands())
+          .put("invokeMethodCommands", metrics.invokeMethodCommands())
+          .put("outputBytes", metrics.outputBytes());
+    }
+
+    /**
+     * Convert a constant name like {@code EVENT_WAIT} into a JSON key like {@code eventWait}.
+     *
+     * @param constantName The name to convert.
+     * @return The name in camel case.
+     */
+    private static String camelCase(String constantName) {
+      StringBuilder camelCase = new StringBuilder();
+      for (String word : constantName.toLowerCase(Locale.ROOT).split("_")) {
+        camelCase.append(
+            camelCase.isEmpty() ? word : Character.toUpperCase(word.charAt(0)) + word.substring(1));
+      } // for
+      return camelCase.toString();
+    }
+
+    /**
+     * Get the trace options given on the command line.
+     *
+     * @return The trace options.
+     * @throws IllegalArgumentException If an option is invalid.
+     */
+    TraceOptions options() {
+      return new TraceOptions(
+          breakpoints == null ? List.of() : breakpoints,
+          parseCaptures(),
+          hits == null ? Map.of() : parseHitPolicies(),
+          accumulateBreakpoints,
+          parseBudget(),
+          new ThreadCapture(allThreads, Optional.ofNullable(threadFilter), suspendPolicy),
+          exceptions,
+          new LineCounting(lineCounts, lineCountThreshold),
+          new PyTutorSerializer(removeMainArgs, inlineStrings, removeMethodThis));
+    }
+
+    /**
+     * Parse the capture paths given on the command line.
+     *
+     * @return A mapping from breakpoint line numbers to what should be captured at them.
+     * @throws IllegalArgumentException If a capture path or the capture depth is invalid.
+     */
+    private Map<Integer, CaptureSpec> parseCaptures() {
+      if (captures == null) {
+        return Map.of();
+      }
+
+      int maxDepth = captureDepth == null ? CaptureSpec.UNLIMITED_DEPTH : captureDepth;
+      return captures.entrySet().stream()
+          .collect(
+              Collectors.toMap(Map.Entry::getKey, e -> CaptureSpec.parse(e.getValue(), maxDepth)));
+    }
+
+    /**
+     * Build the program's resource budget from the limits given on the command line.
+     *
+     * @return The program's budget.
+     * @throws IllegalArgumentException If a limit is invalid.
+     */
+    private TraceBudget parseBudget() {
+      return new TraceBudget(
+          Optional.ofNullable(timeout).map(t -> Duration.ofMillis(Math.round(t * 1000))),
+          maxHits == null ? OptionalLong.empty() : OptionalLong.of(maxHits),
+          maxOutput == null ? OptionalLong.empty() : OptionalLong.of(maxOutput),
+          Optional.ofNullable(maxHeap),
+          launchProfile);
+    }
 
-        PyTutorSerializer configuredSerializer =
-            new PyTutorSerializer(removeMainArgs, inlineStrings, removeMethodThis);
+    /**
+     * Parse the hit policies given on the command line.
+     *
+     * @return A mapping from breakpoint line numbers to their hit policies.
+     * @throws IllegalArgumentException If a hit policy is invalid.
+     */
+    private Map<Integer, HitPolicy> parseHitPolicies() {
+      return hits.entrySet().stream()
+          .collect(Collectors.toMap(Map.Entry::getKey, e -> HitPolicy.parse(e.getValue())));
+    }
+  }
+
+  /** Explore a program interactively. */
+  @Command(
+      name = "session",
+      description =
+          "Run a Java program under an interactive session that speaks line-delimited JSON-RPC 2.0"
+              + " on stdin and stdout, or on a local socket with --port. The program starts paused"
+              + " at the beginning of main, and is kept alive between requests. The methods are"
+              + " status, continue, step (depth: into, over or out), addBreakpoint and"
+              + " removeBreakpoint (line), breakpoints, snapshot (capture, captureDepth, or depth"
+              + " for a shallow snapshot), fetch (ref, depth) and terminate. Breakpoints given with"
+              + " -b are set from the start, and the budget options, --arg and --stdin apply; the"
+              + " other trace options are ignored. With --record, the program runs to its end"
+              + " first, and the methods are steps, snapshot (step) and terminate instead.",
+      mixinStandardHelpOptions = true)
+  static class Session extends Trace {
+    @Option(
+        names = {"--port"},
+        paramLabel = "PORT",
+        description =
+            "Serve requests to one client at a time on PORT on the loopback address instead of "
+                + "stdin and stdout, until a client terminates the session. Use 0 for any free "
+                + "port. The port is printed to stderr.")
+    Integer port = null;
+
+    @Option(
+        names = {"--record"},
+        description =
+            "Record every line that the program runs before answering requests, so that its state "
+                + "before any of them can be looked up in any order. Each line counts towards "
+                + "--max-hits.")
+    boolean record = false;
+
+    @Option(
+        names = {"--checkpoint-interval"},
+        paramLabel = "N",
+        description =
+            "With --record, take a full snapshot of the program every N lines, and only log what "
+                + "changed in between. Lower values make looking up a line faster and recording "
+                + "slower. Defaults to ${DEFAULT-VALUE}.")
+    int checkpointInterval = 50;
 
-        if (breakpoints == null) {
-          ExecutionSnapshot trace = DebugTraceHelper.trace(compilationResult, cu);
-          JSONObject pyTutorSnapshot = configuredSerializer.serialize(source, trace);
-          System.out.println(pyTutorSnapshot);
+    /** Start the program and answer requests about it until the session is terminated. */
+    @Override
+    public void run() {
+      try {
+        if (prebuiltProgram().isPresent() || sourceProject().isPresent()) {
+          throw new IllegalArgumentException("A session only runs a single source file.");
+        } // if
+        if (input == null && port == null) {
+          throw new IllegalArgumentException(
+              "A session reads its requests from stdin, so the program must be given with "
+                  + "--input.");
+        } // if
+        if (inputs != null) {
+          throw new IllegalArgumentException("A session only runs the program once.");
+        } // if
+        String source = readInputFile();
+        TraceOptions options = options();
+        ProgramInput programInput = programInput();
+        if (record) {
+          TraceRecording recording =
+              new Tracer(options)
+                  .record(source, programInput, checkpointInterval, new TraceMetrics());
+          recording
+              .termination()
+              .ifPresent(t -> System.err.println("Recording stopped early: " + t.message()));
+          serve(new RecordingServer(recording, source, options.serializer()));
         } else {
-          Map<Integer, List<ExecutionSnapshot>> trace =
-              DebugTraceHelper.trace(compilationResult, breakpoints, cu);
-          if (accumulateBreakpoints) {
-            Map<Integer, JSONArray> pyTutorSnapshots =
-                trace.entrySet().stream()
-                    .collect(
-                        Collectors.toMap(
-                            Map.Entry::getKey,
-                            e ->
-                                new JSONArray(
-                                    e.getValue().stream()
-                                        .map(s -> configuredSerializer.serialize(source, s))
-                                        .toList())));
-            System.out.println(new JSONObject(pyTutorSnapshots));
-          } else {
-            Map<Integer, JSONObject> pyTutorSnapshots =
-                (Map<Integer, JSONObject>)
-                    trace.entrySet().stream()
-                        .collect(
-                            Collectors.toMap(
-                                Map.Entry::getKey,
-                                e ->
-                                    configuredSerializer.serialize(
-                                        source, e.getValue().getLast())));
-            System.out.println(new JSONObject(pyTutorSnapshots));
-          }
+          try (TraceSession session =
+              new Tracer(options).startSession(source, programInput, new TraceMetrics())) {
+            serve(new SessionServer(session, source, options.serializer()));
+          } // try
         } // if
       } catch (Throwable cause) {
-        System.err.println("Unable to generate trace!");
+        System.err.println("Unable to run session!");
         if (verbose) {
           cause.printStackTrace();
         } // if
         System.exit(1);
       } // try
     }
+
+    /**
+     * Answer requests on stdin and stdout, or from one client at a time on --port, until the server
+     * is terminated.
+     *
+     * @param server The server to answer requests with.
+     */
+    private void serve(JsonRpcServer server) throws IOException, InterruptedException {
+      if (port == null) {
+        server.serve(
+            new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8)),
+            new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+      } else {
+        try (ServerSocket listener = new ServerSocket(port, 1, InetAddress.getLoopbackAddress())) {
+          System.err.println("Listening on port " + listener.getLocalPort());
+          while (!server.terminated()) {
+            try (Socket client = listener.accept()) {
+              server.serve(
+                  new BufferedReader(
+                      new InputStreamReader(client.getInputStream(), StandardCharsets.UTF_8)),
+                  new OutputStreamWriter(client.getOutputStream(), StandardCharsets.UTF_8));
+            } // try
+          } // while
+        } // try
+      } // if
+    }
+  }
+
+  /** Trace many programs concurrently. */
+  @Command(
+      name = "trace-batch",
+      description =
+          "Generate execution traces for many Java programs concurrently, writing each trace to "
+              + "its own file.",
+      mixinStandardHelpOptions = true)
+  static class TraceBatch implements Runnable {
+    @Option(
+        names = {"--verbose", "-v"},
+        description = "Output stack traces for programs that couldn't be traced.")
+    boolean verbose = false;
+
+    @Option(
+        names = {"--output-dir", "-o"},
+        paramLabel = "DIR",
+        description =
+            "Directory to write traces to. Each trace is named after its program's path relative "
+                + "to INPUT, with a .json extension. Defaults to `traces`.")
+    Path outputDir = Path.of("traces");
+
+    @Option(
+        names = {"--jobs", "-j"},
+        paramLabel = "N",
+        description =
+            "The maximum number of programs to trace at once. Defaults to the number of "
+                + "processors, or fewer if there isn't enough free memory for that many.")
+    int jobs = TraceScheduler.hostConcurrencyLimit(TraceScheduler.DEFAULT_BYTES_PER_TRACE);
+
+    @Option(
+        names = {"--deadline"},
+        paramLabel = "SECONDS",
+        description =
+            "Give each program at most SECONDS from when the batch starts to finish. Time spent "
+                + "waiting for a job counts, and programs that can't start in time are skipped.")
+    Double deadline = null;
+
+    @Option(
+        names = {"--cache-size"},
+        paramLabel = "N",
+        description =
+            "The number of traces to keep in memory so that identical programs with identical "
+                + "options are only traced once. Defaults to 256.")
+    int cacheSize = 256;
+
+    @Option(
+        names = {"--cache-dir"},
+        paramLabel = "DIR",
+        description =
+            "Also reuse traces from DIR and store new traces there, so that they can be reused "
+                + "by later batches.")
+    Path cacheDir = null;
+
+    @Option(
+        names = {"--shared-jvms"},
+        description =
+            "Run the programs in --jobs long-lived JVMs that each trace one program after "
+                + "another, with a class loader per program, instead of starting a JVM for every "
+                + "program. The JDK's own state, like system properties, is shared between "
+                + "programs; a program that exits the JVM, is stopped early or leaves threads "
+                + "running gets a new JVM. Every JVM has the --max-heap given after `--`.")
+    boolean sharedJvms = false;
+
+    @Parameters(
+        index = "0",
+        paramLabel = "INPUT",
+        description =
+            "A directory to search for .java files, or a manifest file. Each line of a manifest "
+                + "is the path of a Java source file (relative to the manifest) followed by trace "
+                + "options for that file. Blank lines and lines starting with # are ignored.")
+    Path input;
+
+    @Parameters(
+        index = "1..*",
+        paramLabel = "TRACE_OPTIONS",
+        description =
+            "Options for the trace command that apply to every program, given after `--`. "
+                + "Options from a manifest are added after these. With --timings, each "
+                + "program's timings are written next to its trace with a .timings.json "
+                + "extension.")
+    List<String> traceOptions = new ArrayList<>();
+
+    /**
+     * A program to trace.
+     *
+     * @param source The path to the program's source file.
+     * @param options The trace command options to trace the program with.
+     * @param output The path to write the program's trace to.
+     */
+    record BatchEntry(Path source, List<String> options, Path output) {}
+
+    /**
+     * The outcome of tracing a program.
+     *
+     * @param entry The program that was traced.
+     * @param elapsed How long compiling and tracing the program took.
+     * @param failure Why the program couldn't be traced, or empty if it was traced.
+     * @param termination Why the program was stopped early, or empty if it finished on its own.
+     * @param cached True if the trace was reused from the cache, false otherwise.
+     * @param rejected True if the program was skipped because it couldn't start before its
+     *     deadline, false otherwise.
+     */
+    record BatchResult(
+        BatchEntry entry,
+        Duration elapsed,
+        Optional<String> failure,
+        Optional<Termination> termination,
+        boolean cached,
+        boolean rejected) {}
+
+    /** Trace every program in the batch and output a summary of the results to stdout. */
+    @Override
+    public void run() {
+      List<BatchEntry> entries;
+      TraceCache cache;
+      Optional<String> hostHeapSize;
+      try {
+        if (jobs < 1) {
+          throw new IllegalArgumentException("The number of jobs must be positive.");
+        } // if
+        if (deadline != null && deadline <= 0) {
+          throw new IllegalArgumentException("The deadline must be positive.");
+        } // if
+        entries = Files.isDirectory(input) ? findSources() : readManifest();
+        cache = new TraceCache(cacheSize, Optional.ofNullable(cacheDir));
+        hostHeapSize = Optional.empty();
+        if (sharedJvms) {
+          // the shared JVMs get the heap size that applies to every program
+          Trace shared = new Trace();
+          new CommandLine(shared).parseArgs(traceOptions.toArray(String[]::new));
+          hostHeapSize = Optional.ofNullable(shared.maxHeap);
+        } // if
+      } catch (IOException | IllegalArgumentException | ParameterException cause) {
+        System.err.println("Unable to read batch input: " + cause.getMessage());
+        if (verbose) {
+          cause.printStackTrace();
+        } // if
+        System.exit(1);
+        return;
+      } // try
+
+      // every program gets a virtual thread and waits in the scheduler's queue, but only `jobs`
+      // of them compile and run a debuggee at any time. the whole batch is queued up front, so
+      // the queue is big enough to never turn a program away
+      long startTime = System.nanoTime();
+      TraceScheduler scheduler = new TraceScheduler(jobs, entries.size());
+      Optional<DebuggeeHostPool> hosts =
+          sharedJvms ? Optional.of(new DebuggeeHostPool(jobs, hostHeapSize)) : Optional.empty();
+      Duration programDeadline =
+          deadline == null
+              ? ChronoUnit.FOREVER.getDuration()
+              : Duration.ofMillis((long) (deadline * 1000));
+      List<Future<BatchResult>> futures = new ArrayList<>();
+      try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+        for (BatchEntry entry : entries) {
+          futures.add(
+              executor.submit(() -> traceEntry(entry, cache, hosts, scheduler, programDeadline)));
+        } // for
+      } finally {
+        hosts.ifPresent(DebuggeeHostPool::close);
+      } // try
+      Duration elapsed = Duration.ofNanos(System.nanoTime() - startTime);
+
+      List<BatchResult> results = futures.stream().map(Future::resultNow).toList();
+      long failed = results.stream().filter(r -> r.failure().isPresent() && !r.rejected()).count();
+      long stopped = results.stream().filter(r -> r.termination().isPresent()).count();
+      long skipped = results.stream().filter(BatchResult::rejected).count();
+      for (BatchResult result : results) {
+        String status = result.failure().isPresent() ? "FAILED" : "ok";
+        if (result.rejected()) {
+          status = "skipped";
+        } else if (result.termination().isPresent()) {
+          status = "stopped";
+        } else if (result.cached()) {
+          status = "cached";
+        } // if
+        System.out.printf(
+            "%-7s %8.2fs  %s%n",
+            status, result.elapsed().toMillis() / 1000.0, result.entry().source());
+        result
+            .failure()
+            .or(() -> result.termination().map(Termination::message))
+            .ifPresent(message -> System.out.println(message.indent(4).stripTrailing()));
+      } // for
+      System.out.printf(
+          "Traced %d programs in %.2fs with %d jobs: %d failed, %d stopped early, %d skipped.%n",
+          results.size(), elapsed.toMillis() / 1000.0, jobs, failed, stopped, skipped);
+      System.out.printf(
+          "Programs waited %.2fs on average for a job.%n",
+          scheduler.stats().averageWait().toMillis() / 1000.0);
+
+      if (failed > 0) {
+        System.exit(1);
+      } // if
+    }
+
+    /**
+     * Compile and trace one program of the batch and write its trace to disk.
+     *
+     * @param entry The program to trace.
+     * @param cache The cache of traces shared by the whole batch.
+     * @param hosts The shared JVMs to trace the program in, or empty to give it a JVM of its own.
+     * @param scheduler The scheduler that limits how many programs are traced at once.
+     * @param programDeadline How long the program has to finish, including time spent waiting.
+     * @return The outcome of tracing the program.
+     */
+    private BatchResult traceEntry(
+        BatchEntry entry,
+        TraceCache cache,
+        Optional<DebuggeeHostPool> hosts,
+        TraceScheduler scheduler,
+        Duration programDeadline) {
+      long startTime = System.nanoTime();
+      try {
+        Trace trace = new Trace();
+        new CommandLine(trace).parseArgs(entry.options().toArray(String[]::new));
+        if (trace.inputs != null) {
+          throw new IllegalArgumentException("--inputs can't be used in a batch.");
+        } // if
+        if (trace.sharedJvms) {
+          throw new IllegalArgumentException("--shared-jvms is an option of the whole batch.");
+        } // if
+        TraceOptions options = trace.options();
+        ProgramInput programInput = trace.programInput();
+        String source = Files.readString(entry.source());
+        Files.createDirectories(entry.output().getParent());
+        TraceMetrics metrics = new TraceMetrics();
+        CachedTrace result =
+            scheduler.run(
+                programDeadline,
+                remaining -> {
+                  TraceOptions entryOptions =
+                      deadline == null
+                          ? options
+                          : options.withBudget(options.budget().withWallClockAtMost(remaining));
+                  return cache.getOrTrace(
+                      hosts.isPresent()
+                          ? new Tracer(entryOptions, hosts.get())
+                          : new Tracer(entryOptions),
+                      source,
+                      programInput,
+                      metrics);
+                });
+        Files.writeString(entry.output(), result.json());
+        if (trace.timings) {
+          Duration elapsed = Duration.ofNanos(System.nanoTime() - startTime);
+          Path timingsOutput =
+              entry
+                  .output()
+                  .resolveSibling(
+                      entry.output().getFileName().toString().replaceAll("\\.json$", "")
+                          + ".timings.json");
+          Files.writeString(
+              timingsOutput, Trace.timingsJson(metrics, elapsed, result.cached()).toString());
+        } // if
+        return new BatchResult(
+            entry,
+            Duration.ofNanos(System.nanoTime() - startTime),
+            Optional.empty(),
+            result.termination(),
+            result.cached(),
+            false);
+      } catch (RejectedTraceException cause) {
+        return new BatchResult(
+            entry,
+            Duration.ofNanos(System.nanoTime() - startTime),
+            Optional.of(cause.getMessage()),
+            Optional.empty(),
+            false,
+            true);
+      } catch (Exception cause) {
+        if (verbose) {
+          cause.printStackTrace();
+        } // if
+        // the summary only has room for the first line of long messages like compiler errors
+        String message =
+            Objects.requireNonNullElse(cause.getMessage(), cause.toString())
+                .lines()
+                .findFirst()
+                .orElse(cause.toString());
+        return new BatchResult(
+            entry,
+            Duration.ofNanos(System.nanoTime() - startTime),
+            Optional.of(message),
+            Optional.empty(),
+            false,
+            false);
+      } // try
+    }
+
+    /**
+     * Find every Java source file in the input directory and its subdirectories.
+     *
+     * @return The programs to trace, in path order.
+     * @throws IOException If the directory couldn't be searched.
+     */
+    private List<BatchEntry> findSources() throws IOException {
+      try (Stream<Path> paths = Files.walk(input)) {
+        return paths
+            .filter(Files::isRegularFile)
+            .filter(p -> p.toString().endsWith(".java"))
+            .sorted()
+            .map(p -> new BatchEntry(p, traceOptions, outputPath(input.relativize(p))))
+            .toList();
+      } // try
+    }
+
+    /**
+     * Read the programs to trace from the input manifest.
+     *
+     * @return The programs to trace, in manifest order.
+     * @throws IOException If the manifest couldn't be read.
+     * @throws IllegalArgumentException If a listed source file doesn't exist.
+     */
+    private List<BatchEntry> readManifest() throws IOException {
+      Path manifestDir = input.toAbsolutePath().getParent();
+      List<BatchEntry> entries = new ArrayList<>();
+      for (String line : Files.readAllLines(input)) {
+        String stripped = line.strip();
+        if (stripped.isEmpty() || stripped.startsWith("#")) {
+          continue;
+        } // if
+
+        String[] fields = stripped.split("\\s+");
+        Path source = manifestDir.resolve(fields[0]).normalize();
+        if (!Files.isRegularFile(source)) {
+          throw new IllegalArgumentException("Source file " + source + " doesn't exist.");
+        } // if
+
+        List<String> options = new ArrayList<>(traceOptions);
+        options.addAll(Arrays.asList(fields).subList(1, fields.length));
+        Path relativeSource =
+            source.startsWith(manifestDir) ? manifestDir.relativize(source) : source.getFileName();
+        entries.add(new BatchEntry(source, options, outputPath(relativeSource)));
+      } // for
+      return entries;
+    }
+
+    /**
+     * Get the path to write a program's trace to.
+     *
+     * @param relativeSource The path to the program's source file relative to the input.
+     * @return The path in the output directory.
+     */
+    private Path outputPath(Path relativeSource) {
+      return outputDir.resolve(relativeSource.toString().replaceAll("\\.java$", "") + ".json");
+    }
   }
 
   /** List the breakpoint lines available for a compiled Java program. */
@@ -216,12 +1154,13 @@ public class App {
 
     @Override
     public void run() {
-      String source = readInputFile();
+      Optional<PrebuiltProgram> prebuiltProgram = prebuiltProgram();
+      Optional<SourceProject> sourceProject = sourceProject();
+      String source = readInputFile(prebuiltProgram, sourceProject);
 
       // show breakpoints
-      try {
-        CompilationResult compilationResult = CompilationHelper.compile(source);
-
+      try (CompilationResult compilationResult =
+          compileProgram(prebuiltProgram, sourceProject, source)) {
         Collection<Integer> availableBreakpoints =
             DebugTraceHelper.getValidBreakpointLines(compilationResult);
         String[] sourceLines = source.split("\n");
@@ -272,6 +1211,166 @@ public class App {
         System.exit(1);
       } // try
     }
+
+    /**
+     * Compile the program given on the command line, or list its classes if it is already compiled.
+     *
+     * @param prebuiltProgram The already-compiled program, if there is one.
+     * @param sourceProject The multi-file project, if there is one.
+     * @param source The program's source code, if it is neither.
+     * @return The CompilationResult for the program.
+     */
+    private static CompilationResult compileProgram(
+        Optional<PrebuiltProgram> prebuiltProgram,
+        Optional<SourceProject> sourceProject,
+        String source)
+        throws IOException {
+      if (prebuiltProgram.isPresent()) {
+        return CompilationHelper.fromClassPath(
+            prebuiltProgram.get().classPath(), prebuiltProgram.get().mainClass());
+      } else if (sourceProject.isPresent()) {
+        return CompilationHelper.compile(sourceProject.get(), new TraceMetrics());
+      } else {
+        return CompilationHelper.compile(source);
+      } // if
+    } // compileProgram
+  }
+
+  /** Create class data sharing archives that make JVMs start faster. */
+  @Command(
+      name = "warmup",
+      description =
+          "Run a training program that uses the parts of the JDK that short programs usually do, "
+              + "and archive the classes it loaded so that every JVM the tracer launches "
+              + "afterwards maps them in instead of loading them. Also creates an archive for the "
+              + "tracer's own JVM, which is used by starting java with the printed "
+              + "-XX:SharedArchiveFile option. Run it again after updating the JDK.",
+      mixinStandardHelpOptions = true)
+  static class Warmup implements Runnable {
+    /** The number of times each startup is timed. */
+    private static final int STARTUPS = 5;
+
+    /** The name of the tracer's archive in the archive directory. */
+    private static final String TRACER_ARCHIVE = "tracer.jsa";
+
+    @Option(
+        names = {"--verbose", "-v"},
+        description = "Output messages about what the tracer is doing.")
+    boolean verbose = false;
+
+    @Option(
+        names = {"--archive-dir"},
+        paramLabel = "DIR",
+        description =
+            "Create the archives in DIR. The tracer only uses the archive for traced programs "
+                + "in DIR if it is started with -D"
+                + SharedArchive.DIRECTORY_PROPERTY
+                + "=DIR. Defaults to a directory for the current JDK in ~/.cache/code-tracer/cds.")
+    Path archiveDir = null;
+
+    @Option(
+        names = {"--skip-tracer"},
+        description = "Only create the archive for traced programs.")
+    boolean skipTracer = false;
+
+    @Override
+    public void run() {
+      Path dir = archiveDir == null ? SharedArchive.defaultDirectory() : archiveDir;
+      try {
+        SharedArchive archive = SharedArchive.create(dir);
+        System.out.println("Created " + archive.archive());
+        long cold = medianStartup(archive.trainingCommand(false));
+        long warm = medianStartup(archive.trainingCommand(true));
+        System.out.printf(
+            "Training program startup: %d ms without the archive, %d ms with it.%n", cold, warm);
+
+        if (!skipTracer) {
+          createTracerArchive(dir.resolve(TRACER_ARCHIVE));
+        } // if
+      } catch (Throwable cause) {
+        System.err.println("Unable to create the archives!");
+        if (verbose) {
+          cause.printStackTrace();
+        } // if
+        System.exit(1);
+      } // try
+    }
+
+    /**
+     * Run a command several times and get its median wall clock time.
+     *
+     * @param command The command, which runs the training program.
+     * @return The median time in milliseconds.
+     */
+    private static long medianStartup(List<String> command)
+        throws IOException, InterruptedException {
+      long[] times = new long[STARTUPS];
+      for (int i = 0; i < STARTUPS; i++) {
+        long start = System.nanoTime();
+        SharedArchive.runTraining(command);
+        times[i] = Duration.ofNanos(System.nanoTime() - start).toMillis();
+      } // for
+      Arrays.sort(times);
+      return times[STARTUPS / 2];
+    } // medianStartup
+
+    /**
+     * Create an archive for the tracer's JVM by tracing the training program with it. An archive
+     * can only be created for a class path of jars, so this is skipped when the tracer runs from
+     * class directories.
+     *
+     * @param tracerArchive The archive to create.
+     */
+    private static void createTracerArchive(Path tracerArchive)
+        throws IOException, InterruptedException {
+      String classPath = System.getProperty("java.class.path");
+      if (Arrays.stream(classPath.split(Pattern.quote(File.pathSeparator)))
+          .anyMatch(entry -> Files.isDirectory(Path.of(entry)))) {
+        System.out.println("Skipped the tracer's archive, since the tracer isn't run from a jar.");
+        return;
+      } // if
+
+      Path training = Files.createTempDirectory("code-tracer-warmup");
+      try {
+        Path source =
+            Files.writeString(
+                training.resolve("CodeTracerWarmup.java"), SharedArchive.TRAINING_SOURCE);
+        Path stdin = Files.writeString(training.resolve("stdin.txt"), SharedArchive.TRAINING_STDIN);
+        List<String> command =
+            List.of(
+                Path.of(System.getProperty("java.home"), "bin", "java").toString(),
+                "-XX:ArchiveClassesAtExit=" + tracerArchive,
+                "-classpath",
+                classPath,
+                App.class.getName(),
+                "trace",
+                "-i",
+                source.toString(),
+                "--stdin",
+                stdin.toString());
+        Process process =
+            new ProcessBuilder(command)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .redirectError(ProcessBuilder.Redirect.DISCARD)
+                .start();
+        if (process.waitFor() != 0 || !Files.isRegularFile(tracerArchive)) {
+          throw new IOException("The tracer's training run didn't create an archive.");
+        } // if
+      } finally {
+        Files.deleteIfExists(training.resolve("CodeTracerWarmup.java"));
+        Files.deleteIfExists(training.resolve("stdin.txt"));
+        Files.deleteIfExists(training);
+      } // try
+      System.out.println("Created " + tracerArchive);
+      System.out.println(
+          "Start the tracer with java -XX:SharedArchiveFile="
+              + tracerArchive
+              + " -Xshare:auto -cp "
+              + classPath
+              + " "
+              + App.class.getName()
+              + " to use it.");
+    } // createTracerArchive
   }
 
   /** Print dependency licenses to console. */
@@ -10,13 +10,19 @@ import com.github.javaparser.ast.body.BodyDeclaration;
 import com.github.javaparser.ast.body.MethodDeclaration;
 import com.github.javaparser.ast.body.TypeDeclaration;
 import com.github.javaparser.ast.nodeTypes.modifiers.NodeWithPublicModifier;
+import cs1302.tracer.trace.TraceMetrics;
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
-import java.util.function.Predicate;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 import javax.tools.*;
@@ -25,6 +31,12 @@ import javax.tools.JavaFileObject.Kind;
 /** A collection of methods that are used to compile a Java program. */
 public class CompilationHelper {
 
+  /** The cleanup hooks of working directories that haven't been deleted yet. */
+  private static final Map<Path, Thread> workingDirCleanupHooks = new ConcurrentHashMap<>();
+
+  /** Matches source code that might declare a main method, so other files aren't parsed. */
+  private static final Pattern MAIN_DECLARATION = Pattern.compile("\\bvoid\\s+main\\s*\\(");
+
   /**
    * Compile a Java program.
    *
@@ -33,12 +45,180 @@ public class CompilationHelper {
    * @throws IllegalArgumentException If the Java program failed to compile.
    */
   public static CompilationResult compile(String javaSource) throws IOException {
+    return compile(javaSource, new TraceMetrics());
+  }
+
+  /**
+   * Compile a Java program and record how long parsing and compiling it took.
+   *
+   * @param javaSource The Java program to compile.
+   * @param metrics The metrics to record the parse and compile phases in.
+   * @return The CompilationResult for this compilation.
+   * @throws IllegalArgumentException If the Java program failed to compile.
+   */
+  public static CompilationResult compile(String javaSource, TraceMetrics metrics)
+      throws IOException {
+    CompilationTarget target = prepare(javaSource, metrics);
+    return metrics.time(TraceMetrics.Phase.COMPILE, () -> compile(target));
+  }
+
+  /**
+   * Start compiling a Java program on another thread. The program is parsed and its working
+   * directory is created first, so its class path and main class are known right away, and later
+   * stages of a trace, like launching its JVM, can run while javac does.
+   *
+   * @param javaSource The Java program to compile.
+   * @param metrics The metrics to record the parse and compile phases in.
+   * @return The compilation, which finishes in the background.
+   * @throws IllegalArgumentException If the Java program failed to parse or has no main method.
+   */
+  public static PendingCompilation compileAsync(String javaSource, TraceMetrics metrics)
+      throws IOException {
+    return compileInBackground(prepare(javaSource, metrics), metrics);
+  }
+
+  /**
+   * Compile every source file in a project directory in a single javac task.
+   *
+   * @param project The project to compile.
+   * @param metrics The metrics to record the compile phase in.
+   * @return The CompilationResult for this compilation.
+   * @throws IllegalArgumentException If the project failed to compile.
+   */
+  public static CompilationResult compile(SourceProject project, TraceMetrics metrics)
+      throws IOException {
+    CompilationTarget target = prepare(project);
+    return metrics.time(TraceMetrics.Phase.COMPILE, () -> compile(target));
+  }
+
+  /**
+   * Start compiling every source file in a project directory on another thread, like {@link
+   * #compileAsync(String, TraceMetrics)}.
+   *
+   * @param project The project to compile.
+   * @param metrics The metrics to record the compile phase in.
+   * @return The compilation, which finishes in the background.
+   */
+  public static PendingCompilation compileAsync(SourceProject project, TraceMetrics metrics)
+      throws IOException {
+    return compileInBackground(prepare(project), metrics);
+  }
+
+  /**
+   * Run javac on a prepared program on a new virtual thread.
+   *
+   * @param target Where and what to compile.
+   * @param metrics The metrics to record the compile phase in.
+   * @return The compilation, which finishes in the background.
+   */
+  private static PendingCompilation compileInBackground(
+      CompilationTarget target, TraceMetrics metrics) {
+    CompletableFuture<CompilationResult> result = new CompletableFuture<>();
+    Thread.ofVirtual()
+        .name("javac")
+        .start(
+            () -> {
+              try {
+                result.complete(metrics.time(TraceMetrics.Phase.COMPILE, () -> compile(target)));
+              } catch (IOException | RuntimeException e) {
+                result.completeExceptionally(e);
+              }
+            });
+    return new PendingCompilation(target.workingDir(), target.mainClass(), result);
+  }
+
+  /**
+   * Describe a program that was already compiled, such as a directory of class files or a jar that
+   * was built with debug information, without running javac. Every class on the class path counts
+   * as one of the program's compiled classes.
+   *
+   * @param classPath The directories and jars that contain the program's classes.
+   * @param mainClass The binary name of the class that contains the main method.
+   * @return The CompilationResult for the program.
+   * @throws IllegalArgumentException If the main class isn't on the class path.
+   * @throws IOException If a class path entry couldn't be read.
+   */
+  public static CompilationResult fromClassPath(List<Path> classPath, String mainClass)
+      throws IOException {
+    Set<String> classNames = new HashSet<>();
+    for (Path entry : classPath) {
+      if (Files.isDirectory(entry)) {
+        try (Stream<Path> files = Files.walk(entry)) {
+          files
+              .filter(f -> f.toString().endsWith(Kind.CLASS.extension))
+              .map(f -> binaryName(entry.relativize(f).toString().replace(File.separatorChar, '/')))
+              .flatMap(Optional::stream)
+              .forEach(classNames::add);
+        }
+      } else {
+        try (JarFile jar = new JarFile(entry.toFile())) {
+          jar.stream()
+              .map(JarEntry::getName)
+              .filter(name -> name.endsWith(Kind.CLASS.extension))
+              .map(CompilationHelper::binaryName)
+              .flatMap(Optional::stream)
+              .forEach(classNames::add);
+        }
+      }
+    }
+
+    if (!classNames.contains(mainClass)) {
+      throw new IllegalArgumentException(
+          String.format("The main class %s isn't on the class path %s.", mainClass, classPath));
+    }
+    return new CompilationResult(
+        List.copyOf(classPath), classNames, mainClass, sourcePathOf(mainClass));
+  }
+
+  /**
+   * Get the conventional path of a class's source file: its top-level class's binary name as a
+   * path, like {@code cs1302/Main.java} for {@code cs1302.Main$Inner}.
+   *
+   * @param binaryName The class's binary name.
+   * @return The source file's path relative to its source root, separated by slashes.
+   */
+  static String sourcePathOf(String binaryName) {
+    return binaryName.split("\\$")[0].replace('.', '/') + Kind.SOURCE.extension;
+  }
+
+  /**
+   * Get the binary name of the class in a class file.
+   *
+   * @param classFile The class file's path relative to its class path entry, separated by slashes.
+   * @return The class's binary name, or empty if the file isn't a class, such as {@code
+   *     module-info.class} or a class for another Java version in a multi-release jar.
+   */
+  private static Optional<String> binaryName(String classFile) {
+    if (classFile.startsWith("META-INF/")
+        || classFile.endsWith("module-info.class")
+        || classFile.endsWith("package-info.class")) {
+      return Optional.empty();
+    }
+    return Optional.of(
+        classFile
+            .substring(0, classFile.length() - Kind.CLASS.extension.length())
+            .replace('/', '.'));
+  }
+
+  /**
+   * Parse a Java program and write it to a new working directory, ready for javac.
+   *
+   * @param javaSource The Java program to compile.
+   * @param metrics The metrics to record the parse phase in.
+   * @return Where and what to compile.
+   * @throws IllegalArgumentException If the Java program failed to parse or has no main method.
+   */
+  private static CompilationTarget prepare(String javaSource, TraceMetrics metrics)
+      throws IOException {
     /*
      * Parse source code
      */
     ParseResult<CompilationUnit> parseResult =
-        new JavaParser(new ParserConfiguration().setLanguageLevel(LanguageLevel.CURRENT))
-            .parse(javaSource);
+        metrics.time(
+            TraceMetrics.Phase.PARSE,
+            () ->
+                new JavaParser(new ParserConfiguration().setLanguageLevel(LanguageLevel.CURRENT))
+                    .parse(javaSource));
     if (!parseResult.isSuccessful()) {
       throw new IllegalArgumentException(
           "Parsing failed with the following errors: "
@@ -48,13 +228,15 @@ public class CompilationHelper {
     }
 
     CompilationUnit sourceCompilationUnit = parseResult.getResult().get();
+    String[] topLevelClassBinaryName =
+        findTopLevelDeclarationBinaryName(sourceCompilationUnit).split("\\.");
+    MethodDeclaration mainMethod = findMain(sourceCompilationUnit);
+    String mainClass = String.join(".", getAncestorFqn(sourceCompilationUnit, mainMethod));
 
     /*
      * Create a working directory tree for compilation
      */
     Path workingDir = createWorkingDir();
-    String[] topLevelClassBinaryName =
-        findTopLevelDeclarationBinaryName(sourceCompilationUnit).split("\\.");
 
     Path inputSourceDirectory;
     if (topLevelClassBinaryName.length == 1) {
@@ -72,6 +254,87 @@ public class CompilationHelper {
             topLevelClassBinaryName[topLevelClassBinaryName.length - 1] + Kind.SOURCE.extension);
     Files.writeString(inputSourceFile, javaSource);
 
+    return new CompilationTarget(
+        workingDir,
+        List.of(inputSourceFile),
+        mainClass,
+        workingDir.relativize(inputSourceFile).toString().replace(File.separatorChar, '/'));
+  }
+
+  /**
+   * Collect a project's source files and create a working directory for its class files.
+   *
+   * @param project The project to compile.
+   * @return Where and what to compile.
+   */
+  private static CompilationTarget prepare(SourceProject project) throws IOException {
+    return new CompilationTarget(
+        createWorkingDir(),
+        sourceFiles(project.sourceRoot()),
+        project.mainClass(),
+        project.mainSourcePath());
+  }
+
+  /**
+   * Find every Java source file under a directory.
+   *
+   * @param sourceRoot The directory to search.
+   * @return The source files, in no particular order.
+   */
+  private static List<Path> sourceFiles(Path sourceRoot) throws IOException {
+    try (Stream<Path> files = Files.walk(sourceRoot)) {
+      return files
+          .filter(f -> f.toString().endsWith(Kind.SOURCE.extension))
+          .filter(Files::isRegularFile)
+          .toList();
+    }
+  }
+
+  /**
+   * Find the class that contains a project's main method. Only the files that look like they
+   * declare a main method are parsed.
+   *
+   * @param sourceRoot The project's source root.
+   * @return The binary name of the main class.
+   * @throws IllegalArgumentException If the project doesn't have exactly one main method.
+   */
+  static String findMainClass(Path sourceRoot) throws IOException {
+    JavaParser parser =
+        new JavaParser(new ParserConfiguration().setLanguageLevel(LanguageLevel.CURRENT));
+    List<String> mainClasses = new ArrayList<>();
+    for (Path sourceFile : sourceFiles(sourceRoot)) {
+      String javaSource = Files.readString(sourceFile);
+      if (!MAIN_DECLARATION.matcher(javaSource).find()) {
+        continue;
+      }
+      // files that don't parse are left for javac to report
+      parser
+          .parse(javaSource)
+          .getResult()
+          .ifPresent(
+              cu ->
+                  cu.findAll(MethodDeclaration.class, CompilationHelper::isMain)
+                      .forEach(m -> mainClasses.add(String.join(".", getAncestorFqn(cu, m)))));
+    }
+
+    if (mainClasses.size() != 1) {
+      throw new IllegalArgumentException(
+          String.format(
+              "The project in %s must have exactly one main method, but has %d: %s. Choose its"
+                  + " main class with --main-class.",
+              sourceRoot, mainClasses.size(), mainClasses));
+    }
+    return mainClasses.getFirst();
+  }
+
+  /**
+   * Compile a prepared Java program with javac.
+   *
+   * @param target Where and what to compile.
+   * @return The CompilationResult for this compilation.
+   * @throws IllegalArgumentException If the Java program failed to compile.
+   */
+  private static CompilationResult compile(CompilationTarget target) throws IOException {
     /*
      * Compile Java source code
      */
@@ -97,7 +360,7 @@ public class CompilationHelper {
           }
         };
     Iterable<? extends JavaFileObject> compilationUnit =
-        standardFileManager.getJavaFileObjects(inputSourceFile);
+        standardFileManager.getJavaFileObjectsFromPaths(target.sourceFiles());
 
     boolean compilationSuccess =
         javaCompiler
@@ -105,7 +368,7 @@ public class CompilationHelper {
                 null,
                 forwardingFileManager,
                 diagnosticCollector,
-                List.of("-g"),
+                List.of("-g", "-d", target.workingDir().toString()),
                 null,
                 compilationUnit)
             .call();
@@ -124,35 +387,65 @@ public class CompilationHelper {
                 .collect(Collectors.joining("\n")));
       }
 
+      // nothing will run from a failed compilation, so its classes aren't kept until exit
+      deleteWorkingDir(target.workingDir());
       throw new IllegalArgumentException(message.toString());
     }
 
-    MethodDeclaration mainMethod = findMain(sourceCompilationUnit);
-    String mainClass = String.join(".", getAncestorFqn(sourceCompilationUnit, mainMethod));
-
-    return new CompilationResult(workingDir, compiledClassNames, mainClass);
+    return new CompilationResult(
+        List.of(target.workingDir()),
+        compiledClassNames,
+        target.mainClass(),
+        target.mainSourcePath());
   }
 
   /**
-   * Create a temporary working directory that will be removed at JVM exit.
+   * Create a temporary working directory that will be removed at JVM exit, unless it is deleted
+   * before then with {@link #deleteWorkingDir(Path)}.
    *
    * @return The path to the created temporary working directory.
    */
   private static Path createWorkingDir() throws IOException {
     Path workingDir = Files.createTempDirectory("code-tracer");
-    Thread workingDirCleanupHook =
-        new Thread(
-            () -> {
-              try (Stream<Path> paths = Files.walk(workingDir)) {
-                paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
-              } catch (IOException e) {
-                return;
-              }
-            });
+    Thread workingDirCleanupHook = new Thread(() -> deleteRecursively(workingDir));
+    workingDirCleanupHooks.put(workingDir, workingDirCleanupHook);
     Runtime.getRuntime().addShutdownHook(workingDirCleanupHook);
     return workingDir;
   }
 
+  /**
+   * Delete a working directory now instead of at JVM exit. Paths that weren't created by {@link
+   * #createWorkingDir()}, or that were already deleted, are left alone.
+   *
+   * @param workingDir The working directory to delete.
+   */
+  private static void deleteWorkingDir(Path workingDir) {
+    Thread workingDirCleanupHook = workingDirCleanupHooks.remove(workingDir);
+    if (workingDirCleanupHook == null) {
+      return;
+    }
+    try {
+      Runtime.getRuntime().removeShutdownHook(workingDirCleanupHook);
+    } catch (IllegalStateException e) {
+      // the JVM is already shutting down, so the hook will delete the directory
+      return;
+    }
+    deleteRecursively(workingDir);
+  }
+
+  /**
+   * Delete a directory and everything in it, ignoring any errors.
+   *
+   * @param directory The directory to delete.
+   */
+  private static void deleteRecursively(Path directory) {
+    try (Stream<Path> paths = Files.walk(directory)) {
+      paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+    } catch (IOException e) {
+      return;
+    }
+  }
+
   /**
    * Find the binary name of the single top-level declaration in a compilation unit.
    *
@@ -246,31 +539,8 @@ public class CompilationHelper {
    * @throws IllegalArgumentException if the source code doesn't have exactly one main method
    */
   private static MethodDeclaration findMain(CompilationUnit compilationUnit) {
-    Predicate<MethodDeclaration> isMain =
-        m -> {
-          boolean isNamedMain = m.getNameAsString().equals("main");
-          boolean hasVoidReturn = m.getType().isVoidType();
-          // we fall back to checking type strings with these param checks because
-          // otherwise they fail when String is given as an fqn (java.lang.String)
-          boolean hasStringArrArg =
-              m.getParameterByType(String[].class)
-                  .or(() -> m.getParameterByType("java.lang.String[]"))
-                  .isPresent();
-          boolean hasStringVarargsArg =
-              m.getParameterByType(String.class)
-                  .or(() -> m.getParameterByType("java.lang.String"))
-                  .map(p -> p.isVarArgs())
-                  .orElse(false);
-          boolean hasOneArg = m.getParameters().size() == 1;
-          return m.isPublic()
-              && m.isStatic()
-              && hasVoidReturn
-              && isNamedMain
-              && (hasStringArrArg ^ hasStringVarargsArg)
-              && hasOneArg;
-        };
-
-    List<MethodDeclaration> mainMethods = compilationUnit.findAll(MethodDeclaration.class, isMain);
+    List<MethodDeclaration> mainMethods =
+        compilationUnit.findAll(MethodDeclaration.class, CompilationHelper::isMain);
 
     if (mainMethods.size() != 1) {
       String lines =
@@ -294,12 +564,104 @@ public class CompilationHelper {
   }
 
   /**
-   * A collection of information from the successful compilation of a Java program.
+   * Check whether a method is a main method that the tracer can run.
+   *
+   * @param m The method to check.
+   * @return True if the method is {@code public static void main(String[])}, or the varargs
+   *     equivalent.
+   */
+  private static boolean isMain(MethodDeclaration m) {
+    boolean isNamedMain = m.getNameAsString().equals("main");
+    boolean hasVoidReturn = m.getType().isVoidType();
+    // we fall back to checking type strings with these param checks because
+    // otherwise they fail when String is given as an fqn (java.lang.String)
+    boolean hasStringArrArg =
+        m.getParameterByType(String[].class)
+            .or(() -> m.getParameterByType("java.lang.String[]"))
+            .isPresent();
+    boolean hasStringVarargsArg =
+        m.getParameterByType(String.class)
+            .or(() -> m.getParameterByType("java.lang.String"))
+            .map(p -> p.isVarArgs())
+            .orElse(false);
+    boolean hasOneArg = m.getParameters().size() == 1;
+    return m.isPublic()
+        && m.isStatic()
+        && hasVoidReturn
+        && isNamedMain
+        && (hasStringArrArg ^ hasStringVarargsArg)
+        && hasOneArg;
+  }
+
+  /**
+   * A Java program that is ready to be compiled.
+   *
+   * @param workingDir The directory that the program is compiled in, and the root of its class
+   *     path.
+   * @param sourceFiles The program's source files.
+   * @param mainClass Binary name of the class that contains the main method.
+   * @param mainSourcePath The path of the main class's source file relative to its source root,
+   *     with {@code /} as the separator.
+   */
+  private record CompilationTarget(
+      Path workingDir, List<Path> sourceFiles, String mainClass, String mainSourcePath) {}
+
+  /**
+   * A compilation that is running in the background.
+   *
+   * @param classPath Root of the class path where classes will be output.
+   * @param mainClass Binary name of the class that contains the main method.
+   * @param result The result of the compilation, once javac finishes.
+   */
+  public record PendingCompilation(
+      Path classPath, String mainClass, CompletableFuture<CompilationResult> result) {
+
+    /**
+     * Wait for javac to finish.
+     *
+     * @return The CompilationResult for this compilation.
+     * @throws IllegalArgumentException If the Java program failed to compile.
+     * @throws IOException If the compiled classes couldn't be written.
+     * @throws InterruptedException If the thread was interrupted while waiting.
+     */
+    public CompilationResult await() throws IOException, InterruptedException {
+      try {
+        return result.get();
+      } catch (ExecutionException e) {
+        switch (e.getCause()) {
+          case IOException cause -> throw cause;
+          case RuntimeException cause -> throw cause;
+          case Error cause -> throw cause;
+          default -> throw new IllegalStateException(e.getCause());
+        }
+      }
+    }
+
+    /** Delete the compiled classes once javac finishes, for when they won't be used after all. */
+    public void discard() {
+      result.thenAccept(CompilationResult::close);
+    }
+  }
+
+  /**
+   * A collection of information from the successful compilation of a Java program. Closing it
+   * deletes the compiled classes, which would otherwise stay on disk until JVM exit. Classes that
+   * were compiled ahead of time with {@link #fromClassPath(List, String)} are left alone.
    *
-   * @param classPath Root of the class path where compiled classes were output.
+   * @param classPath The directories and jars of the class path where compiled classes were output.
    * @param compiledClassNames Binary names of the classes that were compiled.
    * @param mainClass Binary name of the class that contains the main method.
+   * @param mainSourcePath The path of the main class's source file relative to its source root,
+   *     separated by slashes, like {@code cs1302/Main.java}. Breakpoint lines refer to this file.
    */
   public record CompilationResult(
-      Path classPath, Set<String> compiledClassNames, String mainClass) {}
+      List<Path> classPath, Set<String> compiledClassNames, String mainClass, String mainSourcePath)
+      implements AutoCloseable {
+
+    /** Delete the working directory that the program was compiled into. */
+    @Override
+    public void close() {
+      classPath.forEach(CompilationHelper::deleteWorkingDir);
+    }
+  }
 }
@@ -0,0 +1,156 @@
+package cs1302.tracer;
+
+import cs1302.tracer.trace.TraceResult;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Optional;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Answers JSON-RPC 2.0 requests, with one request or response per line. Subclasses carry out the
+ * methods, and end the conversation with a {@code terminate} method of their own.
+ */
+public abstract class JsonRpcServer {
+
+  /** The error code for a request that isn't valid JSON. */
+  static final int PARSE_ERROR = -32700;
+
+  /** The error code for a request without a method. */
+  static final int INVALID_REQUEST = -32600;
+
+  /** The error code for a request with an unknown method. */
+  static final int METHOD_NOT_FOUND = -32601;
+
+  /** The error code for a request with missing or invalid parameters. */
+  static final int INVALID_PARAMS = -32602;
+
+  /** The error code for a request that the program can't carry out, such as after it ended. */
+  static final int PROGRAM_ERROR = -32000;
+
+  /** A request that failed with a JSON-RPC error. */
+  static final class RpcException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int code;
+
+    RpcException(int code, String message) {
+      super(message);
+      this.code = code;
+    }
+  }
+
+  private boolean terminated = false;
+
+  /**
+   * Answer requests until the server is terminated or there are no more requests. Requests without
+   * an {@code id} are notifications, which aren't answered.
+   *
+   * @param in The requests, one per line.
+   * @param out Where to write the responses, one per line. Each response is flushed.
+   */
+  public void serve(BufferedReader in, Writer out) throws IOException, InterruptedException {
+    String line;
+    while (!terminated && (line = in.readLine()) != null) {
+      if (line.isBlank()) {
+        continue;
+      }
+      Optional<JSONObject> response = handle(line);
+      if (response.isPresent()) {
+        out.write(response.get().toString());
+        out.write('\n');
+        out.flush();
+      }
+    }
+  }
+
+  /**
+   * Check whether the server has been terminated.
+   *
+   * @return True once a {@code terminate} request has been handled.
+   */
+  public boolean terminated() {
+    return terminated;
+  }
+
+  /** Stop answering requests after the current one. */
+  void terminate() {
+    terminated = true;
+  }
+
+  /**
+   * Handle one request.
+   *
+   * @param line The request.
+   * @return The response, or empty if the request is a notification.
+   */
+  Optional<JSONObject> handle(String line) throws InterruptedException {
+    JSONObject request;
+    try {
+      request = new JSONObject(line);
+    } catch (JSONException e) {
+      return Optional.of(error(JSONObject.NULL, PARSE_ERROR, "Parse error: " + e.getMessage()));
+    }
+
+    Object id = request.opt("id");
+    JSONObject response;
+    try {
+      String method = request.optString("method", null);
+      if (method == null) {
+        throw new RpcException(INVALID_REQUEST, "A request must have a method.");
+      }
+      JSONObject params = request.optJSONObject("params");
+      Object result = call(method, params == null ? new JSONObject() : params);
+      response = new JSONObject().put("jsonrpc", "2.0").put("id", id).put("result", result);
+    } catch (RpcException e) {
+      response = error(id, e.code, e.getMessage());
+    } catch (JSONException | IllegalArgumentException e) {
+      response = error(id, INVALID_PARAMS, e.getMessage());
+    } catch (InterruptedException e) {
+      throw e;
+    } catch (Exception e) {
+      response = error(id, PROGRAM_ERROR, e.getMessage());
+    }
+    return id == null ? Optional.empty() : Optional.of(response);
+  }
+
+  /**
+   * Carry out a request.
+   *
+   * @param method The request's method.
+   * @param params The request's parameters.
+   * @return The request's result.
+   * @throws RpcException If the method is unknown, or the request failed with a specific error.
+   * @throws IllegalArgumentException If the parameters are invalid.
+   */
+  abstract Object call(String method, JSONObject params) throws Exception;
+
+  /**
+   * Describe why a program was killed.
+   *
+   * @param termination Why the program was killed.
+   * @return The description, with the {@code reason} and a {@code message}.
+   */
+  static JSONObject terminationJson(TraceResult.Termination termination) {
+    return new JSONObject()
+        .put("reason", termination.reason())
+        .put("message", termination.message());
+  }
+
+  /**
+   * Create an error response.
+   *
+   * @param id The request's id.
+   * @param code The error code.
+   * @param message A description of the error.
+   * @return The response.
+   */
+  private static JSONObject error(Object id, int code, String message) {
+    return new JSONObject()
+        .put("jsonrpc", "2.0")
+        .put("id", id)
+        .put("error", new JSONObject().put("code", code).put("message", message));
+  }
+}
@@ -0,0 +1,65 @@
+package cs1302.tracer;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * A Java program that was compiled ahead of time, such as a directory of class files or a jar that
+ * was built with debug information ({@code javac -g}). Tracing it skips javac entirely. Its source
+ * is only needed for the main class's file, which is what the trace shows, and for resolving the
+ * types that the main class's code uses.
+ *
+ * @param classPath The directories and jars that contain the program's classes.
+ * @param mainClass The binary name of the class that contains the main method, like {@code
+ *     cs1302.Main}.
+ * @param sourceRoots The directories that contain the program's source files, laid out by package.
+ */
+public record PrebuiltProgram(List<Path> classPath, String mainClass, List<Path> sourceRoots) {
+
+  /**
+   * Create a program.
+   *
+   * @throws IllegalArgumentException If the class path is empty.
+   */
+  public PrebuiltProgram {
+    if (classPath.isEmpty()) {
+      throw new IllegalArgumentException("The class path must not be empty.");
+    }
+    classPath = List.copyOf(classPath);
+    sourceRoots = List.copyOf(sourceRoots);
+  }
+
+  /**
+   * Find the source file of the main class in the source roots. For a nested class, this is the
+   * file of its top-level class.
+   *
+   * @return The path to the main class's source file.
+   * @throws IllegalArgumentException If none of the source roots contain the file.
+   */
+  public Path mainSourceFile() {
+    String relativePath = CompilationHelper.sourcePathOf(mainClass);
+    return sourceRoots.stream()
+        .map(root -> root.resolve(relativePath))
+        .filter(Files::isRegularFile)
+        .findFirst()
+        .orElseThrow(
+            () ->
+                new IllegalArgumentException(
+                    String.format(
+                        "The source file %s of the main class isn't in the source roots %s.",
+                        relativePath, sourceRoots)));
+  }
+
+  /**
+   * Read the source code of the main class's file.
+   *
+   * @return The source code.
+   * @throws IllegalArgumentException If none of the source roots contain the file.
+   * @throws IOException If the file couldn't be read.
+   */
+  public String mainSource() throws IOException {
+    return Files.readString(mainSourceFile());
+  }
+}
@@ -0,0 +1,72 @@
+package cs1302.tracer;
+
+import cs1302.tracer.serialize.PyTutorSerializer;
+import cs1302.tracer.trace.TraceRecording;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Serves a {@link TraceRecording} over JSON-RPC 2.0, with one request or response per line, so that
+ * a client can move back and forth through a program that already ran. These are the methods, and
+ * the results they respond with:
+ *
+ * <ul>
+ *   <li>{@code steps}: the number of {@code steps}, the {@code lines} that they ran in order, and
+ *       the {@code checkpointInterval}. A program that was killed also has a {@code termination}
+ *       with its {@code reason} and {@code message}.
+ *   <li>{@code snapshot}: the program's state just before {@code step} ran, where 0 is the
+ *       beginning of main, in the OnlinePythonTutor format.
+ *   <li>{@code terminate}: end the session.
+ * </ul>
+ */
+public final class RecordingServer extends JsonRpcServer {
+
+  private final TraceRecording recording;
+
+  private final String javaSource;
+
+  private final PyTutorSerializer serializer;
+
+  /**
+   * Create a server for a recording.
+   *
+   * @param recording The recording to serve.
+   * @param javaSource The source code of the recorded program, which snapshots show.
+   * @param serializer The serializer for snapshots.
+   */
+  public RecordingServer(
+      TraceRecording recording, String javaSource, PyTutorSerializer serializer) {
+    this.recording = recording;
+    this.javaSource = javaSource;
+    this.serializer = serializer;
+  }
+
+  /**
+   * Carry out a request.
+   *
+   * @param method The request's method.
+   * @param params The request's parameters.
+   * @return The request's result.
+   */
+  @Override
+  Object call(String method, JSONObject params) {
+    return switch (method) {
+      case "steps" -> {
+        JSONObject json =
+            new JSONObject()
+                .put("steps", recording.steps())
+                .put("lines", new JSONArray(recording.lines()))
+                .put("checkpointInterval", recording.checkpointInterval());
+        recording.termination().ifPresent(t -> json.put("termination", terminationJson(t)));
+        yield json;
+      }
+      case "snapshot" ->
+          serializer.serialize(javaSource, recording.snapshot(params.getInt("step")));
+      case "terminate" -> {
+        terminate();
+        yield JSONObject.NULL;
+      }
+      default -> throw new RpcException(METHOD_NOT_FOUND, "Method not found: " + method);
+    };
+  }
+}
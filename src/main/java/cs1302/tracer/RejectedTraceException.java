@@ -0,0 +1,35 @@
+package cs1302.tracer;
+
+import java.time.Duration;
+
+/**
+ * Thrown when a {@link TraceScheduler} turns a trace away because it is saturated or because the
+ * trace's deadline passed while it was waiting.
+ */
+public class RejectedTraceException extends TraceException {
+
+  private static final long serialVersionUID = 1L;
+
+  private final Duration retryAfter;
+
+  /**
+   * Create an exception for a rejected trace.
+   *
+   * @param message Why the trace was rejected.
+   * @param retryAfter How long the caller should wait before trying again.
+   */
+  public RejectedTraceException(String message, Duration retryAfter) {
+    super(message, null);
+    this.retryAfter = retryAfter;
+  }
+
+  /**
+   * Get how long the caller should wait before trying again. This is an estimate of how long it
+   * will take the scheduler to work through the traces that are ahead of a new one.
+   *
+   * @return The time to wait before retrying.
+   */
+  public Duration retryAfter() {
+    return retryAfter;
+  }
+}
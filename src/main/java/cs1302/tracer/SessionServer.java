@@ -0,0 +1,149 @@
+package cs1302.tracer;
+
+import cs1302.tracer.serialize.PyTutorSerializer;
+import cs1302.tracer.trace.CaptureSpec;
+import cs1302.tracer.trace.TraceSession;
+import cs1302.tracer.trace.TraceSession.Status;
+import cs1302.tracer.trace.TraceSession.StepDepth;
+import java.util.Locale;
+import java.util.Optional;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Serves a {@link TraceSession} over JSON-RPC 2.0, with one request or response per line. These are
+ * the methods, and the results they respond with:
+ *
+ * <ul>
+ *   <li>{@code status}: where the program is, as {@code {"state": "paused", "line": 7, "method":
+ *       "main"}} or {@code {"state": "ended"}}. An ended program that was killed also has a {@code
+ *       termination} with its {@code reason} and {@code message}.
+ *   <li>{@code continue}: run until the next breakpoint or the end, then respond like {@code
+ *       status}.
+ *   <li>{@code step}: run to the next line, with {@code depth} {@code "into"}, {@code "over"} (the
+ *       default) or {@code "out"}, then respond like {@code status}.
+ *   <li>{@code addBreakpoint} and {@code removeBreakpoint}: change the breakpoint on {@code line},
+ *       and respond with whether it {@code changed} and with all {@code breakpoints}.
+ *   <li>{@code breakpoints}: all {@code breakpoints}.
+ *   <li>{@code snapshot}: the program's state in the OnlinePythonTutor format, only capturing the
+ *       comma-separated {@code capture} paths up to {@code captureDepth} if they are given. With
+ *       {@code depth}, the snapshot is shallow: objects more than {@code depth} references away
+ *       from the stack and statics are {@code ["UNEXPANDED", type]} until they are fetched.
+ *   <li>{@code fetch}: the unexpanded object {@code ref} and the objects within {@code depth}
+ *       (default 0) references of it, as a {@code heap} and {@code heap_attrs} in the same format
+ *       as a snapshot's. Objects can only be fetched until the program runs again.
+ *   <li>{@code terminate}: kill the program and end the session.
+ * </ul>
+ */
+public final class SessionServer extends JsonRpcServer {
+
+  private final TraceSession session;
+
+  private final String javaSource;
+
+  private final PyTutorSerializer serializer;
+
+  /**
+   * Create a server for a session.
+   *
+   * @param session The session to serve. It is closed once the session is terminated.
+   * @param javaSource The source code of the session's main source file, which snapshots show.
+   * @param serializer The serializer for snapshots.
+   */
+  public SessionServer(TraceSession session, String javaSource, PyTutorSerializer serializer) {
+    this.session = session;
+    this.javaSource = javaSource;
+    this.serializer = serializer;
+  }
+
+  /**
+   * Carry out a request.
+   *
+   * @param method The request's method.
+   * @param params The request's parameters.
+   * @return The request's result.
+   */
+  @Override
+  Object call(String method, JSONObject params) throws Exception {
+    return switch (method) {
+      case "status" -> statusJson(session.status());
+      case "continue" -> statusJson(session.resume());
+      case "step" -> statusJson(session.step(stepDepth(params.optString("depth", "over"))));
+      case "addBreakpoint" -> breakpointsJson(session.addBreakpoint(params.getInt("line")));
+      case "removeBreakpoint" -> breakpointsJson(session.removeBreakpoint(params.getInt("line")));
+      case "breakpoints" ->
+          new JSONObject().put("breakpoints", new JSONArray(session.breakpoints()));
+      case "snapshot" -> {
+        Optional<CaptureSpec> capture =
+            params.has("capture")
+                ? Optional.of(
+                    CaptureSpec.parse(
+                        params.getString("capture"),
+                        params.optInt("captureDepth", CaptureSpec.UNLIMITED_DEPTH)))
+                : Optional.empty();
+        if (params.has("depth")) {
+          if (capture.isPresent()) {
+            throw new RpcException(INVALID_PARAMS, "A snapshot can't have both capture and depth.");
+          }
+          yield serializer.serialize(javaSource, session.shallowSnapshot(params.getInt("depth")));
+        }
+        yield serializer.serialize(javaSource, session.snapshot(capture));
+      }
+      case "fetch" ->
+          serializer.serializeHeap(session.fetch(params.getLong("ref"), params.optInt("depth", 0)));
+      case "terminate" -> {
+        terminate();
+        session.close();
+        yield JSONObject.NULL;
+      }
+      default -> throw new RpcException(METHOD_NOT_FOUND, "Method not found: " + method);
+    };
+  }
+
+  /**
+   * Parse a step depth.
+   *
+   * @param depth {@code into}, {@code over} or {@code out}.
+   * @return The step depth.
+   */
+  private static StepDepth stepDepth(String depth) {
+    try {
+      return StepDepth.valueOf(depth.toUpperCase(Locale.ROOT));
+    } catch (IllegalArgumentException e) {
+      throw new RpcException(INVALID_PARAMS, "Unknown step depth: " + depth);
+    }
+  }
+
+  /**
+   * Describe where a session's program is.
+   *
+   * @param status The program's status.
+   * @return The description.
+   */
+  private static JSONObject statusJson(Status status) {
+    return switch (status) {
+      case Status.Paused paused ->
+          new JSONObject()
+              .put("state", "paused")
+              .put("line", paused.line())
+              .put("method", paused.method());
+      case Status.Ended ended -> {
+        JSONObject json = new JSONObject().put("state", "ended");
+        ended.termination().ifPresent(t -> json.put("termination", terminationJson(t)));
+        yield json;
+      }
+    };
+  }
+
+  /**
+   * Describe the session's breakpoints after a change.
+   *
+   * @param changed True if the breakpoints changed.
+   * @return The description.
+   */
+  private JSONObject breakpointsJson(boolean changed) {
+    return new JSONObject()
+        .put("changed", changed)
+        .put("breakpoints", new JSONArray(session.breakpoints()));
+  }
+}
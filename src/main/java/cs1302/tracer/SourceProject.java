@@ -0,0 +1,52 @@
+package cs1302.tracer;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Optional;
+
+/**
+ * A Java program that is spread over several source files in a directory, laid out by package. All
+ * of its files are compiled together, but the trace only shows the main class's file.
+ *
+ * @param sourceRoot The directory that contains the program's source files.
+ * @param mainClass The binary name of the class that contains the main method, like {@code
+ *     cs1302.Main}.
+ * @param mainSourcePath The path of the main class's source file relative to the source root, with
+ *     {@code /} as the separator.
+ */
+public record SourceProject(Path sourceRoot, String mainClass, String mainSourcePath) {
+
+  /**
+   * Describe the project in a directory.
+   *
+   * @param sourceRoot The directory that contains the program's source files.
+   * @param mainClass The binary name of the main class, or empty to find the one class with a main
+   *     method.
+   * @return The project.
+   * @throws IllegalArgumentException If the main class's source file isn't in the directory, or if
+   *     no main class was given and the project doesn't have exactly one main method.
+   * @throws IOException If the directory couldn't be read.
+   */
+  public static SourceProject of(Path sourceRoot, Optional<String> mainClass) throws IOException {
+    String binaryName =
+        mainClass.isPresent() ? mainClass.get() : CompilationHelper.findMainClass(sourceRoot);
+    String mainSourcePath = CompilationHelper.sourcePathOf(binaryName);
+    if (!Files.isRegularFile(sourceRoot.resolve(mainSourcePath))) {
+      throw new IllegalArgumentException(
+          String.format(
+              "The source file %s of the main class isn't in %s.", mainSourcePath, sourceRoot));
+    }
+    return new SourceProject(sourceRoot, binaryName, mainSourcePath);
+  }
+
+  /**
+   * Read the source code of the main class's file.
+   *
+   * @return The source code.
+   * @throws IOException If the file couldn't be read.
+   */
+  public String mainSource() throws IOException {
+    return Files.readString(sourceRoot.resolve(mainSourcePath));
+  }
+}
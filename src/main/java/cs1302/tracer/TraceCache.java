@@ -0,0 +1,304 @@
+package cs1302.tracer;
+
+import cs1302.tracer.trace.ProgramInput;
+import cs1302.tracer.trace.TraceMetrics;
+import cs1302.tracer.trace.TraceResult;
+import cs1302.tracer.trace.TraceResult.Termination;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * A cache of serialized traces, keyed by a hash of the traced source code, the program's input, and
+ * every option that affects the trace's output. Lookups check a bounded in-memory LRU tier first
+ * and then an optional on-disk tier. Concurrent lookups of the same trace share a single in-flight
+ * trace.
+ *
+ * <p>Only traces of programs that finished on their own are cached. A program that was stopped for
+ * exceeding its budget might finish on a less busy machine. This also means that the budget isn't
+ * part of the key. Programs are assumed to be deterministic, so a program that reads the clock or
+ * uses random numbers gets the output of whichever run was cached.
+ */
+public final class TraceCache {
+
+  /**
+   * The version of the cache key format. Bump this whenever the trace output changes so that stale
+   * disk entries are no longer found.
+   */
+  private static final int KEY_VERSION = 3;
+
+  private final Map<String, String> memoryTier;
+
+  private final Optional<Path> diskTier;
+
+  /** Traces that are currently being produced, keyed by cache key. */
+  private final Map<String, CompletableFuture<CachedTrace>> inFlight = new ConcurrentHashMap<>();
+
+  /**
+   * Create a trace cache.
+   *
+   * @param maxMemoryEntries The maximum number of traces to keep in memory. The least recently used
+   *     trace is evicted when there are more.
+   * @param diskTier A directory to store traces in, or empty to only cache traces in memory. It is
+   *     created if it doesn't exist.
+   * @throws IllegalArgumentException If {@code maxMemoryEntries} is negative.
+   */
+  public TraceCache(int maxMemoryEntries, Optional<Path> diskTier) {
+    if (maxMemoryEntries < 0) {
+      throw new IllegalArgumentException("The cache size must not be negative.");
+    }
+    this.memoryTier =
+        Collections.synchronizedMap(
+            new LinkedHashMap<>(16, 0.75f, true) {
+              @Override
+              protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                return size() > maxMemoryEntries;
+              }
+            });
+    this.diskTier = diskTier;
+  }
+
+  /**
+   * A serialized trace.
+   *
+   * @param json The trace JSON, as produced by {@link Tracer#serialize(String, TraceResult)}.
+   * @param termination Why the program was stopped early, or empty if it finished on its own.
+   * @param cached True if the trace came from the cache or from another request for the same trace,
+   *     false if it was produced for this request.
+   */
+  public record CachedTrace(String json, Optional<Termination> termination, boolean cached) {}
+
+  /**
+   * Get a program's serialized trace from the cache, or trace it if it isn't cached.
+   *
+   * @param tracer The tracer to trace the program with.
+   * @param javaSource The Java program to trace.
+   * @return The program's serialized trace.
+   * @throws IllegalArgumentException If the program couldn't be parsed or compiled.
+   * @throws TraceException If the program couldn't be traced.
+   */
+  public CachedTrace getOrTrace(Tracer tracer, String javaSource) throws TraceException {
+    return getOrTrace(tracer, javaSource, new TraceMetrics());
+  }
+
+  /**
+   * Get a program's serialized trace from the cache, or trace it if it isn't cached, and record
+   * where the time went. Metrics are only recorded if this request traces the program itself.
+   *
+   * @param tracer The tracer to trace the program with.
+   * @param javaSource The Java program to trace.
+   * @param metrics The metrics to record the trace's phases in.
+   * @return The program's serialized trace.
+   * @throws IllegalArgumentException If the program couldn't be parsed or compiled.
+   * @throws TraceException If the program couldn't be traced.
+   */
+  public CachedTrace getOrTrace(Tracer tracer, String javaSource, TraceMetrics metrics)
+      throws TraceException {
+    return getOrTrace(tracer, javaSource, ProgramInput.NONE, metrics);
+  }
+
+  /**
+   * Get the serialized trace of a program run with the given arguments and stdin from the cache, or
+   * trace it if it isn't cached, and record where the time went. Metrics are only recorded if this
+   * request traces the program itself.
+   *
+   * @param tracer The tracer to trace the program with.
+   * @param javaSource The Java program to trace.
+   * @param input The program's arguments and stdin.
+   * @param metrics The metrics to record the trace's phases in.
+   * @return The program's serialized trace.
+   * @throws IllegalArgumentException If the program couldn't be parsed or compiled.
+   * @throws TraceException If the program couldn't be traced.
+   */
+  public CachedTrace getOrTrace(
+      Tracer tracer, String javaSource, ProgramInput input, TraceMetrics metrics)
+      throws TraceException {
+    String key = key(javaSource, input, tracer.options());
+
+    String memoryHit = memoryTier.get(key);
+    if (memoryHit != null) {
+      return new CachedTrace(memoryHit, Optional.empty(), true);
+    }
+
+    CompletableFuture<CachedTrace> ownTrace = new CompletableFuture<>();
+    CompletableFuture<CachedTrace> otherTrace = inFlight.putIfAbsent(key, ownTrace);
+    if (otherTrace != null) {
+      CachedTrace shared = await(otherTrace);
+      return new CachedTrace(shared.json(), shared.termination(), true);
+    }
+
+    try {
+      CachedTrace trace = lookUpOrTrace(key, tracer, javaSource, input, metrics);
+      ownTrace.complete(trace);
+      return trace;
+    } catch (TraceException | RuntimeException e) {
+      ownTrace.completeExceptionally(e);
+      throw e;
+    } finally {
+      inFlight.remove(key, ownTrace);
+    }
+  }
+
+  /**
+   * Check every tier for a trace, and trace the program if none of them have it. This must only be
+   * called by the request that owns the key's in-flight trace.
+   *
+   * @param key The trace's cache key.
+   * @param tracer The tracer to trace the program with.
+   * @param javaSource The Java program to trace.
+   * @param input The program's arguments and stdin.
+   * @param metrics The metrics to record the trace's phases in.
+   * @return The program's serialized trace.
+   */
+  private CachedTrace lookUpOrTrace(
+      String key, Tracer tracer, String javaSource, ProgramInput input, TraceMetrics metrics)
+      throws TraceException {
+    // another request may have finished the trace between our first check and becoming the owner
+    String memoryHit = memoryTier.get(key);
+    if (memoryHit != null) {
+      return new CachedTrace(memoryHit, Optional.empty(), true);
+    }
+
+    Optional<String> diskHit = readDisk(key);
+    if (diskHit.isPresent()) {
+      memoryTier.put(key, diskHit.get());
+      return new CachedTrace(diskHit.get(), Optional.empty(), true);
+    }
+
+    TraceResult result = tracer.trace(javaSource, input, metrics);
+    String json = tracer.serialize(javaSource, input, result, metrics).toString();
+    if (result.termination().isEmpty()) {
+      memoryTier.put(key, json);
+      writeDisk(key, json);
+    }
+    return new CachedTrace(json, result.termination(), false);
+  }
+
+  /**
+   * Wait for another request's trace to finish.
+   *
+   * @param otherTrace The other request's trace.
+   * @return The other request's trace.
+   * @throws TraceException If the other request failed to trace the program.
+   */
+  private static CachedTrace await(CompletableFuture<CachedTrace> otherTrace)
+      throws TraceException {
+    try {
+      return otherTrace.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new TraceException("Interrupted while waiting for a trace.", e);
+    } catch (ExecutionException e) {
+      switch (e.getCause()) {
+        case TraceException te -> throw te;
+        case RuntimeException re -> throw re;
+        default -> throw new TraceException("Unable to trace program.", e.getCause());
+      }
+    }
+  }
+
+  /**
+   * Read a trace from the disk tier. Unreadable entries are treated as missing.
+   *
+   * @param key The trace's cache key.
+   * @return The trace JSON, or empty if it isn't on disk.
+   */
+  private Optional<String> readDisk(String key) {
+    if (diskTier.isEmpty()) {
+      return Optional.empty();
+    }
+    Path entry = diskTier.get().resolve(key + ".json");
+    try {
+      return Files.isRegularFile(entry) ? Optional.of(Files.readString(entry)) : Optional.empty();
+    } catch (IOException e) {
+      return Optional.empty();
+    }
+  }
+
+  /**
+   * Write a trace to the disk tier. The entry is written to a temporary file first and then moved
+   * into place, so concurrent readers (including other processes) never see a partial entry. A
+   * trace that can't be written is only cached in memory.
+   *
+   * @param key The trace's cache key.
+   * @param json The trace JSON.
+   */
+  private void writeDisk(String key, String json) {
+    if (diskTier.isEmpty()) {
+      return;
+    }
+    Path temporaryEntry = null;
+    try {
+      Files.createDirectories(diskTier.get());
+      temporaryEntry = Files.createTempFile(diskTier.get(), key, ".tmp");
+      Files.writeString(temporaryEntry, json);
+      Files.move(
+          temporaryEntry,
+          diskTier.get().resolve(key + ".json"),
+          StandardCopyOption.ATOMIC_MOVE,
+          StandardCopyOption.REPLACE_EXISTING);
+    } catch (IOException e) {
+      return;
+    } finally {
+      // the entry is only left behind if it couldn't be moved into place
+      if (temporaryEntry != null) {
+        try {
+          Files.deleteIfExists(temporaryEntry);
+        } catch (IOException e) {
+          // the next write of the same trace gets another temporary file, so this one is only
+          // wasted space
+        }
+      }
+    }
+  }
+
+  /**
+   * Compute the cache key of a trace. Options are written in a canonical order so that the same
+   * options always produce the same key, even in a different JVM.
+   *
+   * @param javaSource The Java program to trace.
+   * @param input The program's arguments and stdin.
+   * @param options The options to trace the program with.
+   * @return The SHA-256 hash of the program, its input and its options, in hex.
+   */
+  static String key(String javaSource, ProgramInput input, TraceOptions options) {
+    StringBuilder keySource = new StringBuilder();
+    keySource.append("version=").append(KEY_VERSION).append('\n');
+    keySource.append("breakpoints=").append(new TreeSet<>(options.breakpoints())).append('\n');
+    keySource.append("captures=").append(new TreeMap<>(options.captures())).append('\n');
+    keySource.append("hits=").append(new TreeMap<>(options.hitPolicies())).append('\n');
+    keySource.append("accumulate=").append(options.accumulateBreakpoints()).append('\n');
+    keySource.append("threads=").append(options.threads()).append('\n');
+    keySource.append("exceptions=").append(options.exceptions()).append('\n');
+    keySource.append("lines=").append(options.lines()).append('\n');
+    keySource.append("serializer=").append(options.serializer()).append('\n');
+    // arguments and stdin can contain newlines, so they are length-prefixed
+    keySource.append("args=").append(input.args().size()).append('\n');
+    input.args().forEach(a -> keySource.append(a.length()).append(':').append(a).append('\n'));
+    keySource.append("stdin=").append(input.stdin().length()).append('\n');
+    keySource.append(input.stdin());
+    keySource.append(javaSource);
+
+    try {
+      MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+      return HexFormat.of()
+          .formatHex(sha256.digest(keySource.toString().getBytes(StandardCharsets.UTF_8)));
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("Every JVM must support SHA-256.", e);
+    }
+  }
+}
@@ -0,0 +1,17 @@
+package cs1302.tracer;
+
+/** Thrown when a program couldn't be traced because of a problem with the tracer or debuggee. */
+public class TraceException extends Exception {
+
+  private static final long serialVersionUID = 1L;
+
+  /**
+   * Create an exception for a failed trace.
+   *
+   * @param message A description of what failed.
+   * @param cause The underlying problem.
+   */
+  public TraceException(String message, Throwable cause) {
+    super(message, cause);
+  }
+}
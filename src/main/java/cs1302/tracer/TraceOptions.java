@@ -0,0 +1,159 @@
+package cs1302.tracer;
+
+import cs1302.tracer.serialize.PyTutorSerializer;
+import cs1302.tracer.trace.CaptureSpec;
+import cs1302.tracer.trace.ExceptionFilter;
+import cs1302.tracer.trace.HitPolicy;
+import cs1302.tracer.trace.LineCounting;
+import cs1302.tracer.trace.ThreadCapture;
+import cs1302.tracer.trace.TraceBudget;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The options that a {@link Tracer} traces programs with.
+ *
+ * @param breakpoints The source line numbers to take snapshots at, where -1 is the end of the main
+ *     method. If this is empty, a single snapshot is taken at the end of the main method.
+ * @param captures A mapping from breakpoint line numbers to the part of the program's state that
+ *     should be captured there. Breakpoints without an entry capture the program's entire state.
+ * @param hitPolicies A mapping from breakpoint line numbers to the policy that decides which times
+ *     the breakpoint is reached should be snapshotted. Breakpoints without an entry use every hit
+ *     if {@code accumulateBreakpoints} is true, and only the last hit otherwise.
+ * @param accumulateBreakpoints True if every kept snapshot of a breakpoint should be serialized,
+ *     false if only the last one should be.
+ * @param budget The resources a traced program may use before it is killed.
+ * @param threads Which of a traced program's threads snapshots include, and which threads its
+ *     breakpoints stop.
+ * @param exceptions Which exceptions a traced program is snapshotted at where they are thrown.
+ * @param lines Whether to count how many times each line of a traced program's main source file
+ *     runs.
+ * @param serializer The serializer that traces are output with.
+ */
+public record TraceOptions(
+    List<Integer> breakpoints,
+    Map<Integer, CaptureSpec> captures,
+    Map<Integer, HitPolicy> hitPolicies,
+    boolean accumulateBreakpoints,
+    TraceBudget budget,
+    ThreadCapture threads,
+    ExceptionFilter exceptions,
+    LineCounting lines,
+    PyTutorSerializer serializer) {
+
+  /** Options that take one snapshot of the whole program at the end of its main method. */
+  public static final TraceOptions DEFAULT =
+      new TraceOptions(
+          List.of(),
+          Map.of(),
+          Map.of(),
+          false,
+          TraceBudget.UNLIMITED,
+          ThreadCapture.BREAKPOINT_THREAD,
+          ExceptionFilter.UNCAUGHT,
+          LineCounting.OFF,
+          new PyTutorSerializer(false, false, false));
+
+  public TraceOptions {
+    breakpoints = List.copyOf(breakpoints);
+    captures = Map.copyOf(captures);
+    hitPolicies = Map.copyOf(hitPolicies);
+  }
+
+  /**
+   * Get a copy of these options with a different budget.
+   *
+   * @param budget The budget of the copy.
+   * @return The copied options.
+   */
+  public TraceOptions withBudget(TraceBudget budget) {
+    return new TraceOptions(
+        breakpoints,
+        captures,
+        hitPolicies,
+        accumulateBreakpoints,
+        budget,
+        threads,
+        exceptions,
+        lines,
+        serializer);
+  }
+
+  /**
+   * Get a copy of these options with different breakpoints.
+   *
+   * @param breakpoints The breakpoints of the copy.
+   * @return The copied options.
+   */
+  public TraceOptions withBreakpoints(List<Integer> breakpoints) {
+    return new TraceOptions(
+        breakpoints,
+        captures,
+        hitPolicies,
+        accumulateBreakpoints,
+        budget,
+        threads,
+        exceptions,
+        lines,
+        serializer);
+  }
+
+  /**
+   * Get a copy of these options that captures different parts of the program's state.
+   *
+   * @param captures The captures of the copy.
+   * @return The copied options.
+   */
+  public TraceOptions withCaptures(Map<Integer, CaptureSpec> captures) {
+    return new TraceOptions(
+        breakpoints,
+        captures,
+        hitPolicies,
+        accumulateBreakpoints,
+        budget,
+        threads,
+        exceptions,
+        lines,
+        serializer);
+  }
+
+  /**
+   * Get a copy of these options that serializes every kept snapshot of a breakpoint, or only the
+   * last one.
+   *
+   * @param accumulateBreakpoints True if the copy should serialize every kept snapshot of a
+   *     breakpoint, false if it should only serialize the last one.
+   * @return The copied options.
+   */
+  public TraceOptions withAccumulateBreakpoints(boolean accumulateBreakpoints) {
+    return new TraceOptions(
+        breakpoints,
+        captures,
+        hitPolicies,
+        accumulateBreakpoints,
+        budget,
+        threads,
+        exceptions,
+        lines,
+        serializer);
+  }
+
+  /**
+   * Get a copy of these options with a different serializer.
+   *
+   * @param serializer The serializer of the copy.
+   * @return The copied options.
+   */
+  public TraceOptions withSerializer(PyTutorSerializer serializer) {
+    return new TraceOptions(
+        breakpoints,
+        captures,
+        hitPolicies,
+        accumulateBreakpoints,
+        budget,
+        threads,
+        exceptions,
+        lines,
+        serializer);
+  }
+}
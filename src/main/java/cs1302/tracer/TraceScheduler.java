@@ -0,0 +1,221 @@
+package cs1302.tracer;
+
+import com.sun.management.OperatingSystemMXBean;
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Admission control for traces. Every trace launches its own debuggee JVM, so running too many at
+ * once makes the host thrash until all of them slow down. A scheduler runs a limited number of
+ * traces at once, queues a limited number more in arrival order, and immediately rejects the rest
+ * with a hint of when to retry. Traces that can't start before their deadline are rejected instead
+ * of running late.
+ */
+public final class TraceScheduler {
+
+  /** A conservative estimate of the memory a trace needs: a debuggee JVM plus javac. */
+  public static final long DEFAULT_BYTES_PER_TRACE = 256L * 1024 * 1024;
+
+  /** The shortest retry hint, so rejected callers don't retry in a tight loop. */
+  private static final Duration MIN_RETRY_AFTER = Duration.ofSeconds(1);
+
+  /** The longest deadline that is enforced. Longer deadlines, like a forever one, never pass. */
+  private static final Duration MAX_DEADLINE = Duration.ofNanos(Long.MAX_VALUE / 2);
+
+  private final int maxConcurrent;
+
+  private final int maxQueued;
+
+  /** Permits to run a trace. Fair so that queued traces start in arrival order. */
+  private final Semaphore permits;
+
+  private final AtomicInteger queued = new AtomicInteger();
+
+  private final AtomicLong admitted = new AtomicLong();
+
+  private final AtomicLong rejected = new AtomicLong();
+
+  private final AtomicLong totalWaitNanos = new AtomicLong();
+
+  private final AtomicLong completed = new AtomicLong();
+
+  private final AtomicLong totalRunNanos = new AtomicLong();
+
+  /**
+   * A trace that runs once the scheduler admits it.
+   *
+   * @param <T> The type of the trace's result.
+   */
+  @FunctionalInterface
+  public interface TraceTask<T> {
+
+    /**
+     * Run the trace.
+     *
+     * @param remaining The time left until the trace's deadline. The trace should limit its own run
+     *     time to this, e.g. with its wall-clock budget.
+     * @return The trace's result.
+     * @throws TraceException If the trace failed.
+     */
+    T run(Duration remaining) throws TraceException;
+  }
+
+  /**
+   * A point-in-time view of a scheduler's load.
+   *
+   * @param running The number of traces that are running.
+   * @param queued The number of traces that are waiting to run.
+   * @param admitted The number of traces that have been allowed to run.
+   * @param rejected The number of traces that have been rejected.
+   * @param averageWait The average time that admitted traces waited before running.
+   * @param averageRun The average time that finished traces took to run.
+   */
+  public record Stats(
+      int running,
+      int queued,
+      long admitted,
+      long rejected,
+      Duration averageWait,
+      Duration averageRun) {}
+
+  /**
+   * Create a scheduler.
+   *
+   * @param maxConcurrent The maximum number of traces to run at once.
+   * @param maxQueued The maximum number of traces to keep waiting. Traces that arrive when the
+   *     queue is full are rejected.
+   * @throws IllegalArgumentException If {@code maxConcurrent} isn't positive or {@code maxQueued}
+   *     is negative.
+   */
+  public TraceScheduler(int maxConcurrent, int maxQueued) {
+    if (maxConcurrent < 1) {
+      throw new IllegalArgumentException("The concurrency limit must be positive.");
+    }
+    if (maxQueued < 0) {
+      throw new IllegalArgumentException("The queue limit must not be negative.");
+    }
+    this.maxConcurrent = maxConcurrent;
+    this.maxQueued = maxQueued;
+    this.permits = new Semaphore(maxConcurrent, true);
+  }
+
+  /**
+   * Get how many traces this host can run at once: one per core, but no more than fit in the memory
+   * that is currently free.
+   *
+   * @param bytesPerTrace The memory that each trace needs, such as {@link
+   *     #DEFAULT_BYTES_PER_TRACE}.
+   * @return The concurrency limit, which is always at least 1.
+   */
+  public static int hostConcurrencyLimit(long bytesPerTrace) {
+    int cores = Runtime.getRuntime().availableProcessors();
+    long freeMemory = Long.MAX_VALUE;
+    if (ManagementFactory.getOperatingSystemMXBean() instanceof OperatingSystemMXBean os) {
+      freeMemory = os.getFreeMemorySize();
+    }
+    return (int) Math.max(1, Math.min(cores, freeMemory / bytesPerTrace));
+  }
+
+  /**
+   * Run a trace once the scheduler admits it. If fewer than the maximum number of traces are
+   * running, it runs right away. Otherwise, it waits in the queue until a trace finishes or its
+   * deadline passes.
+   *
+   * @param deadline How long the trace has, from now, to finish. Waiting in the queue counts
+   *     against it. Use {@link java.time.temporal.ChronoUnit#FOREVER} for no deadline.
+   * @param task The trace to run.
+   * @param <T> The type of the trace's result.
+   * @return The trace's result.
+   * @throws RejectedTraceException If the queue is full or the deadline passed before the trace
+   *     could start.
+   * @throws TraceException If the trace failed.
+   */
+  public <T> T run(Duration deadline, TraceTask<T> task) throws TraceException {
+    long arrivalTime = System.nanoTime();
+    long deadlineTime =
+        arrivalTime + (deadline.compareTo(MAX_DEADLINE) < 0 ? deadline : MAX_DEADLINE).toNanos();
+
+    // a fair semaphore only lets a trace in right away if nothing is queued ahead of it
+    boolean admittedNow = tryAcquire(0);
+    if (!admittedNow) {
+      if (queued.incrementAndGet() > maxQueued) {
+        queued.decrementAndGet();
+        throw reject("The tracer is saturated.");
+      }
+      try {
+        if (!tryAcquire(deadlineTime - System.nanoTime())) {
+          throw reject("The deadline passed before the trace could start.");
+        }
+      } finally {
+        queued.decrementAndGet();
+      }
+    }
+
+    long startTime = System.nanoTime();
+    admitted.incrementAndGet();
+    totalWaitNanos.addAndGet(startTime - arrivalTime);
+    try {
+      return task.run(Duration.ofNanos(Math.max(1, deadlineTime - startTime)));
+    } finally {
+      totalRunNanos.addAndGet(System.nanoTime() - startTime);
+      completed.incrementAndGet();
+      permits.release();
+    }
+  }
+
+  /**
+   * Get a view of the scheduler's current load.
+   *
+   * @return The scheduler's stats.
+   */
+  public Stats stats() {
+    long admittedCount = admitted.get();
+    long completedCount = completed.get();
+    return new Stats(
+        maxConcurrent - permits.availablePermits(),
+        queued.get(),
+        admittedCount,
+        rejected.get(),
+        Duration.ofNanos(admittedCount == 0 ? 0 : totalWaitNanos.get() / admittedCount),
+        Duration.ofNanos(completedCount == 0 ? 0 : totalRunNanos.get() / completedCount));
+  }
+
+  /**
+   * Try to get a permit to run a trace, waiting in line behind the traces that are already queued.
+   *
+   * @param timeoutNanos How long to wait for a permit.
+   * @return True if a permit was acquired, false if the timeout passed first.
+   * @throws TraceException If the thread was interrupted while waiting.
+   */
+  private boolean tryAcquire(long timeoutNanos) throws TraceException {
+    try {
+      return permits.tryAcquire(Math.max(0, timeoutNanos), TimeUnit.NANOSECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new TraceException("Interrupted while waiting to trace.", e);
+    }
+  }
+
+  /**
+   * Count a rejected trace and create the exception that tells its caller when to retry. The hint
+   * is how long the traces that are running and queued now should take to finish.
+   *
+   * @param message Why the trace was rejected.
+   * @return The exception to throw.
+   */
+  private RejectedTraceException reject(String message) {
+    rejected.incrementAndGet();
+    Stats stats = stats();
+    long backlog = stats.running() + stats.queued();
+    Duration retryAfter = stats.averageRun().multipliedBy(backlog).dividedBy(maxConcurrent);
+    if (retryAfter.compareTo(MIN_RETRY_AFTER) < 0) {
+      retryAfter = MIN_RETRY_AFTER;
+    }
+    return new RejectedTraceException(
+        String.format("%s Retry after %d seconds.", message, retryAfter.toSeconds()), retryAfter);
+  }
+}
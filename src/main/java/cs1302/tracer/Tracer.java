@@ -0,0 +1,912 @@
+package cs1302.tracer;
+
+import com.github.javaparser.JavaParser;
+import com.github.javaparser.ParseProblemException;
+import com.github.javaparser.ParseResult;
+import com.github.javaparser.ParserConfiguration;
+import com.github.javaparser.ParserConfiguration.LanguageLevel;
+import com.github.javaparser.ast.CompilationUnit;
+import com.github.javaparser.symbolsolver.JavaSymbolSolver;
+import com.github.javaparser.symbolsolver.resolution.typesolvers.CombinedTypeSolver;
+import com.github.javaparser.symbolsolver.resolution.typesolvers.JavaParserTypeSolver;
+import com.github.javaparser.symbolsolver.resolution.typesolvers.ReflectionTypeSolver;
+import com.sun.jdi.AbsentInformationException;
+import com.sun.jdi.ClassNotLoadedException;
+import com.sun.jdi.IncompatibleThreadStateException;
+import com.sun.jdi.VirtualMachine;
+import com.sun.jdi.connect.IllegalConnectorArgumentsException;
+import com.sun.jdi.connect.VMStartException;
+import cs1302.tracer.CompilationHelper.CompilationResult;
+import cs1302.tracer.CompilationHelper.PendingCompilation;
+import cs1302.tracer.serialize.PyTutorSerializer;
+import cs1302.tracer.trace.DebugTraceHelper;
+import cs1302.tracer.trace.DebuggeeHostPool;
+import cs1302.tracer.trace.ExecutionSnapshot;
+import cs1302.tracer.trace.HitPolicy;
+import cs1302.tracer.trace.LaunchProfile;
+import cs1302.tracer.trace.ProgramInput;
+import cs1302.tracer.trace.TraceBudget;
+import cs1302.tracer.trace.TraceMetrics;
+import cs1302.tracer.trace.TracePlan;
+import cs1302.tracer.trace.TraceRecording;
+import cs1302.tracer.trace.TraceResult;
+import cs1302.tracer.trace.TraceResult.Termination;
+import cs1302.tracer.trace.TraceSession;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Traces Java programs. A tracer has no global state, so any number of tracers (or traces with the
+ * same tracer) can run at once in the same JVM. Each trace compiles the program and runs it in its
+ * own debuggee JVM, unless the tracer has a pool of shared JVMs to run it in. A tracer remembers
+ * how long the programs it traced recently ran, which {@link LaunchProfile#AUTO} launches them
+ * again by.
+ */
+public final class Tracer {
+
+  /** The number of programs whose last run time a tracer remembers. */
+  private static final int REMEMBERED_RUN_TIMES = 256;
+
+  private final TraceOptions options;
+
+  private final Optional<DebuggeeHostPool> hosts;
+
+  /** How long the last traced run of each recently traced program took, by program. */
+  private final Map<String, Duration> runTimes =
+      Collections.synchronizedMap(
+          new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Duration> eldest) {
+              return size() > REMEMBERED_RUN_TIMES;
+            }
+          });
+
+  /**
+   * Create a tracer.
+   *
+   * @param options The options that programs are traced with.
+   */
+  public Tracer(TraceOptions options) {
+    this.options = options;
+    this.hosts = Optional.empty();
+  }
+
+  /**
+   * Create a tracer that runs single-file programs in a pool of shared JVMs instead of starting a
+   * JVM for each one. Projects, prebuilt programs, sessions and recordings still get JVMs of their
+   * own.
+   *
+   * @param options The options that programs are traced with. Their maximum heap size is ignored in
+   *     favor of the pool's.
+   * @param hosts The JVMs to run programs in, which the caller must close.
+   */
+  public Tracer(TraceOptions options, DebuggeeHostPool hosts) {
+    this.options = options;
+    this.hosts = Optional.of(hosts);
+  }
+
+  /**
+   * Get the options that programs are traced with.
+   *
+   * @return The tracer's options.
+   */
+  public TraceOptions options() {
+    return options;
+  }
+
+  /**
+   * Compile and trace a Java program.
+   *
+   * @param javaSource The Java program to trace.
+   * @return The snapshots that were taken, and why the program was stopped early if it was.
+   * @throws IllegalArgumentException If the program couldn't be parsed or compiled.
+   * @throws TraceException If the program couldn't be traced.
+   */
+  public TraceResult trace(String javaSource) throws TraceException {
+    return trace(javaSource, new TraceMetrics());
+  }
+
+  /**
+   * Compile and trace a Java program, and record where the time went.
+   *
+   * @param javaSource The Java program to trace.
+   * @param metrics The metrics to record every phase before serialization in.
+   * @return The snapshots that were taken, and why the program was stopped early if it was.
+   * @throws IllegalArgumentException If the program couldn't be parsed or compiled.
+   * @throws TraceException If the program couldn't be traced.
+   */
+  public TraceResult trace(String javaSource, TraceMetrics metrics) throws TraceException {
+    return trace(javaSource, ProgramInput.NONE, metrics);
+  }
+
+  /**
+   * Compile and trace a Java program with the given arguments and stdin, and record where the time
+   * went.
+   *
+   * @param javaSource The Java program to trace.
+   * @param input The program's arguments and stdin.
+   * @param metrics The metrics to record every phase before serialization in.
+   * @return The snapshots that were taken, and why the program was stopped early if it was.
+   * @throws IllegalArgumentException If the program couldn't be parsed or compiled.
+   * @throws TraceException If the program couldn't be traced.
+   */
+  public TraceResult trace(String javaSource, ProgramInput input, TraceMetrics metrics)
+      throws TraceException {
+    try {
+      if (hosts.isPresent()) {
+        CompiledProgram program = compile(javaSource, metrics);
+        try (CompilationResult compilationResult = program.compilationResult()) {
+          return hosts
+              .get()
+              .trace(
+                  compilationResult,
+                  plan(options.budget()),
+                  program.parsedSources(),
+                  input,
+                  metrics);
+        }
+      }
+      long start = System.nanoTime();
+      LaunchedProgram program = launch(javaSource, input, metrics);
+      try (CompilationResult compilationResult = program.compilationResult()) {
+        TraceResult result =
+            DebugTraceHelper.trace(
+                compilationResult,
+                plan(budgetFor(javaSource)),
+                program.parsedSources(),
+                program.launchedVm(),
+                metrics);
+        rememberRunTime(javaSource, start);
+        return result;
+      }
+    } catch (IOException
+        | IllegalConnectorArgumentsException
+        | VMStartException
+        | IncompatibleThreadStateException
+        | AbsentInformationException
+        | ClassNotLoadedException e) {
+      throw new TraceException("Unable to trace program: " + e.getMessage(), e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new TraceException("Interrupted while tracing program.", e);
+    }
+  }
+
+  /**
+   * Compile a Java program once and trace it with each of the given inputs. The program is parsed
+   * and compiled once for all of them, and the first {@code jobs} JVMs start while it compiles.
+   * After that, a JVM starts whenever a trace finishes, so no more than {@code jobs} of them run at
+   * once. A tracer with shared JVMs runs them there instead, once the program has compiled.
+   *
+   * @param javaSource The Java program to trace.
+   * @param inputs The arguments and stdin of each run of the program.
+   * @param jobs The maximum number of runs to trace at once.
+   * @param metrics The metrics to record every phase of every run before serialization in.
+   * @return The result of each run, in the order of {@code inputs}.
+   * @throws IllegalArgumentException If the program couldn't be parsed or compiled, or {@code jobs}
+   *     isn't positive.
+   * @throws TraceException If any run couldn't be traced.
+   */
+  public List<TraceResult> trace(
+      String javaSource, List<ProgramInput> inputs, int jobs, TraceMetrics metrics)
+      throws TraceException {
+    if (jobs < 1) {
+      throw new IllegalArgumentException("The number of jobs must be positive.");
+    }
+    try {
+      PendingCompilation compilation = CompilationHelper.compileAsync(javaSource, metrics);
+      CompletableFuture<CompiledProgram> compiled = new CompletableFuture<>();
+      Semaphore permits = new Semaphore(jobs);
+      List<Future<TraceResult>> traces = new ArrayList<>();
+      try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+        for (ProgramInput input : inputs) {
+          traces.add(
+              executor.submit(
+                  () -> traceRun(javaSource, compilation, compiled, input, permits, metrics)));
+        }
+        try {
+          CompilationUnit parsedSource =
+              metrics.time(
+                  TraceMetrics.Phase.PARSE,
+                  () -> parseSource(javaSource, List.of(compilation.classPath())));
+          compiled.complete(new CompiledProgram(compilation.await(), parsedSource));
+        } catch (IOException | InterruptedException | RuntimeException e) {
+          // the runs give up on their JVMs once they see that the program didn't compile
+          compilation.discard();
+          compiled.completeExceptionally(e);
+          throw e;
+        }
+      }
+
+      // every run has finished with the class files by now
+      try {
+        List<TraceResult> results = new ArrayList<>();
+        for (Future<TraceResult> trace : traces) {
+          if (trace.state() == Future.State.FAILED) {
+            switch (trace.exceptionNow()) {
+              case RuntimeException cause -> throw cause;
+              case Error cause -> throw cause;
+              case Throwable cause ->
+                  throw new TraceException("Unable to trace program: " + cause.getMessage(), cause);
+            }
+          }
+          results.add(trace.resultNow());
+        }
+        return results;
+      } finally {
+        compiled.resultNow().compilationResult().close();
+      }
+    } catch (IOException e) {
+      throw new TraceException("Unable to trace program: " + e.getMessage(), e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new TraceException("Interrupted while tracing program.", e);
+    }
+  }
+
+  /**
+   * Trace one run of a program that is traced with several inputs. The run's JVM starts once it
+   * gets a permit, which may be before the program finishes compiling.
+   *
+   * @param javaSource The program's source.
+   * @param compilation The program's compilation, which gives its class path and main class.
+   * @param compiled The compiled and parsed program, once it is ready.
+   * @param input The run's arguments and stdin.
+   * @param permits The permits that limit how many runs are traced at once.
+   * @param metrics The metrics to record every phase before serialization in.
+   * @return The snapshots that were taken, and why the run was stopped early if it was.
+   */
+  private TraceResult traceRun(
+      String javaSource,
+      PendingCompilation compilation,
+      CompletableFuture<CompiledProgram> compiled,
+      ProgramInput input,
+      Semaphore permits,
+      TraceMetrics metrics)
+      throws IOException,
+          IllegalConnectorArgumentsException,
+          VMStartException,
+          InterruptedException,
+          IncompatibleThreadStateException,
+          AbsentInformationException,
+          ClassNotLoadedException,
+          ExecutionException {
+    permits.acquire();
+    try {
+      if (compiled.isCompletedExceptionally()) {
+        // don't start a JVM for a program that didn't compile
+        throw new ExecutionException(compiled.exceptionNow());
+      }
+      if (hosts.isPresent()) {
+        CompiledProgram program = compiled.get();
+        return hosts
+            .get()
+            .trace(
+                program.compilationResult(),
+                plan(options.budget()),
+                program.parsedSources(),
+                input,
+                metrics);
+      }
+      long start = System.nanoTime();
+      TraceBudget budget = budgetFor(javaSource);
+      CompletableFuture<VirtualMachine> launchedVm =
+          DebugTraceHelper.launch(
+              List.of(compilation.classPath()), compilation.mainClass(), budget, input, metrics);
+      CompiledProgram program;
+      try {
+        program = compiled.get();
+      } catch (ExecutionException | InterruptedException e) {
+        DebugTraceHelper.discard(launchedVm);
+        throw e;
+      }
+      TraceResult result =
+          DebugTraceHelper.trace(
+              program.compilationResult(),
+              plan(budget),
+              program.parsedSources(),
+              launchedVm,
+              metrics);
+      rememberRunTime(javaSource, start);
+      return result;
+    } finally {
+      permits.release();
+    }
+  }
+
+  /**
+   * Compile a Java program and start an interactive session with it, paused at the beginning of its
+   * main method. The session breaks at the tracer's breakpoints, and its program is killed if it
+   * exceeds the tracer's budget while it runs.
+   *
+   * @param javaSource The Java program to run.
+   * @param input The program's arguments and stdin.
+   * @param metrics The metrics to record every phase before serialization in.
+   * @return The session, which must be closed.
+   * @throws IllegalArgumentException If the program couldn't be parsed or compiled.
+   * @throws TraceException If the program couldn't be started.
+   */
+  public TraceSession startSession(String javaSource, ProgramInput input, TraceMetrics metrics)
+      throws TraceException {
+    try {
+      LaunchedProgram program = launch(javaSource, input, metrics);
+      return TraceSession.start(
+          program.compilationResult(),
+          options.breakpoints(),
+          options.budget(),
+          program.parsedSources(),
+          program.launchedVm(),
+          metrics);
+    } catch (IOException | VMStartException e) {
+      throw new TraceException("Unable to start program: " + e.getMessage(), e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new TraceException("Interrupted while starting program.", e);
+    }
+  }
+
+  /**
+   * Compile a Java program and record every line that it runs, so that its state before any of
+   * those lines can be looked up afterwards. The program is killed if it exceeds the tracer's
+   * budget, where each line counts as a breakpoint hit.
+   *
+   * @param javaSource The Java program to record.
+   * @param input The program's arguments and stdin.
+   * @param checkpointInterval The number of lines between full snapshots of the program.
+   * @param metrics The metrics to record every phase in.
+   * @return The recording.
+   * @throws IllegalArgumentException If the program couldn't be parsed or compiled, or the
+   *     checkpoint interval isn't positive.
+   * @throws TraceException If the program couldn't be recorded.
+   */
+  public TraceRecording record(
+      String javaSource, ProgramInput input, int checkpointInterval, TraceMetrics metrics)
+      throws TraceException {
+    try {
+      LaunchedProgram program = launch(javaSource, input, metrics);
+      try (CompilationResult compilationResult = program.compilationResult()) {
+        return TraceRecording.record(
+            compilationResult,
+            options.budget(),
+            program.parsedSources(),
+            program.launchedVm(),
+            checkpointInterval,
+            metrics);
+      }
+    } catch (IOException | VMStartException | IncompatibleThreadStateException e) {
+      throw new TraceException("Unable to record program: " + e.getMessage(), e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new TraceException("Interrupted while recording program.", e);
+    }
+  }
+
+  /**
+   * A compiled program with a single source file.
+   *
+   * @param compilationResult The compiled program, which must be closed.
+   * @param parsedSource The program's parsed source, with symbol resolution.
+   */
+  private record CompiledProgram(
+      CompilationResult compilationResult, CompilationUnit parsedSource) {
+
+    /**
+     * Get the program's parsed source files, which is only its one file.
+     *
+     * @return A function from source paths to parsed source files.
+     */
+    Function<String, Optional<CompilationUnit>> parsedSources() {
+      return sourcePath ->
+          sourcePath.equals(compilationResult.mainSourcePath())
+              ? Optional.of(parsedSource)
+              : Optional.empty();
+    }
+  }
+
+  /**
+   * A compiled program whose JVM is starting.
+   *
+   * @param program The compiled program.
+   * @param launchedVm The program's JVM.
+   */
+  private record LaunchedProgram(
+      CompiledProgram program, CompletableFuture<VirtualMachine> launchedVm) {
+
+    /**
+     * Get the compiled program.
+     *
+     * @return The compiled program, which must be closed.
+     */
+    CompilationResult compilationResult() {
+      return program.compilationResult();
+    }
+
+    /**
+     * Get the program's parsed source files, which is only its one file.
+     *
+     * @return A function from source paths to parsed source files.
+     */
+    Function<String, Optional<CompilationUnit>> parsedSources() {
+      return program.parsedSources();
+    }
+  }
+
+  /**
+   * Compile a Java program. Once the program is parsed, javac runs on another thread while its
+   * source is parsed again here with symbol resolution.
+   *
+   * @param javaSource The Java program to compile.
+   * @param metrics The metrics to record the parse and compile phases in.
+   * @return The compiled program.
+   * @throws IllegalArgumentException If the program couldn't be parsed or compiled.
+   */
+  private CompiledProgram compile(String javaSource, TraceMetrics metrics)
+      throws IOException, InterruptedException {
+    PendingCompilation compilation = CompilationHelper.compileAsync(javaSource, metrics);
+    try {
+      CompilationUnit parsedSource =
+          metrics.time(
+              TraceMetrics.Phase.PARSE,
+              () -> parseSource(javaSource, List.of(compilation.classPath())));
+      return new CompiledProgram(compilation.await(), parsedSource);
+    } catch (IOException | InterruptedException | RuntimeException e) {
+      compilation.discard();
+      throw e;
+    }
+  }
+
+  /**
+   * Get the budget to trace a program with, whose launch profile is resolved from how long the
+   * program's last traced run took if it is {@link LaunchProfile#AUTO}.
+   *
+   * @param program The program's source, or another string that identifies it.
+   * @return The budget.
+   */
+  private TraceBudget budgetFor(String program) {
+    TraceBudget budget = options.budget();
+    return budget.withLaunchProfile(
+        budget.launchProfile().select(Optional.ofNullable(runTimes.get(program))));
+  }
+
+  /**
+   * Remember how long a traced run of a program took, for choosing how to launch its next run.
+   *
+   * @param program The program's source, or another string that identifies it.
+   * @param startNanos The value of {@link System#nanoTime()} when the run started launching.
+   */
+  private void rememberRunTime(String program, long startNanos) {
+    runTimes.put(program, Duration.ofNanos(System.nanoTime() - startNanos));
+  }
+
+  /**
+   * Compile a Java program and launch its JVM. The stages overlap: once the program is parsed,
+   * javac runs and its JVM starts on other threads while its source is parsed again here with
+   * symbol resolution.
+   *
+   * @param javaSource The Java program to launch.
+   * @param input The program's arguments and stdin.
+   * @param metrics The metrics to record the parse, compile and launch phases in.
+   * @return The launched program.
+   * @throws IllegalArgumentException If the program couldn't be parsed or compiled.
+   */
+  private LaunchedProgram launch(String javaSource, ProgramInput input, TraceMetrics metrics)
+      throws IOException, InterruptedException {
+    PendingCompilation compilation = CompilationHelper.compileAsync(javaSource, metrics);
+    CompletableFuture<VirtualMachine> launchedVm =
+        DebugTraceHelper.launch(
+            List.of(compilation.classPath()),
+            compilation.mainClass(),
+            budgetFor(javaSource),
+            input,
+            metrics);
+
+    try {
+      CompilationUnit parsedSource =
+          metrics.time(
+              TraceMetrics.Phase.PARSE,
+              () -> parseSource(javaSource, List.of(compilation.classPath())));
+      return new LaunchedProgram(
+          new CompiledProgram(compilation.await(), parsedSource), launchedVm);
+    } catch (IOException | InterruptedException | RuntimeException e) {
+      compilation.discard();
+      DebugTraceHelper.discard(launchedVm);
+      throw e;
+    }
+  }
+
+  /**
+   * Compile and trace a Java program that is spread over several source files. Every file is
+   * compiled in one javac task while the program's JVM starts, but a file is only parsed once a
+   * method from it is snapshotted.
+   *
+   * @param project The program to trace.
+   * @param input The program's arguments and stdin.
+   * @param metrics The metrics to record every phase before serialization in.
+   * @return The snapshots that were taken, and why the program was stopped early if it was.
+   * @throws IllegalArgumentException If the program couldn't be compiled.
+   * @throws TraceException If the program couldn't be traced.
+   */
+  public TraceResult trace(SourceProject project, ProgramInput input, TraceMetrics metrics)
+      throws TraceException {
+    try {
+      long start = System.nanoTime();
+      String programKey = project.sourceRoot() + File.pathSeparator + project.mainClass();
+      TraceBudget budget = budgetFor(programKey);
+      PendingCompilation compilation = CompilationHelper.compileAsync(project, metrics);
+      CompletableFuture<VirtualMachine> launchedVm =
+          DebugTraceHelper.launch(
+              List.of(compilation.classPath()), compilation.mainClass(), budget, input, metrics);
+
+      CompilationResult compilationResult;
+      try {
+        compilationResult = compilation.await();
+      } catch (IOException | InterruptedException | RuntimeException e) {
+        DebugTraceHelper.discard(launchedVm);
+        throw e;
+      }
+
+      try (compilationResult) {
+        TraceResult result =
+            DebugTraceHelper.trace(
+                compilationResult,
+                plan(budget),
+                sourceParser(List.of(project.sourceRoot()), metrics),
+                launchedVm,
+                metrics);
+        rememberRunTime(programKey, start);
+        return result;
+      }
+    } catch (IOException
+        | IllegalConnectorArgumentsException
+        | VMStartException
+        | IncompatibleThreadStateException
+        | AbsentInformationException
+        | ClassNotLoadedException e) {
+      throw new TraceException("Unable to trace program: " + e.getMessage(), e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new TraceException("Interrupted while tracing program.", e);
+    }
+  }
+
+  /**
+   * Trace a program that was compiled ahead of time, without running javac. Its JVM starts while
+   * its classes are listed, and its source files are only parsed once a method from them is
+   * snapshotted.
+   *
+   * @param program The program to trace.
+   * @param input The program's arguments and stdin.
+   * @param metrics The metrics to record every phase before serialization in.
+   * @return The snapshots that were taken, and why the program was stopped early if it was.
+   * @throws IllegalArgumentException If the main class couldn't be found.
+   * @throws TraceException If the program couldn't be traced.
+   */
+  public TraceResult trace(PrebuiltProgram program, ProgramInput input, TraceMetrics metrics)
+      throws TraceException {
+    try {
+      long start = System.nanoTime();
+      String programKey = program.classPath() + File.pathSeparator + program.mainClass();
+      TraceBudget budget = budgetFor(programKey);
+      CompletableFuture<VirtualMachine> launchedVm =
+          DebugTraceHelper.launch(program.classPath(), program.mainClass(), budget, input, metrics);
+
+      CompilationResult compilationResult;
+      try {
+        compilationResult =
+            CompilationHelper.fromClassPath(program.classPath(), program.mainClass());
+      } catch (IOException | RuntimeException e) {
+        DebugTraceHelper.discard(launchedVm);
+        throw e;
+      }
+
+      // closing only deletes working directories, never the program's own class path
+      try (compilationResult) {
+        TraceResult result =
+            DebugTraceHelper.trace(
+                compilationResult,
+                plan(budget),
+                sourceParser(program.sourceRoots(), metrics),
+                launchedVm,
+                metrics);
+        rememberRunTime(programKey, start);
+        return result;
+      }
+    } catch (IOException
+        | IllegalConnectorArgumentsException
+        | VMStartException
+        | IncompatibleThreadStateException
+        | AbsentInformationException
+        | ClassNotLoadedException e) {
+      throw new TraceException("Unable to trace program: " + e.getMessage(), e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new TraceException("Interrupted while tracing program.", e);
+    }
+  }
+
+  /**
+   * Compile and trace a Java program, and write the serialized trace to a sink.
+   *
+   * @param javaSource The Java program to trace.
+   * @param sink The sink to write the trace JSON to. It is not closed.
+   * @return The snapshots that were taken, and why the program was stopped early if it was.
+   * @throws IllegalArgumentException If the program couldn't be parsed or compiled.
+   * @throws TraceException If the program couldn't be traced.
+   * @throws IOException If the trace couldn't be written to the sink.
+   */
+  public TraceResult trace(String javaSource, Writer sink) throws TraceException, IOException {
+    TraceResult result = trace(javaSource);
+    serialize(javaSource, result).write(sink);
+    sink.flush();
+    return result;
+  }
+
+  /**
+   * Serialize the result of a trace into the OnlinePythonTutor format. Without breakpoints, this is
+   * a single trace of the end of main. With breakpoints, this is an object that maps each
+   * breakpoint line to a trace, or to an array of traces if breakpoints are accumulated. A trace of
+   * a program that was stopped early ends with the reason it was stopped. A snapshotted exception
+   * comes first in the trace without breakpoints, or is a trace of its own under {@code exception}
+   * with them. Either way, line counts are output under {@code line_counts} if lines were counted.
+   *
+   * @param javaSource The traced Java program.
+   * @param result The result of tracing the program.
+   * @return The serialized trace.
+   * @throws java.util.NoSuchElementException If there are no breakpoints and the program neither
+   *     reached the end of main nor threw an exception that was snapshotted.
+   */
+  public JSONObject serialize(String javaSource, TraceResult result) {
+    return serialize(javaSource, result, new TraceMetrics());
+  }
+
+  /**
+   * Serialize the result of a trace into the OnlinePythonTutor format, and record how long it took.
+   * See {@link #serialize(String, TraceResult)}.
+   *
+   * @param javaSource The traced Java program.
+   * @param result The result of tracing the program.
+   * @param metrics The metrics to record the serialize phase in.
+   * @return The serialized trace.
+   * @throws java.util.NoSuchElementException If there are no breakpoints and the program neither
+   *     reached the end of main nor threw an exception that was snapshotted.
+   */
+  public JSONObject serialize(String javaSource, TraceResult result, TraceMetrics metrics) {
+    return serialize(javaSource, ProgramInput.NONE, result, metrics);
+  }
+
+  /**
+   * Serialize the result of tracing a program with the given input into the OnlinePythonTutor
+   * format, and record how long it took. See {@link #serialize(String, TraceResult)}.
+   *
+   * @param javaSource The traced Java program.
+   * @param input The arguments and stdin that the program was traced with.
+   * @param result The result of tracing the program.
+   * @param metrics The metrics to record the serialize phase in.
+   * @return The serialized trace.
+   * @throws java.util.NoSuchElementException If there are no breakpoints and the program neither
+   *     reached the end of main nor threw an exception that was snapshotted.
+   */
+  public JSONObject serialize(
+      String javaSource, ProgramInput input, TraceResult result, TraceMetrics metrics) {
+    return metrics.time(
+        TraceMetrics.Phase.SERIALIZE, () -> serializeResult(javaSource, input.stdin(), result));
+  }
+
+  /**
+   * Serialize the result of a trace into the OnlinePythonTutor format, along with the line counts
+   * if lines were counted.
+   *
+   * @param javaSource The traced Java program.
+   * @param stdin What the program was given on stdin.
+   * @param result The result of tracing the program.
+   * @return The serialized trace.
+   */
+  private JSONObject serializeResult(String javaSource, String stdin, TraceResult result) {
+    JSONObject serialized = serializeSnapshots(javaSource, stdin, result);
+    if (options.lines().enabled()) {
+      // the counts cover the whole run, so they go next to the traces rather than in one of them
+      serialized.put("line_counts", options.serializer().serializeLineCounts(result.lineCounts()));
+    }
+    return serialized;
+  }
+
+  /**
+   * Serialize the snapshots of a trace into the OnlinePythonTutor format.
+   *
+   * @param javaSource The traced Java program.
+   * @param stdin What the program was given on stdin.
+   * @param result The result of tracing the program.
+   * @return The serialized trace.
+   */
+  private JSONObject serializeSnapshots(String javaSource, String stdin, TraceResult result) {
+    PyTutorSerializer serializer = options.serializer();
+    Optional<Termination> termination = result.termination();
+    Optional<JSONObject> exception =
+        result.exception().map(e -> serializer.serialize(javaSource, stdin, e));
+
+    if (options.breakpoints().isEmpty()) {
+      Optional<ExecutionSnapshot> mainEnd =
+          Optional.ofNullable(result.snapshots().get(-1)).map(List::getLast);
+      if (mainEnd.isEmpty() && termination.isEmpty() && exception.isPresent()) {
+        // the program crashed before the end of main
+        return exception.get();
+      }
+      JSONObject serialized =
+          termination
+              .map(t -> serializer.serialize(javaSource, stdin, mainEnd.or(t::lastState), t))
+              .orElseGet(() -> serializer.serialize(javaSource, stdin, mainEnd.orElseThrow()));
+      // the exception was thrown before the rest of the trace
+      exception.ifPresent(
+          e -> {
+            JSONArray trace = e.getJSONArray("trace").putAll(serialized.getJSONArray("trace"));
+            serialized.put("trace", trace);
+          });
+      return serialized;
+    }
+
+    // a stopped trace ends with the reason it was stopped
+    Function<JSONObject, JSONObject> markTermination =
+        serialized -> {
+          termination.ifPresent(
+              t -> serialized.getJSONArray("trace").put(serializer.serializeTermination(t)));
+          return serialized;
+        };
+
+    JSONObject serialized;
+    if (options.accumulateBreakpoints()) {
+      serialized =
+          new JSONObject(
+              result.snapshots().entrySet().stream()
+                  .collect(
+                      Collectors.toMap(
+                          Map.Entry::getKey,
+                          e -> {
+                            List<JSONObject> serializedHits =
+                                e.getValue().stream()
+                                    .map(s -> serializer.serialize(javaSource, stdin, s))
+                                    .toList();
+                            markTermination.apply(serializedHits.getLast());
+                            return new JSONArray(serializedHits);
+                          })));
+    } else {
+      serialized =
+          new JSONObject(
+              result.snapshots().entrySet().stream()
+                  .collect(
+                      Collectors.toMap(
+                          Map.Entry::getKey,
+                          e ->
+                              markTermination.apply(
+                                  serializer.serialize(
+                                      javaSource, stdin, e.getValue().getLast())))));
+    }
+    // the exception gets a trace of its own next to the breakpoints'
+    exception.ifPresent(e -> serialized.put("exception", e));
+    return serialized;
+  }
+
+  /**
+   * Get the plan that a program is traced with under these options. Breakpoints without a hit
+   * policy only keep their last hit unless all hits are being accumulated.
+   *
+   * @param budget The resources the program may use. It must be the budget that the program's JVM
+   *     was launched with.
+   * @return The plan.
+   */
+  private TracePlan plan(TraceBudget budget) {
+    Map<Integer, HitPolicy> hitPolicies = new HashMap<>();
+    HitPolicy defaultPolicy =
+        options.accumulateBreakpoints() ? new HitPolicy.All() : new HitPolicy.Last(1);
+    for (int breakpoint : options.breakpoints()) {
+      hitPolicies.put(breakpoint, defaultPolicy);
+    } // for
+    hitPolicies.putAll(options.hitPolicies());
+    return new TracePlan(
+        options.breakpoints(),
+        options.captures(),
+        hitPolicies,
+        budget,
+        options.threads(),
+        options.exceptions(),
+        options.lines());
+  }
+
+  /**
+   * Parse the given Java source code string. Each call gets its own parser and symbol solver, so
+   * sources can be parsed concurrently.
+   *
+   * @param source The Java source code to parse.
+   * @param sourceRoots The root directories of {@code source}'s source tree, which are used to get
+   *     more information when resolving types.
+   * @return The parsed Java source code.
+   * @throws ParseProblemException If parsing failed.
+   */
+  private static CompilationUnit parseSource(String source, List<Path> sourceRoots) {
+    return parseSource(source, symbolSolvingConfiguration(sourceRoots));
+  }
+
+  /**
+   * Create a function that parses source files on demand, so a trace only parses the files whose
+   * methods it snapshots. The files share one symbol solver, which caches the types it resolves.
+   *
+   * @param sourceRoots The directories to look for source files in, in order.
+   * @param metrics The metrics to record the parse phase in.
+   * @return A function from a source file's path relative to its source root, with {@code /} as the
+   *     separator, to the parsed file, or empty if no source root contains it.
+   */
+  private static Function<String, Optional<CompilationUnit>> sourceParser(
+      List<Path> sourceRoots, TraceMetrics metrics) {
+    ParserConfiguration configuration = symbolSolvingConfiguration(sourceRoots);
+    return sourcePath -> {
+      Optional<Path> sourceFile =
+          sourceRoots.stream()
+              .map(root -> root.resolve(sourcePath))
+              .filter(Files::isRegularFile)
+              .findFirst();
+      if (sourceFile.isEmpty()) {
+        return Optional.empty();
+      }
+      try {
+        return Optional.of(
+            metrics.time(
+                TraceMetrics.Phase.PARSE,
+                () -> parseSource(Files.readString(sourceFile.get()), configuration)));
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    };
+  }
+
+  /**
+   * Create a parser configuration that resolves types from the JDK and from source files.
+   *
+   * @param sourceRoots The root directories of the source trees to resolve types from.
+   * @return The parser configuration.
+   */
+  private static ParserConfiguration symbolSolvingConfiguration(List<Path> sourceRoots) {
+    CombinedTypeSolver combinedTypeSolver = new CombinedTypeSolver();
+    combinedTypeSolver.add(new ReflectionTypeSolver());
+    sourceRoots.forEach(sr -> combinedTypeSolver.add(new JavaParserTypeSolver(sr)));
+    return new ParserConfiguration()
+        .setSymbolResolver(new JavaSymbolSolver(combinedTypeSolver))
+        .setLanguageLevel(LanguageLevel.CURRENT);
+  }
+
+  /**
+   * Parse Java source code with a new parser.
+   *
+   * @param source The Java source code to parse.
+   * @param configuration The configuration of the parser.
+   * @return The parsed Java source code.
+   * @throws ParseProblemException If parsing failed.
+   */
+  private static CompilationUnit parseSource(String source, ParserConfiguration configuration) {
+    ParseResult<CompilationUnit> parseResult = new JavaParser(configuration).parse(source);
+    return parseResult
+        .getResult()
+        .filter(r -> parseResult.isSuccessful())
+        .orElseThrow(() -> new ParseProblemException(parseResult.getProblems()));
+  }
+}
@@ -3,13 +3,19 @@ package cs1302.tracer.serialize;
 import cs1302.tracer.trace.ExecutionSnapshot;
 import cs1302.tracer.trace.ExecutionSnapshot.Field;
 import cs1302.tracer.trace.ExecutionSnapshot.StackSnapshot;
+import cs1302.tracer.trace.TraceResult.LineCount;
+import cs1302.tracer.trace.TraceResult.Termination;
+import cs1302.tracer.trace.TraceResult.Thrown;
 import cs1302.tracer.trace.TraceValue;
 import java.nio.ByteBuffer;
 import java.nio.charset.CharacterCodingException;
 import java.nio.charset.Charset;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Optional;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 import org.json.JSONArray;
@@ -36,6 +42,19 @@ public record PyTutorSerializer(
    * @return The serialized execution snapshot.
    */
   public JSONObject serialize(String javaSource, ExecutionSnapshot snapshot) {
+    return serialize(javaSource, "", snapshot);
+  }
+
+  /**
+   * Serialize an execution snapshot of a program that was given input on stdin into the
+   * OnlinePythonTutor trace format.
+   *
+   * @param javaSource The source code for the program corresponding to the execution snapshot.
+   * @param stdin What the program was given on stdin.
+   * @param snapshot The snapshot that should be serialized.
+   * @return The serialized execution snapshot.
+   */
+  public JSONObject serialize(String javaSource, String stdin, ExecutionSnapshot snapshot) {
     String currentMethod = snapshot.stack().getLast().methodName();
     long currentLine = snapshot.stack().getLast().methodLine();
 
@@ -58,35 +77,17 @@ public record PyTutorSerializer(
                     Field::identifier,
                     f -> new JSONObject().put("type", f.typeName()).put("final", f.isFinal())));
 
-    JSONObject serializedHeap =
-        new JSONObject(
-            snapshot.heap().entrySet().stream()
-                .filter(e -> !(inlineStrings && e.getValue() instanceof TraceValue.String))
-                .collect(
-                    Collectors.toMap(
-                        Entry::getKey, e -> serializeTraceValue(e.getValue(), snapshot.heap()))));
-
-    Map<String, JSONObject> heapAttrs = new HashMap<>();
-    for (Entry<Long, TraceValue> e : snapshot.heap().entrySet()) {
-      String key = e.getKey().toString();
-      switch (e.getValue()) {
-        case TraceValue.Object o -> {
-          JSONArray objectTypes =
-              new JSONArray(o.fields().stream().map(ExecutionSnapshot.Field::typeName).toList());
-          JSONArray objectFinals =
-              new JSONArray(o.fields().stream().map(ExecutionSnapshot.Field::isFinal).toList());
-          heapAttrs.put(key, new JSONObject().put("type", objectTypes).put("final", objectFinals));
-        }
-        case TraceValue.List a -> {
-          heapAttrs.put(key, new JSONObject().put("type", a.typeName()));
-        }
-        default -> {}
-      }
-    }
+    JSONObject serializedHeap = serializeHeapObjects(snapshot.heap());
+    Map<String, JSONObject> heapAttrs = serializeHeapAttrs(snapshot.heap());
 
     if (removeMainArgs) {
-      // don't include String[] args in main
-      snapshot.stack().getFirst().visibleVariables().removeFirst();
+      // don't include String[] args in main. snapshots that only capture part of the program's
+      // state may not include args at all, so make sure that's what we're removing
+      List<Field> mainVariables = snapshot.stack().getFirst().visibleVariables();
+      if (!mainVariables.isEmpty()
+          && mainVariables.getFirst().typeName().equals("java.lang.String[]")) {
+        mainVariables.removeFirst();
+      } // if
     } // if
 
     JSONArray serializedStackToRender =
@@ -103,6 +104,23 @@ public record PyTutorSerializer(
                                 snapshot.heap())) // map
                     .toArray());
 
+    // the other threads' frames are numbered after the current thread's, so that every frame in
+    // the snapshot has a unique ID
+    JSONArray serializedThreads = new JSONArray();
+    int nextFrameId = snapshot.stack().size();
+    for (ExecutionSnapshot.ThreadSnapshot thread : snapshot.threads()) {
+      JSONArray threadStack = new JSONArray();
+      for (StackSnapshot frame : thread.stack()) {
+        threadStack.put(serializeStackSnapshot(frame, nextFrameId++, false, snapshot.heap()));
+      } // for
+      serializedThreads.put(
+          new JSONObject()
+              .put("name", thread.name())
+              .put("virtual", thread.isVirtual())
+              .put("state", thread.state())
+              .put("stack_to_render", threadStack));
+    } // for
+
     String stdout;
     try {
       stdout =
@@ -125,28 +143,188 @@ public record PyTutorSerializer(
       stderr = "";
     }
 
+    JSONObject step =
+        new JSONObject()
+            .put("stdout", new String(stdout))
+            .put("stderr", new String(stderr)) // NOTE this isn't currently used
+            .put("event", "step_line")
+            .put("func_name", currentMethod)
+            .put("line", currentLine)
+            .put("stack_to_render", serializedStackToRender)
+            .put("globals", serializedStatics)
+            .put("globals_attrs", new JSONObject(globalsAttrs))
+            .put("ordered_globals", orderedStatics)
+            .put("heap", serializedHeap)
+            .put("heap_attrs", new JSONObject(heapAttrs));
+    if (!serializedThreads.isEmpty()) {
+      step.put("threads", serializedThreads);
+    }
+
     return new JSONObject()
         .put("code", javaSource)
-        .put("stdin", "")
-        .put(
-            "trace",
-            new JSONArray()
-                .put(
-                    new JSONObject()
-                        .put("stdout", new String(stdout))
-                        .put("stderr", new String(stderr)) // NOTE this isn't currently used
-                        .put("event", "step_line")
-                        .put("func_name", currentMethod)
-                        .put("line", currentLine)
-                        .put("stack_to_render", serializedStackToRender)
-                        .put("globals", serializedStatics)
-                        .put("globals_attrs", new JSONObject(globalsAttrs))
-                        .put("ordered_globals", orderedStatics)
-                        .put("heap", serializedHeap)
-                        .put("heap_attrs", new JSONObject(heapAttrs))))
+        .put("stdin", stdin)
+        .put("trace", new JSONArray().put(step))
         .put("userlog", "");
   }
 
+  /**
+   * Serialize a snapshot of where a program threw an exception into the OnlinePythonTutor trace
+   * format. Its trace entry is an {@code exception} event with an {@code exception_msg}, as in
+   * OnlinePythonTutor, along with a reference to the exception object in the heap and whether the
+   * program caught it.
+   *
+   * @param javaSource The source code for the traced program.
+   * @param stdin What the program was given on stdin.
+   * @param thrown The exception and the snapshot of where it was thrown.
+   * @return The serialized trace.
+   */
+  public JSONObject serialize(String javaSource, String stdin, Thrown thrown) {
+    JSONObject serialized = serialize(javaSource, stdin, thrown.snapshot());
+    serialized
+        .getJSONArray("trace")
+        .getJSONObject(0)
+        .put("event", "exception")
+        .put("exception_msg", thrown.typeName() + thrown.message().map(m -> ": " + m).orElse(""))
+        .put("exception_value", serializeTraceValue(thrown.exception(), thrown.snapshot().heap()))
+        .put("exception_caught", thrown.caught());
+    return serialized;
+  }
+
+  /**
+   * Serialize heap objects that were fetched after a shallow snapshot, in the same format as a
+   * snapshot's heap.
+   *
+   * @param heap The fetched objects, by unique ID. References between them and to the snapshot's
+   *     heap are kept as references.
+   * @return An object with the serialized {@code heap} and its {@code heap_attrs}.
+   */
+  public JSONObject serializeHeap(Map<Long, TraceValue> heap) {
+    return new JSONObject()
+        .put("heap", serializeHeapObjects(heap))
+        .put("heap_attrs", new JSONObject(serializeHeapAttrs(heap)));
+  }
+
+  /**
+   * Serialize the objects in a heap. Strings are left out if they are inlined.
+   *
+   * @param heap The heap.
+   * @return A mapping from unique IDs to serialized objects.
+   */
+  private JSONObject serializeHeapObjects(Map<Long, TraceValue> heap) {
+    return new JSONObject(
+        heap.entrySet().stream()
+            .filter(e -> !(inlineStrings && e.getValue() instanceof TraceValue.String))
+            .collect(
+                Collectors.toMap(Entry::getKey, e -> serializeTraceValue(e.getValue(), heap))));
+  }
+
+  /**
+   * Serialize the declared types and finality of the fields of the objects in a heap.
+   *
+   * @param heap The heap.
+   * @return A mapping from unique IDs to the attributes of objects and lists.
+   */
+  private static Map<String, JSONObject> serializeHeapAttrs(Map<Long, TraceValue> heap) {
+    Map<String, JSONObject> heapAttrs = new HashMap<>();
+    for (Entry<Long, TraceValue> e : heap.entrySet()) {
+      String key = e.getKey().toString();
+      switch (e.getValue()) {
+        case TraceValue.Object o -> {
+          JSONArray objectTypes =
+              new JSONArray(o.fields().stream().map(ExecutionSnapshot.Field::typeName).toList());
+          JSONArray objectFinals =
+              new JSONArray(o.fields().stream().map(ExecutionSnapshot.Field::isFinal).toList());
+          heapAttrs.put(key, new JSONObject().put("type", objectTypes).put("final", objectFinals));
+        }
+        case TraceValue.List a -> {
+          heapAttrs.put(key, new JSONObject().put("type", a.typeName()));
+        }
+        default -> {}
+      }
+    }
+    return heapAttrs;
+  }
+
+  /**
+   * Serialize a trace that was stopped early into the OnlinePythonTutor trace format. The trace
+   * ends with an {@code instruction_limit_reached} event, which is how OnlinePythonTutor reports
+   * programs that ran for too long.
+   *
+   * @param javaSource The source code for the traced program.
+   * @param snapshot The snapshot to include before the termination, if there is one.
+   * @param termination Why the trace was stopped.
+   * @return The serialized trace.
+   */
+  public JSONObject serialize(
+      String javaSource, Optional<ExecutionSnapshot> snapshot, Termination termination) {
+    return serialize(javaSource, "", snapshot, termination);
+  }
+
+  /**
+   * Serialize a trace of a program that was given input on stdin and was stopped early into the
+   * OnlinePythonTutor trace format. See {@link #serialize(String, Optional, Termination)}.
+   *
+   * @param javaSource The source code for the traced program.
+   * @param stdin What the program was given on stdin.
+   * @param snapshot The snapshot to include before the termination, if there is one.
+   * @param termination Why the trace was stopped.
+   * @return The serialized trace.
+   */
+  public JSONObject serialize(
+      String javaSource,
+      String stdin,
+      Optional<ExecutionSnapshot> snapshot,
+      Termination termination) {
+    JSONObject serialized =
+        snapshot
+            .map(s -> serialize(javaSource, stdin, s))
+            .orElseGet(
+                () ->
+                    new JSONObject()
+                        .put("code", javaSource)
+                        .put("stdin", stdin)
+                        .put("trace", new JSONArray())
+                        .put("userlog", ""));
+    serialized.getJSONArray("trace").put(serializeTermination(termination));
+    return serialized;
+  }
+
+  /**
+   * Serialize the reason a trace was stopped early into an OnlinePythonTutor trace entry. Besides
+   * the human-readable {@code exception_msg}, the entry has a {@code termination_reason} naming the
+   * budget that was exceeded, like {@code wall_clock}.
+   *
+   * @param termination Why the trace was stopped.
+   * @return The serialized trace entry.
+   */
+  public JSONObject serializeTermination(Termination termination) {
+    return new JSONObject()
+        .put("event", "instruction_limit_reached")
+        .put("exception_msg", termination.message())
+        .put("termination_reason", termination.reason().name().toLowerCase(Locale.ROOT));
+  }
+
+  /**
+   * Serialize how many times each line of a program ran, for a heatmap. This isn't part of the
+   * OnlinePythonTutor format, so it is output next to the trace.
+   *
+   * @param lineCounts A mapping from line numbers to how many times they ran.
+   * @return An object with the {@code hits} of each line, by line number, and the line numbers
+   *     whose counts are {@code estimated}.
+   */
+  public JSONObject serializeLineCounts(Map<Integer, LineCount> lineCounts) {
+    JSONObject hits = new JSONObject();
+    JSONArray estimated = new JSONArray();
+    lineCounts.forEach(
+        (line, count) -> {
+          hits.put(line.toString(), count.hits());
+          if (count.estimated()) {
+            estimated.put(line);
+          }
+        });
+    return new JSONObject().put("hits", hits).put("estimated", estimated);
+  }
+
   /**
    * Serialize a stack snapshot into the OnlinePythonTutor stack frame format.
    *
@@ -195,9 +373,8 @@ public record PyTutorSerializer(
               orderedVarnames.clear();
               orderedVarnames.putAll(newOrderedVarnames);
 
-              localsAttrs
-                  .put("this", new JSONObject().put("type", t.typeName()))
-                  .put("final", true);
+              localsAttrs.put(
+                  "this", new JSONObject().put("type", t.typeName()).put("final", true));
               encodedLocals.put("this", serializeTraceValue(t.value(), heap));
             });
 
@@ -312,6 +489,10 @@ public record PyTutorSerializer(
       case TraceValue.Lambda lambdaValue -> {
         yield new JSONArray().put("JAVA_LAMBDA").put(lambdaValue.implementation());
       }
+      case TraceValue.Unexpanded unexpandedValue -> {
+        // not part of OnlinePythonTutor's format. clients of a trace session fetch these
+        yield new JSONArray().put("UNEXPANDED").put(unexpandedValue.classFqn());
+      }
     };
   }
 }
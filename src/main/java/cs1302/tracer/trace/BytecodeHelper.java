@@ -0,0 +1,234 @@
+package cs1302.tracer.trace;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * A collection of methods that are used to inspect a method's bytecode. For the instruction set,
+ * see <a href="https://docs.oracle.com/javase/specs/jvms/se21/html/jvms-6.html">chapter 6 of the
+ * JVM specification</a>.
+ */
+final class BytecodeHelper {
+
+  private static final int IFEQ = 0x99;
+  private static final int JSR = 0xa8;
+  private static final int TABLESWITCH = 0xaa;
+  private static final int LOOKUPSWITCH = 0xab;
+  private static final int IRETURN = 0xac;
+  private static final int RETURN = 0xb1;
+  private static final int WIDE = 0xc4;
+  private static final int IINC = 0x84;
+  private static final int IASTORE = 0x4f;
+  private static final int SASTORE = 0x56;
+  private static final int INVOKEVIRTUAL = 0xb6;
+  private static final int INVOKEDYNAMIC = 0xba;
+  private static final int IFNULL = 0xc6;
+  private static final int IFNONNULL = 0xc7;
+  private static final int GOTO_W = 0xc8;
+  private static final int JSR_W = 0xc9;
+
+  private BytecodeHelper() {}
+
+  /**
+   * Find the code indices of every return instruction ({@code ireturn} through {@code return}) in a
+   * method.
+   *
+   * @param bytecode The method's bytecode.
+   * @return The code indices of the method's return instructions, in ascending order.
+   * @throws IllegalArgumentException If the bytecode contains an unknown opcode.
+   */
+  static List<Long> returnCodeIndices(byte[] bytecode) {
+    List<Long> returnIndices = new ArrayList<>();
+    int index = 0;
+    while (index < bytecode.length) {
+      int opcode = Byte.toUnsignedInt(bytecode[index]);
+      if (opcode >= IRETURN && opcode <= RETURN) {
+        returnIndices.add((long) index);
+      }
+      index += instructionLength(bytecode, index);
+    }
+    return returnIndices;
+  }
+
+  /**
+   * Find the code indices of every instruction in a method that can change an array or a library
+   * object without writing to a field of the program's own classes: array stores ({@code iastore}
+   * through {@code sastore}) and method invocations ({@code invokevirtual} through {@code
+   * invokedynamic}).
+   *
+   * @param bytecode The method's bytecode.
+   * @return The code indices of the instructions, in ascending order.
+   * @throws IllegalArgumentException If the bytecode contains an unknown opcode.
+   */
+  static List<Long> indirectWriteCodeIndices(byte[] bytecode) {
+    List<Long> writeIndices = new ArrayList<>();
+    int index = 0;
+    while (index < bytecode.length) {
+      int opcode = Byte.toUnsignedInt(bytecode[index]);
+      if ((opcode >= IASTORE && opcode <= SASTORE)
+          || (opcode >= INVOKEVIRTUAL && opcode <= INVOKEDYNAMIC)) {
+        writeIndices.add((long) index);
+      }
+      index += instructionLength(bytecode, index);
+    }
+    return writeIndices;
+  }
+
+  /**
+   * Find the code indices that a method's branch instructions can jump to: the targets of its
+   * conditional branches ({@code ifeq} through {@code if_acmpne}, {@code ifnull} and {@code
+   * ifnonnull}), its {@code goto}s and {@code jsr}s, and its switches.
+   *
+   * @param bytecode The method's bytecode.
+   * @return The code indices of the jump targets, in ascending order.
+   * @throws IllegalArgumentException If the bytecode contains an unknown opcode.
+   */
+  static List<Long> jumpTargetCodeIndices(byte[] bytecode) {
+    Set<Long> targets = new TreeSet<>();
+    int index = 0;
+    while (index < bytecode.length) {
+      int opcode = Byte.toUnsignedInt(bytecode[index]);
+      if ((opcode >= IFEQ && opcode <= JSR) || opcode == IFNULL || opcode == IFNONNULL) {
+        targets.add((long) index + readShort(bytecode, index + 1));
+      } else if (opcode == GOTO_W || opcode == JSR_W) {
+        targets.add((long) index + readInt(bytecode, index + 1));
+      } else if (opcode == TABLESWITCH) {
+        // the default offset comes first, then the low and high keys, then one offset per key
+        int operands = (index + 4) & ~3;
+        targets.add((long) index + readInt(bytecode, operands));
+        int low = readInt(bytecode, operands + 4);
+        int high = readInt(bytecode, operands + 8);
+        for (int i = 0; i <= high - low; i++) {
+          targets.add((long) index + readInt(bytecode, operands + 12 + i * 4));
+        }
+      } else if (opcode == LOOKUPSWITCH) {
+        // the default offset comes first, then the number of pairs, then each key and its offset
+        int operands = (index + 4) & ~3;
+        targets.add((long) index + readInt(bytecode, operands));
+        int pairs = readInt(bytecode, operands + 4);
+        for (int i = 0; i < pairs; i++) {
+          targets.add((long) index + readInt(bytecode, operands + 12 + i * 8));
+        }
+      }
+      index += instructionLength(bytecode, index);
+    }
+    return new ArrayList<>(targets);
+  }
+
+  /**
+   * Get the length of the instruction at an index, including its operands.
+   *
+   * @param bytecode The bytecode containing the instruction.
+   * @param index The code index of the instruction's opcode.
+   * @return The length of the instruction in bytes.
+   * @throws IllegalArgumentException If the opcode is unknown.
+   */
+  private static int instructionLength(byte[] bytecode, int index) {
+    int opcode = Byte.toUnsignedInt(bytecode[index]);
+    return switch (opcode) {
+      case TABLESWITCH -> {
+        // operands are aligned to a multiple of four bytes from the start of the method
+        int operands = (index + 4) & ~3;
+        int low = readInt(bytecode, operands + 4);
+        int high = readInt(bytecode, operands + 8);
+        yield operands - index + 12 + (high - low + 1) * 4;
+      }
+      case LOOKUPSWITCH -> {
+        int operands = (index + 4) & ~3;
+        int pairs = readInt(bytecode, operands + 4);
+        yield operands - index + 8 + pairs * 8;
+      }
+      case WIDE -> Byte.toUnsignedInt(bytecode[index + 1]) == IINC ? 6 : 4;
+      default -> {
+        if (opcode >= OPCODE_LENGTHS.length || OPCODE_LENGTHS[opcode] == 0) {
+          throw new IllegalArgumentException(
+              String.format("Unknown opcode 0x%02x at code index %d.", opcode, index));
+        }
+        yield OPCODE_LENGTHS[opcode];
+      }
+    };
+  }
+
+  /**
+   * Read a big-endian signed 32-bit integer from bytecode.
+   *
+   * @param bytecode The bytecode to read from.
+   * @param index The index of the integer's first byte.
+   * @return The integer.
+   */
+  private static int readInt(byte[] bytecode, int index) {
+    return (Byte.toUnsignedInt(bytecode[index]) << 24)
+        | (Byte.toUnsignedInt(bytecode[index + 1]) << 16)
+        | (Byte.toUnsignedInt(bytecode[index + 2]) << 8)
+        | Byte.toUnsignedInt(bytecode[index + 3]);
+  }
+
+  /**
+   * Read a big-endian signed 16-bit integer from bytecode.
+   *
+   * @param bytecode The bytecode to read from.
+   * @param index The index of the integer's first byte.
+   * @return The integer.
+   */
+  private static int readShort(byte[] bytecode, int index) {
+    return (short)
+        ((Byte.toUnsignedInt(bytecode[index]) << 8) | Byte.toUnsignedInt(bytecode[index + 1]));
+  }
+
+  /**
+   * The lengths (opcode plus operands) of fixed-length instructions, indexed by opcode. Unused
+   * opcodes and variable-length instructions have a length of zero.
+   */
+  private static final int[] OPCODE_LENGTHS = new int[0xca];
+
+  static {
+    // nop through dconst_1 take no operands
+    fill(0x00, 0x0f, 1);
+    OPCODE_LENGTHS[0x10] = 2; // bipush
+    OPCODE_LENGTHS[0x11] = 3; // sipush
+    OPCODE_LENGTHS[0x12] = 2; // ldc
+    OPCODE_LENGTHS[0x13] = 3; // ldc_w
+    OPCODE_LENGTHS[0x14] = 3; // ldc2_w
+    fill(0x15, 0x19, 2); // iload through aload
+    fill(0x1a, 0x35, 1); // iload_0 through saload
+    fill(0x36, 0x3a, 2); // istore through astore
+    fill(0x3b, 0x83, 1); // istore_0 through lxor
+    OPCODE_LENGTHS[IINC] = 3;
+    fill(0x85, 0x98, 1); // i2l through dcmpg
+    fill(0x99, 0xa8, 3); // ifeq through jsr
+    OPCODE_LENGTHS[0xa9] = 2; // ret
+    fill(IRETURN, RETURN, 1);
+    fill(0xb2, 0xb8, 3); // getstatic through invokestatic
+    OPCODE_LENGTHS[0xb9] = 5; // invokeinterface
+    OPCODE_LENGTHS[0xba] = 5; // invokedynamic
+    OPCODE_LENGTHS[0xbb] = 3; // new
+    OPCODE_LENGTHS[0xbc] = 2; // newarray
+    OPCODE_LENGTHS[0xbd] = 3; // anewarray
+    OPCODE_LENGTHS[0xbe] = 1; // arraylength
+    OPCODE_LENGTHS[0xbf] = 1; // athrow
+    OPCODE_LENGTHS[0xc0] = 3; // checkcast
+    OPCODE_LENGTHS[0xc1] = 3; // instanceof
+    OPCODE_LENGTHS[0xc2] = 1; // monitorenter
+    OPCODE_LENGTHS[0xc3] = 1; // monitorexit
+    OPCODE_LENGTHS[0xc5] = 4; // multianewarray
+    OPCODE_LENGTHS[0xc6] = 3; // ifnull
+    OPCODE_LENGTHS[0xc7] = 3; // ifnonnull
+    OPCODE_LENGTHS[0xc8] = 5; // goto_w
+    OPCODE_LENGTHS[0xc9] = 5; // jsr_w
+  }
+
+  /**
+   * Set the length of a range of opcodes.
+   *
+   * @param first The first opcode in the range.
+   * @param last The last opcode in the range, inclusive.
+   * @param length The length of each instruction in the range.
+   */
+  private static void fill(int first, int last, int length) {
+    for (int opcode = first; opcode <= last; opcode++) {
+      OPCODE_LENGTHS[opcode] = length;
+    }
+  }
+}
@@ -0,0 +1,77 @@
+package cs1302.tracer.trace;
+
+import java.util.Arrays;
+import java.util.List;
+import javax.lang.model.SourceVersion;
+
+/**
+ * A description of the part of a program's state that should be captured in a snapshot. Instead of
+ * recording every frame's variables, every loaded static, and the entire reachable heap, only the
+ * values named by {@code paths} (and the objects reachable from them) are recorded.
+ *
+ * <p>A path is a variable or field path expression such as {@code i}, {@code list.head}, {@code
+ * this.size}, or {@code Main.count}. The first element of a path is resolved, in order, as {@code
+ * this}, a variable that is visible in the current frame, a field of {@code this}, a static field
+ * of the current class, or the name of a loaded class followed by one of its static fields. Each
+ * following element names a field of the previous element's value. A path that can't be followed at
+ * a breakpoint, such as one rooted at a variable that isn't in scope yet, is left out of the
+ * snapshot, but a path whose first element names none of these things fails the trace with an
+ * {@link IllegalArgumentException}, since it is most likely a typo.
+ *
+ * @param paths The path expressions to capture, each split into its elements.
+ * @param maxDepth The maximum number of references to follow from a captured value when walking the
+ *     heap. Objects that are further away are included as stubs without any fields.
+ */
+public record CaptureSpec(List<List<String>> paths, int maxDepth) {
+
+  /** The depth used when no maximum depth is given. */
+  public static final int UNLIMITED_DEPTH = Integer.MAX_VALUE;
+
+  /**
+   * Create a capture specification from a comma-separated list of path expressions.
+   *
+   * @param expressions Comma-separated path expressions, such as {@code "list.head,i"}.
+   * @param maxDepth The maximum heap depth to capture. See {@link #maxDepth()}.
+   * @return The parsed capture specification.
+   * @throws IllegalArgumentException If an expression isn't a dot-separated list of identifiers or
+   *     if {@code maxDepth} is negative.
+   */
+  public static CaptureSpec parse(String expressions, int maxDepth) {
+    if (maxDepth < 0) {
+      throw new IllegalArgumentException("Capture depth must not be negative.");
+    }
+
+    List<List<String>> paths =
+        Arrays.stream(expressions.split(","))
+            .map(String::strip)
+            .filter(e -> !e.isEmpty())
+            .map(CaptureSpec::parsePath)
+            .toList();
+
+    if (paths.isEmpty()) {
+      throw new IllegalArgumentException(
+          String.format("Capture expression \"%s\" doesn't contain any paths.", expressions));
+    }
+
+    return new CaptureSpec(paths, maxDepth);
+  }
+
+  /**
+   * Split a single path expression into its elements.
+   *
+   * @param expression The path expression, such as {@code "list.head"}.
+   * @return The path's elements.
+   * @throws IllegalArgumentException If the expression isn't a dot-separated list of identifiers.
+   */
+  private static List<String> parsePath(String expression) {
+    List<String> path = Arrays.stream(expression.split("\\.", -1)).map(String::strip).toList();
+    for (String element : path) {
+      if (!element.equals("this") && !SourceVersion.isIdentifier(element)) {
+        throw new IllegalArgumentException(
+            String.format(
+                "Capture path \"%s\" must be a dot-separated list of identifiers.", expression));
+      }
+    }
+    return path;
+  }
+}
@@ -1,46 +1,82 @@
 package cs1302.tracer.trace;
 
-import com.github.javaparser.JavaParser;
-import com.github.javaparser.ParserConfiguration;
-import com.github.javaparser.ParserConfiguration.LanguageLevel;
 import com.github.javaparser.ast.CompilationUnit;
-import com.github.javaparser.ast.Modifier;
-import com.github.javaparser.ast.body.ClassOrInterfaceDeclaration;
-import com.github.javaparser.ast.body.MethodDeclaration;
-import com.github.javaparser.ast.body.VariableDeclarator;
-import com.github.javaparser.ast.expr.Expression;
-import com.github.javaparser.ast.expr.LambdaExpr;
-import com.github.javaparser.ast.expr.VariableDeclarationExpr;
-import com.github.javaparser.ast.stmt.BlockStmt;
-import com.github.javaparser.ast.stmt.ExpressionStmt;
-import com.github.javaparser.resolution.MethodUsage;
-import com.github.javaparser.resolution.logic.FunctionalInterfaceLogic;
-import com.github.javaparser.resolution.types.ResolvedLambdaConstraintType;
-import com.github.javaparser.resolution.types.ResolvedType;
 import com.sun.jdi.*;
-import com.sun.jdi.connect.Connector;
 import com.sun.jdi.connect.IllegalConnectorArgumentsException;
-import com.sun.jdi.connect.LaunchingConnector;
 import com.sun.jdi.connect.VMStartException;
 import com.sun.jdi.event.*;
+import com.sun.jdi.request.BreakpointRequest;
 import com.sun.jdi.request.ClassPrepareRequest;
+import com.sun.jdi.request.EventRequest;
+import com.sun.jdi.request.EventRequestManager;
+import com.sun.jdi.request.ExceptionRequest;
 import com.sun.jdi.request.MethodExitRequest;
+import com.sun.jdi.request.StepRequest;
 import cs1302.tracer.CompilationHelper.CompilationResult;
 import cs1302.tracer.trace.ExecutionSnapshot.StackSnapshot;
 import cs1302.tracer.trace.ExecutionSnapshot.StackSnapshot.ThisObject;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Function;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
-import java.util.stream.IntStream;
 
 /** A collection of methods that are used to generate a debug trace. */
 public class DebugTraceHelper {
 
-  /** A simple JavaParser object so we don't have to make a new one every time we do parsing. */
-  private static final JavaParser simpleJavaParser =
-      new JavaParser(new ParserConfiguration().setLanguageLevel(LanguageLevel.CURRENT));
+  /**
+   * The JNI signature for a method with one string array parameter that returns void. For details,
+   * see https://docs.oracle.com/javase/8/docs/technotes/guides/jni/spec/types.html#type_signatures
+   */
+  static final String MAIN_JNI_SIGNATURE = "([Ljava/lang/String;)V";
+
+  /** The event request property that marks requests which fire when the main method returns. */
+  static final Object MAIN_EXIT = "mainExit";
+
+  /** The event request property that marks requests which fire when the main method is entered. */
+  static final Object MAIN_ENTRY = "mainEntry";
+
+  /** The packages that steps never stop in, since they have no source to show. */
+  static final List<String> JDK_PACKAGES =
+      List.of("java.*", "javax.*", "jdk.*", "sun.*", "com.sun.*");
+
+  /**
+   * The property of an exception request that counts the exceptions it reported but didn't keep, by
+   * the class that threw them.
+   */
+  private static final Object SKIPPED_EXCEPTIONS = "skippedExceptions";
+
+  /**
+   * The property of an exception request that refers to the request for the exceptions that nothing
+   * catches, once there is one next to it.
+   */
+  private static final Object UNCAUGHT_REQUEST = "uncaughtRequest";
+
+  /**
+   * How many exceptions that don't pass the {@link ExceptionFilter#UNCAUGHT} filter a class may
+   * throw before the exceptions it throws stop being requested.
+   */
+  private static final int MAX_SKIPPED_EXCEPTIONS = 64;
+
+  /** How long to wait for a program that is being killed to reach its own code, in nanoseconds. */
+  private static final long KILL_POINT_GRACE_NANOS = 1_000_000_000L;
+
+  /** How long to wait for a launched VM to connect to us, in nanoseconds. */
+  private static final long LAUNCH_TIMEOUT_NANOS = 30_000_000_000L;
+
+  /** How often to check whether a launched VM died while waiting for it to connect. */
+  private static final long ACCEPT_POLL_MILLIS = 100;
 
   /**
    * Take snapshots of a program's execution state at the given breakpoints.
@@ -67,130 +103,593 @@ public class DebugTraceHelper {
           IncompatibleThreadStateException,
           AbsentInformationException,
           ClassNotLoadedException {
+    return launchAndTrace(compilationResult, TracePlan.of(breakPoints), parsedSource).snapshots();
+  } // trace
 
-    boolean snapMainEnd = breakPoints == null || breakPoints.isEmpty() || breakPoints.contains(-1);
-
-    Map<Integer, List<ExecutionSnapshot>> snapshots = new HashMap<>();
-
-    VirtualMachine vm = startVmWithCprs(compilationResult);
-
-    ByteArrayOutputStream vmErrSink = new ByteArrayOutputStream();
-    {
-      InputStream vmErrSource = vm.process().getErrorStream();
-      Thread.ofVirtual()
-          .start(
-              () -> {
-                while (true) {
-                  try {
-                    int vmErrData = vmErrSource.read();
-                    if (vmErrData == -1) {
-                      break;
-                    }
-                    synchronized (vmErrSink) {
-                      vmErrSink.write(vmErrData);
-                    }
-                  } catch (IOException ioe) {
-                    break;
-                  }
-                }
-              });
-    }
-
-    ByteArrayOutputStream vmOutSink = new ByteArrayOutputStream();
-    {
-      InputStream vmOutSource = vm.process().getInputStream();
-      Thread.ofVirtual()
-          .start(
-              () -> {
-                while (true) {
-                  try {
-                    int vmOutData = vmOutSource.read();
-                    if (vmOutData == -1) {
-                      break;
-                    }
-                    synchronized (vmOutSink) {
-                      vmOutSink.write(vmOutData);
-                    }
-                  } catch (IOException ioe) {
-                    break;
-                  }
-                }
-              });
-    }
-
-    if (snapMainEnd) {
-      // fire an event when exiting main
-      MethodExitRequest methodExitRequest = vm.eventRequestManager().createMethodExitRequest();
-      methodExitRequest.addClassFilter(compilationResult.mainClass());
-      methodExitRequest.enable();
-    }
-
-    HashSet<ReferenceType> loadedClasses = new HashSet<>();
-
-    boolean endEventLoop = false;
-    while (!endEventLoop) {
-      for (Event event : vm.eventQueue().remove()) {
-        switch (event) {
-          case ClassPrepareEvent cpe -> {
-            if (compilationResult.compiledClassNames().contains(cpe.referenceType().name())) {
-              if (breakPoints != null) {
-                for (int breakLine : breakPoints) {
-                  List<Location> locations = cpe.referenceType().locationsOfLine(breakLine);
-                  if (locations.isEmpty()) {
-                    break;
-                  }
-                  vm.eventRequestManager().createBreakpointRequest(locations.get(0)).enable();
-                }
-              }
-              loadedClasses.add(cpe.referenceType());
-            }
-          }
-          case BreakpointEvent bpe -> {
-            Location breakLocation = bpe.location();
-            if (compilationResult
-                .compiledClassNames()
-                .contains(breakLocation.declaringType().name())) {
+  /**
+   * Launch a program's JVM and take snapshots of its execution state according to a plan. The
+   * program's process is always gone by the time this method returns.
+   *
+   * @param compilationResult A properly filled CompilationResult (probably from a call to
+   *     CompilationHelper.compile()).
+   * @param plan What to snapshot, and the resources the program may use.
+   * @param parsedSource Parsed source code for the compiled program's main source file.
+   * @return The snapshots that were taken, and why the program was killed if it was.
+   */
+  private static TraceResult launchAndTrace(
+      CompilationResult compilationResult, TracePlan plan, CompilationUnit parsedSource)
+      throws IOException,
+          IllegalConnectorArgumentsException,
+          VMStartException,
+          InterruptedException,
+          IncompatibleThreadStateException,
+          AbsentInformationException,
+          ClassNotLoadedException {
+    TraceMetrics metrics = new TraceMetrics();
+    return trace(
+        compilationResult,
+        plan,
+        sourcePath ->
+            sourcePath.equals(compilationResult.mainSourcePath())
+                ? Optional.of(parsedSource)
+                : Optional.empty(),
+        launch(
+            compilationResult.classPath(), compilationResult.mainClass(), plan.budget(), metrics),
+        metrics);
+  } // launchAndTrace
 
-              Integer line = breakLocation.lineNumber();
-              ExecutionSnapshot snapshot =
-                  snapshotTheWorld(bpe.thread(), loadedClasses, vmOutSink, vmErrSink, parsedSource);
+  /**
+   * Take snapshots of a program's execution state according to a plan, in a JVM that was launched
+   * ahead of time with {@link #launch(List, String, TraceBudget, TraceMetrics)} so that it could
+   * start while the program was being compiled. While the JVM starts, the main method is resolved
+   * on another thread; it is only needed once the first snapshot is taken. The rest of the
+   * program's source files are only parsed and resolved once a snapshot includes their code. The
+   * program is killed if it exceeds its budget, and its process is always gone by the time this
+   * method returns.
+   *
+   * @param compilationResult A properly filled CompilationResult (probably from a call to
+   *     CompilationHelper.compile()).
+   * @param plan What to snapshot, and the resources the program may use.
+   * @param parsedSources Parses one of the program's source files with symbol resolution, given its
+   *     path relative to its source root, like {@code cs1302/Main.java}. Empty if the file isn't
+   *     one of the program's. It is called at most once per file.
+   * @param launchedVm The program's JVM, launched with the compiled program's class path and main
+   *     class.
+   * @param metrics The metrics to record the event wait and snapshot phases in, along with
+   *     breakpoint hits, JDWP commands and output.
+   * @return The snapshots that were taken, and why the program was killed if it was.
+   */
+  public static TraceResult trace(
+      CompilationResult compilationResult,
+      TracePlan plan,
+      Function<String, Optional<CompilationUnit>> parsedSources,
+      CompletableFuture<VirtualMachine> launchedVm,
+      TraceMetrics metrics)
+      throws IOException,
+          IllegalConnectorArgumentsException,
+          VMStartException,
+          InterruptedException,
+          IncompatibleThreadStateException,
+          AbsentInformationException,
+          ClassNotLoadedException {
 
-              snapshots.computeIfAbsent(line, ArrayList<ExecutionSnapshot>::new).add(snapshot);
-            }
+    CompletableFuture<SourceIndex> sourceIndex = indexSources(compilationResult, parsedSources);
+    TraceWatchdog watchdog = new TraceWatchdog(plan.budget());
+    VirtualMachine vm;
+    try {
+      vm = await(launchedVm);
+    } catch (InterruptedException e) {
+      discard(launchedVm);
+      throw e;
+    }
+    Process process = vm.process();
+    Optional<TraceResult.Termination> termination = Optional.empty();
+    EventHandler handler;
+
+    try {
+      // the JVM is still suspended at startup, so none of our classes have been prepared yet
+      requestClassPrepares(vm, compilationResult.compiledClassNames());
+      ByteArrayOutputStream vmErrSink = watchdog.capture(process.getErrorStream());
+      ByteArrayOutputStream vmOutSink = watchdog.capture(process.getInputStream());
+      handler =
+          new EventHandler(
+              compilationResult,
+              plan,
+              sourceIndex,
+              watchdog,
+              vmOutSink,
+              vmErrSink,
+              type -> true,
+              Optional.empty(),
+              metrics);
+
+      // events are handled one event set at a time. every event in a set was generated by the same
+      // occurrence in the debuggee, so the set is only resumed once all of them have been handled.
+      // class preparation only suspends the thread that prepared the class, so that thread can't
+      // run the class's code before its breakpoints are set. only snapshots stop the world.
+      boolean endEventLoop = false;
+      while (!endEventLoop) {
+        termination = watchdog.check();
+        if (termination.isPresent()) {
+          termination = Optional.of(handler.withKillPoint(termination.get()));
+          break;
+        }
+
+        EventSet eventSet =
+            metrics.time(
+                TraceMetrics.Phase.EVENT_WAIT, () -> vm.eventQueue().remove(watchdog.pollMillis()));
+        if (eventSet == null) {
+          continue;
+        }
+
+        for (Event event : eventSet) {
+          endEventLoop |= handler.handle(event);
+        }
+
+        if (!endEventLoop) {
+          eventSet.resume();
+        }
+      }
+
+      if (termination.isEmpty()) {
+        termination = watchdog.checkExit(process);
+      }
+    } finally {
+      // whether the program finished, was stopped, or the tracer failed, make sure it isn't left
+      // running
+      process.destroyForcibly();
+      process.waitFor();
+      metrics.addOutputBytes(watchdog.outputBytes());
+    }
+
+    return handler.result(termination);
+  }
+
+  /**
+   * Handles the events of one traced program. A program is traced the same way whether it has a JVM
+   * of its own or runs in a {@link DebuggeeHost}: its classes are armed as they are prepared, and
+   * the snapshots that its plan asks for are taken as their events arrive. Whoever drives the JVM
+   * handles the events that only it knows about, and hands the rest to this.
+   */
+  static final class EventHandler {
+
+    private final CompilationResult compilationResult;
+
+    private final TracePlan plan;
+
+    private final CompletableFuture<SourceIndex> sourceIndex;
+
+    private final TraceWatchdog watchdog;
+
+    private final ByteArrayOutputStream vmOutSink;
+
+    private final ByteArrayOutputStream vmErrSink;
+
+    private final Predicate<ReferenceType> isProgramClass;
+
+    private final Optional<Runnable> syncOutput;
+
+    private final TraceMetrics metrics;
+
+    private final boolean snapMainEnd;
+
+    private final Map<Integer, HitTracker> hitTrackers;
+
+    private final Optional<LineCounter> lineCounter;
+
+    private final Map<Integer, List<ExecutionSnapshot>> snapshots = new HashMap<>();
+
+    private final Set<ReferenceType> loadedClasses = new HashSet<>();
+
+    /** The thread that prepared the main class, or null until it is prepared. */
+    private ThreadReference mainThread;
+
+    private Optional<TraceResult.Thrown> exception = Optional.empty();
+
+    /**
+     * Create a handler for a program whose classes haven't been prepared yet.
+     *
+     * @param compilationResult The compiled program.
+     * @param plan What to snapshot, and the resources the program may use.
+     * @param sourceIndex The index of the program's source code, which is only waited for once a
+     *     snapshot is taken.
+     * @param watchdog The watchdog that counts the program's breakpoint hits.
+     * @param vmOutSink The sink that holds the program's stdout.
+     * @param vmErrSink The sink that holds the program's stderr.
+     * @param isProgramClass Checks whether a prepared class that has the name of one of the
+     *     program's classes really is one of them.
+     * @param syncOutput Brings the output sinks up to date before a snapshot, while the JVM is
+     *     suspended, or empty if they are always up to date.
+     * @param metrics The metrics to record the snapshot phase and breakpoint hits in.
+     */
+    EventHandler(
+        CompilationResult compilationResult,
+        TracePlan plan,
+        CompletableFuture<SourceIndex> sourceIndex,
+        TraceWatchdog watchdog,
+        ByteArrayOutputStream vmOutSink,
+        ByteArrayOutputStream vmErrSink,
+        Predicate<ReferenceType> isProgramClass,
+        Optional<Runnable> syncOutput,
+        TraceMetrics metrics) {
+      this.compilationResult = compilationResult;
+      this.plan = plan;
+      this.sourceIndex = sourceIndex;
+      this.watchdog = watchdog;
+      this.vmOutSink = vmOutSink;
+      this.vmErrSink = vmErrSink;
+      this.isProgramClass = isProgramClass;
+      this.syncOutput = syncOutput;
+      this.metrics = metrics;
+      this.snapMainEnd = snapsMainEnd(plan.breakPoints());
+      this.hitTrackers = hitTrackers(plan.breakPoints(), plan.hitPolicies());
+      this.lineCounter =
+          plan.lines().enabled() ? Optional.of(new LineCounter(plan.lines())) : Optional.empty();
+    }
+
+    /**
+     * Handle one of the program's events. The event's set is left for the caller to resume.
+     *
+     * @param event The event.
+     * @return True if the program's JVM is gone, so no more events will come.
+     */
+    boolean handle(Event event)
+        throws IncompatibleThreadStateException,
+            AbsentInformationException,
+            ClassNotLoadedException {
+      switch (event) {
+        case ClassPrepareEvent cpe -> prepare(cpe);
+        case BreakpointEvent bpe when bpe.request().getProperty(LineCounter.class) != null ->
+            lineCounter.orElseThrow().hit(bpe);
+        case BreakpointEvent bpe when bpe.request().getProperty(MAIN_EXIT) != null -> {
+          syncOutput.ifPresent(Runnable::run);
+          snapshots.put(-1, List.of(snapshot(bpe.thread(), -1)));
+        }
+        case BreakpointEvent bpe -> {
+          watchdog.countBreakpointHit();
+          metrics.countBreakpointHit();
+          Integer line = bpe.location().lineNumber();
+          HitTracker hitTracker = (HitTracker) bpe.request().getProperty(HitTracker.class);
+          if (hitTracker.hit((BreakpointRequest) bpe.request())) {
+            syncOutput.ifPresent(Runnable::run);
+            hitTracker.record(snapshot(bpe.thread(), line));
           }
-          case MethodExitEvent mee -> {
-            Method method = mee.method();
-            // this is the JNI signature for a method with one string array parameter that
-            // returns void. for details, see
-            // https://docs.oracle.com/javase/8/docs/technotes/guides/jni/spec/types.html#type_signatures
-            String mainJniSignature = "([Ljava/lang/String;)V";
-            boolean isMain =
-                method.isPublic()
-                    && method.isStatic()
-                    && method.name().equals("main")
-                    && method.signature().equals(mainJniSignature);
-
-            if (isMain && (snapMainEnd || snapshots.isEmpty())) {
-              ExecutionSnapshot snapshot =
-                  snapshotTheWorld(mee.thread(), loadedClasses, vmOutSink, vmErrSink, parsedSource);
+        }
+        case MethodExitEvent mee -> {
+          Method method = mee.method();
+          boolean isMain =
+              method.isPublic()
+                  && method.isStatic()
+                  && method.name().equals("main")
+                  && method.signature().equals(MAIN_JNI_SIGNATURE);
 
-              snapshots.put(-1, List.of(snapshot));
+          if (isMain) {
+            // method exits only suspend their own thread, so stop the world before taking the
+            // snapshot, unless the other threads should keep running
+            boolean suspendAll = plan.threads().suspendPolicy() == ThreadCapture.SuspendPolicy.ALL;
+            if (suspendAll) {
+              mee.virtualMachine().suspend();
+            }
+            try {
+              syncOutput.ifPresent(Runnable::run);
+              snapshots.put(-1, List.of(snapshot(mee.thread(), -1)));
+            } finally {
+              if (suspendAll) {
+                mee.virtualMachine().resume();
+              }
             }
           }
-          case VMDeathEvent vde -> {
-            endEventLoop = true;
-            break;
+        }
+        case ExceptionEvent ee when exception.isEmpty() -> {
+          // an exception that nothing catches can be reported by two requests, but only the first
+          // report gets here
+          syncOutput.ifPresent(Runnable::run);
+          exception =
+              snapshotException(
+                  ee,
+                  loadedClasses,
+                  vmOutSink,
+                  vmErrSink,
+                  sourceIndex.join(),
+                  plan.exceptions(),
+                  plan.threads(),
+                  metrics);
+          if (exception.isPresent()) {
+            // only the first exception is snapshotted
+            ee.virtualMachine()
+                .eventRequestManager()
+                .exceptionRequests()
+                .forEach(EventRequest::disable);
           }
-          default -> {}
         }
+        case VMDeathEvent vde -> {
+          return true;
+        }
+        case VMDisconnectEvent vde -> {
+          return true;
+        }
+        default -> {}
+      }
+      return false;
+    }
+
+    /**
+     * Arm a newly prepared class if it is one of the program's.
+     *
+     * @param event The class's preparation, whose thread is suspended.
+     */
+    private void prepare(ClassPrepareEvent event) throws AbsentInformationException {
+      ReferenceType preparedType = event.referenceType();
+      if (!compilationResult.compiledClassNames().contains(preparedType.name())
+          || !isProgramClass.test(preparedType)) {
+        return;
+      }
+      if (isInSource(preparedType, compilationResult.mainSourcePath())) {
+        armBreakpoints(preparedType, hitTrackers, plan.threads().suspendPolicy());
+        if (lineCounter.isPresent()) {
+          lineCounter.get().arm(preparedType);
+        }
+      }
+      if (preparedType.name().equals(compilationResult.mainClass())) {
+        mainThread = event.thread();
+        if (snapMainEnd) {
+          armMainExit(preparedType, event.thread(), plan.threads().suspendPolicy());
+        }
+        if (plan.exceptions() != ExceptionFilter.NONE) {
+          armExceptions(event.virtualMachine(), plan.exceptions(), plan.threads().suspendPolicy());
+        }
+      }
+      loadedClasses.add(preparedType);
+    }
+
+    /**
+     * Snapshot the program where a thread is stopped.
+     *
+     * @param thread The thread, which is suspended.
+     * @param line The breakpoint line that the snapshot is for, or -1 for the end of main.
+     * @return The snapshot.
+     */
+    private ExecutionSnapshot snapshot(ThreadReference thread, int line)
+        throws IncompatibleThreadStateException,
+            AbsentInformationException,
+            ClassNotLoadedException {
+      TraceMetrics.SnapshotTimer timer = metrics.timeSnapshot(line);
+      ExecutionSnapshot snapshot =
+          snapshotTheWorld(
+              thread,
+              loadedClasses,
+              vmOutSink,
+              vmErrSink,
+              sourceIndex.join(),
+              Optional.ofNullable(plan.captures().get(line)),
+              plan.threads());
+      timer.finish(snapshot);
+      return snapshot;
+    }
 
-        vm.resume();
+    /**
+     * Add the state that the program was killed in to the reason it was killed, if the plan
+     * snapshots the end of main.
+     *
+     * @param termination Why the program is being killed. It must still be running.
+     * @return The termination, with a snapshot of the main thread if one was taken.
+     */
+    TraceResult.Termination withKillPoint(TraceResult.Termination termination)
+        throws InterruptedException,
+            IncompatibleThreadStateException,
+            AbsentInformationException,
+            ClassNotLoadedException {
+      if (!snapMainEnd || mainThread == null) {
+        return termination;
+      }
+      if (syncOutput.isPresent()) {
+        VirtualMachine vm = mainThread.virtualMachine();
+        vm.suspend();
+        try {
+          syncOutput.get().run();
+        } finally {
+          vm.resume();
+        }
       }
+      Optional<ExecutionSnapshot> lastState =
+          snapshotKillPoint(
+              mainThread,
+              loadedClasses,
+              vmOutSink,
+              vmErrSink,
+              sourceIndex.join(),
+              Optional.ofNullable(plan.captures().get(-1)),
+              metrics);
+      return new TraceResult.Termination(termination.reason(), termination.message(), lastState);
     }
 
-    return snapshots;
+    /**
+     * Collect what the program's trace found once the program has ended.
+     *
+     * @param termination Why the program was killed, or empty if it finished.
+     * @return The trace's result.
+     */
+    TraceResult result(Optional<TraceResult.Termination> termination) {
+      collectHits(hitTrackers, snapshots);
+      return new TraceResult(
+          snapshots,
+          termination,
+          exception,
+          lineCounter.map(LineCounter::lineCounts).orElse(Map.of()));
+    }
   }
 
+  /**
+   * Check whether a trace takes a snapshot at the end of main.
+   *
+   * @param breakPoints The source line numbers to take snapshots at, which may be null.
+   * @return True if there are no breakpoints, or they include the special value -1.
+   */
+  static boolean snapsMainEnd(Collection<Integer> breakPoints) {
+    return breakPoints == null || breakPoints.isEmpty() || breakPoints.contains(-1);
+  }
+
+  /**
+   * Start indexing a program's source code on another thread, beginning with its main method, which
+   * is needed for the first snapshot.
+   *
+   * @param compilationResult The compiled program.
+   * @param parsedSources Parses one of the program's source files, given its path relative to its
+   *     source root.
+   * @return The source index, which completes once the main method has been resolved.
+   */
+  static CompletableFuture<SourceIndex> indexSources(
+      CompilationResult compilationResult,
+      Function<String, Optional<CompilationUnit>> parsedSources) {
+    CompletableFuture<SourceIndex> sourceIndex = new CompletableFuture<>();
+    Thread.ofVirtual()
+        .name("source-index")
+        .start(
+            () -> {
+              SourceIndex index = new SourceIndex(parsedSources);
+              try {
+                index.resolve(
+                    compilationResult.mainSourcePath(),
+                    compilationResult.mainClass() + ".main(java.lang.String[])");
+              } finally {
+                sourceIndex.complete(index);
+              }
+            });
+    return sourceIndex;
+  } // indexSources
+
+  /**
+   * Create a tracker for each breakpoint line, which decides the hits that are snapshotted.
+   *
+   * @param breakPoints The source line numbers to take snapshots at, which may be null. The special
+   *     value -1 doesn't get a tracker.
+   * @param hitPolicies A mapping from breakpoint line numbers to their hit policies. Lines without
+   *     one snapshot every hit.
+   * @return A mapping from breakpoint line numbers to their trackers, in the order of the lines.
+   */
+  static Map<Integer, HitTracker> hitTrackers(
+      Collection<Integer> breakPoints, Map<Integer, HitPolicy> hitPolicies) {
+    Map<Integer, HitTracker> hitTrackers = new LinkedHashMap<>();
+    if (breakPoints != null) {
+      for (int breakLine : breakPoints) {
+        if (breakLine != -1) {
+          HitPolicy hitPolicy = hitPolicies.getOrDefault(breakLine, new HitPolicy.All());
+          hitTrackers.putIfAbsent(breakLine, new HitTracker(hitPolicy));
+        }
+      }
+    }
+    return hitTrackers;
+  } // hitTrackers
+
+  /**
+   * Add the snapshots that each breakpoint's tracker kept to a trace's snapshots.
+   *
+   * @param hitTrackers A mapping from breakpoint line numbers to their trackers.
+   * @param snapshots The trace's snapshots by line. Lines without snapshots aren't added.
+   */
+  static void collectHits(
+      Map<Integer, HitTracker> hitTrackers, Map<Integer, List<ExecutionSnapshot>> snapshots) {
+    hitTrackers.forEach(
+        (line, hitTracker) -> {
+          if (!hitTracker.snapshots().isEmpty()) {
+            snapshots.put(line, hitTracker.snapshots());
+          }
+        });
+  } // collectHits
+
+  /**
+   * Try to take a snapshot of where a program that is about to be killed is in its own code. The
+   * program's main thread is single-stepped until it reaches an instruction outside of the JDK, and
+   * the snapshot is taken there. Steps are by instruction rather than by line because a loop that
+   * fits on one line never reaches a new line. This gives up if that doesn't happen quickly, such
+   * as when the thread is blocked waiting for input.
+   *
+   * @param mainThread The thread that the main method runs on.
+   * @param loadedClasses The loaded classes whose static fields you want included in the snapshot.
+   * @param vmOut An output stream containing the VM's standard output.
+   * @param vmErr An output stream containing the VM's standard error.
+   * @param sourceIndex Information about the source code for the compiled program.
+   * @param capture The part of the thread's memory state to capture, or empty to capture all of it.
+   * @param metrics The metrics to record the snapshot in.
+   * @return A snapshot of the program's state, or empty if one couldn't be taken.
+   */
+  static Optional<ExecutionSnapshot> snapshotKillPoint(
+      ThreadReference mainThread,
+      Collection<ReferenceType> loadedClasses,
+      ByteArrayOutputStream vmOut,
+      ByteArrayOutputStream vmErr,
+      SourceIndex sourceIndex,
+      Optional<CaptureSpec> capture,
+      TraceMetrics metrics)
+      throws InterruptedException,
+          IncompatibleThreadStateException,
+          AbsentInformationException,
+          ClassNotLoadedException {
+    VirtualMachine vm = mainThread.virtualMachine();
+    try {
+      if (mainThread.status() == ThreadReference.THREAD_STATUS_ZOMBIE) {
+        return Optional.empty();
+      }
+
+      // a step starts from wherever the thread is when it is enabled, so the thread has to hold
+      // still until then
+      mainThread.suspend();
+      try {
+        StepRequest stepRequest =
+            vm.eventRequestManager()
+                .createStepRequest(mainThread, StepRequest.STEP_MIN, StepRequest.STEP_INTO);
+        for (String jdkPackage : JDK_PACKAGES) {
+          stepRequest.addClassExclusionFilter(jdkPackage);
+        } // for
+        // a program in a shared JVM is called by the host, which isn't its own code either
+        stepRequest.addClassExclusionFilter(TenantHost.class.getName() + "*");
+        stepRequest.addCountFilter(1);
+        stepRequest.setSuspendPolicy(EventRequest.SUSPEND_ALL);
+        stepRequest.enable();
+      } finally {
+        mainThread.resume();
+      } // try
+
+      long giveUpTime = System.nanoTime() + KILL_POINT_GRACE_NANOS;
+      while (System.nanoTime() - giveUpTime < 0) {
+        long remainingMillis = Math.max(1, (giveUpTime - System.nanoTime()) / 1_000_000);
+        EventSet eventSet = vm.eventQueue().remove(remainingMillis);
+        if (eventSet == null) {
+          break;
+        }
+        for (Event event : eventSet) {
+          switch (event) {
+            case StepEvent se -> {
+              TraceMetrics.SnapshotTimer timer = metrics.timeSnapshot(-1);
+              ExecutionSnapshot snapshot =
+                  snapshotTheWorld(
+                      se.thread(),
+                      loadedClasses,
+                      vmOut,
+                      vmErr,
+                      sourceIndex,
+                      capture,
+                      ThreadCapture.BREAKPOINT_THREAD);
+              timer.finish(snapshot);
+              return Optional.of(snapshot);
+            }
+            case VMDeathEvent vde -> {
+              return Optional.empty();
+            }
+            case VMDisconnectEvent vde -> {
+              return Optional.empty();
+            }
+            default -> {}
+          } // switch
+        } // for
+        eventSet.resume();
+      } // while
+    } catch (VMDisconnectedException vde) {
+      // the program ended on its own while we were waiting
+    }
+    return Optional.empty();
+  } // snapshotKillPoint
+
   /**
    * Take a snapshot of a program's execution state just before the main method returns.
    *
@@ -209,7 +708,37 @@ public class DebugTraceHelper {
           IncompatibleThreadStateException,
           AbsentInformationException,
           ClassNotLoadedException {
-    return trace(compilationResult, null, parsedSource).get(-1).getLast();
+    return trace(compilationResult, Optional.empty(), parsedSource);
+  } // trace
+
+  /**
+   * Take a snapshot of part of a program's execution state just before the main method returns.
+   *
+   * @param compilationResult A properly filled CompilationResult (probably from a call to
+   *     CompilationHelper.compile()).
+   * @param capture The part of the program's state that should be captured, or empty to capture the
+   *     program's entire state.
+   * @param parsedSource Parsed source code for the compiled program.
+   * @return An execution snapshot taken at the end of the main method, or null if execution
+   *     terminated before the main method ended.
+   */
+  public static ExecutionSnapshot trace(
+      CompilationResult compilationResult,
+      Optional<CaptureSpec> capture,
+      CompilationUnit parsedSource)
+      throws IOException,
+          IllegalConnectorArgumentsException,
+          VMStartException,
+          InterruptedException,
+          IncompatibleThreadStateException,
+          AbsentInformationException,
+          ClassNotLoadedException {
+    Map<Integer, CaptureSpec> captures = capture.map(c -> Map.of(-1, c)).orElseGet(Map::of);
+    List<ExecutionSnapshot> mainEnd =
+        launchAndTrace(compilationResult, TracePlan.of(null).withCaptures(captures), parsedSource)
+            .snapshots()
+            .getOrDefault(-1, List.of());
+    return mainEnd.isEmpty() ? null : mainEnd.getLast();
   } // trace
 
   /**
@@ -226,348 +755,1321 @@ public class DebugTraceHelper {
           InterruptedException,
           AbsentInformationException {
 
-    VirtualMachine vm = startVmWithCprs(compilationResult);
-
-    HashSet<Integer> validBreakLines = new HashSet<>();
-    HashSet<String> compiledClasses = new HashSet<>(compilationResult.compiledClassNames());
-
-    while (!compiledClasses.isEmpty()) {
-      for (Event event : vm.eventQueue().remove()) {
-        switch (event) {
-          case ClassPrepareEvent cpe -> {
-            validBreakLines.addAll(
-                cpe.referenceType().allLineLocations().stream()
-                    .map(ll -> ll.lineNumber())
-                    .toList());
-            compiledClasses.remove(cpe.referenceType().name());
-          } // case ClassPrepareEvent
-          case VMDeathEvent vde -> {
-            return validBreakLines;
-          } // case VMDeathEvent
-          default -> {} // default
-        } // switch
-        vm.resume();
-      } // for
-    } // while
+    VirtualMachine vm = startVmWithCprs(compilationResult, List.of(), new TraceMetrics());
 
-    return validBreakLines;
+    try {
+      HashSet<Integer> validBreakLines = new HashSet<>();
+      HashSet<String> compiledClasses = new HashSet<>(compilationResult.compiledClassNames());
+
+      while (!compiledClasses.isEmpty()) {
+        EventSet eventSet = vm.eventQueue().remove();
+        for (Event event : eventSet) {
+          switch (event) {
+            case ClassPrepareEvent cpe -> {
+              if (isInSource(cpe.referenceType(), compilationResult.mainSourcePath())) {
+                validBreakLines.addAll(
+                    cpe.referenceType().allLineLocations().stream()
+                        .map(ll -> ll.lineNumber())
+                        .toList());
+              } // if
+              compiledClasses.remove(cpe.referenceType().name());
+            } // case ClassPrepareEvent
+            case VMDeathEvent vde -> {
+              return validBreakLines;
+            } // case VMDeathEvent
+            default -> {} // default
+          } // switch
+        } // for
+        eventSet.resume();
+      } // while
+
+      return validBreakLines;
+    } finally {
+      // the program doesn't need to finish once its classes have been prepared
+      vm.process().destroyForcibly();
+      vm.process().waitFor();
+    } // try
   } // getValidBreakpointLines
 
+  /**
+   * Check whether a class was compiled from a source file. Classes without debug information are
+   * never in any source file.
+   *
+   * @param type The class.
+   * @param sourcePath The source file's path relative to its source root, separated by slashes.
+   * @return True if the class was compiled from the source file.
+   */
+  static boolean isInSource(ReferenceType type, String sourcePath) {
+    try {
+      return type.sourcePaths(null).stream()
+          .anyMatch(path -> path.replace(File.separatorChar, '/').equals(sourcePath));
+    } catch (AbsentInformationException e) {
+      return false;
+    }
+  } // isInSource
+
+  /**
+   * Arm the breakpoints that are located in a newly prepared class. The class's line table is
+   * indexed once, and each breakpoint is placed at the first location of its line. Breakpoints on
+   * lines that aren't in the class are left for other classes.
+   *
+   * @param preparedType The class that was prepared.
+   * @param hitTrackers A mapping from breakpoint line numbers to the trackers for those
+   *     breakpoints.
+   * @param suspendPolicy Which threads the breakpoints stop.
+   */
+  static void armBreakpoints(
+      ReferenceType preparedType,
+      Map<Integer, HitTracker> hitTrackers,
+      ThreadCapture.SuspendPolicy suspendPolicy)
+      throws AbsentInformationException {
+    if (hitTrackers.isEmpty()) {
+      return;
+    }
+
+    Map<Integer, Location> firstLocationOfLine = firstLocationOfLines(preparedType);
+    EventRequestManager eventRequestManager = preparedType.virtualMachine().eventRequestManager();
+    hitTrackers.forEach(
+        (line, hitTracker) -> {
+          Location location = firstLocationOfLine.get(line);
+          if (location != null) {
+            hitTracker.arm(eventRequestManager, location, suspendPolicy.jdiPolicy());
+          }
+        });
+  } // armBreakpoints
+
+  /**
+   * Index the line table of a class by line.
+   *
+   * @param type The class.
+   * @return A mapping from each of the class's lines to the first location of that line.
+   */
+  static Map<Integer, Location> firstLocationOfLines(ReferenceType type)
+      throws AbsentInformationException {
+    Map<Integer, Location> firstLocationOfLine = new HashMap<>();
+    for (Location location : type.allLineLocations()) {
+      firstLocationOfLine.putIfAbsent(location.lineNumber(), location);
+    } // for
+    return firstLocationOfLine;
+  } // firstLocationOfLines
+
+  /**
+   * Find every location where a line of a class starts to run: the start of each run of the line in
+   * a method's line table, and each location that a branch can jump to. A loop that fits on one
+   * line only has one entry in the line table, but it runs the line again from the target of its
+   * jump back.
+   *
+   * @param type The class.
+   * @return A mapping from each of the class's lines to the locations where it starts to run.
+   */
+  static Map<Integer, List<Location>> lineEntryLocations(ReferenceType type) {
+    Map<Integer, List<Location>> entryLocations = new HashMap<>();
+    boolean canGetBytecodes = type.virtualMachine().canGetBytecodes();
+    for (Method method : type.methods()) {
+      List<Location> lineLocations;
+      try {
+        lineLocations = method.allLineLocations();
+      } catch (AbsentInformationException e) {
+        // a method without line numbers has no lines to run
+        continue;
+      }
+
+      // the line table is in code index order, so a new run starts wherever the line changes
+      Map<Long, Location> entries = new TreeMap<>();
+      int previousLine = -1;
+      for (Location location : lineLocations) {
+        if (location.lineNumber() != previousLine) {
+          entries.put(location.codeIndex(), location);
+        }
+        previousLine = location.lineNumber();
+      } // for
+      if (canGetBytecodes && !lineLocations.isEmpty()) {
+        for (long codeIndex : BytecodeHelper.jumpTargetCodeIndices(method.bytecodes())) {
+          Location target = method.locationOfCodeIndex(codeIndex);
+          if (target != null && target.lineNumber() > 0) {
+            entries.putIfAbsent(codeIndex, target);
+          }
+        } // for
+      }
+
+      for (Location location : entries.values()) {
+        entryLocations
+            .computeIfAbsent(location.lineNumber(), line -> new ArrayList<>())
+            .add(location);
+      } // for
+    } // for
+    return entryLocations;
+  } // lineEntryLocations
+
+  /**
+   * Request an event for when the main method returns.
+   *
+   * <p>When possible, this places a breakpoint on each of main's return instructions, found by
+   * scanning its bytecode. These breakpoints are only hit once, no matter how many other methods
+   * the main class calls or how deep it recurses. Otherwise, this falls back to a method exit
+   * request, which fires every time any method in the main class returns on the main thread. Either
+   * way, the requests are marked with the {@link #MAIN_EXIT} property.
+   *
+   * @param mainType The prepared class that contains the main method.
+   * @param mainThread The thread that the main method will run on.
+   * @param suspendPolicy Which threads the return breakpoints stop. A method exit request only
+   *     stops the main thread, and the caller stops the rest if they should be.
+   */
+  static void armMainExit(
+      ReferenceType mainType,
+      ThreadReference mainThread,
+      ThreadCapture.SuspendPolicy suspendPolicy) {
+    VirtualMachine vm = mainType.virtualMachine();
+    List<Method> mainMethods = mainType.methodsByName("main", MAIN_JNI_SIGNATURE);
+
+    if (vm.canGetBytecodes() && !mainMethods.isEmpty()) {
+      Method mainMethod = mainMethods.getFirst();
+      List<Long> returnCodeIndices = BytecodeHelper.returnCodeIndices(mainMethod.bytecodes());
+      if (returnCodeIndices.isEmpty()) {
+        // main never returns normally (e.g. it ends in an infinite loop), so there's nothing to
+        // wait for
+        return;
+      }
+
+      List<Location> returnLocations = new ArrayList<>();
+      for (long codeIndex : returnCodeIndices) {
+        Location returnLocation = mainMethod.locationOfCodeIndex(codeIndex);
+        if (returnLocation == null) {
+          returnLocations.clear();
+          break;
+        }
+        returnLocations.add(returnLocation);
+      } // for
+
+      if (!returnLocations.isEmpty()) {
+        for (Location returnLocation : returnLocations) {
+          BreakpointRequest returnRequest =
+              vm.eventRequestManager().createBreakpointRequest(returnLocation);
+          returnRequest.putProperty(MAIN_EXIT, true);
+          returnRequest.setSuspendPolicy(suspendPolicy.jdiPolicy());
+          returnRequest.enable();
+        } // for
+        return;
+      } // if
+    } // if
+
+    MethodExitRequest methodExitRequest = vm.eventRequestManager().createMethodExitRequest();
+    methodExitRequest.addClassFilter(mainType);
+    methodExitRequest.addThreadFilter(mainThread);
+    methodExitRequest.setSuspendPolicy(EventRequest.SUSPEND_EVENT_THREAD);
+    methodExitRequest.putProperty(MAIN_EXIT, true);
+    methodExitRequest.enable();
+  } // armMainExit
+
+  /**
+   * Request an event for every exception that is thrown from now on that might pass a filter. This
+   * is done once the main class is prepared, after the JDK has started up and handled the
+   * exceptions that it throws while doing so. Exceptions that are caught are requested even for
+   * {@link ExceptionFilter#UNCAUGHT}, since an exception that escapes the program can still be
+   * caught by the JDK code that called it, like the code that runs a virtual thread. {@link
+   * #snapshotException} decides which of them to snapshot.
+   *
+   * @param vm The program's VM.
+   * @param exceptions Which exceptions will be snapshotted.
+   * @param suspendPolicy Which threads an exception stops.
+   */
+  static void armExceptions(
+      VirtualMachine vm, ExceptionFilter exceptions, ThreadCapture.SuspendPolicy suspendPolicy) {
+    // an exception that nothing catches can't have been caught by the program
+    ExceptionRequest exceptionRequest =
+        vm.eventRequestManager().createExceptionRequest(null, true, exceptions.includes(false));
+    exceptionRequest.putProperty(SKIPPED_EXCEPTIONS, new HashMap<String, Integer>());
+    exceptionRequest.setSuspendPolicy(suspendPolicy.jdiPolicy());
+    exceptionRequest.enable();
+  } // armExceptions
+
+  /**
+   * Start launching a program's JVM on another thread, so that it can start up while the program is
+   * still being compiled. The JVM stays suspended until it is traced, so the program's classes only
+   * need to exist by then.
+   *
+   * @param classPath The class path that the program is compiled into: directories and jars.
+   * @param mainClass The binary name of the class that contains the program's main method.
+   * @param budget The resources the program may use before it is killed.
+   * @param metrics The metrics to record the launch phase and the VM's JDWP commands in.
+   * @return The launched VM, which must either be traced or {@linkplain #discard(CompletableFuture)
+   *     discarded}.
+   */
+  public static CompletableFuture<VirtualMachine> launch(
+      List<Path> classPath, String mainClass, TraceBudget budget, TraceMetrics metrics) {
+    return launch(classPath, mainClass, budget, ProgramInput.NONE, metrics);
+  } // launch
+
+  /**
+   * Start launching a program's JVM on another thread with the given arguments and stdin. See
+   * {@link #launch(List, String, TraceBudget, TraceMetrics)}.
+   *
+   * @param classPath The class path that the program is compiled into: directories and jars.
+   * @param mainClass The binary name of the class that contains the program's main method.
+   * @param budget The resources the program may use before it is killed.
+   * @param input The program's arguments and stdin.
+   * @param metrics The metrics to record the launch phase and the VM's JDWP commands in.
+   * @return The launched VM, which must either be traced or {@linkplain #discard(CompletableFuture)
+   *     discarded}.
+   */
+  public static CompletableFuture<VirtualMachine> launch(
+      List<Path> classPath,
+      String mainClass,
+      TraceBudget budget,
+      ProgramInput input,
+      TraceMetrics metrics) {
+    CompletableFuture<VirtualMachine> launchedVm = new CompletableFuture<>();
+    Thread.ofVirtual()
+        .name("launch")
+        .start(
+            () -> {
+              try {
+                launchedVm.complete(
+                    metrics.time(
+                        TraceMetrics.Phase.LAUNCH,
+                        () ->
+                            startVm(
+                                classPath,
+                                mainClass,
+                                TraceWatchdog.vmOptions(budget),
+                                input,
+                                metrics)));
+              } catch (Exception e) {
+                launchedVm.completeExceptionally(e);
+              }
+            });
+    return launchedVm;
+  } // launch
+
+  /**
+   * Kill a launched VM that won't be traced after all, such as when its program didn't compile.
+   * This doesn't wait for the VM to finish launching.
+   *
+   * @param launchedVm The VM from {@link #launch(List, String, TraceBudget, TraceMetrics)}.
+   */
+  public static void discard(CompletableFuture<VirtualMachine> launchedVm) {
+    launchedVm.thenAccept(vm -> vm.process().destroyForcibly());
+  } // discard
+
   /**
    * Start a JDI VM prepopulated with ClassPrepareRequests for the compiledClassNames present in
    * compilationResult.
    *
    * @param compilationResult The CompilationResult that contains the classes for which class
    *     preparation requests should be registered.
+   * @param vmOptions Additional options for the launched VM, such as its maximum heap size.
+   * @param metrics The metrics to count the VM's JDWP commands in.
    * @return The VirtualMachine for the launched VM.
    */
-  private static VirtualMachine startVmWithCprs(CompilationResult compilationResult)
-      throws IOException, IllegalConnectorArgumentsException, VMStartException {
-
-    LaunchingConnector launchingConnector = Bootstrap.virtualMachineManager().defaultConnector();
+  static VirtualMachine startVmWithCprs(
+      CompilationResult compilationResult, List<String> vmOptions, TraceMetrics metrics)
+      throws IOException, VMStartException, InterruptedException {
+    VirtualMachine vm =
+        startVm(
+            compilationResult.classPath(),
+            compilationResult.mainClass(),
+            vmOptions,
+            ProgramInput.NONE,
+            metrics);
+    requestClassPrepares(vm, compilationResult.compiledClassNames());
+    return vm;
+  } // startVmWithCprs
 
-    Map<String, Connector.Argument> env = launchingConnector.defaultArguments();
+  /**
+   * Start a JDI VM that is suspended before it loads its main class. The VM is launched the same
+   * way as JDI's default launching connector, except that it connects back to us over a {@link
+   * JdwpConnection} so that its JDWP commands are counted.
+   *
+   * @param classPath The VM's class path: directories and jars. The {@link SharedArchive} created
+   *     by the warmup command, if there is one, is put in front of it.
+   * @param mainClass The binary name of the VM's main class.
+   * @param vmOptions Additional options for the launched VM, such as its maximum heap size.
+   * @param input The program's arguments and stdin.
+   * @param metrics The metrics to count the VM's JDWP commands in.
+   * @return The VirtualMachine for the launched VM.
+   */
+  static VirtualMachine startVm(
+      List<Path> classPath,
+      String mainClass,
+      List<String> vmOptions,
+      ProgramInput input,
+      TraceMetrics metrics)
+      throws IOException, VMStartException, InterruptedException {
+    try (ServerSocket listener = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+      List<String> command = new ArrayList<>();
+      command.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+      command.add(
+          String.format(
+              "-agentlib:jdwp=transport=dt_socket,server=n,suspend=y,includevirtualthreads=y,"
+                  + "address=%s:%d",
+              listener.getInetAddress().getHostAddress(), listener.getLocalPort()));
+      command.addAll(vmOptions);
+      // the JDK classes that most programs load are mapped in from the warmup archive, if any
+      Optional<SharedArchive> archive = SharedArchive.installed();
+      archive.ifPresent(a -> command.addAll(a.vmOptions()));
+      command.add("-classpath");
+      command.add(
+          archive.map(a -> a.classPath(classPath)).orElse(classPath).stream()
+              .map(Path::toString)
+              .collect(Collectors.joining(File.pathSeparator)));
+      command.add(mainClass);
+      command.addAll(input.args());
+      Process process = new ProcessBuilder(command).start();
 
-    env.get("main").setValue(compilationResult.mainClass());
-    env.get("options").setValue("-classpath " + compilationResult.classPath());
+      try {
+        Socket socket = acceptDebuggee(listener, process);
+        VirtualMachine vm =
+            Bootstrap.virtualMachineManager()
+                .createVirtualMachine(new JdwpConnection(socket, metrics), process);
+        feedStdin(process, input.stdin());
+        return vm;
+      } catch (IOException | VMStartException | InterruptedException | RuntimeException e) {
+        process.destroyForcibly();
+        throw e;
+      }
+    }
+  } // startVm
 
-    VirtualMachine vm = launchingConnector.launch(env);
+  /**
+   * Write a program's stdin on another thread and then close it, so that a program that reads more
+   * than a pipe holds doesn't block the tracer, and a program that reads past the end sees the end
+   * of the stream.
+   *
+   * @param process The program's process.
+   * @param stdin Everything that the program can read from stdin.
+   */
+  private static void feedStdin(Process process, String stdin) {
+    Thread.ofVirtual()
+        .name("stdin")
+        .start(
+            () -> {
+              try (OutputStream processIn = process.getOutputStream()) {
+                processIn.write(stdin.getBytes(Charset.defaultCharset()));
+              } catch (IOException e) {
+                // the program exited without reading all of its input
+                return;
+              }
+            });
+  } // feedStdin
 
-    for (String className : compilationResult.compiledClassNames()) {
+  /**
+   * Register ClassPrepareRequests for a program's classes in a VM that hasn't loaded them yet.
+   *
+   * @param vm The VM.
+   * @param compiledClassNames The binary names of the program's classes.
+   */
+  static void requestClassPrepares(VirtualMachine vm, Set<String> compiledClassNames) {
+    for (String className : compiledClassNames) {
       // fire an event each time one of our classes is prepared, mostly as a
       // springboard for setting up further eventrequests
       ClassPrepareRequest classPrepareRequest =
           vm.eventRequestManager().createClassPrepareRequest();
       classPrepareRequest.addClassFilter(className);
+      classPrepareRequest.setSuspendPolicy(EventRequest.SUSPEND_EVENT_THREAD);
       classPrepareRequest.enable();
     } // for
+  } // requestClassPrepares
 
-    return vm;
-  } // startVmWithCprs
+  /**
+   * Wait for a stage of a trace that runs on another thread, and rethrow its failure as is.
+   *
+   * @param stage The stage.
+   * @param <T> The type of the stage's result.
+   * @return The stage's result.
+   */
+  static <T> T await(CompletableFuture<T> stage)
+      throws IOException, VMStartException, InterruptedException {
+    try {
+      return stage.get();
+    } catch (ExecutionException e) {
+      switch (e.getCause()) {
+        case IOException cause -> throw cause;
+        case VMStartException cause -> throw cause;
+        case RuntimeException cause -> throw cause;
+        case Error cause -> throw cause;
+        default -> throw new IllegalStateException(e.getCause());
+      }
+    }
+  } // await
+
+  /**
+   * Wait for a newly launched VM to connect to us.
+   *
+   * @param listener The socket that the VM was told to connect to.
+   * @param process The VM's process.
+   * @return The VM's socket.
+   * @throws VMStartException If the VM exited or didn't connect in time.
+   */
+  private static Socket acceptDebuggee(ServerSocket listener, Process process)
+      throws IOException, VMStartException, InterruptedException {
+    listener.setSoTimeout((int) ACCEPT_POLL_MILLIS);
+    long giveUpTime = System.nanoTime() + LAUNCH_TIMEOUT_NANOS;
+    while (System.nanoTime() - giveUpTime < 0) {
+      try {
+        return listener.accept();
+      } catch (SocketTimeoutException ste) {
+        if (!process.isAlive()) {
+          throw new VMStartException(
+              "The VM exited with status " + process.exitValue() + " before it connected.",
+              process);
+        }
+        if (Thread.interrupted()) {
+          throw new InterruptedException();
+        }
+      }
+    } // while
+    throw new VMStartException("The VM didn't connect in time.", process);
+  } // acceptDebuggee
 
   /**
-   * Convert a lambda expression in the AST into an implementation of the corresponding functional
-   * interface's single abstract method.
+   * Take a snapshot of a thread's memory state at this instant of execution. This is
+   * package-private so that the benchmarks can call it on a debuggee held at a breakpoint.
    *
-   * @param lambda The lambda expression to attempt to convert.
-   * @return A string containing a valid method implementation of this lambda expression, or empty
-   *     if conversion was not possible.
+   * @param mainThread A suspended thread that you want to take a snapshot of.
+   * @param loadedClasses The loaded classes whose static fields you want included in the snapshot.
+   * @param vmOut An output stream containing the VM's standard output.
+   * @param vmErr An output stream containing the VM's standard error.
+   * @param sourceIndex Information about the source code for the compiled program.
+   * @param capture The part of the thread's memory state to capture, or empty to capture all of it.
+   * @param threads Which of the program's other threads to include. They are only included when the
+   *     entire memory state is captured.
+   * @return An execution snapshot of the thread's memory state at the time of calling.
    */
-  private static Optional<String> tryImplementLambdaSam(LambdaExpr lambda) {
-    Optional<MethodUsage> maybeSam =
-        FunctionalInterfaceLogic.getFunctionalMethod(lambda.calculateResolvedType());
+  static ExecutionSnapshot snapshotTheWorld(
+      ThreadReference mainThread,
+      Collection<ReferenceType> loadedClasses,
+      ByteArrayOutputStream vmOut,
+      ByteArrayOutputStream vmErr,
+      SourceIndex sourceIndex,
+      Optional<CaptureSpec> capture,
+      ThreadCapture threads)
+      throws IncompatibleThreadStateException, AbsentInformationException, ClassNotLoadedException {
 
-    if (maybeSam.isEmpty()) {
-      return Optional.empty();
+    if (capture.isPresent()) {
+      return snapshotCapture(mainThread, loadedClasses, vmOut, vmErr, sourceIndex, capture.get());
+    }
+    return snapshotAll(
+        mainThread,
+        loadedClasses,
+        vmOut,
+        vmErr,
+        sourceIndex,
+        threads,
+        CaptureSpec.UNLIMITED_DEPTH,
+        Optional.empty(),
+        List.of());
+  }
+
+  /**
+   * Take a shallow snapshot of a thread's memory state, which only converts the objects that are
+   * within a few references of its stack frames and static fields. The objects just past that are
+   * {@linkplain TraceValue.Unexpanded unexpanded}, and are kept from being garbage collected so
+   * that they can be {@linkplain #expand(ThreadReference, ObjectReference, int, Map) expanded}
+   * later, as long as the program stays suspended.
+   *
+   * @param mainThread A suspended thread that you want to take a snapshot of.
+   * @param loadedClasses The loaded classes whose static fields you want included in the snapshot.
+   * @param vmOut An output stream containing the VM's standard output.
+   * @param vmErr An output stream containing the VM's standard error.
+   * @param sourceIndex Information about the source code for the compiled program.
+   * @param maxDepth The maximum number of references to follow from the stack frames and static
+   *     fields. At 0, only the objects that they refer to directly are converted.
+   * @param unexpanded An out parameter that accumulates the unexpanded objects by unique ID. The
+   *     caller must re-enable their garbage collection once it is done with them.
+   * @return An execution snapshot of the thread's memory state at the time of calling.
+   */
+  static ExecutionSnapshot snapshotShallow(
+      ThreadReference mainThread,
+      Collection<ReferenceType> loadedClasses,
+      ByteArrayOutputStream vmOut,
+      ByteArrayOutputStream vmErr,
+      SourceIndex sourceIndex,
+      int maxDepth,
+      Map<Long, ObjectReference> unexpanded)
+      throws IncompatibleThreadStateException, AbsentInformationException, ClassNotLoadedException {
+    return snapshotAll(
+        mainThread,
+        loadedClasses,
+        vmOut,
+        vmErr,
+        sourceIndex,
+        ThreadCapture.BREAKPOINT_THREAD,
+        maxDepth,
+        Optional.of(unexpanded),
+        List.of());
+  }
+
+  /**
+   * Take a snapshot of a program where it threw an exception, if the exception passes a filter. The
+   * snapshot's top frame is the innermost of the program's frames, so an exception that a JDK
+   * method threw is shown where the program called it.
+   *
+   * @param event The exception's event, whose thread must be suspended.
+   * @param loadedClasses The program's loaded classes.
+   * @param vmOut An output stream containing the VM's standard output.
+   * @param vmErr An output stream containing the VM's standard error.
+   * @param sourceIndex Information about the source code for the compiled program.
+   * @param exceptions Which exceptions to snapshot.
+   * @param threads Which of the program's other threads to include.
+   * @param metrics The metrics to record the snapshot in.
+   * @return The exception and the program's state, or empty if the exception doesn't pass the
+   *     filter or was thrown and caught by the JDK without the program's code being involved.
+   */
+  static Optional<TraceResult.Thrown> snapshotException(
+      ExceptionEvent event,
+      Collection<ReferenceType> loadedClasses,
+      ByteArrayOutputStream vmOut,
+      ByteArrayOutputStream vmErr,
+      SourceIndex sourceIndex,
+      ExceptionFilter exceptions,
+      ThreadCapture threads,
+      TraceMetrics metrics)
+      throws IncompatibleThreadStateException, AbsentInformationException, ClassNotLoadedException {
+    ObjectReference exception = event.exception();
+    if (exception.referenceType().name().equals("java.lang.OutOfMemoryError")) {
+      // the heap budget already reports these, and there's no memory to spare for a snapshot
+      return skipException(event, exceptions);
+    }
+
+    List<StackFrame> frames = event.thread().frames();
+    int outermost = frames.size() - 1;
+    while (outermost >= 0
+        && !loadedClasses.contains(frames.get(outermost).location().declaringType())) {
+      outermost--;
+    }
+    if (outermost < 0) {
+      return skipException(event, exceptions);
+    }
+
+    // the exception is caught by the innermost frame that runs the catch location's method
+    boolean caughtByProgram = false;
+    Location catchLocation = event.catchLocation();
+    if (catchLocation != null) {
+      int catcher = 0;
+      while (catcher < frames.size()
+          && !frames.get(catcher).location().method().equals(catchLocation.method())) {
+        catcher++;
+      }
+      caughtByProgram = loadedClasses.contains(catchLocation.declaringType());
+      if (!caughtByProgram && catcher <= outermost) {
+        // the JDK handled its own exception in the middle of a call from the program
+        return skipException(event, exceptions);
+      }
     }
+    if (!exceptions.includes(caughtByProgram)) {
+      return skipException(event, exceptions);
+    }
+
+    TraceMetrics.SnapshotTimer timer =
+        metrics.timeSnapshot(
+            programFrames(frames, loadedClasses).getFirst().location().lineNumber());
+    ExecutionSnapshot snapshot =
+        snapshotAll(
+            event.thread(),
+            loadedClasses,
+            vmOut,
+            vmErr,
+            sourceIndex,
+            threads,
+            CaptureSpec.UNLIMITED_DEPTH,
+            Optional.empty(),
+            List.of(exception));
+    timer.finish(snapshot);
+
+    // the message is read from the field that getMessage returns by default, without running any
+    // of the program's code
+    ClassType throwable =
+        (ClassType) event.virtualMachine().classesByName("java.lang.Throwable").getFirst();
+    Optional<String> message =
+        exception.getValue(throwable.fieldByName("detailMessage")) instanceof StringReference sr
+            ? Optional.of(sr.value())
+            : Optional.empty();
+    return Optional.of(
+        new TraceResult.Thrown(
+            snapshot,
+            new TraceValue.Reference(exception.uniqueID()),
+            exception.referenceType().name(),
+            message,
+            caughtByProgram));
+  }
 
-    MethodUsage sam = maybeSam.get();
-    StringBuilder sb = new StringBuilder();
-
-    String resolvedReturnType =
-        lambda.calculateResolvedType().asReferenceType().getTypeParametersMap().stream()
-            .filter(p -> sam.returnType().isTypeVariable())
-            .filter(p -> p.a.getName().equals(sam.returnType().asTypeVariable().describe()))
-            .map(p -> p.b.describe())
-            .findFirst()
-            .orElse(sam.returnType().describe());
-
-    sb.append(resolvedReturnType);
-    sb.append(" ");
-    sb.append(sam.getName());
-
-    // to use the parameter name used in the method declaration, use
-    // m.getDeclaration().getParam(i).getName()
-    sb.append(
-        IntStream.range(0, sam.getDeclaration().getNumberOfParams())
-            .mapToObj(
-                i ->
-                    String.format(
-                        "%s %s",
-                        switch (lambda.getParameter(i).resolve().getType()) {
-                          case ResolvedLambdaConstraintType c -> c.getBound().describe();
-                          case ResolvedType d -> d.describe();
-                        },
-                        lambda.getParameter(i).getName()))
-            .collect(Collectors.joining(", ", "(", ")")));
-
-    if (lambda.getBody() instanceof ExpressionStmt e) {
-      sb.append("{\n");
-      if (!resolvedReturnType.equals("void")) {
-        sb.append("return ");
+  /**
+   * Count an exception that wasn't snapshotted. Each one costs a round trip to the debuggee, so
+   * once a class has thrown many exceptions that {@link ExceptionFilter#UNCAUGHT} skips, like one
+   * whose exception the program catches on every iteration of a loop, the exceptions that class
+   * throws are no longer requested. Exceptions that nothing catches are still requested from every
+   * class, but one that the class throws and only the JDK code below the program catches, like the
+   * code that runs a virtual thread or a shared JVM's host, is missed after that.
+   *
+   * @param event The skipped exception's event.
+   * @param exceptions Which exceptions are snapshotted.
+   * @return Empty, for the caller to return.
+   */
+  private static Optional<TraceResult.Thrown> skipException(
+      ExceptionEvent event, ExceptionFilter exceptions) {
+    ExceptionRequest request = (ExceptionRequest) event.request();
+    @SuppressWarnings("unchecked")
+    Map<String, Integer> skipped = (Map<String, Integer>) request.getProperty(SKIPPED_EXCEPTIONS);
+    if (exceptions != ExceptionFilter.UNCAUGHT || skipped == null) {
+      return Optional.empty();
+    }
+    String thrower = event.location().declaringType().name();
+    if (skipped.merge(thrower, 1, Integer::sum) == MAX_SKIPPED_EXCEPTIONS) {
+      EventRequestManager eventRequestManager = request.virtualMachine().eventRequestManager();
+      if (request.getProperty(UNCAUGHT_REQUEST) == null) {
+        ExceptionRequest uncaughtRequest =
+            eventRequestManager.createExceptionRequest(null, false, true);
+        uncaughtRequest.setSuspendPolicy(request.suspendPolicy());
+        uncaughtRequest.enable();
+        request.putProperty(UNCAUGHT_REQUEST, uncaughtRequest);
       }
-      sb.append(e);
-      sb.append("}");
-    } else if (lambda.getBody() instanceof BlockStmt b) {
-      sb.append(b);
+      // filters can only be added to a request while it is disabled
+      request.disable();
+      request.addClassExclusionFilter(thrower);
+      request.enable();
     }
+    return Optional.empty();
+  }
 
-    // pretty-print constructed method
-    return simpleJavaParser.parseMethodDeclaration(sb.toString()).getResult().map(Object::toString);
+  /**
+   * Convert an unexpanded object from a shallow snapshot, along with the objects near it.
+   *
+   * @param mainThread The suspended thread that the snapshot was taken of.
+   * @param object The object to expand.
+   * @param maxDepth The maximum number of references to follow from the object.
+   * @param unexpanded The unexpanded objects by unique ID. The object is removed from them, and the
+   *     objects past its depth are added, so this is the same as for {@link
+   *     #snapshotShallow(ThreadReference, Collection, ByteArrayOutputStream, ByteArrayOutputStream,
+   *     SourceIndex, int, Map)}.
+   * @return The converted objects by unique ID, which include the object itself.
+   */
+  static Map<Long, TraceValue> expand(
+      ThreadReference mainThread,
+      ObjectReference object,
+      int maxDepth,
+      Map<Long, ObjectReference> unexpanded) {
+    Map<Long, TraceValue> heap = new HashMap<>();
+    if (unexpanded.remove(object.uniqueID()) != null) {
+      object.enableCollection();
+    }
+    walkHeap(mainThread, new ArrayList<>(List.of(object)), heap, maxDepth, Optional.of(unexpanded));
+    return heap;
   }
 
   /**
-   * Take a snapshot of a thread's memory state at this instant of execution.
+   * Take a snapshot of a thread's entire memory state, or as much of it as is within a depth.
    *
    * @param mainThread A suspended thread that you want to take a snapshot of.
    * @param loadedClasses The loaded classes whose static fields you want included in the snapshot.
    * @param vmOut An output stream containing the VM's standard output.
    * @param vmErr An output stream containing the VM's standard error.
-   * @param parsedSource Parsed source code for the compiled program.
+   * @param sourceIndex Information about the source code for the compiled program.
+   * @param threads Which of the program's other threads to include.
+   * @param maxDepth The maximum number of references to follow from the stack frames and static
+   *     fields.
+   * @param unexpanded Where to put the objects past the depth, or empty to add them as stubs.
+   * @param roots Objects to add to the heap besides the ones that the stack frames and static
+   *     fields refer to.
    * @return An execution snapshot of the thread's memory state at the time of calling.
    */
-  private static ExecutionSnapshot snapshotTheWorld(
+  private static ExecutionSnapshot snapshotAll(
       ThreadReference mainThread,
-      Iterable<ReferenceType> loadedClasses,
+      Collection<ReferenceType> loadedClasses,
       ByteArrayOutputStream vmOut,
       ByteArrayOutputStream vmErr,
-      CompilationUnit parsedSource)
+      SourceIndex sourceIndex,
+      ThreadCapture threads,
+      int maxDepth,
+      Optional<Map<Long, ObjectReference>> unexpanded,
+      List<ObjectReference> roots)
       throws IncompatibleThreadStateException, AbsentInformationException, ClassNotLoadedException {
-
-    List<ObjectReference> heapReferencesToWalk = new ArrayList<>();
+    List<ObjectReference> heapReferencesToWalk = new ArrayList<>(roots);
     Map<Long, TraceValue> heap = new HashMap<>();
 
-    /** Mapping from a variable name to a lambda implementation. */
-    record VarLambda(String variableName, Optional<String> lambdaImplementation) {}
-
-    Map<String, Map<String, String>> lambdaMethodVariables =
-        parsedSource.findAll(MethodDeclaration.class).stream()
-            .collect(
-                Collectors.toMap(
-                    m ->
-                        m.resolve()
-                            .getQualifiedSignature()
-                            .replaceAll("\\.\\.\\.", "[]")
-                            .replaceAll("\\s", ""),
-                    m ->
-                        m.findAll(VariableDeclarator.class).stream()
-                            .filter(
-                                d -> d.getInitializer().map(Expression::isLambdaExpr).orElse(false))
-                            .map(
-                                d ->
-                                    new VarLambda(
-                                        d.getNameAsString(),
-                                        tryImplementLambdaSam(
-                                            d.getInitializer().get().asLambdaExpr())))
-                            .filter(d -> d.lambdaImplementation.isPresent())
-                            .collect(
-                                Collectors.toMap(
-                                    d -> d.variableName(), d -> d.lambdaImplementation.get()))));
-
-    Map<String, Set<String>> finalMethodVariables =
-        parsedSource.findAll(MethodDeclaration.class).stream()
-            .collect(
-                Collectors.toMap(
-                    m ->
-                        m.resolve()
-                            .getQualifiedSignature()
-                            .replaceAll("\\.\\.\\.", "[]")
-                            .replaceAll("\\s", ""),
-                    m ->
-                        m.findAll(VariableDeclarationExpr.class).stream()
-                            .filter(v -> v.getModifiers().contains(Modifier.finalModifier()))
-                            .map(VariableDeclarationExpr::getVariables)
-                            .flatMap(Collection::stream)
-                            .map(VariableDeclarator::getNameAsString)
-                            .collect(Collectors.toSet())));
-
     // collect stack frames and their fields
     List<StackSnapshot> stackSnapshots = new LinkedList<>();
-    for (StackFrame frame : mainThread.frames()) {
-      Method frameMethod = frame.location().method();
-      String frameMethodSignature =
-          String.format(
-              "%s.%s(%s)",
-              frameMethod.declaringType().name(),
-              frameMethod.name(),
-              frameMethod.argumentTypes().stream()
-                  .map(Type::name)
-                  .collect(Collectors.joining(",")));
-
-      Set<String> finalVariableNames =
-          finalMethodVariables.getOrDefault(frameMethodSignature, new HashSet<String>());
-
-      List<ExecutionSnapshot.Field> stackFrameFields = new ArrayList<>();
-
-      Map<String, String> lambdaImplementations =
-          Optional.ofNullable(lambdaMethodVariables.get(frameMethodSignature))
-              .orElseGet(Collections::emptyMap);
-
-      for (LocalVariable lv : frame.visibleVariables()) {
-        boolean isFinal = finalVariableNames.contains(lv.name());
-        Optional<String> lvLambdaImplementation =
-            Optional.ofNullable(lambdaImplementations.get(lv.name()));
-
-        switch (frame.getValue(lv)) {
-          case PrimitiveValue pv ->
-              stackFrameFields.add(
-                  new ExecutionSnapshot.Field(
-                      isFinal,
-                      lv.typeName(),
-                      lv.name(),
-                      TraceValue.Primitive.fromJdiPrimitive(pv)));
-          case ObjectReference or when lvLambdaImplementation.isPresent() -> {
-            stackFrameFields.add(
-                new ExecutionSnapshot.Field(
-                    isFinal, lv.typeName(), lv.name(), new TraceValue.Reference(or.uniqueID())));
-            heap.put(or.uniqueID(), new TraceValue.Lambda(lvLambdaImplementation.get()));
-          }
-          case ObjectReference or -> {
-            stackFrameFields.add(
-                new ExecutionSnapshot.Field(
-                    isFinal, lv.typeName(), lv.name(), new TraceValue.Reference(or.uniqueID())));
-            heapReferencesToWalk.add(or);
-          }
-          case null ->
-              stackFrameFields.add(
-                  new ExecutionSnapshot.Field(
-                      isFinal, lv.typeName(), lv.name(), new TraceValue.Null()));
-          default -> {}
+    for (StackFrame frame : programFrames(mainThread, loadedClasses)) {
+      stackSnapshots.addFirst(snapshotFrame(frame, sourceIndex, heap, heapReferencesToWalk));
+    }
+
+    // collect the other threads' stacks. their objects go into the same heap, so objects that the
+    // threads share are only walked once
+    List<ExecutionSnapshot.ThreadSnapshot> threadSnapshots = new ArrayList<>();
+    if (threads.allThreads()) {
+      for (ThreadReference thread : mainThread.virtualMachine().allThreads()) {
+        if (!thread.equals(mainThread) && threads.includes(thread)) {
+          snapshotThread(thread, loadedClasses, sourceIndex, heap, heapReferencesToWalk)
+              .ifPresent(threadSnapshots::add);
         }
+      } // for
+    } // if
+
+    // collect static values that have been loaded
+    List<ExecutionSnapshot.Field> statics = new ArrayList<>();
+    for (ReferenceType loadedClass : loadedClasses) {
+      statics.addAll(snapshotStatics(loadedClass, sourceIndex, heap, heapReferencesToWalk));
+    }
+
+    // recursively collect heap values reachable from the roots contained in
+    // heapReferencesToWalk
+    walkHeap(mainThread, heapReferencesToWalk, heap, maxDepth, unexpanded);
+
+    return new ExecutionSnapshot(
+        stackSnapshots, threadSnapshots, statics, heap, readSink(vmOut), readSink(vmErr));
+  }
+
+  /**
+   * Take a snapshot of another thread's stack, without the frames of JDK code above and below the
+   * program's. A virtual thread's carrier is a platform thread of its own that only runs JDK code,
+   * so it is left out like any other thread that isn't running the program's code.
+   *
+   * @param thread A suspended thread other than the one that reached the breakpoint.
+   * @param loadedClasses The program's loaded classes.
+   * @param sourceIndex Information about the source code for the compiled program.
+   * @param heap The snapshot's heap. Lambdas are added to it directly.
+   * @param heapReferencesToWalk An out parameter that accumulates the objects that still need to be
+   *     added to the heap.
+   * @return The thread's snapshot, or empty if it isn't running the program's code or has ended.
+   */
+  private static Optional<ExecutionSnapshot.ThreadSnapshot> snapshotThread(
+      ThreadReference thread,
+      Collection<ReferenceType> loadedClasses,
+      SourceIndex sourceIndex,
+      Map<Long, TraceValue> heap,
+      List<ObjectReference> heapReferencesToWalk) {
+    List<StackFrame> frames;
+    try {
+      frames = thread.frames();
+    } catch (IncompatibleThreadStateException | ObjectCollectedException e) {
+      // the thread ended, or hasn't started, since the list of threads was read
+      return Optional.empty();
+    }
+    List<StackFrame> programFrames = programFrames(frames, loadedClasses);
+    if (programFrames.isEmpty()) {
+      return Optional.empty();
+    }
+
+    List<StackSnapshot> stack = new LinkedList<>();
+    for (StackFrame frame : programFrames) {
+      stack.addFirst(snapshotFrame(frame, sourceIndex, heap, heapReferencesToWalk));
+    }
+    return Optional.of(
+        new ExecutionSnapshot.ThreadSnapshot(
+            thread.name(), thread.isVirtual(), threadState(thread.status()), stack));
+  }
+
+  /**
+   * Get the name of a thread's state, like {@link Thread.State}'s constants.
+   *
+   * @param status One of {@link ThreadReference}'s thread statuses.
+   * @return The state's name.
+   */
+  private static String threadState(int status) {
+    return switch (status) {
+      case ThreadReference.THREAD_STATUS_NOT_STARTED -> "NEW";
+      case ThreadReference.THREAD_STATUS_RUNNING -> "RUNNABLE";
+      case ThreadReference.THREAD_STATUS_MONITOR -> "BLOCKED";
+      case ThreadReference.THREAD_STATUS_WAIT -> "WAITING";
+      case ThreadReference.THREAD_STATUS_SLEEPING -> "TIMED_WAITING";
+      case ThreadReference.THREAD_STATUS_ZOMBIE -> "TERMINATED";
+      default -> "UNKNOWN";
+    };
+  }
+
+  /**
+   * Get a thread's stack frames, without the frames below the program's outermost one or above its
+   * innermost one. In a JVM of its own, the program's main method is already the bottom frame; in a
+   * {@linkplain TenantHost shared JVM}, this drops the frames of the host that called it. The top
+   * frame is usually the program's already, except where an exception was thrown by a JDK method.
+   *
+   * @param thread A suspended thread.
+   * @param loadedClasses The program's loaded classes.
+   * @return The thread's frames, innermost first. If none of them are the program's, this is just
+   *     the top frame.
+   */
+  private static List<StackFrame> programFrames(
+      ThreadReference thread, Collection<ReferenceType> loadedClasses)
+      throws IncompatibleThreadStateException {
+    List<StackFrame> frames = thread.frames();
+    List<StackFrame> programFrames = programFrames(frames, loadedClasses);
+    return programFrames.isEmpty() ? frames.subList(0, Math.min(1, frames.size())) : programFrames;
+  }
+
+  /**
+   * Drop the frames of JDK code above and below the program's frames.
+   *
+   * @param frames A suspended thread's frames, innermost first.
+   * @param loadedClasses The program's loaded classes.
+   * @return The frames from the program's innermost to its outermost, or an empty list if none of
+   *     them are the program's.
+   */
+  private static List<StackFrame> programFrames(
+      List<StackFrame> frames, Collection<ReferenceType> loadedClasses) {
+    int start = 0;
+    while (start < frames.size()
+        && !loadedClasses.contains(frames.get(start).location().declaringType())) {
+      start++;
+    }
+    int end = frames.size();
+    while (end > start && !loadedClasses.contains(frames.get(end - 1).location().declaringType())) {
+      end--;
+    }
+    return frames.subList(start, end);
+  }
+
+  /**
+   * Take a snapshot of one stack frame: its method, line, variables and {@code this}.
+   *
+   * @param frame The frame, whose thread must be suspended.
+   * @param sourceIndex Information about the source code for the compiled program.
+   * @param heap The snapshot's heap. Lambdas are added to it directly.
+   * @param heapReferencesToWalk An out parameter that accumulates the objects that still need to be
+   *     added to the heap.
+   * @return The frame's snapshot.
+   */
+  static StackSnapshot snapshotFrame(
+      StackFrame frame,
+      SourceIndex sourceIndex,
+      Map<Long, TraceValue> heap,
+      List<ObjectReference> heapReferencesToWalk) {
+    Set<String> finalVariableNames = sourceIndex.finalVariables(frame.location().method());
+
+    List<ExecutionSnapshot.Field> stackFrameFields = new ArrayList<>();
+
+    Map<String, String> lambdaImplementations =
+        sourceIndex.lambdaImplementations(frame.location().method());
+
+    // one command reads every variable
+    List<LocalVariable> variables = visibleVariables(frame);
+    Map<LocalVariable, Value> values = frame.getValues(variables);
+    for (LocalVariable lv : variables) {
+      boolean isFinal = finalVariableNames.contains(lv.name());
+      Optional<String> lvLambdaImplementation =
+          Optional.ofNullable(lambdaImplementations.get(lv.name()));
+
+      toField(
+              isFinal,
+              lv.typeName(),
+              lv.name(),
+              values.get(lv),
+              lvLambdaImplementation,
+              heap,
+              heapReferencesToWalk)
+          .ifPresent(stackFrameFields::add);
+    }
+
+    Optional<ThisObject> thisObject = Optional.empty();
+    if (frame.thisObject() instanceof ObjectReference frameThis) {
+      // frameThis is not null, so we're in a nonstatic, nonnative method
+      String thisType = frame.location().method().declaringType().name();
+      TraceValue.Reference thisReference = new TraceValue.Reference(frameThis.uniqueID());
+      thisObject = Optional.of(new ThisObject(thisType, thisReference));
+      heapReferencesToWalk.add(frameThis);
+    }
+
+    return new StackSnapshot(
+        frame.location().method().name(),
+        frame.location().lineNumber(),
+        stackFrameFields,
+        thisObject);
+  }
+
+  /**
+   * Take a snapshot of a loaded class's static fields. Each field is named after its class, like
+   * {@code cs1302.Main.count}.
+   *
+   * @param loadedClass The class.
+   * @param sourceIndex Information about the source code for the compiled program.
+   * @param heap The snapshot's heap. Lambdas are added to it directly.
+   * @param heapReferencesToWalk An out parameter that accumulates the objects that still need to be
+   *     added to the heap.
+   * @return The class's static fields.
+   */
+  static List<ExecutionSnapshot.Field> snapshotStatics(
+      ReferenceType loadedClass,
+      SourceIndex sourceIndex,
+      Map<Long, TraceValue> heap,
+      List<ObjectReference> heapReferencesToWalk) {
+    List<ExecutionSnapshot.Field> statics = new ArrayList<>();
+    for (Field f : loadedClass.allFields()) {
+      if (!f.isStatic()) {
+        continue;
       }
 
-      Optional<ThisObject> thisObject = Optional.empty();
-      if (frame.thisObject() instanceof ObjectReference frameThis) {
-        // frameThis is not null, so we're in a nonstatic, nonnative method
-        String thisType = frame.location().method().declaringType().name();
-        TraceValue.Reference thisReference = new TraceValue.Reference(frameThis.uniqueID());
-        thisObject = Optional.of(new ThisObject(thisType, thisReference));
-        heapReferencesToWalk.add(frameThis);
+      Optional<String> lambdaImplementation =
+          sourceIndex.staticLambdaImplementation(loadedClass, f.name());
+
+      String fieldName = String.join(".", loadedClass.name(), f.name());
+      toField(
+              f.isFinal(),
+              f.typeName(),
+              fieldName,
+              loadedClass.getValue(f),
+              lambdaImplementation,
+              heap,
+              heapReferencesToWalk)
+          .ifPresent(statics::add);
+    }
+    return statics;
+  }
+
+  /**
+   * Get the variables that are visible in a stack frame. Frames of methods that were compiled
+   * without debug information, such as JDK methods that a program was stopped inside of, don't have
+   * any.
+   *
+   * @param frame The frame to get the variables of.
+   * @return The frame's visible variables, or an empty list if it doesn't have any information
+   *     about its variables.
+   */
+  private static List<LocalVariable> visibleVariables(StackFrame frame) {
+    try {
+      return frame.visibleVariables();
+    } catch (AbsentInformationException aie) {
+      return List.of();
+    }
+  }
+
+  /**
+   * Take a snapshot of only the part of a thread's memory state described by a capture
+   * specification. The snapshot's stack contains every frame, but only the topmost frame contains
+   * variables, and those variables are the captured paths that aren't rooted at a static field. The
+   * paths that are rooted at a static field are included as statics. Paths that can't be resolved
+   * at this point of execution, such as variables that are out of scope, are left out.
+   *
+   * @param mainThread A suspended thread that you want to take a snapshot of.
+   * @param loadedClasses The loaded classes whose static fields can be captured.
+   * @param vmOut An output stream containing the VM's standard output.
+   * @param vmErr An output stream containing the VM's standard error.
+   * @param sourceIndex Information about the source code for the compiled program.
+   * @param capture The part of the thread's memory state to capture.
+   * @return An execution snapshot of the captured memory state at the time of calling.
+   * @throws IllegalArgumentException If a path's root isn't a variable of the current method, a
+   *     field of its class, or a loaded class.
+   */
+  private static ExecutionSnapshot snapshotCapture(
+      ThreadReference mainThread,
+      Collection<ReferenceType> loadedClasses,
+      ByteArrayOutputStream vmOut,
+      ByteArrayOutputStream vmErr,
+      SourceIndex sourceIndex,
+      CaptureSpec capture)
+      throws IncompatibleThreadStateException, AbsentInformationException {
+
+    List<ObjectReference> heapReferencesToWalk = new ArrayList<>();
+    Map<Long, TraceValue> heap = new HashMap<>();
+
+    List<StackFrame> frames = programFrames(mainThread, loadedClasses);
+    StackFrame currentFrame = frames.getFirst();
+
+    List<ExecutionSnapshot.Field> capturedVariables = new ArrayList<>();
+    List<ExecutionSnapshot.Field> statics = new ArrayList<>();
+    for (List<String> path : capture.paths()) {
+      Optional<CapturedValue> maybeCaptured =
+          resolveCapturePath(path, currentFrame, loadedClasses, sourceIndex);
+      if (maybeCaptured.isEmpty()) {
+        continue;
       }
 
+      CapturedValue captured = maybeCaptured.get();
+      toField(
+              captured.isFinal(),
+              captured.typeName(),
+              String.join(".", path),
+              captured.value(),
+              captured.lambdaImplementation(),
+              heap,
+              heapReferencesToWalk)
+          .ifPresent(captured.isStatic() ? statics::add : capturedVariables::add);
+    }
+
+    List<StackSnapshot> stackSnapshots = new LinkedList<>();
+    for (StackFrame frame : frames) {
       stackSnapshots.addFirst(
           new StackSnapshot(
               frame.location().method().name(),
               frame.location().lineNumber(),
-              stackFrameFields,
-              thisObject));
+              frame == currentFrame ? capturedVariables : new ArrayList<>(),
+              Optional.empty()));
     }
 
-    // collect static values that have been loaded
-    List<ExecutionSnapshot.Field> statics = new ArrayList<>();
-    for (ReferenceType loadedClass : loadedClasses) {
-      Optional<ClassOrInterfaceDeclaration> loadedClassDeclaration =
-          parsedSource.findFirst(
-              ClassOrInterfaceDeclaration.class,
-              c ->
-                  loadedClass
-                      .name()
-                      .equals(c.getFullyQualifiedName().orElseGet(c::getNameAsString)));
-
-      for (Field f : loadedClass.allFields()) {
-        if (!f.isStatic()) {
-          continue;
+    walkHeap(mainThread, heapReferencesToWalk, heap, capture.maxDepth(), Optional.empty());
+
+    return new ExecutionSnapshot(
+        stackSnapshots, List.of(), statics, heap, readSink(vmOut), readSink(vmErr));
+  }
+
+  /**
+   * A value that was found by resolving a capture path.
+   *
+   * @param isStatic True if the path is rooted at a static field, false otherwise.
+   * @param isFinal True if the last element of the path is final, false otherwise.
+   * @param typeName The declared type of the last element of the path.
+   * @param value The value the path refers to.
+   * @param lambdaImplementation The lambda implementation of the value, if it has one.
+   */
+  private record CapturedValue(
+      boolean isStatic,
+      boolean isFinal,
+      String typeName,
+      Value value,
+      Optional<String> lambdaImplementation) {}
+
+  /**
+   * Resolve a capture path in the context of a stack frame. See {@link CaptureSpec} for how paths
+   * are resolved.
+   *
+   * @param path The path to resolve.
+   * @param frame The frame to resolve the path in.
+   * @param loadedClasses The loaded classes whose static fields may be the root of the path.
+   * @param sourceIndex Information about the source code for the compiled program.
+   * @return The value the path refers to, or empty if it can't be resolved here.
+   * @throws IllegalArgumentException If the path's root doesn't name anything that could be
+   *     resolved.
+   */
+  private static Optional<CapturedValue> resolveCapturePath(
+      List<String> path,
+      StackFrame frame,
+      Collection<ReferenceType> loadedClasses,
+      SourceIndex sourceIndex)
+      throws AbsentInformationException {
+    String root = path.getFirst();
+    ReferenceType currentType = frame.location().declaringType();
+    ObjectReference thisObject = frame.thisObject();
+
+    CapturedValue captured;
+    int remainingPathStart = 1;
+    LocalVariable local = root.equals("this") ? null : frame.visibleVariableByName(root);
+    Field rootField = currentType.fieldByName(root);
+
+    if (root.equals("this")) {
+      if (thisObject == null) {
+        return Optional.empty();
+      }
+      captured = new CapturedValue(false, true, currentType.name(), thisObject, Optional.empty());
+    } else if (local != null) {
+      Method frameMethod = frame.location().method();
+      captured =
+          new CapturedValue(
+              false,
+              sourceIndex.finalVariables(frameMethod).contains(root),
+              local.typeName(),
+              frame.getValue(local),
+              Optional.ofNullable(sourceIndex.lambdaImplementations(frameMethod).get(root)));
+    } else if (rootField != null && rootField.isStatic()) {
+      captured = fieldValue(true, rootField, currentType.getValue(rootField), sourceIndex);
+    } else if (rootField != null && thisObject != null) {
+      captured = fieldValue(false, rootField, thisObject.getValue(rootField), sourceIndex);
+    } else {
+      // look for the longest prefix of the path that names a loaded class with a static field
+      // named by the element that follows it
+      captured = null;
+      for (int i = path.size() - 1; i > 0 && captured == null; i--) {
+        String className = String.join(".", path.subList(0, i));
+        String staticFieldName = path.get(i);
+        for (ReferenceType loadedClass : loadedClasses) {
+          boolean nameMatches =
+              loadedClass.name().equals(className)
+                  || loadedClass.name().endsWith("." + className)
+                  || loadedClass.name().endsWith("$" + className);
+          Field staticField = nameMatches ? loadedClass.fieldByName(staticFieldName) : null;
+          if (staticField != null && staticField.isStatic()) {
+            captured =
+                fieldValue(true, staticField, loadedClass.getValue(staticField), sourceIndex);
+            remainingPathStart = i + 1;
+            break;
+          }
+        }
+      }
+      if (captured == null) {
+        if (rootField != null || isVariableOf(frame.location().method(), root)) {
+          // the root exists, but it isn't in scope here
+          return Optional.empty();
+        }
+        throw new IllegalArgumentException(
+            String.format(
+                "Capture path \"%s\" at line %d doesn't start with a variable, field, or class.",
+                String.join(".", path), frame.location().lineNumber()));
+      }
+    }
+
+    // follow the rest of the path through object fields
+    for (String element : path.subList(remainingPathStart, path.size())) {
+      switch (captured.value()) {
+        case null -> {
+          // dereferencing null, so the value of the whole path is null
+          return Optional.of(captured);
         }
+        case ArrayReference ar when element.equals("length") ->
+            captured =
+                new CapturedValue(
+                    captured.isStatic(),
+                    true,
+                    "int",
+                    ar.virtualMachine().mirrorOf(ar.length()),
+                    Optional.empty());
+        case ObjectReference or -> {
+          Field field = or.referenceType().fieldByName(element);
+          if (field == null) {
+            return Optional.empty();
+          }
+          Value value =
+              field.isStatic() ? field.declaringType().getValue(field) : or.getValue(field);
+          captured = fieldValue(captured.isStatic(), field, value, sourceIndex);
+        }
+        default -> {
+          // primitives don't have fields
+          return Optional.empty();
+        }
+      }
+    }
+
+    return Optional.of(captured);
+  }
+
+  /**
+   * Check whether a method has a local variable or parameter with a name anywhere in its body.
+   *
+   * @param method The method.
+   * @param name The variable's name.
+   * @return True if the method has such a variable, or if it has no debug information to tell.
+   */
+  private static boolean isVariableOf(Method method, String name) {
+    try {
+      return !method.variablesByName(name).isEmpty();
+    } catch (AbsentInformationException e) {
+      return true;
+    }
+  }
 
-        Optional<String> lambdaImplementation =
-            loadedClassDeclaration
-                .flatMap(
-                    d ->
-                        d.findFirst(
-                            VariableDeclarator.class, vd -> vd.getNameAsString().equals(f.name())))
-                .filter(vd -> vd.getInitializer().map(Expression::isLambdaExpr).orElse(false))
-                .map(vd -> vd.getInitializer().get().asLambdaExpr())
-                .flatMap(DebugTraceHelper::tryImplementLambdaSam);
-
-        String fieldName = String.join(".", loadedClass.name(), f.name());
-        switch (loadedClass.getValue(f)) {
-          case PrimitiveValue pv ->
-              statics.add(
-                  new ExecutionSnapshot.Field(
-                      f.isFinal(),
-                      f.typeName(),
-                      fieldName,
-                      TraceValue.Primitive.fromJdiPrimitive(pv)));
+  /**
+   * Create a captured value for the value of a field.
+   *
+   * @param isStatic True if the capture path is rooted at a static field, false otherwise.
+   * @param field The field.
+   * @param value The field's value.
+   * @param sourceIndex Information about the source code for the compiled program.
+   * @return The captured value.
+   */
+  private static CapturedValue fieldValue(
+      boolean isStatic, Field field, Value value, SourceIndex sourceIndex) {
+    Optional<String> lambdaImplementation =
+        field.isStatic()
+            ? sourceIndex.staticLambdaImplementation(field.declaringType(), field.name())
+            : Optional.empty();
+    return new CapturedValue(
+        isStatic, field.isFinal(), field.typeName(), value, lambdaImplementation);
+  }
+
+  /**
+   * Convert a named JDI value into a snapshot field.
+   *
+   * @param isFinal True if the value's variable or field is declared as final, false otherwise.
+   * @param typeName The declared type of the value's variable or field.
+   * @param identifier The identifier of the value's variable or field.
+   * @param value The value to convert.
+   * @param lambdaImplementation The lambda implementation of the value, if it has one.
+   * @param heap The snapshot's heap. Lambdas are added to it directly.
+   * @param heapReferencesToWalk An out parameter that accumulates the objects that still need to be
+   *     added to the heap.
+   * @return The converted field, or empty if the value couldn't be converted.
+   */
+  static Optional<ExecutionSnapshot.Field> toField(
+      boolean isFinal,
+      String typeName,
+      String identifier,
+      Value value,
+      Optional<String> lambdaImplementation,
+      Map<Long, TraceValue> heap,
+      List<ObjectReference> heapReferencesToWalk) {
+    TraceValue traceValue =
+        switch (value) {
+          case PrimitiveValue pv -> TraceValue.Primitive.fromJdiPrimitive(pv);
           case ObjectReference or when lambdaImplementation.isPresent() -> {
             heap.put(or.uniqueID(), new TraceValue.Lambda(lambdaImplementation.get()));
-            statics.add(
-                new ExecutionSnapshot.Field(
-                    f.isFinal(), f.typeName(), fieldName, new TraceValue.Reference(or.uniqueID())));
+            yield new TraceValue.Reference(or.uniqueID());
           }
           case ObjectReference or -> {
-            statics.add(
-                new ExecutionSnapshot.Field(
-                    f.isFinal(), f.typeName(), fieldName, new TraceValue.Reference(or.uniqueID())));
             heapReferencesToWalk.add(or);
+            yield new TraceValue.Reference(or.uniqueID());
           }
-          case null ->
-              statics.add(
-                  new ExecutionSnapshot.Field(
-                      f.isFinal(), f.typeName(), fieldName, new TraceValue.Null()));
-          default -> {}
+          case null -> new TraceValue.Null();
+          default -> null;
+        };
+
+    return Optional.ofNullable(traceValue)
+        .map(tv -> new ExecutionSnapshot.Field(isFinal, typeName, identifier, tv));
+  }
+
+  /**
+   * Add the values of objects to a heap, along with the values of the objects they refer to. This
+   * is done breadth-first so that depth can be limited.
+   *
+   * @param mainThread A suspended thread that the objects are converted with.
+   * @param roots The objects to start walking from.
+   * @param heap The heap to add objects to. Objects that are already in the heap aren't walked.
+   * @param maxDepth The maximum number of references to follow from the roots. Objects that are
+   *     further away are added as stubs without any fields. Strings are always added in full, since
+   *     they don't refer to any other objects.
+   * @param unexpanded Where to put the objects that are further away instead, as {@linkplain
+   *     TraceValue.Unexpanded unexpanded} objects whose garbage collection is disabled, or empty to
+   *     add them as stubs.
+   */
+  private static void walkHeap(
+      ThreadReference mainThread,
+      List<ObjectReference> roots,
+      Map<Long, TraceValue> heap,
+      int maxDepth,
+      Optional<Map<Long, ObjectReference>> unexpanded) {
+    List<ObjectReference> heapReferencesToWalk = roots;
+    for (int depth = 0; !heapReferencesToWalk.isEmpty(); depth++) {
+      List<ObjectReference> encounteredReferences = new ArrayList<>();
+      for (ObjectReference workingObject : heapReferencesToWalk) {
+        if (heap.containsKey(workingObject.uniqueID())) {
+          // don't convert if we've already done so previously, i.e. as in:
+          // A ─┐
+          //    ├─ C
+          // B ─┘
+          // both A and B refer to C, parsing it twice (once when we hit A and
+          // another time when we hit B), would be a waste.
+          continue;
         }
-      }
-    }
 
-    // recursively collect heap values reachable from the roots contained in
-    // heapReferencesToWalk
-    while (!heapReferencesToWalk.isEmpty()) {
-      ObjectReference workingObject = heapReferencesToWalk.removeFirst();
-      if (heap.containsKey(workingObject.uniqueID())) {
-        // don't convert if we've already done so previously, i.e. as in:
-        // A ─┐
-        //    ├─ C
-        // B ─┘
-        // both A and B refer to C, parsing it twice (once when we hit A and
-        // another time when we hit B), would be a waste.
-        continue;
-      }
+        if (depth > maxDepth
+            && !(workingObject instanceof StringReference)
+            && unexpanded.isPresent()) {
+          String type = workingObject.referenceType().name();
+          heap.put(workingObject.uniqueID(), new TraceValue.Unexpanded(type));
+          if (unexpanded.get().putIfAbsent(workingObject.uniqueID(), workingObject) == null) {
+            workingObject.disableCollection();
+          }
+          continue;
+        }
 
-      TraceValue convertedObject =
-          TraceValue.fromJdiValue(mainThread, workingObject, Optional.of(heapReferencesToWalk));
-      heap.put(workingObject.uniqueID(), convertedObject);
-    }
+        if (depth > maxDepth && !(workingObject instanceof StringReference)) {
+          heap.put(
+              workingObject.uniqueID(),
+              new TraceValue.Object(workingObject.referenceType().name(), List.of()));
+          continue;
+        }
 
-    byte[] vmOutBytes;
-    synchronized (vmOut) {
-      vmOutBytes = vmOut.toByteArray();
+        TraceValue convertedObject =
+            TraceValue.fromJdiValue(mainThread, workingObject, Optional.of(encounteredReferences));
+        heap.put(workingObject.uniqueID(), convertedObject);
+      }
+      heapReferencesToWalk = encounteredReferences;
     }
+  }
 
-    byte[] vmErrBytes;
-    synchronized (vmErr) {
-      vmErrBytes = vmErr.toByteArray();
+  /**
+   * Get the bytes that have been written to an output sink so far.
+   *
+   * @param sink The sink to read.
+   * @return A copy of the sink's contents.
+   */
+  static byte[] readSink(ByteArrayOutputStream sink) {
+    synchronized (sink) {
+      return sink.toByteArray();
     }
-
-    return new ExecutionSnapshot(stackSnapshots, statics, heap, vmOutBytes, vmErrBytes);
   }
 }
@@ -0,0 +1,424 @@
+package cs1302.tracer.trace;
+
+import com.github.javaparser.ast.CompilationUnit;
+import com.sun.jdi.*;
+import com.sun.jdi.connect.VMStartException;
+import com.sun.jdi.event.*;
+import com.sun.jdi.request.BreakpointRequest;
+import com.sun.jdi.request.ClassPrepareRequest;
+import com.sun.jdi.request.EventRequest;
+import com.sun.jdi.request.EventRequestManager;
+import com.sun.jdi.request.VMDeathRequest;
+import cs1302.tracer.CompilationHelper.CompilationResult;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URISyntaxException;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * A JVM that traces programs one after another, so that it only starts once. Its main class is
+ * {@link TenantHost}, which gives each program its own class loader, thread and output, and this
+ * drives the host over JDI. Only the program's own classes are traced: class preparation is
+ * filtered by the program's class loader, and snapshots leave out the host's frames.
+ *
+ * <p>A host can only be reused while it is healthy. One whose program exceeded its budget, exited
+ * the JVM or left threads running is killed instead, since whatever state the program left behind
+ * could leak into the next one.
+ */
+final class DebuggeeHost implements AutoCloseable {
+
+  /** The event request property that marks the breakpoint where the host waits for a program. */
+  private static final Object READY = "ready";
+
+  /** How long to wait for a new host to reach its first pause, in milliseconds. */
+  private static final long START_TIMEOUT_MILLIS = 30_000;
+
+  private final VirtualMachine vm;
+
+  private final ClassType hostType;
+
+  /** The metrics that count every JDWP command sent to the host, whichever program it was for. */
+  private final TraceMetrics hostMetrics;
+
+  /** The event set that the host is paused in, which is resumed to run the next program. */
+  private EventSet readySet;
+
+  private boolean usable = true;
+
+  private DebuggeeHost(
+      VirtualMachine vm, ClassType hostType, TraceMetrics hostMetrics, EventSet readySet) {
+    this.vm = vm;
+    this.hostType = hostType;
+    this.hostMetrics = hostMetrics;
+    this.readySet = readySet;
+  }
+
+  /**
+   * Start a host and wait until it is ready for its first program.
+   *
+   * @param maxHeapSize The maximum heap size of the host's JVM, which all of its programs share, in
+   *     the format of java's {@code -Xmx} option. The JVM's default is used if this is empty.
+   * @return The host, paused before its first program.
+   */
+  static DebuggeeHost start(Optional<String> maxHeapSize)
+      throws IOException, VMStartException, InterruptedException {
+    // a host outlives many programs, so it keeps the JVM's default tuning and its full JIT
+    TraceBudget budget =
+        new TraceBudget(
+            Optional.empty(),
+            OptionalLong.empty(),
+            OptionalLong.empty(),
+            maxHeapSize,
+            LaunchProfile.DEFAULT);
+    TraceMetrics hostMetrics = new TraceMetrics();
+    VirtualMachine vm =
+        DebugTraceHelper.startVm(
+            List.of(hostClassPath()),
+            TenantHost.class.getName(),
+            TraceWatchdog.vmOptions(budget),
+            ProgramInput.NONE,
+            hostMetrics);
+    Process process = vm.process();
+    try {
+      // the host's programs print into memory, so its own pipes only carry the JVM's warnings
+      discard(process.getInputStream());
+      discard(process.getErrorStream());
+
+      EventRequestManager eventRequestManager = vm.eventRequestManager();
+      ClassPrepareRequest hostPrepareRequest = eventRequestManager.createClassPrepareRequest();
+      hostPrepareRequest.addClassFilter(TenantHost.class.getName());
+      hostPrepareRequest.setSuspendPolicy(EventRequest.SUSPEND_EVENT_THREAD);
+      hostPrepareRequest.enable();
+      // the host's output is only read once it dies, so it has to wait for us
+      VMDeathRequest deathRequest = eventRequestManager.createVMDeathRequest();
+      deathRequest.setSuspendPolicy(EventRequest.SUSPEND_ALL);
+      deathRequest.enable();
+
+      ClassType hostType = null;
+      long giveUpTime = System.nanoTime() + START_TIMEOUT_MILLIS * 1_000_000;
+      // the VM starts suspended, and resuming its start event lets it run
+      while (System.nanoTime() - giveUpTime < 0) {
+        long remainingMillis = Math.max(1, (giveUpTime - System.nanoTime()) / 1_000_000);
+        EventSet eventSet = vm.eventQueue().remove(remainingMillis);
+        if (eventSet == null) {
+          break;
+        }
+        for (Event event : eventSet) {
+          switch (event) {
+            case ClassPrepareEvent cpe -> {
+              hostType = (ClassType) cpe.referenceType();
+              Method ready = hostType.methodsByName("ready").getFirst();
+              BreakpointRequest readyRequest =
+                  eventRequestManager.createBreakpointRequest(ready.location());
+              readyRequest.putProperty(READY, true);
+              readyRequest.setSuspendPolicy(EventRequest.SUSPEND_ALL);
+              readyRequest.enable();
+              eventRequestManager.deleteEventRequest(hostPrepareRequest);
+            }
+            case BreakpointEvent bpe -> {
+              return new DebuggeeHost(vm, hostType, hostMetrics, eventSet);
+            }
+            case VMDeathEvent vde ->
+                throw new VMStartException("The host exited before it was ready.", process);
+            case VMDisconnectEvent vde ->
+                throw new VMStartException("The host exited before it was ready.", process);
+            default -> {}
+          } // switch
+        } // for
+        eventSet.resume();
+      } // while
+      throw new VMStartException("The host wasn't ready in time.", process);
+    } catch (VMStartException | InterruptedException | RuntimeException e) {
+      process.destroyForcibly();
+      throw e;
+    }
+  } // start
+
+  /**
+   * Check whether the host can trace another program.
+   *
+   * @return True if the host is alive and its last program didn't leave anything behind.
+   */
+  boolean usable() {
+    return usable;
+  }
+
+  /**
+   * Take snapshots of a program's execution state according to a plan, running it in this host.
+   * This works like {@link DebugTraceHelper#trace(CompilationResult, TracePlan, Function,
+   * CompletableFuture, TraceMetrics)}, except that the budget's maximum heap size is the host's.
+   * The host is killed if the program exceeds its budget or leaves the host unusable.
+   *
+   * @param compilationResult The compiled program.
+   * @param plan What to snapshot, and the resources the program may use.
+   * @param parsedSources Parses one of the program's source files with symbol resolution, given its
+   *     path relative to its source root.
+   * @param input The program's arguments and stdin.
+   * @param metrics The metrics to record the event wait and snapshot phases in, along with
+   *     breakpoint hits, JDWP commands and output.
+   * @return The snapshots that were taken, and why the program was killed if it was.
+   */
+  TraceResult trace(
+      CompilationResult compilationResult,
+      TracePlan plan,
+      Function<String, Optional<CompilationUnit>> parsedSources,
+      ProgramInput input,
+      TraceMetrics metrics)
+      throws IOException,
+          InterruptedException,
+          IncompatibleThreadStateException,
+          AbsentInformationException,
+          ClassNotLoadedException {
+    if (!usable) {
+      throw new IllegalStateException("The host can't trace another program.");
+    }
+    CompletableFuture<SourceIndex> sourceIndex =
+        DebugTraceHelper.indexSources(compilationResult, parsedSources);
+
+    long jdwpCommandsBefore = hostMetrics.jdwpCommands();
+    long invokeMethodCommandsBefore = hostMetrics.invokeMethodCommands();
+    ByteArrayOutputStream vmOutSink = new ByteArrayOutputStream();
+    ByteArrayOutputStream vmErrSink = new ByteArrayOutputStream();
+    TraceWatchdog watchdog = new TraceWatchdog(plan.budget());
+    Optional<TraceResult.Termination> termination = Optional.empty();
+    // the program's classes are told apart from earlier programs' classes of the same name by
+    // their class loader
+    DebugTraceHelper.EventHandler handler =
+        new DebugTraceHelper.EventHandler(
+            compilationResult,
+            plan,
+            sourceIndex,
+            watchdog,
+            vmOutSink,
+            vmErrSink,
+            type ->
+                Objects.equals(
+                    type.classLoader(), hostType.getValue(hostType.fieldByName("loader"))),
+            Optional.of(() -> syncOutput(vmOutSink, vmErrSink)),
+            metrics);
+
+    // the host is only usable again once it is back where it waits for programs
+    usable = false;
+    try {
+      setString(
+          "classPath",
+          compilationResult.classPath().stream()
+              .map(Path::toString)
+              .collect(Collectors.joining(File.pathSeparator)));
+      setString("mainClass", compilationResult.mainClass());
+      setString("args", String.join(String.valueOf(TenantHost.ARGUMENT_SEPARATOR), input.args()));
+      setString("stdin", input.stdin());
+      hostType.setValue(
+          hostType.fieldByName("outputLimit"),
+          vm.mirrorOf(plan.budget().maxOutputBytes().orElse(Long.MAX_VALUE)));
+      DebugTraceHelper.requestClassPrepares(vm, compilationResult.compiledClassNames());
+
+      boolean ready = false;
+
+      watchdog.restartWallClock();
+      readySet.resume();
+      readySet = null;
+
+      // the same event loop as a trace in a JVM of its own, except that the program's output is
+      // read out of the host, and the program ends when the host is ready for the next one
+      boolean endEventLoop = false;
+      while (!endEventLoop) {
+        watchdog.updateOutputBytes(hostLong("written"));
+        termination = watchdog.check();
+        if (termination.isPresent()) {
+          termination = Optional.of(handler.withKillPoint(termination.get()));
+          break;
+        }
+
+        EventSet eventSet =
+            metrics.time(
+                TraceMetrics.Phase.EVENT_WAIT, () -> vm.eventQueue().remove(watchdog.pollMillis()));
+        if (eventSet == null) {
+          continue;
+        }
+
+        for (Event event : eventSet) {
+          switch (event) {
+            case BreakpointEvent bpe when bpe.request().getProperty(READY) != null -> {
+              readySet = eventSet;
+              ready = true;
+              endEventLoop = true;
+            }
+            case VMDeathEvent vde -> {
+              // the program exited the JVM. the host waits here so that its output can be read
+              if (vde.request() != null) {
+                syncOutput(vmOutSink, vmErrSink);
+                watchdog.updateOutputBytes(hostLong("written"));
+                eventSet.resume();
+              }
+              endEventLoop = true;
+            }
+            default -> endEventLoop |= handler.handle(event);
+          }
+        }
+
+        if (!endEventLoop) {
+          eventSet.resume();
+        }
+      }
+
+      if (ready) {
+        syncOutput(vmOutSink, vmErrSink);
+        watchdog.updateOutputBytes(hostLong("written"));
+        usable = !((BooleanValue) hostType.getValue(hostType.fieldByName("tainted"))).value();
+        if (termination.isEmpty()) {
+          termination = watchdog.checkOutputCutShort();
+        }
+      } else if (termination.isEmpty()) {
+        termination = watchdog.checkExit(vm.process());
+      }
+    } catch (VMDisconnectedException e) {
+      // the host died while we read its output, such as when it ran out of memory
+      if (termination.isEmpty()) {
+        termination = watchdog.checkExit(vm.process());
+      }
+    } catch (InvalidTypeException e) {
+      throw new IllegalStateException("The host's fields don't have the expected types.", e);
+    } finally {
+      if (usable) {
+        deleteProgramRequests();
+      } else {
+        close();
+      }
+      metrics.addOutputBytes(watchdog.outputBytes());
+      metrics.addJdwpCommands(
+          hostMetrics.jdwpCommands() - jdwpCommandsBefore,
+          hostMetrics.invokeMethodCommands() - invokeMethodCommandsBefore);
+    }
+
+    return handler.result(termination);
+  } // trace
+
+  /** Kill the host. */
+  @Override
+  public void close() {
+    usable = false;
+    Process process = vm.process();
+    process.destroyForcibly();
+    try {
+      process.waitFor();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Set one of the host's static string fields. The host is paused, so the string can't be garbage
+   * collected before the field refers to it.
+   *
+   * @param name The field's name.
+   * @param value The field's new value.
+   */
+  private void setString(String name, String value)
+      throws InvalidTypeException, ClassNotLoadedException {
+    StringReference mirror = vm.mirrorOf(value);
+    mirror.disableCollection();
+    try {
+      hostType.setValue(hostType.fieldByName(name), mirror);
+    } finally {
+      mirror.enableCollection();
+    }
+  }
+
+  /**
+   * Read one of the host's static long fields.
+   *
+   * @param name The field's name.
+   * @return The field's value.
+   */
+  private long hostLong(String name) {
+    return ((LongValue) hostType.getValue(hostType.fieldByName(name))).value();
+  }
+
+  /**
+   * Copy what the program has printed since the last time into the trace's output sinks. The host
+   * must be suspended.
+   *
+   * @param vmOut The sink for the program's stdout.
+   * @param vmErr The sink for the program's stderr.
+   */
+  private void syncOutput(ByteArrayOutputStream vmOut, ByteArrayOutputStream vmErr) {
+    syncSink("stdout", vmOut);
+    syncSink("stderr", vmErr);
+  }
+
+  /**
+   * Copy the new bytes of one of the host's {@link TenantHost.Sink sinks} into an output sink.
+   *
+   * @param name The name of the host's field that refers to the sink.
+   * @param sink The output sink, which has every byte of the host's sink up to some point.
+   */
+  private void syncSink(String name, ByteArrayOutputStream sink) {
+    ObjectReference hostSink = (ObjectReference) hostType.getValue(hostType.fieldByName(name));
+    if (hostSink == null) {
+      return;
+    }
+    ReferenceType sinkType = hostSink.referenceType();
+    int length = ((IntegerValue) hostSink.getValue(sinkType.fieldByName("length"))).value();
+    synchronized (sink) {
+      if (length > sink.size()) {
+        ArrayReference bytes = (ArrayReference) hostSink.getValue(sinkType.fieldByName("bytes"));
+        for (Value value : bytes.getValues(sink.size(), length - sink.size())) {
+          sink.write(((ByteValue) value).value());
+        }
+      }
+    }
+  }
+
+  /** Delete the event requests of the last program, leaving only the host's own. */
+  private void deleteProgramRequests() {
+    EventRequestManager eventRequestManager = vm.eventRequestManager();
+    List<EventRequest> requests = new ArrayList<>();
+    requests.addAll(eventRequestManager.classPrepareRequests());
+    requests.addAll(eventRequestManager.breakpointRequests());
+    requests.addAll(eventRequestManager.methodExitRequests());
+    requests.addAll(eventRequestManager.stepRequests());
+    requests.addAll(eventRequestManager.exceptionRequests());
+    requests.removeIf(request -> request.getProperty(READY) != null);
+    eventRequestManager.deleteEventRequests(requests);
+  }
+
+  /**
+   * Get the class path entry that {@link TenantHost} was loaded from, which is all that the host
+   * needs.
+   *
+   * @return The directory or jar.
+   */
+  private static Path hostClassPath() {
+    try {
+      return Path.of(TenantHost.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+    } catch (URISyntaxException e) {
+      throw new IllegalStateException("The tracer's own location isn't a valid path.", e);
+    }
+  }
+
+  /**
+   * Read a stream on a new thread and throw its contents away, so that the process writing to it
+   * never blocks on a full pipe.
+   *
+   * @param source The stream.
+   */
+  private static void discard(InputStream source) {
+    Thread.ofVirtual()
+        .start(
+            () -> {
+              try {
+                source.transferTo(OutputStream.nullOutputStream());
+              } catch (IOException e) {
+                // the stream is closed when the host is killed
+              }
+            });
+  }
+}
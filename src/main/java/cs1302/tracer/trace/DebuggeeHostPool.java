@@ -0,0 +1,204 @@
+package cs1302.tracer.trace;
+
+import com.github.javaparser.ast.CompilationUnit;
+import com.sun.jdi.AbsentInformationException;
+import com.sun.jdi.ClassNotLoadedException;
+import com.sun.jdi.IncompatibleThreadStateException;
+import com.sun.jdi.connect.VMStartException;
+import cs1302.tracer.CompilationHelper.CompilationResult;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * A few long-lived JVMs that trace programs one after another, so that most traces don't have to
+ * start a JVM. Each program gets its own class loader in its JVM (see {@link TenantHost}), so its
+ * classes start out with fresh static fields, but the JDK's own static state, like system
+ * properties, is shared with the programs that ran before it in the same JVM. A JVM whose program
+ * exceeded its budget, exited or left threads running is replaced by a new one, which starts in the
+ * background.
+ *
+ * <p>A pool can be shared by any number of threads. It must be closed to kill its JVMs.
+ */
+public final class DebuggeeHostPool implements AutoCloseable {
+
+  private final Semaphore permits;
+
+  private final Optional<String> maxHeapSize;
+
+  /** The JVMs that aren't tracing a program, some of which may still be starting. */
+  private final Deque<CompletableFuture<DebuggeeHost>> idle = new ArrayDeque<>();
+
+  private final AtomicLong hostsStarted = new AtomicLong();
+
+  private boolean closed = false;
+
+  /**
+   * Create a pool. Its JVMs are started once they are needed.
+   *
+   * @param maxHosts The maximum number of JVMs, which is how many programs can be traced at once.
+   * @param maxHeapSize The maximum heap size of each JVM, in the format of java's {@code -Xmx}
+   *     option, which every program traced in it shares. The JVM's default is used if this is
+   *     empty.
+   * @throws IllegalArgumentException If {@code maxHosts} isn't positive.
+   */
+  public DebuggeeHostPool(int maxHosts, Optional<String> maxHeapSize) {
+    if (maxHosts < 1) {
+      throw new IllegalArgumentException("The number of JVMs must be positive.");
+    }
+    this.permits = new Semaphore(maxHosts);
+    this.maxHeapSize = maxHeapSize;
+  }
+
+  /**
+   * Get the number of JVMs that the pool has started so far, including the ones that were replaced.
+   *
+   * @return The number of JVMs.
+   */
+  public long hostsStarted() {
+    return hostsStarted.get();
+  }
+
+  /**
+   * Take snapshots of a program's execution state according to a plan in one of the pool's JVMs,
+   * waiting for one to be free if they are all busy. See {@link
+   * DebugTraceHelper#trace(CompilationResult, TracePlan, Function, CompletableFuture,
+   * TraceMetrics)}; the difference is that the budget's maximum heap size and launch profile are
+   * ignored in favor of the pool's.
+   *
+   * @param compilationResult The compiled program.
+   * @param plan What to snapshot, and the resources the program may use.
+   * @param parsedSources Parses one of the program's source files with symbol resolution, given its
+   *     path relative to its source root.
+   * @param input The program's arguments and stdin.
+   * @param metrics The metrics to record the launch phase (the wait for a JVM), event wait and
+   *     snapshot phases in, along with breakpoint hits, JDWP commands and output.
+   * @return The snapshots that were taken, and why the program was killed if it was.
+   * @throws IllegalStateException If the pool is closed.
+   */
+  public TraceResult trace(
+      CompilationResult compilationResult,
+      TracePlan plan,
+      Function<String, Optional<CompilationUnit>> parsedSources,
+      ProgramInput input,
+      TraceMetrics metrics)
+      throws IOException,
+          VMStartException,
+          InterruptedException,
+          IncompatibleThreadStateException,
+          AbsentInformationException,
+          ClassNotLoadedException {
+    permits.acquire();
+    try {
+      DebuggeeHost host;
+      // waiting for a host can fail in several ways, which the lambda form can't pass on
+      TraceMetrics.Timer timer = metrics.time(TraceMetrics.Phase.LAUNCH);
+      try {
+        CompletableFuture<DebuggeeHost> borrowed = borrow();
+        try {
+          host = DebugTraceHelper.await(borrowed);
+        } catch (InterruptedException e) {
+          giveBack(borrowed);
+          throw e;
+        }
+      } finally {
+        timer.close();
+      }
+      try {
+        return host.trace(compilationResult, plan, parsedSources, input, metrics);
+      } finally {
+        giveBack(host);
+      }
+    } finally {
+      permits.release();
+    }
+  }
+
+  /** Kill the pool's JVMs. The ones that are tracing a program are killed once it is done. */
+  @Override
+  public void close() {
+    synchronized (idle) {
+      closed = true;
+      for (CompletableFuture<DebuggeeHost> host : idle) {
+        host.thenAccept(DebuggeeHost::close);
+      }
+      idle.clear();
+    }
+  }
+
+  /**
+   * Take an idle JVM, or start a new one if there aren't any. A JVM that failed to start is
+   * replaced, so that one failure doesn't fail every trace after it.
+   *
+   * @return The JVM, which may still be starting.
+   */
+  private CompletableFuture<DebuggeeHost> borrow() {
+    synchronized (idle) {
+      if (closed) {
+        throw new IllegalStateException("The pool is closed.");
+      }
+      CompletableFuture<DebuggeeHost> host = idle.poll();
+      return host == null || host.isCompletedExceptionally() ? startHost() : host;
+    }
+  }
+
+  /**
+   * Return a JVM to the pool once its program is done. A JVM that can't trace another program is
+   * replaced by a new one.
+   *
+   * @param host The JVM.
+   */
+  private void giveBack(DebuggeeHost host) {
+    synchronized (idle) {
+      if (closed) {
+        host.close();
+      } else if (host.usable()) {
+        idle.push(CompletableFuture.completedFuture(host));
+      } else {
+        idle.add(startHost());
+      }
+    }
+  }
+
+  /**
+   * Return a JVM that is still starting to the pool, such as when the trace that was waiting for it
+   * was interrupted.
+   *
+   * @param host The JVM.
+   */
+  private void giveBack(CompletableFuture<DebuggeeHost> host) {
+    synchronized (idle) {
+      if (closed) {
+        host.thenAccept(DebuggeeHost::close);
+      } else {
+        idle.push(host);
+      }
+    }
+  }
+
+  /**
+   * Start a JVM on another thread.
+   *
+   * @return The JVM, once it is ready for its first program.
+   */
+  private CompletableFuture<DebuggeeHost> startHost() {
+    hostsStarted.incrementAndGet();
+    CompletableFuture<DebuggeeHost> host = new CompletableFuture<>();
+    Thread.ofVirtual()
+        .name("host")
+        .start(
+            () -> {
+              try {
+                host.complete(DebuggeeHost.start(maxHeapSize));
+              } catch (IOException | VMStartException | InterruptedException | RuntimeException e) {
+                host.completeExceptionally(e);
+              }
+            });
+    return host;
+  }
+}
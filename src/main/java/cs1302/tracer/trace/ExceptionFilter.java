@@ -0,0 +1,44 @@
+package cs1302.tracer.trace;
+
+/**
+ * Which exceptions a program is snapshotted at. The first exception that matches is snapshotted
+ * where it was thrown, along with the exception object.
+ *
+ * <p>An exception counts as caught if one of the program's own methods catches it. One that isn't
+ * caught, or is only caught by the JDK code below the program's outermost frame (like the code that
+ * runs a virtual thread or an executor's task), counts as uncaught, since it ends the thread that
+ * threw it. Exceptions that the JDK throws and catches inside of itself are never snapshotted.
+ */
+public enum ExceptionFilter {
+
+  /** No exceptions. */
+  NONE(false, false),
+
+  /** Exceptions that escape the program's code and end the thread that threw them. */
+  UNCAUGHT(false, true),
+
+  /** Exceptions that the program catches. */
+  CAUGHT(true, false),
+
+  /** Every exception that the program throws or that passes through its code. */
+  ALL(true, true);
+
+  private final boolean caught;
+
+  private final boolean uncaught;
+
+  ExceptionFilter(boolean caught, boolean uncaught) {
+    this.caught = caught;
+    this.uncaught = uncaught;
+  }
+
+  /**
+   * Check whether an exception passes this filter.
+   *
+   * @param caughtByProgram True if one of the program's methods catches the exception.
+   * @return True if the exception should be snapshotted.
+   */
+  boolean includes(boolean caughtByProgram) {
+    return caughtByProgram ? caught : uncaught;
+  }
+}
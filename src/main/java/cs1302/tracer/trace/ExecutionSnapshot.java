@@ -8,6 +8,8 @@ import java.util.Optional;
  * A snapshot of a program's memory state.
  *
  * @param stack The program's stack. Index 0 is the bottommost frame, the last index is the topmost.
+ * @param threads The stacks of the program's other threads, if they were captured (see {@link
+ *     ThreadCapture}).
  * @param statics Loaded static variables.
  * @param heap The program's heap, a mapping of reference IDs to values.
  * @param stdout Bytes that have been output by the program to stdout up to the snapshot point.
@@ -15,6 +17,7 @@ import java.util.Optional;
  */
 public record ExecutionSnapshot(
     List<StackSnapshot> stack,
+    List<ThreadSnapshot> threads,
     List<Field> statics,
     Map<Long, TraceValue> heap,
     byte[] stdout,
@@ -46,6 +49,20 @@ public record ExecutionSnapshot(
     public record ThisObject(String typeName, TraceValue.Reference value) {}
   }
 
+  /**
+   * A snapshot of one of the program's other threads.
+   *
+   * @param name The thread's name, which is empty for virtual threads that weren't given one.
+   * @param isVirtual True if this is a virtual thread.
+   * @param state The thread's state, like a {@link Thread.State} but without telling timed waits
+   *     from the others except for sleeps: {@code NEW}, {@code RUNNABLE}, {@code BLOCKED}, {@code
+   *     WAITING}, {@code TIMED_WAITING} (sleeping), {@code TERMINATED}, or {@code UNKNOWN}.
+   * @param stack The thread's frames of the program's code. Index 0 is the bottommost frame, the
+   *     last index is the topmost.
+   */
+  public record ThreadSnapshot(
+      String name, boolean isVirtual, String state, List<StackSnapshot> stack) {}
+
   /**
    * A key-value pair of identifier to the value it refers to.
    *
@@ -0,0 +1,117 @@
+package cs1302.tracer.trace;
+
+/**
+ * A policy that decides which of the times a breakpoint is reached (its hits) should be
+ * snapshotted. Hits are numbered starting from 1.
+ */
+public sealed interface HitPolicy {
+
+  /**
+   * Parse a hit policy. The accepted formats are {@code all}, {@code first:N}, {@code last:N},
+   * {@code every:K}, and {@code FROM-TO} (optionally written as {@code range:FROM-TO}).
+   *
+   * @param policy The policy to parse.
+   * @return The parsed policy.
+   * @throws IllegalArgumentException If the policy is malformed.
+   */
+  static HitPolicy parse(String policy) {
+    String[] parts = policy.strip().split(":", 2);
+    try {
+      if (parts.length == 1) {
+        return parts[0].equals("all") ? new All() : parseRange(parts[0]);
+      }
+      int value = parts[0].equals("range") ? 0 : Integer.parseInt(parts[1].strip());
+      return switch (parts[0]) {
+        case "first" -> new First(value);
+        case "last" -> new Last(value);
+        case "every" -> new Every(value);
+        case "range" -> parseRange(parts[1]);
+        default -> throw new NumberFormatException();
+      };
+    } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+      throw new IllegalArgumentException(
+          String.format(
+              "Hit policy \"%s\" must be one of all, first:N, last:N, every:K, or FROM-TO.",
+              policy),
+          e);
+    }
+  }
+
+  /**
+   * Parse a hit range formatted like {@code FROM-TO}.
+   *
+   * @param range The range to parse.
+   * @return The parsed range.
+   */
+  private static Range parseRange(String range) {
+    String[] bounds = range.split("-", 2);
+    return new Range(Integer.parseInt(bounds[0].strip()), Integer.parseInt(bounds[1].strip()));
+  }
+
+  /** Snapshot every hit. */
+  record All() implements HitPolicy {}
+
+  /**
+   * Snapshot the first {@code n} hits.
+   *
+   * @param n The number of hits to snapshot.
+   */
+  record First(int n) implements HitPolicy {
+    public First {
+      requirePositive(n, "first");
+    }
+  }
+
+  /**
+   * Snapshot the last {@code n} hits. Only the latest {@code n} snapshots are kept while tracing.
+   *
+   * @param n The number of hits to snapshot.
+   */
+  record Last(int n) implements HitPolicy {
+    public Last {
+      requirePositive(n, "last");
+    }
+  }
+
+  /**
+   * Snapshot every {@code k}th hit (hits k, 2k, 3k, and so on).
+   *
+   * @param k The distance between snapshotted hits.
+   */
+  record Every(int k) implements HitPolicy {
+    public Every {
+      requirePositive(k, "every");
+    }
+  }
+
+  /**
+   * Snapshot hits {@code from} through {@code to}, inclusive.
+   *
+   * @param from The first hit to snapshot.
+   * @param to The last hit to snapshot.
+   */
+  record Range(int from, int to) implements HitPolicy {
+    public Range {
+      requirePositive(from, "range");
+      if (to < from) {
+        throw new IllegalArgumentException(
+            String.format("Hit range %d-%d must not end before it starts.", from, to));
+      }
+    }
+  }
+
+  /**
+   * Make sure that a hit policy's parameter is positive.
+   *
+   * @param value The parameter's value.
+   * @param policyName The name of the policy the parameter is for.
+   * @throws IllegalArgumentException If the value isn't positive.
+   */
+  private static void requirePositive(int value, String policyName) {
+    if (value < 1) {
+      throw new IllegalArgumentException(
+          String.format(
+              "The %s hit policy requires a positive number, but got %d.", policyName, value));
+    }
+  }
+}
@@ -0,0 +1,125 @@
+package cs1302.tracer.trace;
+
+import com.sun.jdi.Location;
+import com.sun.jdi.request.BreakpointRequest;
+import com.sun.jdi.request.EventRequestManager;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Keeps track of how many times a breakpoint has been reached and which of those hits should be
+ * snapshotted according to a {@link HitPolicy}.
+ *
+ * <p>Where possible, hits that shouldn't be snapshotted are skipped inside of the debuggee with a
+ * JDI count filter so that they never produce an event at all.
+ */
+final class HitTracker {
+
+  private final HitPolicy policy;
+
+  /** The snapshots that have been kept so far, oldest first. */
+  private final Deque<ExecutionSnapshot> snapshots = new ArrayDeque<>();
+
+  /** The number of times the breakpoint has been reached, including skipped hits. */
+  private long hits = 0;
+
+  /**
+   * Create a tracker for a breakpoint.
+   *
+   * @param policy The policy that decides which hits are snapshotted.
+   */
+  HitTracker(HitPolicy policy) {
+    this.policy = policy;
+  }
+
+  /**
+   * Create and enable a breakpoint request for a location that is tracked by this tracker.
+   *
+   * @param eventRequestManager The event request manager of the VM to create the request in.
+   * @param location The location to break at.
+   * @param suspendPolicy The JDI suspend policy of the request. Snapshots usually need the whole
+   *     program to hold still while its state is read.
+   */
+  void arm(EventRequestManager eventRequestManager, Location location, int suspendPolicy) {
+    BreakpointRequest request = eventRequestManager.createBreakpointRequest(location);
+    request.putProperty(HitTracker.class, this);
+    request.setSuspendPolicy(suspendPolicy);
+    switch (policy) {
+      case HitPolicy.Every every -> request.addCountFilter(every.k());
+      case HitPolicy.Range range when hits == 0 && range.from() > 1 ->
+          request.addCountFilter(range.from());
+      default -> {}
+    }
+    request.enable();
+  }
+
+  /**
+   * Record that the breakpoint was reached through one of this tracker's requests, and update the
+   * request so that it fires again for the next hit that should be snapshotted (or never again if
+   * there isn't one).
+   *
+   * @param request The request whose event was received.
+   * @return True if this hit should be snapshotted, false otherwise.
+   */
+  boolean hit(BreakpointRequest request) {
+    EventRequestManager eventRequestManager = request.virtualMachine().eventRequestManager();
+    switch (policy) {
+      case HitPolicy.All all -> hits++;
+      case HitPolicy.Last last -> hits++;
+      case HitPolicy.First first -> {
+        hits++;
+        if (hits >= first.n()) {
+          request.disable();
+        }
+        return hits <= first.n();
+      }
+      case HitPolicy.Every every -> {
+        // the count filter skipped the k - 1 hits before this one. a request with a count filter
+        // expires after it fires, and re-enabling it resets the count
+        hits += every.k();
+        request.disable();
+        request.enable();
+      }
+      case HitPolicy.Range range -> {
+        if (hits == 0 && range.from() > 1) {
+          // the count filter skipped the hits before the range. the rest of the range needs a
+          // request without one
+          hits = range.from();
+          eventRequestManager.deleteEventRequest(request);
+          if (hits < range.to()) {
+            arm(eventRequestManager, request.location(), request.suspendPolicy());
+          }
+        } else {
+          hits++;
+          if (hits >= range.to()) {
+            request.disable();
+          }
+        }
+        return hits <= range.to();
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Keep a snapshot of a hit that should be snapshotted.
+   *
+   * @param snapshot The snapshot to keep.
+   */
+  void record(ExecutionSnapshot snapshot) {
+    snapshots.addLast(snapshot);
+    if (policy instanceof HitPolicy.Last last && snapshots.size() > last.n()) {
+      snapshots.removeFirst();
+    }
+  }
+
+  /**
+   * Get the snapshots that have been kept.
+   *
+   * @return The kept snapshots, oldest first.
+   */
+  List<ExecutionSnapshot> snapshots() {
+    return List.copyOf(snapshots);
+  }
+}
@@ -0,0 +1,137 @@
+package cs1302.tracer.trace;
+
+import com.sun.jdi.connect.spi.ClosedConnectionException;
+import com.sun.jdi.connect.spi.Connection;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A JDWP connection to a debuggee over a socket that counts the commands sent through it. Every JDI
+ * call that needs information from the debuggee is at least one command, so the count shows how
+ * chatty a trace was.
+ */
+final class JdwpConnection extends Connection {
+
+  private static final byte[] HANDSHAKE = "JDWP-Handshake".getBytes(StandardCharsets.US_ASCII);
+
+  /** The length of a JDWP packet header, which every packet starts with. */
+  private static final int HEADER_LENGTH = 11;
+
+  /** The offset of the flags byte in a packet header. */
+  private static final int FLAGS_OFFSET = 8;
+
+  /** The flag that marks a packet as a reply rather than a command. */
+  private static final int REPLY_FLAG = 0x80;
+
+  private final Socket socket;
+
+  private final DataInputStream in;
+
+  private final OutputStream out;
+
+  private final TraceMetrics metrics;
+
+  private final Object readLock = new Object();
+
+  private final Object writeLock = new Object();
+
+  /**
+   * Perform the JDWP handshake with a debuggee that has connected to us.
+   *
+   * @param socket The debuggee's socket.
+   * @param metrics The metrics to count commands in.
+   * @throws IOException If the debuggee didn't complete the handshake.
+   */
+  JdwpConnection(Socket socket, TraceMetrics metrics) throws IOException {
+    this.socket = socket;
+    this.in = new DataInputStream(socket.getInputStream());
+    this.out = socket.getOutputStream();
+    this.metrics = metrics;
+
+    out.write(HANDSHAKE);
+    out.flush();
+    byte[] reply = new byte[HANDSHAKE.length];
+    in.readFully(reply);
+    if (!Arrays.equals(reply, HANDSHAKE)) {
+      throw new IOException("The debuggee replied to the JDWP handshake with garbage.");
+    }
+  }
+
+  @Override
+  public byte[] readPacket() throws IOException {
+    if (!isOpen()) {
+      throw new ClosedConnectionException();
+    }
+    synchronized (readLock) {
+      try {
+        int length = in.readInt();
+        if (length < HEADER_LENGTH) {
+          throw new IOException("Received a JDWP packet with invalid length " + length + ".");
+        }
+        byte[] packet = new byte[length];
+        packet[0] = (byte) (length >>> 24);
+        packet[1] = (byte) (length >>> 16);
+        packet[2] = (byte) (length >>> 8);
+        packet[3] = (byte) length;
+        in.readFully(packet, 4, length - 4);
+        return packet;
+      } catch (EOFException e) {
+        // the debuggee went away. JDI expects an empty packet rather than an exception
+        return new byte[0];
+      } catch (IOException e) {
+        if (!isOpen()) {
+          throw new ClosedConnectionException();
+        }
+        throw e;
+      }
+    }
+  }
+
+  @Override
+  public void writePacket(byte[] packet) throws IOException {
+    if (!isOpen()) {
+      throw new ClosedConnectionException();
+    }
+    if (packet.length < HEADER_LENGTH) {
+      throw new IllegalArgumentException("A JDWP packet must be at least 11 bytes long.");
+    }
+    synchronized (writeLock) {
+      out.write(packet);
+      out.flush();
+    }
+    if ((packet[FLAGS_OFFSET] & REPLY_FLAG) == 0) {
+      metrics.countJdwpCommand(invokesMethod(packet[9], packet[10]));
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    socket.close();
+  }
+
+  @Override
+  public boolean isOpen() {
+    return !socket.isClosed();
+  }
+
+  /**
+   * Check whether a JDWP command runs code in the debuggee.
+   *
+   * @param commandSet The command's command set.
+   * @param command The command.
+   * @return True for the InvokeMethod and NewInstance commands.
+   */
+  private static boolean invokesMethod(byte commandSet, byte command) {
+    return switch (commandSet) {
+      case 3 -> command == 3 || command == 4; // ClassType
+      case 5 -> command == 1; // InterfaceType
+      case 9 -> command == 6; // ObjectReference
+      default -> false;
+    };
+  }
+}
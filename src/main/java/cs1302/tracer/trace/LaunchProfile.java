@@ -0,0 +1,79 @@
+package cs1302.tracer.trace;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * How a traced program's JVM is tuned. Most traced programs run for milliseconds, so the JVM's
+ * defaults, which are meant for long-running servers, mostly cost startup time; a program that runs
+ * for a while does better with them, or with even more room.
+ */
+public enum LaunchProfile {
+
+  /**
+   * Tuned for programs that run for a moment: only the quick C1 compiler, the serial collector, a
+   * small initial heap, and no shared performance counters file.
+   */
+  SHORT(
+      List.of(
+          "-XX:TieredStopAtLevel=1",
+          "-XX:CICompilerCount=1",
+          "-XX:+UseSerialGC",
+          "-XX:InitialRAMPercentage=0.5",
+          "-XX:-UsePerfData")),
+
+  /** The JVM's own defaults. */
+  DEFAULT(List.of()),
+
+  /**
+   * Tuned for programs that allocate a lot or run for a while: the parallel collector, and a bigger
+   * heap.
+   */
+  HEAVY(List.of("-XX:+UseParallelGC", "-XX:InitialRAMPercentage=6.25", "-XX:MaxRAMPercentage=50")),
+
+  /**
+   * {@link #SHORT} for programs that haven't been traced before, and {@link #HEAVY} for programs
+   * whose last trace took at least {@link #HEAVY_RUN_TIME}, or {@link #DEFAULT} on a single
+   * processor, where the parallel collector only adds overhead. See {@link #select(Optional)}.
+   */
+  AUTO(SHORT.vmOptions);
+
+  /** How long a traced run must take for {@link #AUTO} to launch the program's next runs heavy. */
+  public static final Duration HEAVY_RUN_TIME = Duration.ofSeconds(2);
+
+  private final List<String> vmOptions;
+
+  LaunchProfile(List<String> vmOptions) {
+    this.vmOptions = vmOptions;
+  }
+
+  /**
+   * Get the options that a program's JVM is started with for this profile. A maximum heap size in
+   * the program's budget takes precedence over these. {@link #AUTO} is launched like {@link #SHORT}
+   * unless it is {@linkplain #select(Optional) resolved} first.
+   *
+   * @return The JVM options.
+   */
+  List<String> vmOptions() {
+    return vmOptions;
+  }
+
+  /**
+   * Resolve {@link #AUTO} into the profile to launch a program with, given how long its last traced
+   * run took. Other profiles are returned as they are.
+   *
+   * @param lastRunTime How long the program's last traced run took, or empty if it hasn't been
+   *     traced before.
+   * @return The profile to launch the program with.
+   */
+  public LaunchProfile select(Optional<Duration> lastRunTime) {
+    if (this != AUTO) {
+      return this;
+    }
+    if (lastRunTime.filter(t -> t.compareTo(HEAVY_RUN_TIME) >= 0).isEmpty()) {
+      return SHORT;
+    }
+    return Runtime.getRuntime().availableProcessors() > 1 ? HEAVY : DEFAULT;
+  }
+}
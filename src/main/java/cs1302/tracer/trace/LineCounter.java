@@ -0,0 +1,127 @@
+package cs1302.tracer.trace;
+
+import com.sun.jdi.Location;
+import com.sun.jdi.ReferenceType;
+import com.sun.jdi.event.BreakpointEvent;
+import com.sun.jdi.request.BreakpointRequest;
+import com.sun.jdi.request.EventRequest;
+import com.sun.jdi.request.EventRequestManager;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Counts how many times each line of a program's main source file runs, according to a {@link
+ * LineCounting}. A line is counted at every location where it starts to run: where control enters
+ * it from another line, and where a branch lands in it, such as the condition that a loop on one
+ * line jumps back to. Such a line can start to run at several of its locations in one pass, so its
+ * count is that of its busiest location.
+ *
+ * <p>Each location gets two requests. One reports every hit without suspending anything, so a hit
+ * only costs the program an event sent to the tracer. The other has a count filter, so it is only
+ * reported every threshold'th hit, and that hit's thread waits until the request is re-enabled,
+ * which resets the filter. Its first report deletes the first request, so from then on the program
+ * sends nothing for the hits in between, and each report counts for threshold hits.
+ */
+final class LineCounter {
+
+  /** The count of one location. */
+  private static final class Count {
+    private final int line;
+    private final BreakpointRequest everyHit;
+    private long hits = 0;
+    private boolean sampled = false;
+
+    private Count(int line, BreakpointRequest everyHit) {
+      this.line = line;
+      this.everyHit = everyHit;
+    }
+  }
+
+  private final int threshold;
+
+  /** The counts of every location that has been armed, in the order they were armed. */
+  private final List<Count> counts = new ArrayList<>();
+
+  /**
+   * Create a counter.
+   *
+   * @param counting How lines should be counted. It must be enabled.
+   */
+  LineCounter(LineCounting counting) {
+    this.threshold = counting.threshold();
+  }
+
+  /**
+   * Count the lines of a newly prepared class from now on.
+   *
+   * @param preparedType The class that was prepared. It must be compiled from the main source file.
+   */
+  void arm(ReferenceType preparedType) {
+    EventRequestManager eventRequestManager = preparedType.virtualMachine().eventRequestManager();
+    DebugTraceHelper.lineEntryLocations(preparedType)
+        .forEach(
+            (line, locations) -> {
+              for (Location location : locations) {
+                BreakpointRequest everyHit = eventRequestManager.createBreakpointRequest(location);
+                everyHit.setSuspendPolicy(EventRequest.SUSPEND_NONE);
+                Count count = new Count(line, everyHit);
+                everyHit.putProperty(LineCounter.class, count);
+
+                BreakpointRequest sample = eventRequestManager.createBreakpointRequest(location);
+                sample.addCountFilter(threshold);
+                sample.setSuspendPolicy(EventRequest.SUSPEND_EVENT_THREAD);
+                sample.putProperty(LineCounter.class, count);
+
+                counts.add(count);
+                everyHit.enable();
+                sample.enable();
+              } // for
+            });
+  } // arm
+
+  /**
+   * Count a hit reported by one of this counter's requests.
+   *
+   * @param event The event of the hit.
+   */
+  void hit(BreakpointEvent event) {
+    BreakpointRequest request = (BreakpointRequest) event.request();
+    Count count = (Count) request.getProperty(LineCounter.class);
+    if (request == count.everyHit) {
+      count.hits++;
+      return;
+    }
+
+    if (count.sampled) {
+      count.hits += threshold;
+    } else {
+      // this is the threshold'th hit. the other request reported it and every hit before it, and
+      // the thread that reached it sent those events before this one, so none of them are lost
+      // when the request is deleted
+      count.sampled = true;
+      request.virtualMachine().eventRequestManager().deleteEventRequest(count.everyHit);
+    }
+    // a request with a count filter expires after it fires, and re-enabling it resets the count
+    request.disable();
+    request.enable();
+  }
+
+  /**
+   * Get the count of every line that has been armed, which is the count of its busiest location.
+   * Lines of classes that were never loaded aren't included.
+   *
+   * @return A mapping from line numbers to their counts, in line order.
+   */
+  Map<Integer, TraceResult.LineCount> lineCounts() {
+    Map<Integer, TraceResult.LineCount> lineCounts = new TreeMap<>();
+    for (Count count : counts) {
+      lineCounts.merge(
+          count.line,
+          new TraceResult.LineCount(count.hits, count.sampled),
+          (a, b) -> a.hits() >= b.hits() ? a : b);
+    } // for
+    return lineCounts;
+  }
+}
@@ -0,0 +1,30 @@
+package cs1302.tracer.trace;
+
+/**
+ * Whether a trace counts how many times each line of the program's main source file runs, for a
+ * heatmap of the program.
+ *
+ * <p>Counting doesn't take any snapshots. Each place where a line starts to run gets a breakpoint
+ * that doesn't suspend the program, so a hit only costs the program an event sent to the tracer.
+ * Once a line has been counted {@code threshold} times, it is only reported every {@code
+ * threshold}th hit, and each report counts for that many hits. The counts of such lines are
+ * estimates: they may be short by up to {@code threshold - 1} hits for each thread that ran them.
+ *
+ * @param enabled True if lines should be counted.
+ * @param threshold How many times a line is counted exactly before it is sampled.
+ */
+public record LineCounting(boolean enabled, int threshold) {
+
+  /** The default number of times a line is counted exactly. */
+  public static final int DEFAULT_THRESHOLD = 1000;
+
+  /** Don't count lines. */
+  public static final LineCounting OFF = new LineCounting(false, DEFAULT_THRESHOLD);
+
+  public LineCounting {
+    if (threshold < 1) {
+      throw new IllegalArgumentException(
+          String.format("The line count threshold must be positive, but got %d.", threshold));
+    }
+  }
+}
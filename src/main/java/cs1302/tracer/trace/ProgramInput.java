@@ -0,0 +1,20 @@
+package cs1302.tracer.trace;
+
+import java.util.List;
+
+/**
+ * What a traced program is given when it starts.
+ *
+ * @param args The arguments to the program's main method.
+ * @param stdin Everything that the program can read from stdin. Its stdin is closed after this, so
+ *     a program that reads past it sees the end of the stream instead of waiting forever.
+ */
+public record ProgramInput(List<String> args, String stdin) {
+
+  /** No arguments and an empty stdin. */
+  public static final ProgramInput NONE = new ProgramInput(List.of(), "");
+
+  public ProgramInput {
+    args = List.copyOf(args);
+  }
+}
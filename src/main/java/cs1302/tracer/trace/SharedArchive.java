@@ -0,0 +1,333 @@
+package cs1302.tracer.trace;
+
+import cs1302.tracer.CompilationHelper;
+import cs1302.tracer.CompilationHelper.CompilationResult;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * A class data sharing (AppCDS) archive of the JDK classes that traced programs load, which lets
+ * their JVMs map those classes in instead of loading and verifying them one by one. The {@code
+ * warmup} command creates it by running a training program that does what short programs tend to
+ * do, and every JVM that is launched afterwards uses it.
+ *
+ * <p>An archive only works for the JVM that created it and for class paths that start with the
+ * class path it was created with, so the training program is kept in a jar that is put first on
+ * every traced program's class path. A JVM that can't use the archive, such as after the JDK was
+ * updated, quietly starts without it.
+ */
+public final class SharedArchive {
+
+  /** The binary name of the training program's main class, which no traced program should use. */
+  static final String TRAINING_CLASS = "CodeTracerWarmup";
+
+  /** The system property that overrides the directory that archives are kept in. */
+  public static final String DIRECTORY_PROPERTY = "code.tracer.cds.dir";
+
+  /** The name of the archive file in its directory. */
+  private static final String ARCHIVE_FILE = "debuggee.jsa";
+
+  /** The name of the jar that holds the training program in the archive's directory. */
+  private static final String JAR_FILE = "debuggee.jar";
+
+  /** How long the training program may take, in seconds. */
+  private static final long TRAINING_TIMEOUT_SECONDS = 60;
+
+  /** A program that uses the parts of the JDK that short programs usually do. */
+  public static final String TRAINING_SOURCE =
+      """
+      import java.util.*;
+      import java.util.function.*;
+      import java.util.stream.*;
+
+      public class CodeTracerWarmup {
+        record Point(int x, int y) {}
+
+        interface Shape {
+          double area();
+        }
+
+        enum Color { RED, GREEN }
+
+        public static void main(String[] args) throws Exception {
+          Scanner in = new Scanner(System.in);
+          List<Integer> numbers = new ArrayList<>();
+          while (in.hasNextInt()) {
+            numbers.add(in.nextInt());
+          }
+          String line = in.hasNextLine() ? in.nextLine().strip() : "";
+          Map<String, Integer> counts = new HashMap<>();
+          for (String word : "a b a c".split(" ")) {
+            counts.merge(word, 1, Integer::sum);
+          }
+          Deque<Integer> stack = new ArrayDeque<>(numbers);
+          LinkedList<String> names = new LinkedList<>(List.of("x", "y"));
+          TreeMap<String, Integer> sorted = new TreeMap<>(counts);
+          Set<Integer> seen = new HashSet<>(numbers);
+          Function<Integer, Integer> twice = x -> x * 2;
+          Supplier<String> hello = () -> "hello " + line;
+          Shape square = () -> 4.0;
+          int total = numbers.stream().map(twice).mapToInt(Integer::intValue).sum();
+          String joined = numbers.stream().map(String::valueOf).collect(Collectors.joining(","));
+          int[][] grid = new int[3][3];
+          grid[1][1] = total;
+          int[] row = {3, 1, 2};
+          Arrays.sort(row);
+          Collections.sort(names);
+          StringBuilder builder = new StringBuilder();
+          for (char c : hello.get().toCharArray()) {
+            builder.append(Character.toUpperCase(c));
+          }
+          Point point = new Point(1, 2);
+          Optional<Point> maybe = Optional.of(point).filter(p -> p.x() > 0);
+          Object shape = square;
+          String kind = switch (Color.valueOf("RED")) {
+            case RED -> "red";
+            case GREEN -> "green";
+          };
+          if (shape instanceof Shape s && s.area() > 1) {
+            kind += Math.sqrt(s.area());
+          }
+          try {
+            Integer.parseInt(line);
+          } catch (NumberFormatException e) {
+            kind += e.getMessage().length();
+          }
+          Thread thread = new Thread(() -> stack.push(new Random(1).nextInt(10)));
+          thread.start();
+          thread.join();
+          System.out.println(total + " " + joined + " " + sorted + " " + seen + " " + builder);
+          System.out.printf("%s %.2f %s %s%n", point, Math.PI, maybe.isPresent(), kind);
+          System.out.println(String.format("%d", stack.size()) + Arrays.toString(row)
+              + Arrays.deepToString(grid) + Objects.hash(point, names) + String.join("-", names));
+          System.err.println("done");
+        }
+      }
+      """;
+
+  /** The stdin of the training program. */
+  public static final String TRAINING_STDIN = "3 1 4 1 5\nnot a number\n";
+
+  /** The archive that JVMs are launched with, or null if it hasn't been looked for yet. */
+  private static volatile Optional<SharedArchive> installed = null;
+
+  private final Path archive;
+
+  private final Path jar;
+
+  private SharedArchive(Path archive, Path jar) {
+    this.archive = archive;
+    this.jar = jar;
+  }
+
+  /**
+   * Get the directory that archives for this JVM are kept in by default: a directory named after
+   * the JDK in {@code ~/.cache/code-tracer/cds}, or in the directory given by the {@value
+   * #DIRECTORY_PROPERTY} system property.
+   *
+   * @return The directory, which may not exist yet.
+   */
+  public static Path defaultDirectory() {
+    String javaHome = System.getProperty("java.home");
+    Path root =
+        Optional.ofNullable(System.getProperty(DIRECTORY_PROPERTY))
+            .map(Path::of)
+            .orElseGet(
+                () -> Path.of(System.getProperty("user.home"), ".cache", "code-tracer", "cds"));
+    return root.resolve(
+        String.format("jdk-%s-%08x", Runtime.version(), javaHome.hashCode()).replace('+', '_'));
+  }
+
+  /**
+   * Find an archive that was created in a directory.
+   *
+   * @param directory The directory.
+   * @return The archive, or empty if there isn't one.
+   */
+  public static Optional<SharedArchive> load(Path directory) {
+    Path archive = directory.resolve(ARCHIVE_FILE);
+    Path jar = directory.resolve(JAR_FILE);
+    if (Files.isRegularFile(archive) && Files.isRegularFile(jar)) {
+      return Optional.of(new SharedArchive(archive, jar));
+    }
+    return Optional.empty();
+  }
+
+  /**
+   * Get the archive that every JVM the tracer launches uses: the one in the {@linkplain
+   * #defaultDirectory() default directory}, looked for once.
+   *
+   * @return The archive, or empty if there isn't one.
+   */
+  static Optional<SharedArchive> installed() {
+    Optional<SharedArchive> archive = installed;
+    if (archive == null) {
+      archive = load(defaultDirectory());
+      installed = archive;
+    }
+    return archive;
+  }
+
+  /**
+   * Forget the archive that JVMs are launched with, so the next JVM looks for it again. This picks
+   * up an archive that was created, or a {@value #DIRECTORY_PROPERTY} that was changed, after the
+   * first JVM was launched.
+   */
+  public static void reset() {
+    installed = null;
+  }
+
+  /**
+   * Create an archive by running the training program in a JVM that archives the classes it loaded
+   * when it exits. An archive that was already in the directory is replaced.
+   *
+   * @param directory The directory to create the archive in.
+   * @return The archive.
+   * @throws IOException If the training program couldn't be compiled or run, or the archive
+   *     couldn't be written.
+   */
+  public static SharedArchive create(Path directory) throws IOException, InterruptedException {
+    Files.createDirectories(directory);
+    Path jar = directory.resolve(JAR_FILE);
+    Path archive = directory.resolve(ARCHIVE_FILE);
+    Files.deleteIfExists(archive);
+
+    // the jar is written first, since an archive is only valid for the jar it was created with
+    Path newJar = Files.createTempFile(directory, JAR_FILE, ".tmp");
+    try (CompilationResult compiled = CompilationHelper.compile(TRAINING_SOURCE)) {
+      writeJar(compiled.classPath().getFirst(), newJar);
+      Files.move(newJar, jar, StandardCopyOption.REPLACE_EXISTING);
+    } finally {
+      Files.deleteIfExists(newJar);
+    }
+
+    List<String> command = new ArrayList<>(javaCommand(List.of(jar)));
+    command.add(1, "-XX:ArchiveClassesAtExit=" + archive);
+    int status = runTraining(command);
+    if (status != 0 || !Files.isRegularFile(archive)) {
+      throw new IOException(
+          "The training program exited with status " + status + " without creating an archive.");
+    }
+    return new SharedArchive(archive, jar);
+  }
+
+  /**
+   * Get the archive file.
+   *
+   * @return The archive's path.
+   */
+  public Path archive() {
+    return archive;
+  }
+
+  /**
+   * Get the command that runs the training program, with this archive or without one.
+   *
+   * @param useArchive True to run it with this archive.
+   * @return The command.
+   */
+  public List<String> trainingCommand(boolean useArchive) {
+    List<String> command = new ArrayList<>(javaCommand(classPath(List.of())));
+    if (useArchive) {
+      command.addAll(1, vmOptions());
+    }
+    return command;
+  }
+
+  /**
+   * Run the training program and wait for it to exit, feeding it its stdin and throwing away its
+   * output.
+   *
+   * @param command The command that runs the training program.
+   * @return The training program's exit status.
+   * @throws IOException If it couldn't be started, or didn't finish in time.
+   */
+  public static int runTraining(List<String> command) throws IOException, InterruptedException {
+    Process process =
+        new ProcessBuilder(command)
+            .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+            .redirectError(ProcessBuilder.Redirect.DISCARD)
+            .start();
+    try (OutputStream processIn = process.getOutputStream()) {
+      processIn.write(TRAINING_STDIN.getBytes(Charset.defaultCharset()));
+    }
+    if (!process.waitFor(TRAINING_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+      process.destroyForcibly();
+      throw new IOException("The training program didn't finish in time.");
+    }
+    return process.exitValue();
+  }
+
+  /**
+   * Get the class path that a JVM using this archive must have: the training program's jar, then
+   * the program's own class path.
+   *
+   * @param classPath The program's class path.
+   * @return The class path for the JVM.
+   */
+  List<Path> classPath(List<Path> classPath) {
+    List<Path> withJar = new ArrayList<>(List.of(jar));
+    withJar.addAll(classPath);
+    return withJar;
+  }
+
+  /**
+   * Get the options that a JVM must be started with to use this archive. A JVM that can't use it
+   * starts without it, and doesn't print any warnings that would end up in a program's output.
+   *
+   * @return The JVM options.
+   */
+  List<String> vmOptions() {
+    return List.of(
+        "-XX:SharedArchiveFile=" + archive,
+        "-Xshare:auto",
+        "-Xlog:cds=off",
+        "-Xlog:cds+dynamic=off",
+        "-Xlog:class+path=off");
+  }
+
+  /**
+   * Get the command that runs the training program without any options.
+   *
+   * @param classPath The class path that contains the training program.
+   * @return The command.
+   */
+  private static List<String> javaCommand(List<Path> classPath) {
+    return List.of(
+        Path.of(System.getProperty("java.home"), "bin", "java").toString(),
+        "-classpath",
+        classPath.stream().map(Path::toString).collect(Collectors.joining(File.pathSeparator)),
+        TRAINING_CLASS);
+  }
+
+  /**
+   * Put every class file in a directory into a jar.
+   *
+   * @param classes The directory.
+   * @param jar The jar to write.
+   */
+  private static void writeJar(Path classes, Path jar) throws IOException {
+    try (JarOutputStream out = new JarOutputStream(Files.newOutputStream(jar));
+        Stream<Path> files = Files.walk(classes)) {
+      for (Path file : files.filter(f -> f.toString().endsWith(".class")).toList()) {
+        out.putNextEntry(
+            new JarEntry(classes.relativize(file).toString().replace(File.separatorChar, '/')));
+        Files.copy(file, out);
+        out.closeEntry();
+      }
+    }
+  }
+}
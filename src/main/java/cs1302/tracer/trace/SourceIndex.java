@@ -0,0 +1,343 @@
+package cs1302.tracer.trace;
+
+import com.github.javaparser.JavaParser;
+import com.github.javaparser.ParserConfiguration;
+import com.github.javaparser.ParserConfiguration.LanguageLevel;
+import com.github.javaparser.ast.CompilationUnit;
+import com.github.javaparser.ast.Modifier;
+import com.github.javaparser.ast.body.ClassOrInterfaceDeclaration;
+import com.github.javaparser.ast.body.MethodDeclaration;
+import com.github.javaparser.ast.body.VariableDeclarator;
+import com.github.javaparser.ast.expr.Expression;
+import com.github.javaparser.ast.expr.LambdaExpr;
+import com.github.javaparser.ast.expr.VariableDeclarationExpr;
+import com.github.javaparser.ast.stmt.BlockStmt;
+import com.github.javaparser.ast.stmt.ExpressionStmt;
+import com.github.javaparser.resolution.MethodUsage;
+import com.github.javaparser.resolution.logic.FunctionalInterfaceLogic;
+import com.github.javaparser.resolution.types.ResolvedLambdaConstraintType;
+import com.github.javaparser.resolution.types.ResolvedType;
+import com.sun.jdi.AbsentInformationException;
+import com.sun.jdi.Method;
+import com.sun.jdi.ReferenceType;
+import java.io.File;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Information about a program's source code that is needed when taking snapshots, such as which
+ * variables are final and how lambdas are implemented.
+ *
+ * <p>Building this information requires symbol resolution, which is expensive. It is done lazily,
+ * one method at a time, the first time a snapshot includes a frame of the method, and each source
+ * file is only parsed the first time one of its methods or fields is needed. The work a snapshot
+ * does therefore grows with the code that actually ran rather than with the size of the program.
+ *
+ * <p>The indexes of several traces of the same program can share its parsed source files. Symbol
+ * resolution isn't thread-safe, so a parsed file is locked while it is resolved.
+ */
+final class SourceIndex {
+
+  /** What is known about a method that has been resolved. */
+  private record MethodInfo(Set<String> finalVariables, Map<String, String> lambdaImplementations) {
+
+    /** A method that isn't in the source, such as one in the JDK. */
+    static final MethodInfo NONE = new MethodInfo(Set.of(), Map.of());
+  }
+
+  /**
+   * A simple JavaParser object so we don't have to make a new one every time we do parsing. Parsers
+   * aren't thread-safe, so each index has its own.
+   */
+  private final JavaParser simpleJavaParser =
+      new JavaParser(new ParserConfiguration().setLanguageLevel(LanguageLevel.CURRENT));
+
+  /** Parses a source file, given its path relative to its source root. */
+  private final Function<String, Optional<CompilationUnit>> sourceParser;
+
+  /** Memoized parsed source files, keyed by their paths relative to their source roots. */
+  private final Map<String, Optional<CompilationUnit>> parsedSources = new HashMap<>();
+
+  /** Memoized resolved methods, keyed by their signatures. */
+  private final Map<String, MethodInfo> methods = new HashMap<>();
+
+  /** Memoized static field lambda implementations, keyed by {@code class#field}. */
+  private final Map<String, Optional<String>> staticLambdaImplementations = new HashMap<>();
+
+  /**
+   * Create an index for a program with a single source file. No work is done until the index is
+   * first queried.
+   *
+   * @param parsedSource Parsed source code for the compiled program.
+   */
+  SourceIndex(CompilationUnit parsedSource) {
+    this(sourcePath -> Optional.of(parsedSource));
+  }
+
+  /**
+   * Create an index for a program with any number of source files. No work is done until the index
+   * is first queried.
+   *
+   * @param sourceParser Parses one of the program's source files with symbol resolution, given its
+   *     path relative to its source root, like {@code cs1302/Main.java}. Empty if the file isn't
+   *     one of the program's.
+   */
+  SourceIndex(Function<String, Optional<CompilationUnit>> sourceParser) {
+    this.sourceParser = sourceParser;
+  }
+
+  /**
+   * Get the names of the final variables declared in a method.
+   *
+   * @param method The method.
+   * @return The names of the method's final variables.
+   */
+  Set<String> finalVariables(Method method) {
+    return resolveMethod(method).finalVariables();
+  }
+
+  /**
+   * Get the lambda implementations of the variables declared in a method.
+   *
+   * @param method The method.
+   * @return A mapping from variable names to lambda implementations.
+   */
+  Map<String, String> lambdaImplementations(Method method) {
+    return resolveMethod(method).lambdaImplementations();
+  }
+
+  /**
+   * Get the lambda implementation of a static field, if it is initialized with one.
+   *
+   * @param type The class that declares the field.
+   * @param fieldName The name of the field.
+   * @return The lambda implementation, or empty if there isn't one.
+   */
+  Optional<String> staticLambdaImplementation(ReferenceType type, String fieldName) {
+    String className = type.name().replace('$', '.');
+    return staticLambdaImplementations.computeIfAbsent(
+        className + "#" + fieldName,
+        k ->
+            sourcePath(type)
+                .flatMap(sourcePath -> parsedSources.computeIfAbsent(sourcePath, sourceParser))
+                .flatMap(
+                    source -> {
+                      synchronized (source) {
+                        return source
+                            .findFirst(
+                                ClassOrInterfaceDeclaration.class,
+                                c ->
+                                    className.equals(
+                                        c.getFullyQualifiedName().orElseGet(c::getNameAsString)))
+                            .flatMap(
+                                d ->
+                                    d.findFirst(
+                                        VariableDeclarator.class,
+                                        vd -> vd.getNameAsString().equals(fieldName)))
+                            .filter(
+                                vd ->
+                                    vd.getInitializer().map(Expression::isLambdaExpr).orElse(false))
+                            .map(vd -> vd.getInitializer().get().asLambdaExpr())
+                            .flatMap(this::tryImplementLambdaSam);
+                      }
+                    }));
+  }
+
+  /**
+   * Resolve a method now rather than when the index is first queried, so that it can be done while
+   * the program starts. If resolution fails, the failure is left for the first query to report.
+   *
+   * @param sourcePath The path of the method's source file relative to its source root.
+   * @param methodSignature The method's signature, formatted like {@code
+   *     pkg.Class.method(java.lang.String[])}.
+   */
+  void resolve(String sourcePath, String methodSignature) {
+    try {
+      resolveMethod(sourcePath, methodSignature);
+    } catch (RuntimeException e) {
+      return;
+    }
+  }
+
+  /**
+   * Resolve a method's declaration in the source, if that hasn't been done already.
+   *
+   * @param method The method.
+   * @return What is known about the method.
+   */
+  private MethodInfo resolveMethod(Method method) {
+    String signature =
+        String.format(
+            "%s.%s(%s)",
+            method.declaringType().name(),
+            method.name(),
+            String.join(",", method.argumentTypeNames()));
+    return sourcePath(method.declaringType())
+        .map(sourcePath -> resolveMethod(sourcePath, signature))
+        .orElse(MethodInfo.NONE);
+  }
+
+  /**
+   * Resolve a method's declaration in the source, if that hasn't been done already. Only the
+   * declarations in the method's source file with the method's name are resolved.
+   *
+   * @param sourcePath The path of the method's source file relative to its source root.
+   * @param methodSignature The method's signature, formatted like {@code
+   *     pkg.Class.method(java.lang.String[])}.
+   * @return What is known about the method.
+   */
+  private MethodInfo resolveMethod(String sourcePath, String methodSignature) {
+    // nested classes are separated by $ in JDI and by . in JavaParser
+    String signature = methodSignature.replace('$', '.');
+    MethodInfo resolved = methods.get(signature);
+    if (resolved != null) {
+      return resolved;
+    }
+
+    String qualifiedName = signature.substring(0, signature.indexOf('('));
+    String methodName = qualifiedName.substring(qualifiedName.lastIndexOf('.') + 1);
+    Optional<CompilationUnit> parsedSource =
+        parsedSources.computeIfAbsent(sourcePath, sourceParser);
+    if (parsedSource.isEmpty()) {
+      resolved = MethodInfo.NONE;
+    } else {
+      synchronized (parsedSource.get()) {
+        resolved =
+            parsedSource
+                .get()
+                .findAll(MethodDeclaration.class, m -> m.getNameAsString().equals(methodName))
+                .stream()
+                .filter(
+                    m ->
+                        m.resolve()
+                            .getQualifiedSignature()
+                            .replaceAll("\\.\\.\\.", "[]")
+                            .replaceAll("\\s", "")
+                            .equals(signature))
+                .findFirst()
+                .map(m -> new MethodInfo(finalVariables(m), lambdaImplementations(m)))
+                .orElse(MethodInfo.NONE);
+      }
+    }
+    methods.put(signature, resolved);
+    return resolved;
+  }
+
+  /**
+   * Get the names of the final variables declared in a method declaration.
+   *
+   * @param method The method declaration.
+   * @return The names of the method's final variables.
+   */
+  private static Set<String> finalVariables(MethodDeclaration method) {
+    return method.findAll(VariableDeclarationExpr.class).stream()
+        .filter(v -> v.getModifiers().contains(Modifier.finalModifier()))
+        .map(VariableDeclarationExpr::getVariables)
+        .flatMap(Collection::stream)
+        .map(VariableDeclarator::getNameAsString)
+        .collect(Collectors.toSet());
+  }
+
+  /**
+   * Get the lambda implementations of the variables declared in a method declaration.
+   *
+   * @param method The method declaration.
+   * @return A mapping from variable names to lambda implementations.
+   */
+  private Map<String, String> lambdaImplementations(MethodDeclaration method) {
+    /** Mapping from a variable name to a lambda implementation. */
+    record VarLambda(String variableName, Optional<String> lambdaImplementation) {}
+
+    return method.findAll(VariableDeclarator.class).stream()
+        .filter(d -> d.getInitializer().map(Expression::isLambdaExpr).orElse(false))
+        .map(
+            d ->
+                new VarLambda(
+                    d.getNameAsString(),
+                    tryImplementLambdaSam(d.getInitializer().get().asLambdaExpr())))
+        .filter(d -> d.lambdaImplementation.isPresent())
+        .collect(Collectors.toMap(d -> d.variableName(), d -> d.lambdaImplementation.get()));
+  }
+
+  /**
+   * Get the path of the source file that a class was compiled from.
+   *
+   * @param type The class.
+   * @return The path relative to its source root, separated by slashes, or empty if the class has
+   *     no debug information.
+   */
+  private static Optional<String> sourcePath(ReferenceType type) {
+    try {
+      return Optional.of(type.sourcePaths(null).getFirst().replace(File.separatorChar, '/'));
+    } catch (AbsentInformationException e) {
+      return Optional.empty();
+    }
+  }
+
+  /**
+   * Convert a lambda expression in the AST into an implementation of the corresponding functional
+   * interface's single abstract method.
+   *
+   * @param lambda The lambda expression to attempt to convert.
+   * @return A string containing a valid method implementation of this lambda expression, or empty
+   *     if conversion was not possible.
+   */
+  private Optional<String> tryImplementLambdaSam(LambdaExpr lambda) {
+    Optional<MethodUsage> maybeSam =
+        FunctionalInterfaceLogic.getFunctionalMethod(lambda.calculateResolvedType());
+
+    if (maybeSam.isEmpty()) {
+      return Optional.empty();
+    }
+
+    MethodUsage sam = maybeSam.get();
+    StringBuilder sb = new StringBuilder();
+
+    String resolvedReturnType =
+        lambda.calculateResolvedType().asReferenceType().getTypeParametersMap().stream()
+            .filter(p -> sam.returnType().isTypeVariable())
+            .filter(p -> p.a.getName().equals(sam.returnType().asTypeVariable().describe()))
+            .map(p -> p.b.describe())
+            .findFirst()
+            .orElse(sam.returnType().describe());
+
+    sb.append(resolvedReturnType);
+    sb.append(" ");
+    sb.append(sam.getName());
+
+    // to use the parameter name used in the method declaration, use
+    // m.getDeclaration().getParam(i).getName()
+    sb.append(
+        IntStream.range(0, sam.getDeclaration().getNumberOfParams())
+            .mapToObj(
+                i ->
+                    String.format(
+                        "%s %s",
+                        switch (lambda.getParameter(i).resolve().getType()) {
+                          case ResolvedLambdaConstraintType c -> c.getBound().describe();
+                          case ResolvedType d -> d.describe();
+                        },
+                        lambda.getParameter(i).getName()))
+            .collect(Collectors.joining(", ", "(", ")")));
+
+    if (lambda.getBody() instanceof ExpressionStmt e) {
+      sb.append("{\n");
+      if (!resolvedReturnType.equals("void")) {
+        sb.append("return ");
+      }
+      sb.append(e);
+      sb.append("}");
+    } else if (lambda.getBody() instanceof BlockStmt b) {
+      sb.append(b);
+    }
+
+    // pretty-print constructed method
+    return simpleJavaParser.parseMethodDeclaration(sb.toString()).getResult().map(Object::toString);
+  }
+}
@@ -0,0 +1,205 @@
+package cs1302.tracer.trace;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * The main class of a JVM that runs many traced programs, one after another. This runs in the
+ * debuggee rather than in the tracer, so it only uses the JDK.
+ *
+ * <p>The host pauses in {@link #ready()}, where the tracer has a breakpoint, before each program.
+ * The tracer fills in the next program's fields and resumes the host, which runs the program on its
+ * own thread and class loader and then pauses in {@link #ready()} again. Each program's classes
+ * have their own static fields, and its output is kept in memory for the tracer to read.
+ */
+public final class TenantHost {
+
+  /** The separator of the program's arguments, which can't appear in a command-line argument. */
+  static final char ARGUMENT_SEPARATOR = '\0';
+
+  /** The next program's class path, separated like java's -classpath. Set by the tracer. */
+  static String classPath;
+
+  /** The binary name of the next program's main class. Set by the tracer. */
+  static String mainClass;
+
+  /** The next program's arguments, separated by {@link #ARGUMENT_SEPARATOR}. Set by the tracer. */
+  static String args;
+
+  /** Everything that the next program can read from stdin. Set by the tracer. */
+  static String stdin;
+
+  /** The number of output bytes to keep for the next program. Set by the tracer. */
+  static long outputLimit;
+
+  /** The current program's class loader. */
+  static ClassLoader loader;
+
+  /** What the current program printed to stdout, up to the output limit. */
+  static Sink stdout;
+
+  /** What the current program printed to stderr, up to the output limit. */
+  static Sink stderr;
+
+  /** The number of bytes that the current program printed, including those past the limit. */
+  static long written;
+
+  /** True if the last program left threads running, so the host shouldn't run another one. */
+  static boolean tainted;
+
+  private TenantHost() {}
+
+  /** Output that is kept in memory, up to the output limit that it shares with the other sink. */
+  static final class Sink extends OutputStream {
+
+    byte[] bytes = new byte[256];
+
+    int length = 0;
+
+    @Override
+    public void write(int b) {
+      write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+      synchronized (TenantHost.class) {
+        int kept = (int) Math.min(len, Math.max(0, outputLimit - written));
+        written += len;
+        if (length + kept > bytes.length) {
+          bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + kept));
+        }
+        System.arraycopy(b, off, bytes, length, kept);
+        length += kept;
+      }
+    }
+  }
+
+  /**
+   * Run programs until the host is killed.
+   *
+   * @param unused The host doesn't take arguments.
+   */
+  public static void main(String[] unused) throws InterruptedException {
+    while (true) {
+      ready();
+      if (mainClass != null) {
+        runTenant();
+      }
+    }
+  }
+
+  /** Where the host waits for the tracer, before each program and after the last one. */
+  static void ready() {}
+
+  /**
+   * Run the program that the tracer filled in, and wait for its threads to finish like the JVM
+   * would.
+   */
+  private static void runTenant() throws InterruptedException {
+    Charset charset = Charset.defaultCharset();
+    synchronized (TenantHost.class) {
+      stdout = new Sink();
+      stderr = new Sink();
+      written = 0;
+    }
+    System.setOut(new PrintStream(stdout, true, charset));
+    System.setErr(new PrintStream(stderr, true, charset));
+    System.setIn(new ByteArrayInputStream(stdin.getBytes(charset)));
+
+    String[] tenantArgs =
+        args.isEmpty() ? new String[0] : args.split(String.valueOf(ARGUMENT_SEPARATOR), -1);
+    ThreadGroup group = new ThreadGroup("tenant");
+    try (URLClassLoader tenantLoader =
+        new URLClassLoader("tenant", urls(classPath), ClassLoader.getPlatformClassLoader())) {
+      loader = tenantLoader;
+      Thread main = new Thread(group, () -> runMain(tenantLoader, tenantArgs), "main");
+      main.start();
+      main.join();
+      // the program isn't done until its other non-daemon threads are
+      for (Thread thread = nonDaemon(group); thread != null; thread = nonDaemon(group)) {
+        thread.join();
+      }
+    } catch (IOException e) {
+      // the class loader couldn't close its jars, which doesn't affect the next program
+    } finally {
+      loader = null;
+      mainClass = null;
+      tainted = group.activeCount() > 0;
+    }
+  }
+
+  /**
+   * Load a program's main class and run its main method. An exception that escapes main is reported
+   * like the JVM would, without the host's frames.
+   *
+   * @param tenantLoader The program's class loader.
+   * @param tenantArgs The program's arguments.
+   */
+  private static void runMain(ClassLoader tenantLoader, String[] tenantArgs) {
+    try {
+      Method main = Class.forName(mainClass, true, tenantLoader).getMethod("main", String[].class);
+      main.invoke(null, (Object) tenantArgs);
+    } catch (InvocationTargetException e) {
+      Throwable cause = e.getCause();
+      StackTraceElement[] trace = cause.getStackTrace();
+      int end = trace.length;
+      while (end > 0
+          && !(trace[end - 1].getClassName().equals(mainClass)
+              && trace[end - 1].getMethodName().equals("main"))) {
+        end--;
+      }
+      if (end > 0) {
+        cause.setStackTrace(Arrays.copyOf(trace, end));
+      }
+      System.err.print("Exception in thread \"main\" ");
+      cause.printStackTrace();
+    } catch (ReflectiveOperationException | LinkageError e) {
+      System.err.println("Error: Could not run main class " + mainClass);
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * Find a live non-daemon thread in a thread group.
+   *
+   * @param group The thread group.
+   * @return The thread, or null if there isn't one.
+   */
+  private static Thread nonDaemon(ThreadGroup group) {
+    Thread[] threads = new Thread[group.activeCount() + 1];
+    int count = group.enumerate(threads);
+    for (int i = 0; i < count; i++) {
+      if (!threads[i].isDaemon() && threads[i].isAlive()) {
+        return threads[i];
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Convert a class path into URLs for a class loader.
+   *
+   * @param classPath The class path, separated like java's -classpath.
+   * @return The URLs of its directories and jars.
+   */
+  private static URL[] urls(String classPath) throws MalformedURLException {
+    String[] entries = classPath.split(File.pathSeparator);
+    URL[] urls = new URL[entries.length];
+    for (int i = 0; i < entries.length; i++) {
+      urls[i] = Path.of(entries[i]).toUri().toURL();
+    }
+    return urls;
+  }
+}
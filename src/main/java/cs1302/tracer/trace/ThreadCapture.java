@@ -0,0 +1,77 @@
+package cs1302.tracer.trace;
+
+import com.sun.jdi.ThreadReference;
+import com.sun.jdi.request.EventRequest;
+import java.util.Optional;
+import java.util.regex.Pattern;
+
+/**
+ * Which of a program's threads a snapshot includes, and which threads a breakpoint stops.
+ *
+ * <p>A snapshot always includes the stack of the thread that reached the breakpoint. With {@code
+ * allThreads}, it also includes the stacks of the program's other threads, platform and virtual,
+ * that are running the program's code. Their frames of JDK code above and below the program's are
+ * left out, and so are threads that aren't running the program's code at all, like idle pool
+ * workers, the carriers of virtual threads and the JDK's own threads. Every thread's objects are
+ * converted into the same heap, so objects that several threads share are only converted once.
+ *
+ * @param allThreads True if snapshots should include the program's other threads.
+ * @param names Only include the other threads whose whole names match this pattern, or every one of
+ *     them if this is empty.
+ * @param suspendPolicy Which threads a breakpoint stops.
+ */
+public record ThreadCapture(
+    boolean allThreads, Optional<Pattern> names, SuspendPolicy suspendPolicy) {
+
+  /** Only capture the thread that reached the breakpoint, and stop every thread while doing so. */
+  public static final ThreadCapture BREAKPOINT_THREAD =
+      new ThreadCapture(false, Optional.empty(), SuspendPolicy.ALL);
+
+  /** Which threads a breakpoint stops while a snapshot is taken. */
+  public enum SuspendPolicy {
+    /** Every thread, so that the snapshot shows a single instant of the whole program. */
+    ALL(EventRequest.SUSPEND_ALL),
+
+    /**
+     * Only the thread that reached the breakpoint. The program's other threads keep running, so
+     * their timing is disturbed less, but the objects that they change may be caught midway.
+     */
+    THREAD(EventRequest.SUSPEND_EVENT_THREAD);
+
+    private final int jdiPolicy;
+
+    SuspendPolicy(int jdiPolicy) {
+      this.jdiPolicy = jdiPolicy;
+    }
+
+    /**
+     * Get the JDI suspend policy of an event request that follows this policy.
+     *
+     * @return One of {@link EventRequest}'s suspend policies.
+     */
+    int jdiPolicy() {
+      return jdiPolicy;
+    }
+  }
+
+  public ThreadCapture {
+    if (names.isPresent() && !allThreads) {
+      throw new IllegalArgumentException("A thread filter needs every thread to be captured.");
+    }
+    if (allThreads && suspendPolicy != SuspendPolicy.ALL) {
+      throw new IllegalArgumentException(
+          "Other threads can only be captured when breakpoints stop every thread.");
+    }
+  }
+
+  /**
+   * Check whether a thread other than the one that reached a breakpoint should be captured. Its
+   * name is only read if there is a filter, since that costs a JDWP command per thread.
+   *
+   * @param thread The thread.
+   * @return True if the thread's stack should be included in snapshots.
+   */
+  boolean includes(ThreadReference thread) {
+    return allThreads && names.map(p -> p.matcher(thread.name()).matches()).orElse(true);
+  }
+}
@@ -0,0 +1,75 @@
+package cs1302.tracer.trace;
+
+import java.time.Duration;
+import java.util.Optional;
+import java.util.OptionalLong;
+
+/**
+ * Limits on the resources that a traced program may use. A program that exceeds any of them is
+ * killed, and the snapshots that were taken before then are returned along with the reason it was
+ * killed (see {@link TraceResult.Termination}).
+ *
+ * @param wallClock The maximum amount of time the program may run for.
+ * @param maxBreakpointHits The maximum number of breakpoint events the program may produce.
+ * @param maxOutputBytes The maximum number of bytes the program may write to stdout and stderr
+ *     combined. Output past this limit is discarded.
+ * @param maxHeapSize The maximum heap size of the program's JVM, in the format of java's {@code
+ *     -Xmx} option (e.g. {@code 256m}). The JVM's default is used if this is empty.
+ * @param launchProfile How the program's JVM is tuned, apart from its maximum heap size.
+ */
+public record TraceBudget(
+    Optional<Duration> wallClock,
+    OptionalLong maxBreakpointHits,
+    OptionalLong maxOutputBytes,
+    Optional<String> maxHeapSize,
+    LaunchProfile launchProfile) {
+
+  /** A budget without any limits, whose JVM is launched with the JVM's defaults. */
+  public static final TraceBudget UNLIMITED =
+      new TraceBudget(
+          Optional.empty(),
+          OptionalLong.empty(),
+          OptionalLong.empty(),
+          Optional.empty(),
+          LaunchProfile.DEFAULT);
+
+  public TraceBudget {
+    if (wallClock.isPresent() && (wallClock.get().isNegative() || wallClock.get().isZero())) {
+      throw new IllegalArgumentException("The wall-clock budget must be positive.");
+    }
+    if (maxBreakpointHits.isPresent() && maxBreakpointHits.getAsLong() < 1) {
+      throw new IllegalArgumentException("The breakpoint hit budget must be positive.");
+    }
+    if (maxOutputBytes.isPresent() && maxOutputBytes.getAsLong() < 0) {
+      throw new IllegalArgumentException("The output budget must not be negative.");
+    }
+    if (maxHeapSize.isPresent() && !maxHeapSize.get().matches("[1-9][0-9]*[kKmMgG]?")) {
+      throw new IllegalArgumentException(
+          String.format(
+              "Heap size \"%s\" must be a number of bytes, optionally followed by k, m, or g.",
+              maxHeapSize.get()));
+    }
+  }
+
+  /**
+   * Get a copy of this budget whose wall-clock budget is at most the given time.
+   *
+   * @param limit The longest wall-clock budget to allow.
+   * @return The capped budget.
+   */
+  public TraceBudget withWallClockAtMost(Duration limit) {
+    Duration capped = wallClock.filter(w -> w.compareTo(limit) <= 0).orElse(limit);
+    return new TraceBudget(
+        Optional.of(capped), maxBreakpointHits, maxOutputBytes, maxHeapSize, launchProfile);
+  }
+
+  /**
+   * Get a copy of this budget whose JVM is launched with a different profile.
+   *
+   * @param profile The launch profile of the copy.
+   * @return The copy.
+   */
+  public TraceBudget withLaunchProfile(LaunchProfile profile) {
+    return new TraceBudget(wallClock, maxBreakpointHits, maxOutputBytes, maxHeapSize, profile);
+  }
+}
@@ -0,0 +1,305 @@
+package cs1302.tracer.trace;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Where a trace spent its time, and how much work it did. Each phase is also recorded as a JFR
+ * event, as is each snapshot, so traces can be profiled with {@code -XX:StartFlightRecording}.
+ * Metrics can be updated from several threads at once.
+ */
+public final class TraceMetrics {
+
+  /** A phase of a trace. */
+  public enum Phase {
+    /** Parsing the program's source code. */
+    PARSE,
+    /** Compiling the program with javac. */
+    COMPILE,
+    /** Starting the program's debuggee JVM and connecting to it. */
+    LAUNCH,
+    /** Waiting for the program to produce its next debugger event. */
+    EVENT_WAIT,
+    /** Taking snapshots of the program's state. */
+    SNAPSHOT,
+    /** Serializing the snapshots. */
+    SERIALIZE
+  }
+
+  /** A JFR event for one phase of a trace. */
+  @Name("cs1302.tracer.Phase")
+  @Label("Trace Phase")
+  @Category("Code Tracer")
+  @Description("A phase of tracing a program")
+  static final class PhaseEvent extends Event {
+    @Label("Phase")
+    String phase;
+  }
+
+  /** A JFR event for one snapshot. */
+  @Name("cs1302.tracer.Snapshot")
+  @Label("Snapshot")
+  @Category("Code Tracer")
+  @Description("A snapshot of a traced program's state")
+  static final class SnapshotEvent extends Event {
+    @Label("Line")
+    @Description("The breakpoint line, or -1 for the end of main")
+    int line;
+
+    @Label("Stack Frames")
+    int frames;
+
+    @Label("Objects Visited")
+    int objects;
+  }
+
+  /** Measures a phase until it is closed. */
+  public final class Timer implements AutoCloseable {
+
+    private final Phase phase;
+
+    private final PhaseEvent event = new PhaseEvent();
+
+    private final long startTime = System.nanoTime();
+
+    private Timer(Phase phase) {
+      this.phase = phase;
+      event.begin();
+    }
+
+    /** Stop measuring the phase and record it. */
+    @Override
+    public void close() {
+      phaseNanos.get(phase).add(System.nanoTime() - startTime);
+      event.end();
+      if (event.shouldCommit()) {
+        event.phase = phase.name();
+        event.commit();
+      }
+    }
+  }
+
+  /** Measures a snapshot until it is finished. */
+  public final class SnapshotTimer {
+
+    private final SnapshotEvent event = new SnapshotEvent();
+
+    private final long startTime = System.nanoTime();
+
+    private final int line;
+
+    private SnapshotTimer(int line) {
+      this.line = line;
+      event.begin();
+    }
+
+    /**
+     * Stop measuring the snapshot and record it.
+     *
+     * @param snapshot The snapshot that was taken.
+     */
+    public void finish(ExecutionSnapshot snapshot) {
+      phaseNanos.get(Phase.SNAPSHOT).add(System.nanoTime() - startTime);
+      snapshots.increment();
+      objectsVisited.add(snapshot.heap().size());
+      event.end();
+      if (event.shouldCommit()) {
+        event.line = line;
+        event.frames = snapshot.stack().size();
+        event.objects = snapshot.heap().size();
+        event.commit();
+      }
+    }
+  }
+
+  private final Map<Phase, LongAdder> phaseNanos = new EnumMap<>(Phase.class);
+
+  private final LongAdder breakpointHits = new LongAdder();
+
+  private final LongAdder snapshots = new LongAdder();
+
+  private final LongAdder objectsVisited = new LongAdder();
+
+  private final LongAdder jdwpCommands = new LongAdder();
+
+  private final LongAdder invokeMethodCommands = new LongAdder();
+
+  private final LongAdder outputBytes = new LongAdder();
+
+  /** Create metrics with every phase and counter at zero. */
+  public TraceMetrics() {
+    for (Phase phase : Phase.values()) {
+      phaseNanos.put(phase, new LongAdder());
+    }
+  }
+
+  /**
+   * Work whose time is measured, which can throw a checked exception.
+   *
+   * @param <T> The type of the work's result.
+   * @param <E> The type of exception the work can throw.
+   */
+  @FunctionalInterface
+  public interface Timed<T, E extends Exception> {
+
+    /**
+     * Do the work.
+     *
+     * @return The work's result.
+     * @throws E If the work fails.
+     */
+    T run() throws E;
+  }
+
+  /**
+   * Start measuring a phase. The time is added to the phase when the returned timer is closed, so a
+   * phase can be measured any number of times. Work that throws at most one kind of checked
+   * exception is easier to measure with {@link #time(Phase, Timed)}.
+   *
+   * @param phase The phase to measure.
+   * @return The timer, which must be closed once the phase is over.
+   */
+  public Timer time(Phase phase) {
+    return new Timer(phase);
+  }
+
+  /**
+   * Do some work and add the time it took to a phase, whether or not it succeeds.
+   *
+   * @param <T> The type of the work's result.
+   * @param <E> The type of exception the work can throw.
+   * @param phase The phase to measure.
+   * @param work The work to do.
+   * @return The work's result.
+   * @throws E If the work fails.
+   */
+  @SuppressWarnings("try") // the timer only needs to be closed, so the body never refers to it
+  public <T, E extends Exception> T time(Phase phase, Timed<T, E> work) throws E {
+    try (Timer timer = time(phase)) {
+      return work.run();
+    }
+  }
+
+  /**
+   * Start measuring a snapshot. Its time counts towards {@link Phase#SNAPSHOT}.
+   *
+   * @param line The breakpoint line the snapshot is taken at, or -1 for the end of main.
+   * @return The timer, which must be finished once the snapshot has been taken.
+   */
+  public SnapshotTimer timeSnapshot(int line) {
+    return new SnapshotTimer(line);
+  }
+
+  /** Record that the program reached a breakpoint. */
+  void countBreakpointHit() {
+    breakpointHits.increment();
+  }
+
+  /**
+   * Record a JDWP command sent to the program's JVM.
+   *
+   * @param invokesMethod True if the command runs a method in the program's JVM.
+   */
+  void countJdwpCommand(boolean invokesMethod) {
+    jdwpCommands.increment();
+    if (invokesMethod) {
+      invokeMethodCommands.increment();
+    }
+  }
+
+  /**
+   * Record JDWP commands that were counted somewhere else, such as by a shared JVM's connection
+   * while it ran this program.
+   *
+   * @param commands The number of JDWP commands.
+   * @param invokeMethodCommands How many of them ran a method in the program's JVM.
+   */
+  void addJdwpCommands(long commands, long invokeMethodCommands) {
+    jdwpCommands.add(commands);
+    this.invokeMethodCommands.add(invokeMethodCommands);
+  }
+
+  /**
+   * Record output that the program printed.
+   *
+   * @param bytes The number of bytes printed to stdout and stderr combined.
+   */
+  void addOutputBytes(long bytes) {
+    outputBytes.add(bytes);
+  }
+
+  /**
+   * Get the total time spent in each phase.
+   *
+   * @return A mapping from every phase to its time, in phase order.
+   */
+  public Map<Phase, Duration> phaseDurations() {
+    Map<Phase, Duration> durations = new EnumMap<>(Phase.class);
+    phaseNanos.forEach((phase, nanos) -> durations.put(phase, Duration.ofNanos(nanos.sum())));
+    return Collections.unmodifiableMap(durations);
+  }
+
+  /**
+   * Get the number of times the program reached a breakpoint, whether or not it was snapshotted.
+   *
+   * @return The number of breakpoint hits.
+   */
+  public long breakpointHits() {
+    return breakpointHits.sum();
+  }
+
+  /**
+   * Get the number of snapshots that were taken.
+   *
+   * @return The number of snapshots.
+   */
+  public long snapshots() {
+    return snapshots.sum();
+  }
+
+  /**
+   * Get the number of heap objects that were converted, summed over every snapshot.
+   *
+   * @return The number of objects visited.
+   */
+  public long objectsVisited() {
+    return objectsVisited.sum();
+  }
+
+  /**
+   * Get the number of JDWP commands that were sent to the program's JVM.
+   *
+   * @return The number of JDWP commands.
+   */
+  public long jdwpCommands() {
+    return jdwpCommands.sum();
+  }
+
+  /**
+   * Get the number of methods that were invoked in the program's JVM, such as {@code toArray} on
+   * collections that were snapshotted.
+   *
+   * @return The number of method invocations.
+   */
+  public long invokeMethodCommands() {
+    return invokeMethodCommands.sum();
+  }
+
+  /**
+   * Get the number of bytes that the program printed to stdout and stderr combined, including
+   * output past its output budget.
+   *
+   * @return The number of output bytes.
+   */
+  public long outputBytes() {
+    return outputBytes.sum();
+  }
+}
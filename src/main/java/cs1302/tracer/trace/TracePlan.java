@@ -0,0 +1,67 @@
+package cs1302.tracer.trace;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * What a trace snapshots in a program, and the resources the program may use while it does.
+ *
+ * @param breakPoints The source line numbers to take snapshots at. If this contains the special
+ *     value -1 or is empty, a snapshot is taken at the time the main method exits.
+ * @param captures A mapping from breakpoint line numbers (or -1 for the end of main) to the part of
+ *     the program's state that should be captured there. Breakpoints without an entry capture the
+ *     program's entire state.
+ * @param hitPolicies A mapping from breakpoint line numbers to the policy that decides which times
+ *     the breakpoint is reached should be snapshotted. Breakpoints without an entry are snapshotted
+ *     every time they are reached.
+ * @param budget The resources the program may use before it is killed. It must be the budget that
+ *     the program's JVM was launched with.
+ * @param threads Which threads the snapshots include, and which threads breakpoints stop.
+ * @param exceptions Which exceptions to snapshot where they are thrown.
+ * @param lines Whether to count how many times each line of the main source file runs.
+ */
+public record TracePlan(
+    List<Integer> breakPoints,
+    Map<Integer, CaptureSpec> captures,
+    Map<Integer, HitPolicy> hitPolicies,
+    TraceBudget budget,
+    ThreadCapture threads,
+    ExceptionFilter exceptions,
+    LineCounting lines) {
+
+  public TracePlan {
+    breakPoints = List.copyOf(breakPoints);
+    captures = Map.copyOf(captures);
+    hitPolicies = Map.copyOf(hitPolicies);
+  }
+
+  /**
+   * Create a plan that snapshots the whole program every time it reaches one of the given
+   * breakpoints, without any limits on its resources.
+   *
+   * @param breakPoints The source line numbers to take snapshots at, or null to only take a
+   *     snapshot at the end of the main method.
+   * @return The plan.
+   */
+  public static TracePlan of(Collection<Integer> breakPoints) {
+    return new TracePlan(
+        breakPoints == null ? List.of() : List.copyOf(breakPoints),
+        Map.of(),
+        Map.of(),
+        TraceBudget.UNLIMITED,
+        ThreadCapture.BREAKPOINT_THREAD,
+        ExceptionFilter.NONE,
+        LineCounting.OFF);
+  }
+
+  /**
+   * Get a copy of this plan that captures only part of the program's state at some breakpoints.
+   *
+   * @param captures The captures of the copy.
+   * @return The copied plan.
+   */
+  public TracePlan withCaptures(Map<Integer, CaptureSpec> captures) {
+    return new TracePlan(breakPoints, captures, hitPolicies, budget, threads, exceptions, lines);
+  }
+}
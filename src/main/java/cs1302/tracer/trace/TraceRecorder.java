@@ -0,0 +1,610 @@
+package cs1302.tracer.trace;
+
+import com.github.javaparser.ast.CompilationUnit;
+import com.sun.jdi.Field;
+import com.sun.jdi.IncompatibleThreadStateException;
+import com.sun.jdi.Location;
+import com.sun.jdi.Method;
+import com.sun.jdi.ObjectCollectedException;
+import com.sun.jdi.ObjectReference;
+import com.sun.jdi.ReferenceType;
+import com.sun.jdi.StackFrame;
+import com.sun.jdi.ThreadReference;
+import com.sun.jdi.VMDisconnectedException;
+import com.sun.jdi.VirtualMachine;
+import com.sun.jdi.connect.VMStartException;
+import com.sun.jdi.event.BreakpointEvent;
+import com.sun.jdi.event.ClassPrepareEvent;
+import com.sun.jdi.event.Event;
+import com.sun.jdi.event.EventSet;
+import com.sun.jdi.event.ModificationWatchpointEvent;
+import com.sun.jdi.event.StepEvent;
+import com.sun.jdi.event.VMDeathEvent;
+import com.sun.jdi.event.VMDisconnectEvent;
+import com.sun.jdi.request.BreakpointRequest;
+import com.sun.jdi.request.EventRequest;
+import com.sun.jdi.request.EventRequestManager;
+import com.sun.jdi.request.ModificationWatchpointRequest;
+import com.sun.jdi.request.StepRequest;
+import cs1302.tracer.CompilationHelper.CompilationResult;
+import cs1302.tracer.trace.ExecutionSnapshot.StackSnapshot;
+import cs1302.tracer.trace.TraceRecording.Mutation;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+/**
+ * Records a program one line at a time into a {@link TraceRecording}. The main thread is stepped
+ * through every line of the program's own code, and the program's fields are watched for writes.
+ * Every few steps, the whole state is converted into a checkpoint; at the other steps, only the
+ * topmost frame and the objects that changed are read.
+ */
+final class TraceRecorder {
+
+  private final CompilationResult compilationResult;
+
+  private final VirtualMachine vm;
+
+  private final TraceWatchdog watchdog;
+
+  private final TraceMetrics metrics;
+
+  private final SourceIndex sourceIndex;
+
+  private final int checkpointInterval;
+
+  private final ByteArrayOutputStream vmOutSink;
+
+  private final ByteArrayOutputStream vmErrSink;
+
+  private final Set<ReferenceType> loadedClasses = new HashSet<>();
+
+  private final List<TraceRecording.Step> steps = new ArrayList<>();
+
+  private final List<ExecutionSnapshot> checkpoints = new ArrayList<>();
+
+  /** The program's state as of the last step, or null until main is reached. */
+  private TraceRecording.State state;
+
+  /** The mutations since the last step, which have already been applied to the state. */
+  private final List<Mutation> pending = new ArrayList<>();
+
+  /** The method of each frame in the state's stack, bottommost first. */
+  private List<Method> frameMethods = new ArrayList<>();
+
+  /**
+   * The arrays, collections and maps in the state by unique ID. Their contents can change without a
+   * watched field write, so they are read again after a line that might have changed them.
+   */
+  private final Map<Long, ObjectReference> mutableObjects = new HashMap<>();
+
+  /** The objects whose fields were written but which aren't plain objects in the state. */
+  private final Map<Long, ObjectReference> dirtyObjects = new LinkedHashMap<>();
+
+  /** The lines of each method that store into an array or call another method. */
+  private final Map<Method, Set<Integer>> indirectWriteLines = new HashMap<>();
+
+  private StepRequest stepRequest;
+
+  /** Where the last step was, or null before the first one. */
+  private Location previousLocation;
+
+  private TraceRecorder(
+      CompilationResult compilationResult,
+      VirtualMachine vm,
+      TraceBudget budget,
+      Function<String, Optional<CompilationUnit>> parsedSources,
+      int checkpointInterval,
+      TraceMetrics metrics) {
+    this.compilationResult = compilationResult;
+    this.vm = vm;
+    this.watchdog = new TraceWatchdog(budget);
+    this.metrics = metrics;
+    this.sourceIndex = new SourceIndex(parsedSources);
+    this.checkpointInterval = checkpointInterval;
+    // the JVM is still suspended at startup, so none of our classes have been prepared yet
+    DebugTraceHelper.requestClassPrepares(vm, compilationResult.compiledClassNames());
+    this.vmErrSink = watchdog.capture(vm.process().getErrorStream());
+    this.vmOutSink = watchdog.capture(vm.process().getInputStream());
+  }
+
+  /**
+   * Record a program. See {@link TraceRecording#record(CompilationResult, TraceBudget, Function,
+   * CompletableFuture, int, TraceMetrics)}.
+   *
+   * @param compilationResult The compiled program.
+   * @param budget The resources the program may use before it is killed.
+   * @param parsedSources Parses one of the program's source files with symbol resolution.
+   * @param launchedVm The program's JVM.
+   * @param checkpointInterval The number of steps between full snapshots.
+   * @param metrics The metrics to record the event wait and snapshot phases in.
+   * @return The recording.
+   */
+  static TraceRecording record(
+      CompilationResult compilationResult,
+      TraceBudget budget,
+      Function<String, Optional<CompilationUnit>> parsedSources,
+      CompletableFuture<VirtualMachine> launchedVm,
+      int checkpointInterval,
+      TraceMetrics metrics)
+      throws IOException, VMStartException, InterruptedException, IncompatibleThreadStateException {
+    VirtualMachine vm;
+    try {
+      vm = DebugTraceHelper.await(launchedVm);
+    } catch (IOException | VMStartException | InterruptedException | RuntimeException e) {
+      DebugTraceHelper.discard(launchedVm);
+      throw e;
+    }
+
+    TraceRecorder recorder = null;
+    try {
+      recorder =
+          new TraceRecorder(
+              compilationResult, vm, budget, parsedSources, checkpointInterval, metrics);
+      return recorder.run();
+    } finally {
+      // whether the program finished, was stopped, or the recorder failed, make sure it isn't left
+      // running
+      vm.process().destroyForcibly();
+      vm.process().waitFor();
+      if (recorder != null) {
+        metrics.addOutputBytes(recorder.watchdog.outputBytes());
+      }
+    }
+  }
+
+  /**
+   * Handle the program's events until it ends or exceeds its budget.
+   *
+   * @return The recording.
+   */
+  private TraceRecording run() throws InterruptedException, IncompatibleThreadStateException {
+    Optional<TraceResult.Termination> termination = Optional.empty();
+    try {
+      boolean ended = false;
+      while (!ended) {
+        termination = watchdog.check();
+        if (termination.isPresent()) {
+          break;
+        }
+
+        EventSet eventSet =
+            metrics.time(
+                TraceMetrics.Phase.EVENT_WAIT, () -> vm.eventQueue().remove(watchdog.pollMillis()));
+        if (eventSet == null) {
+          continue;
+        }
+
+        for (Event event : eventSet) {
+          switch (event) {
+            case ClassPrepareEvent cpe -> prepare(cpe.thread(), cpe.referenceType());
+            case BreakpointEvent bpe when bpe.request().getProperty(DebugTraceHelper.MAIN_ENTRY)
+                != null -> {
+              vm.eventRequestManager().deleteEventRequest(bpe.request());
+              start(bpe.thread(), bpe.location());
+            }
+            case StepEvent se -> {
+              watchdog.countBreakpointHit();
+              step(se.thread(), se.location());
+            }
+            case ModificationWatchpointEvent mwe -> write(mwe);
+            case VMDeathEvent vde -> ended = true;
+            case VMDisconnectEvent vde -> ended = true;
+            default -> {}
+          }
+        }
+
+        if (!ended) {
+          eventSet.resume();
+        }
+      }
+
+      if (termination.isEmpty()) {
+        termination = watchdog.checkExit(vm.process());
+      }
+    } catch (VMDisconnectedException e) {
+      termination = watchdog.checkExit(vm.process());
+    }
+
+    return new TraceRecording(
+        steps,
+        checkpoints,
+        checkpointInterval,
+        DebugTraceHelper.readSink(vmOutSink),
+        DebugTraceHelper.readSink(vmErrSink),
+        termination);
+  }
+
+  /**
+   * Watch the fields of a newly prepared class, and start recording once it is the main class.
+   *
+   * @param thread The thread that prepared the class, which is suspended.
+   * @param type The class that was prepared.
+   */
+  private void prepare(ThreadReference thread, ReferenceType type) {
+    if (!compilationResult.compiledClassNames().contains(type.name())) {
+      return;
+    }
+    loadedClasses.add(type);
+
+    EventRequestManager eventRequestManager = vm.eventRequestManager();
+    if (vm.canWatchFieldModification()) {
+      for (Field field : type.fields()) {
+        ModificationWatchpointRequest request =
+            eventRequestManager.createModificationWatchpointRequest(field);
+        request.setSuspendPolicy(EventRequest.SUSPEND_EVENT_THREAD);
+        request.enable();
+      }
+    }
+
+    if (state != null) {
+      Map<Long, TraceValue> lambdas = new HashMap<>();
+      List<ObjectReference> references = new ArrayList<>();
+      for (ExecutionSnapshot.Field field :
+          DebugTraceHelper.snapshotStatics(type, sourceIndex, lambdas, references)) {
+        apply(new Mutation.StaticWrite(field));
+      }
+      addToHeap(thread, lambdas, references);
+    }
+
+    if (type.name().equals(compilationResult.mainClass())) {
+      for (Method main : type.methodsByName("main", DebugTraceHelper.MAIN_JNI_SIGNATURE)) {
+        BreakpointRequest request = eventRequestManager.createBreakpointRequest(main.location());
+        request.putProperty(DebugTraceHelper.MAIN_ENTRY, true);
+        request.setSuspendPolicy(EventRequest.SUSPEND_ALL);
+        request.enable();
+      }
+    }
+  }
+
+  /**
+   * Start stepping through the main thread, with the beginning of main as the first step.
+   *
+   * @param mainThread The main thread, which is suspended at the beginning of main.
+   * @param location The beginning of main.
+   */
+  private void start(ThreadReference mainThread, Location location)
+      throws IncompatibleThreadStateException {
+    stepRequest =
+        vm.eventRequestManager()
+            .createStepRequest(mainThread, StepRequest.STEP_LINE, StepRequest.STEP_INTO);
+    for (String jdkPackage : DebugTraceHelper.JDK_PACKAGES) {
+      stepRequest.addClassExclusionFilter(jdkPackage);
+    }
+    stepRequest.setSuspendPolicy(EventRequest.SUSPEND_ALL);
+    step(mainThread, location);
+  }
+
+  /**
+   * Record the step that the main thread is about to take.
+   *
+   * @param mainThread The main thread, which is suspended.
+   * @param location Where the main thread is.
+   */
+  private void step(ThreadReference mainThread, Location location)
+      throws IncompatibleThreadStateException {
+    // converting a collection calls its methods, which mustn't be stepped through
+    stepRequest.disable();
+    try {
+      if (steps.size() % checkpointInterval == 0) {
+        checkpoint(mainThread, location);
+      } else {
+        diff(mainThread);
+        steps.add(
+            new TraceRecording.Step(
+                location.lineNumber(), List.copyOf(pending), vmOutSink.size(), vmErrSink.size()));
+        state.moveTo(location.lineNumber());
+      }
+      pending.clear();
+      previousLocation = location;
+    } finally {
+      stepRequest.enable();
+    }
+  }
+
+  /**
+   * Take a full snapshot of the program, which replaces the state.
+   *
+   * @param mainThread The main thread, which is suspended.
+   * @param location Where the main thread is.
+   */
+  private void checkpoint(ThreadReference mainThread, Location location)
+      throws IncompatibleThreadStateException {
+    TraceMetrics.SnapshotTimer timer = metrics.timeSnapshot(location.lineNumber());
+    Map<Long, TraceValue> heap = new HashMap<>();
+    List<ObjectReference> references = new ArrayList<>();
+
+    List<StackSnapshot> stack = new ArrayList<>();
+    frameMethods = new ArrayList<>();
+    for (StackFrame frame : mainThread.frames().reversed()) {
+      stack.add(DebugTraceHelper.snapshotFrame(frame, sourceIndex, heap, references));
+      frameMethods.add(frame.location().method());
+    }
+
+    List<ExecutionSnapshot.Field> statics = new ArrayList<>();
+    for (ReferenceType loadedClass : loadedClasses) {
+      statics.addAll(DebugTraceHelper.snapshotStatics(loadedClass, sourceIndex, heap, references));
+    }
+
+    // the objects that the mutable objects held onto may have been collected since
+    mutableObjects.clear();
+    dirtyObjects.clear();
+    heap.putAll(convert(mainThread, references, heap));
+
+    // the output is only kept once, for the whole recording
+    ExecutionSnapshot checkpoint =
+        new ExecutionSnapshot(stack, List.of(), statics, heap, new byte[0], new byte[0]);
+    timer.finish(checkpoint);
+    checkpoints.add(checkpoint);
+    state = TraceRecording.State.of(checkpoint);
+    steps.add(
+        new TraceRecording.Step(
+            location.lineNumber(), List.of(), vmOutSink.size(), vmErrSink.size()));
+  }
+
+  /**
+   * Find out how the main thread's stack and objects changed since the last step. Frames below the
+   * previous topmost frame can't have changed unless they were popped, so only the previous topmost
+   * frame is read again, along with any frames that were pushed since.
+   *
+   * @param mainThread The main thread, which is suspended.
+   */
+  private void diff(ThreadReference mainThread) throws IncompatibleThreadStateException {
+    Map<Long, TraceValue> lambdas = new HashMap<>();
+    List<ObjectReference> references = new ArrayList<>();
+
+    List<StackFrame> frames = mainThread.frames().reversed();
+    List<StackSnapshot> stack = state.stack();
+    int previousTop = stack.size() - 1;
+    int keep = 0;
+    while (keep < frames.size() && keep <= previousTop) {
+      Location frameLocation = frames.get(keep).location();
+      boolean sameMethod = frameLocation.method().equals(frameMethods.get(keep));
+      if (!sameMethod
+          || (keep < previousTop && frameLocation.lineNumber() != stack.get(keep).methodLine())) {
+        break;
+      }
+      keep++;
+    }
+
+    if (previousTop >= 0 && keep == previousTop + 1) {
+      StackSnapshot previous = stack.get(previousTop);
+      StackSnapshot current =
+          DebugTraceHelper.snapshotFrame(frames.get(previousTop), sourceIndex, lambdas, references);
+      Set<String> identifiers = new HashSet<>();
+      for (ExecutionSnapshot.Field variable : current.visibleVariables()) {
+        identifiers.add(variable.identifier());
+        if (!previous.visibleVariables().contains(variable)) {
+          apply(new Mutation.LocalWrite(previousTop, variable));
+        }
+      }
+      for (ExecutionSnapshot.Field variable : previous.visibleVariables()) {
+        if (!identifiers.contains(variable.identifier())) {
+          apply(new Mutation.LocalDrop(previousTop, variable.identifier()));
+        }
+      }
+    }
+
+    if (keep < stack.size() || keep < frames.size()) {
+      List<StackSnapshot> pushed = new ArrayList<>();
+      frameMethods = new ArrayList<>(frameMethods.subList(0, keep));
+      for (StackFrame frame : frames.subList(keep, frames.size())) {
+        pushed.add(DebugTraceHelper.snapshotFrame(frame, sourceIndex, lambdas, references));
+        frameMethods.add(frame.location().method());
+      }
+      apply(new Mutation.SetFrames(keep, pushed));
+    }
+
+    addToHeap(mainThread, lambdas, references);
+
+    if (previousLocation != null && writesIndirectly(previousLocation)) {
+      reread(mainThread, reachableMutableObjects());
+    }
+    if (!dirtyObjects.isEmpty()) {
+      reread(mainThread, new ArrayList<>(dirtyObjects.values()));
+      dirtyObjects.clear();
+    }
+  }
+
+  /**
+   * Record a write to a watched field. Writes to objects that the state doesn't have yet are left
+   * out, since those objects are converted in full once the state refers to them.
+   *
+   * @param event The write, whose thread is suspended.
+   */
+  private void write(ModificationWatchpointEvent event) {
+    if (state == null) {
+      // the first checkpoint will see the write
+      return;
+    }
+
+    Field field = event.field();
+    Map<Long, TraceValue> lambdas = new HashMap<>();
+    List<ObjectReference> references = new ArrayList<>();
+    if (event.object() == null) {
+      DebugTraceHelper.toField(
+              field.isFinal(),
+              field.typeName(),
+              String.join(".", field.declaringType().name(), field.name()),
+              event.valueToBe(),
+              sourceIndex.staticLambdaImplementation(field.declaringType(), field.name()),
+              lambdas,
+              references)
+          .ifPresent(f -> apply(new Mutation.StaticWrite(f)));
+    } else {
+      long objectId = event.object().uniqueID();
+      TraceValue current = state.heap().get(objectId);
+      if (current instanceof TraceValue.Object) {
+        DebugTraceHelper.toField(
+                field.isFinal(),
+                field.typeName(),
+                field.name(),
+                event.valueToBe(),
+                Optional.empty(),
+                lambdas,
+                references)
+            .ifPresent(f -> apply(new Mutation.FieldWrite(objectId, f)));
+      } else if (current != null) {
+        // an object of the program's own class that is converted like a collection
+        dirtyObjects.put(objectId, event.object());
+      }
+    }
+    addToHeap(event.thread(), lambdas, references);
+  }
+
+  /**
+   * Check whether the line at a location stores into an array or calls another method, either of
+   * which can change an array or collection without a watched field write.
+   *
+   * @param location The location.
+   * @return True if the location's line might change an array or collection.
+   */
+  private boolean writesIndirectly(Location location) {
+    Set<Integer> lines =
+        indirectWriteLines.computeIfAbsent(
+            location.method(),
+            method -> {
+              if (!vm.canGetBytecodes()) {
+                return null;
+              }
+              Set<Integer> writeLines = new HashSet<>();
+              for (long codeIndex : BytecodeHelper.indirectWriteCodeIndices(method.bytecodes())) {
+                Location writeLocation = method.locationOfCodeIndex(codeIndex);
+                if (writeLocation != null) {
+                  writeLines.add(writeLocation.lineNumber());
+                }
+              }
+              return writeLines;
+            });
+    // without the bytecode, assume that every line might
+    return lines == null || lines.contains(location.lineNumber());
+  }
+
+  /**
+   * Find the arrays, collections and maps that can be reached from the stack or the static fields,
+   * however deeply they are nested in other objects. A method call can change any of them.
+   *
+   * @return The objects.
+   */
+  private List<ObjectReference> reachableMutableObjects() {
+    List<ObjectReference> found = new ArrayList<>();
+    for (long objectId : state.reachableHeap().keySet()) {
+      ObjectReference object = mutableObjects.get(objectId);
+      if (object != null) {
+        found.add(object);
+      }
+    }
+    return found;
+  }
+
+  /**
+   * Convert objects again, and record how they changed. A list that is still the same length only
+   * records the elements that changed.
+   *
+   * @param thread A suspended thread to convert the objects with.
+   * @param objects The objects.
+   */
+  private void reread(ThreadReference thread, List<ObjectReference> objects) {
+    List<ObjectReference> references = new ArrayList<>();
+    for (ObjectReference object : objects) {
+      long objectId = object.uniqueID();
+      TraceValue converted;
+      try {
+        converted = TraceValue.fromJdiValue(thread, object, Optional.of(references));
+      } catch (ObjectCollectedException e) {
+        mutableObjects.remove(objectId);
+        continue;
+      }
+
+      TraceValue previous = state.heap().get(objectId);
+      if (converted.equals(previous)) {
+        continue;
+      }
+      if (previous instanceof TraceValue.List before
+          && converted instanceof TraceValue.List after
+          && before.typeName().equals(after.typeName())
+          && before.value().size() == after.value().size()) {
+        for (int i = 0; i < after.value().size(); i++) {
+          if (!after.value().get(i).equals(before.value().get(i))) {
+            apply(new Mutation.ArrayStore(objectId, i, after.value().get(i)));
+          }
+        }
+      } else {
+        apply(new Mutation.HeapPut(objectId, converted));
+      }
+    }
+    addToHeap(thread, Map.of(), references);
+  }
+
+  /**
+   * Add objects that the state doesn't have yet to it, along with the objects they refer to.
+   *
+   * @param thread A suspended thread to convert the objects with.
+   * @param lambdas Lambdas that were already converted, by unique ID.
+   * @param references The objects to add if the state doesn't have them.
+   */
+  private void addToHeap(
+      ThreadReference thread, Map<Long, TraceValue> lambdas, List<ObjectReference> references) {
+    lambdas.forEach(
+        (objectId, lambda) -> {
+          if (!lambda.equals(state.heap().get(objectId))) {
+            apply(new Mutation.HeapPut(objectId, lambda));
+          }
+        });
+    convert(thread, references, state.heap())
+        .forEach((objectId, value) -> apply(new Mutation.HeapPut(objectId, value)));
+  }
+
+  /**
+   * Convert the objects that aren't in a heap yet, and the objects that they refer to, without
+   * walking through the objects that are. Arrays, collections and maps are remembered so that they
+   * can be converted again when they might have changed.
+   *
+   * @param thread A suspended thread to convert the objects with.
+   * @param roots The objects to start from.
+   * @param known The heap that the objects are being added to.
+   * @return The converted objects by unique ID.
+   */
+  private Map<Long, TraceValue> convert(
+      ThreadReference thread, List<ObjectReference> roots, Map<Long, TraceValue> known) {
+    Map<Long, TraceValue> converted = new HashMap<>();
+    List<ObjectReference> toConvert = roots;
+    while (!toConvert.isEmpty()) {
+      List<ObjectReference> encountered = new ArrayList<>();
+      for (ObjectReference object : toConvert) {
+        long objectId = object.uniqueID();
+        if (known.containsKey(objectId) || converted.containsKey(objectId)) {
+          continue;
+        }
+        TraceValue value = TraceValue.fromJdiValue(thread, object, Optional.of(encountered));
+        converted.put(objectId, value);
+        if (value instanceof TraceValue.List
+            || value instanceof TraceValue.Collection
+            || value instanceof TraceValue.Map) {
+          mutableObjects.put(objectId, object);
+        }
+      }
+      toConvert = encountered;
+    }
+    return converted;
+  }
+
+  /**
+   * Apply a mutation to the state, and log it for the next step.
+   *
+   * @param mutation The mutation.
+   */
+  private void apply(Mutation mutation) {
+    state.apply(mutation);
+    pending.add(mutation);
+  }
+}
@@ -0,0 +1,506 @@
+package cs1302.tracer.trace;
+
+import com.github.javaparser.ast.CompilationUnit;
+import com.sun.jdi.IncompatibleThreadStateException;
+import com.sun.jdi.VirtualMachine;
+import com.sun.jdi.connect.VMStartException;
+import cs1302.tracer.CompilationHelper.CompilationResult;
+import cs1302.tracer.trace.ExecutionSnapshot.StackSnapshot;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+/**
+ * A recording of every line that a program ran on its main thread, from the beginning of its main
+ * method, which can reproduce the program's state before any of those steps.
+ *
+ * <p>Taking a full snapshot at every step would cost as much as the program's heap each time, so
+ * the recording only takes one every few steps (a checkpoint). For the steps in between, it logs
+ * how the state changed: frames that were pushed and popped, local variables that were written,
+ * fields that were written (caught by watchpoints), array elements that were stored, and how much
+ * output there was. A step's snapshot is rebuilt by replaying the log from the nearest checkpoint
+ * before it, so looking up any step costs at most one checkpoint interval's worth of changes.
+ *
+ * <p>Changes that the log can't see, such as a library collection that was changed through an
+ * object it can't reach from the current frame, show up at the next checkpoint.
+ */
+public final class TraceRecording {
+
+  /** A change to a program's state between two steps. */
+  sealed interface Mutation {
+
+    /**
+     * Frames were popped from and pushed onto the stack.
+     *
+     * @param keep The number of frames at the bottom of the stack that are still there.
+     * @param pushed The frames above those, bottommost first.
+     */
+    record SetFrames(int keep, List<StackSnapshot> pushed) implements Mutation {}
+
+    /**
+     * A local variable was written, or came into scope.
+     *
+     * @param frame The index of the variable's frame, where 0 is the bottommost.
+     * @param variable The variable and its new value.
+     */
+    record LocalWrite(int frame, ExecutionSnapshot.Field variable) implements Mutation {}
+
+    /**
+     * A local variable went out of scope.
+     *
+     * @param frame The index of the variable's frame, where 0 is the bottommost.
+     * @param identifier The variable's identifier.
+     */
+    record LocalDrop(int frame, String identifier) implements Mutation {}
+
+    /**
+     * A field of an object was written.
+     *
+     * @param objectId The object's unique ID.
+     * @param field The field and its new value.
+     */
+    record FieldWrite(long objectId, ExecutionSnapshot.Field field) implements Mutation {}
+
+    /**
+     * A static field was written, or its class was loaded.
+     *
+     * @param field The field, named after its class, and its new value.
+     */
+    record StaticWrite(ExecutionSnapshot.Field field) implements Mutation {}
+
+    /**
+     * An element of an array or list was stored.
+     *
+     * @param listId The array or list's unique ID.
+     * @param index The element's index.
+     * @param value The element's new value.
+     */
+    record ArrayStore(long listId, int index, TraceValue value) implements Mutation {}
+
+    /**
+     * An object was converted for the first time, or converted again because it changed in a way
+     * that no other mutation describes.
+     *
+     * @param objectId The object's unique ID.
+     * @param value The object's value.
+     */
+    record HeapPut(long objectId, TraceValue value) implements Mutation {}
+  }
+
+  /**
+   * One line that the program ran.
+   *
+   * @param line The line that the program was about to run.
+   * @param mutations How the state changed since the previous step, in order. A checkpoint's step
+   *     doesn't have any.
+   * @param stdoutLength The number of bytes that the program had printed to stdout.
+   * @param stderrLength The number of bytes that the program had printed to stderr.
+   */
+  record Step(int line, List<Mutation> mutations, int stdoutLength, int stderrLength) {}
+
+  private final List<Step> steps;
+
+  private final List<ExecutionSnapshot> checkpoints;
+
+  private final int checkpointInterval;
+
+  private final byte[] stdout;
+
+  private final byte[] stderr;
+
+  private final Optional<TraceResult.Termination> termination;
+
+  /**
+   * Create a recording.
+   *
+   * @param steps Every step that the program ran.
+   * @param checkpoints The snapshots of every {@code checkpointInterval}th step, starting with the
+   *     first, without any output.
+   * @param checkpointInterval The number of steps between checkpoints.
+   * @param stdout Everything that the program printed to stdout.
+   * @param stderr Everything that the program printed to stderr.
+   * @param termination Why the program was killed, or empty if it finished on its own.
+   */
+  TraceRecording(
+      List<Step> steps,
+      List<ExecutionSnapshot> checkpoints,
+      int checkpointInterval,
+      byte[] stdout,
+      byte[] stderr,
+      Optional<TraceResult.Termination> termination) {
+    this.steps = List.copyOf(steps);
+    this.checkpoints = List.copyOf(checkpoints);
+    this.checkpointInterval = checkpointInterval;
+    this.stdout = stdout;
+    this.stderr = stderr;
+    this.termination = termination;
+  }
+
+  /**
+   * Record a program in a JVM that was launched with {@link DebugTraceHelper#launch(List, String,
+   * TraceBudget, TraceMetrics)}, from the beginning of its main method until it ends or exceeds its
+   * budget. The program's process is always gone by the time this method returns.
+   *
+   * @param compilationResult A properly filled CompilationResult (probably from a call to
+   *     CompilationHelper.compile()).
+   * @param budget The resources the program may use before it is killed. Each step counts as a
+   *     breakpoint hit. It must be the budget that the JVM was launched with.
+   * @param parsedSources Parses one of the program's source files with symbol resolution, given its
+   *     path relative to its source root. See {@link DebugTraceHelper#trace(CompilationResult,
+   *     TracePlan, Function, CompletableFuture, TraceMetrics)}.
+   * @param launchedVm The program's JVM, launched with the compiled program's class path and main
+   *     class.
+   * @param checkpointInterval The number of steps between full snapshots. Lower intervals make
+   *     looking up a step faster, and recording slower.
+   * @param metrics The metrics to record the event wait and snapshot phases in, along with JDWP
+   *     commands and output.
+   * @return The recording.
+   * @throws IllegalArgumentException If the checkpoint interval isn't positive.
+   */
+  public static TraceRecording record(
+      CompilationResult compilationResult,
+      TraceBudget budget,
+      Function<String, Optional<CompilationUnit>> parsedSources,
+      CompletableFuture<VirtualMachine> launchedVm,
+      int checkpointInterval,
+      TraceMetrics metrics)
+      throws IOException, VMStartException, InterruptedException, IncompatibleThreadStateException {
+    if (checkpointInterval < 1) {
+      DebugTraceHelper.discard(launchedVm);
+      throw new IllegalArgumentException("The checkpoint interval must be positive.");
+    }
+    return TraceRecorder.record(
+        compilationResult, budget, parsedSources, launchedVm, checkpointInterval, metrics);
+  }
+
+  /**
+   * Get the number of steps that the program ran.
+   *
+   * @return The number of steps.
+   */
+  public int steps() {
+    return steps.size();
+  }
+
+  /**
+   * Get the line that each step was about to run.
+   *
+   * @return The lines, in the order that they ran.
+   */
+  public List<Integer> lines() {
+    return steps.stream().map(Step::line).toList();
+  }
+
+  /**
+   * Get the number of steps between full snapshots.
+   *
+   * @return The checkpoint interval.
+   */
+  public int checkpointInterval() {
+    return checkpointInterval;
+  }
+
+  /**
+   * Get why the program was killed before it finished.
+   *
+   * @return Why the program was killed, or empty if it finished on its own.
+   */
+  public Optional<TraceResult.Termination> termination() {
+    return termination;
+  }
+
+  /**
+   * Rebuild a snapshot of the program's state just before a step ran, by replaying the changes
+   * since the nearest checkpoint.
+   *
+   * @param step The step, where 0 is the beginning of the main method.
+   * @return The snapshot.
+   * @throws IllegalArgumentException If the recording doesn't have the step.
+   */
+  public ExecutionSnapshot snapshot(int step) {
+    if (step < 0 || step >= steps.size()) {
+      throw new IllegalArgumentException(
+          String.format("Step %d isn't in the recording, which has %d steps.", step, steps.size()));
+    }
+
+    int checkpoint = step / checkpointInterval;
+    State state = State.of(checkpoints.get(checkpoint));
+    for (int replayed = checkpoint * checkpointInterval + 1; replayed <= step; replayed++) {
+      state.advance(steps.get(replayed));
+    }
+    Step current = steps.get(step);
+    return state.toSnapshot(
+        Arrays.copyOf(stdout, current.stdoutLength()),
+        Arrays.copyOf(stderr, current.stderrLength()));
+  }
+
+  /**
+   * A program's state that mutations can be applied to. The recorder keeps one up to date to find
+   * out what changed at each step, and a snapshot is rebuilt with one that starts at a checkpoint,
+   * so both see exactly the same state.
+   */
+  static final class State {
+
+    private List<StackSnapshot> stack;
+
+    private final Map<String, ExecutionSnapshot.Field> statics;
+
+    private final Map<Long, TraceValue> heap;
+
+    /** The lists in the heap that this state copied, and so can change in place, by unique ID. */
+    private final Map<Long, List<TraceValue>> ownedLists = new HashMap<>();
+
+    private State(
+        List<StackSnapshot> stack,
+        Map<String, ExecutionSnapshot.Field> statics,
+        Map<Long, TraceValue> heap) {
+      this.stack = stack;
+      this.statics = statics;
+      this.heap = heap;
+    }
+
+    /**
+     * Start with the state in a snapshot. The snapshot isn't changed.
+     *
+     * @param checkpoint The snapshot.
+     * @return The state.
+     */
+    static State of(ExecutionSnapshot checkpoint) {
+      Map<String, ExecutionSnapshot.Field> statics = new LinkedHashMap<>();
+      checkpoint.statics().forEach(f -> statics.put(f.identifier(), f));
+      return new State(
+          new ArrayList<>(checkpoint.stack()), statics, new HashMap<>(checkpoint.heap()));
+    }
+
+    /**
+     * Get the stack.
+     *
+     * @return The stack, bottommost frame first.
+     */
+    List<StackSnapshot> stack() {
+      return stack;
+    }
+
+    /**
+     * Get the static fields.
+     *
+     * @return The static fields.
+     */
+    Collection<ExecutionSnapshot.Field> statics() {
+      return statics.values();
+    }
+
+    /**
+     * Get the heap.
+     *
+     * @return The heap, a mapping of unique IDs to values.
+     */
+    Map<Long, TraceValue> heap() {
+      return heap;
+    }
+
+    /**
+     * Apply a step's mutations, and move the topmost frame to the step's line.
+     *
+     * @param step The step.
+     */
+    void advance(Step step) {
+      step.mutations().forEach(this::apply);
+      moveTo(step.line());
+    }
+
+    /**
+     * Move the topmost frame to a line.
+     *
+     * @param line The line.
+     */
+    void moveTo(int line) {
+      if (!stack.isEmpty() && stack.getLast().methodLine() != line) {
+        StackSnapshot top = stack.getLast();
+        stack.set(
+            stack.size() - 1,
+            new StackSnapshot(top.methodName(), line, top.visibleVariables(), top.thisObject()));
+      }
+    }
+
+    /**
+     * Apply a mutation.
+     *
+     * @param mutation The mutation.
+     */
+    void apply(Mutation mutation) {
+      switch (mutation) {
+        case Mutation.SetFrames sf -> {
+          List<StackSnapshot> frames = new ArrayList<>(stack.subList(0, sf.keep()));
+          frames.addAll(sf.pushed());
+          stack = frames;
+        }
+        case Mutation.LocalWrite lw -> {
+          StackSnapshot frame = stack.get(lw.frame());
+          stack.set(
+              lw.frame(), withVariables(frame, replace(frame.visibleVariables(), lw.variable())));
+        }
+        case Mutation.LocalDrop ld -> {
+          StackSnapshot frame = stack.get(ld.frame());
+          List<ExecutionSnapshot.Field> variables =
+              frame.visibleVariables().stream()
+                  .filter(v -> !v.identifier().equals(ld.identifier()))
+                  .toList();
+          stack.set(ld.frame(), withVariables(frame, variables));
+        }
+        case Mutation.FieldWrite fw -> {
+          if (heap.get(fw.objectId()) instanceof TraceValue.Object object) {
+            heap.put(
+                fw.objectId(),
+                new TraceValue.Object(object.classFqn(), replace(object.fields(), fw.field())));
+          }
+        }
+        case Mutation.StaticWrite sw -> statics.put(sw.field().identifier(), sw.field());
+        case Mutation.ArrayStore as -> {
+          List<TraceValue> owned = ownedLists.get(as.listId());
+          if (owned == null && heap.get(as.listId()) instanceof TraceValue.List list) {
+            // copy the list once, so that a loop over a big array doesn't copy it at every store
+            owned = new ArrayList<>(list.value());
+            ownedLists.put(as.listId(), owned);
+            heap.put(as.listId(), new TraceValue.List(list.typeName(), owned));
+          }
+          if (owned != null && as.index() < owned.size()) {
+            owned.set(as.index(), as.value());
+          }
+        }
+        case Mutation.HeapPut hp -> {
+          heap.put(hp.objectId(), hp.value());
+          ownedLists.remove(hp.objectId());
+        }
+      }
+    }
+
+    /**
+     * Create a snapshot of this state. Objects that can no longer be reached from the stack or the
+     * static fields are left out, just as they would be from a snapshot of the live program.
+     *
+     * @param stdout The bytes that the program had printed to stdout.
+     * @param stderr The bytes that the program had printed to stderr.
+     * @return The snapshot.
+     */
+    ExecutionSnapshot toSnapshot(byte[] stdout, byte[] stderr) {
+      Map<Long, TraceValue> reachable = reachableHeap();
+      reachable.replaceAll((id, value) -> copy(value));
+      return new ExecutionSnapshot(
+          new ArrayList<>(stack),
+          List.of(),
+          new ArrayList<>(statics.values()),
+          reachable,
+          stdout,
+          stderr);
+    }
+
+    /**
+     * Find the objects that can be reached from the stack or the static fields.
+     *
+     * @return The reachable objects by unique ID, in the order they were reached.
+     */
+    Map<Long, TraceValue> reachableHeap() {
+      List<TraceValue> roots = new ArrayList<>();
+      for (StackSnapshot frame : stack) {
+        frame.visibleVariables().forEach(v -> roots.add(v.value()));
+        frame.thisObject().ifPresent(t -> roots.add(t.value()));
+      }
+      statics.values().forEach(f -> roots.add(f.value()));
+
+      Map<Long, TraceValue> reachable = new LinkedHashMap<>();
+      List<TraceValue> toVisit = roots;
+      while (!toVisit.isEmpty()) {
+        List<TraceValue> referenced = new ArrayList<>();
+        for (TraceValue value : toVisit) {
+          if (value instanceof TraceValue.Reference reference
+              && !reachable.containsKey(reference.uniqueId())
+              && heap.containsKey(reference.uniqueId())) {
+            TraceValue object = heap.get(reference.uniqueId());
+            reachable.put(reference.uniqueId(), object);
+            addReferenced(object, referenced);
+          }
+        }
+        toVisit = referenced;
+      }
+      return reachable;
+    }
+
+    /**
+     * Add the values that an object holds, which may be references to other objects.
+     *
+     * @param object The object.
+     * @param out The list to add the values to.
+     */
+    private static void addReferenced(TraceValue object, List<TraceValue> out) {
+      switch (object) {
+        case TraceValue.Object o -> o.fields().forEach(f -> out.add(f.value()));
+        case TraceValue.List l -> out.addAll(l.value());
+        case TraceValue.Collection c -> out.addAll(c.value());
+        case TraceValue.Map m -> {
+          out.addAll(m.value().keySet());
+          out.addAll(m.value().values());
+        }
+        default -> {}
+      }
+    }
+
+    /**
+     * Copy a list that this state may still change in place, so a snapshot doesn't change with it.
+     *
+     * @param value The value.
+     * @return The value, with its own copy of its elements if it is a list.
+     */
+    private static TraceValue copy(TraceValue value) {
+      return value instanceof TraceValue.List list
+          ? new TraceValue.List(list.typeName(), List.copyOf(list.value()))
+          : value;
+    }
+
+    /**
+     * Replace a field or variable by its identifier, or add it if there isn't one.
+     *
+     * @param fields The fields.
+     * @param field The field to replace.
+     * @return A new list of the fields.
+     */
+    private static List<ExecutionSnapshot.Field> replace(
+        Collection<ExecutionSnapshot.Field> fields, ExecutionSnapshot.Field field) {
+      List<ExecutionSnapshot.Field> replaced = new ArrayList<>(fields.size() + 1);
+      boolean found = false;
+      for (ExecutionSnapshot.Field f : fields) {
+        if (!found && f.identifier().equals(field.identifier())) {
+          replaced.add(field);
+          found = true;
+        } else {
+          replaced.add(f);
+        }
+      }
+      if (!found) {
+        replaced.add(field);
+      }
+      return replaced;
+    }
+
+    /**
+     * Copy a frame with different variables.
+     *
+     * @param frame The frame.
+     * @param variables The frame's new variables.
+     * @return The copied frame.
+     */
+    private static StackSnapshot withVariables(
+        StackSnapshot frame, List<ExecutionSnapshot.Field> variables) {
+      return new StackSnapshot(
+          frame.methodName(), frame.methodLine(), variables, frame.thisObject());
+    }
+  }
+}
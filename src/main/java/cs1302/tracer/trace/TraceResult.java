@@ -0,0 +1,73 @@
+package cs1302.tracer.trace;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * The result of tracing a program.
+ *
+ * @param snapshots A mapping from breakpoint line numbers to a list of execution snapshots. See
+ *     {@link DebugTraceHelper#trace(cs1302.tracer.CompilationHelper.CompilationResult,
+ *     java.util.Collection, com.github.javaparser.ast.CompilationUnit)}. If the trace was stopped
+ *     early, only the snapshots taken before then are included.
+ * @param termination Why the program was killed before it finished, or empty if it finished on its
+ *     own.
+ * @param exception The first exception that the program threw that passed its {@link
+ *     ExceptionFilter}, or empty if there wasn't one.
+ * @param lineCounts A mapping from the lines of the program's main source file to how many times
+ *     they ran, in line order, if lines were counted (see {@link LineCounting}). Empty otherwise.
+ */
+public record TraceResult(
+    Map<Integer, List<ExecutionSnapshot>> snapshots,
+    Optional<Termination> termination,
+    Optional<Thrown> exception,
+    Map<Integer, LineCount> lineCounts) {
+
+  /**
+   * The reason a program was killed before it finished.
+   *
+   * @param reason The budget that the program exceeded.
+   * @param message A human-readable description of why the program was killed.
+   * @param lastState A snapshot of the program's state at the point it was killed, or empty if one
+   *     couldn't be taken. This is only attempted when snapshotting the end of main, since that
+   *     snapshot will never be taken.
+   */
+  public record Termination(Reason reason, String message, Optional<ExecutionSnapshot> lastState) {}
+
+  /**
+   * An exception that a program threw, and its state where it was thrown.
+   *
+   * @param snapshot A snapshot of the program's state where the exception was thrown. Its top frame
+   *     is the innermost of the program's own frames, so an exception that a JDK method threw is
+   *     shown at the line that called it. Its heap includes the exception object.
+   * @param exception A reference to the exception object in the snapshot's heap.
+   * @param typeName The fully qualified name of the exception's class.
+   * @param message The exception's detail message, or empty if it doesn't have one.
+   * @param caught True if one of the program's methods catches the exception, false if it ends the
+   *     thread that threw it.
+   */
+  public record Thrown(
+      ExecutionSnapshot snapshot,
+      TraceValue exception,
+      String typeName,
+      Optional<String> message,
+      boolean caught) {}
+
+  /**
+   * How many times a line ran.
+   *
+   * @param hits The number of times the line ran, as far as its busiest location is concerned.
+   * @param estimated True if the line ran often enough to be sampled, so that its count was
+   *     extrapolated from every {@link LineCounting#threshold()}th hit.
+   */
+  public record LineCount(long hits, boolean estimated) {}
+
+  /** The budgets (see {@link TraceBudget}) that a program can be killed for exceeding. */
+  public enum Reason {
+    WALL_CLOCK,
+    BREAKPOINT_HITS,
+    OUTPUT,
+    HEAP
+  }
+}
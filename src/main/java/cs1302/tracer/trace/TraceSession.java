@@ -0,0 +1,519 @@
+package cs1302.tracer.trace;
+
+import com.github.javaparser.ast.CompilationUnit;
+import com.sun.jdi.AbsentInformationException;
+import com.sun.jdi.ClassNotLoadedException;
+import com.sun.jdi.IncompatibleThreadStateException;
+import com.sun.jdi.Location;
+import com.sun.jdi.Method;
+import com.sun.jdi.ObjectReference;
+import com.sun.jdi.ReferenceType;
+import com.sun.jdi.ThreadReference;
+import com.sun.jdi.VMDisconnectedException;
+import com.sun.jdi.VirtualMachine;
+import com.sun.jdi.connect.VMStartException;
+import com.sun.jdi.event.BreakpointEvent;
+import com.sun.jdi.event.ClassPrepareEvent;
+import com.sun.jdi.event.Event;
+import com.sun.jdi.event.EventSet;
+import com.sun.jdi.event.StepEvent;
+import com.sun.jdi.event.VMDeathEvent;
+import com.sun.jdi.event.VMDisconnectEvent;
+import com.sun.jdi.request.BreakpointRequest;
+import com.sun.jdi.request.EventRequest;
+import com.sun.jdi.request.EventRequestManager;
+import com.sun.jdi.request.StepRequest;
+import cs1302.tracer.CompilationHelper.CompilationResult;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+/**
+ * A program that is kept alive in its debuggee JVM so that it can be explored interactively. The
+ * program starts paused at the beginning of its main method, and only runs when it is told to
+ * continue or step. While it is paused, breakpoints can be added and removed and its state can be
+ * snapshotted, each of which only costs a few JDWP commands rather than a whole new trace.
+ *
+ * <p>A session isn't thread-safe; its commands must be sent one at a time.
+ */
+public final class TraceSession implements AutoCloseable {
+
+  /** Where a session's program is. */
+  public sealed interface Status {
+
+    /**
+     * The program is paused just before a line runs.
+     *
+     * @param line The line that the program is paused at.
+     * @param method The name of the method that the program is paused in.
+     */
+    record Paused(int line, String method) implements Status {}
+
+    /**
+     * The program has ended, and its process is gone.
+     *
+     * @param termination Why the program was killed, or empty if it finished on its own.
+     */
+    record Ended(Optional<TraceResult.Termination> termination) implements Status {}
+  }
+
+  /** How far a step goes. */
+  public enum StepDepth {
+    /** Into the methods that the current line calls. */
+    INTO(StepRequest.STEP_INTO),
+    /** To the next line of the current method, running the methods that it calls. */
+    OVER(StepRequest.STEP_OVER),
+    /** To the line that called the current method. */
+    OUT(StepRequest.STEP_OUT);
+
+    private final int jdiDepth;
+
+    StepDepth(int jdiDepth) {
+      this.jdiDepth = jdiDepth;
+    }
+  }
+
+  private final CompilationResult compilationResult;
+
+  private final VirtualMachine vm;
+
+  private final TraceWatchdog watchdog;
+
+  private final TraceMetrics metrics;
+
+  private final SourceIndex sourceIndex;
+
+  private final ByteArrayOutputStream vmOutSink;
+
+  private final ByteArrayOutputStream vmErrSink;
+
+  private final Set<ReferenceType> loadedClasses = new HashSet<>();
+
+  /** The loaded classes that were compiled from the main source file, where breakpoints go. */
+  private final List<ReferenceType> sourceClasses = new ArrayList<>();
+
+  /** A mapping from breakpoint line numbers to their requests in the loaded classes. */
+  private final Map<Integer, List<BreakpointRequest>> breakpoints = new TreeMap<>();
+
+  private Status status;
+
+  /** The events that the program is paused on, or null if it isn't paused. */
+  private EventSet pausedEvents;
+
+  /** The thread that the program is paused on, or null if it isn't paused. */
+  private ThreadReference pausedThread;
+
+  /**
+   * The objects left unexpanded by shallow snapshots since the program paused, by unique ID. They
+   * can't be garbage collected until the program runs again.
+   */
+  private final Map<Long, ObjectReference> unexpanded = new HashMap<>();
+
+  private boolean closed = false;
+
+  private TraceSession(
+      CompilationResult compilationResult,
+      VirtualMachine vm,
+      TraceBudget budget,
+      Function<String, Optional<CompilationUnit>> parsedSources,
+      TraceMetrics metrics) {
+    this.compilationResult = compilationResult;
+    this.vm = vm;
+    this.watchdog = new TraceWatchdog(budget);
+    this.metrics = metrics;
+    this.sourceIndex = new SourceIndex(parsedSources);
+    // the JVM is still suspended at startup, so none of our classes have been prepared yet
+    DebugTraceHelper.requestClassPrepares(vm, compilationResult.compiledClassNames());
+    this.vmErrSink = watchdog.capture(vm.process().getErrorStream());
+    this.vmOutSink = watchdog.capture(vm.process().getInputStream());
+  }
+
+  /**
+   * Start a session in a JVM that was launched with {@link DebugTraceHelper#launch(List, String,
+   * TraceBudget, TraceMetrics)}, and run its program up to the beginning of its main method. The
+   * session owns the compilation result, and closes it when the session is closed or fails to
+   * start.
+   *
+   * @param compilationResult A properly filled CompilationResult (probably from a call to
+   *     CompilationHelper.compile()).
+   * @param breakPoints The lines of the main source file to break at from the start.
+   * @param budget The resources the program may use before it is killed. Its wall-clock budget
+   *     applies each time the program is continued or stepped. It must be the budget that the JVM
+   *     was launched with.
+   * @param parsedSources Parses one of the program's source files with symbol resolution, given its
+   *     path relative to its source root. See {@link DebugTraceHelper#trace(CompilationResult,
+   *     TracePlan, Function, CompletableFuture, TraceMetrics)}.
+   * @param launchedVm The program's JVM, launched with the compiled program's class path and main
+   *     class.
+   * @param metrics The metrics to record the event wait and snapshot phases in, along with
+   *     breakpoint hits, JDWP commands and output.
+   * @return The session, which must be closed.
+   */
+  public static TraceSession start(
+      CompilationResult compilationResult,
+      Collection<Integer> breakPoints,
+      TraceBudget budget,
+      Function<String, Optional<CompilationUnit>> parsedSources,
+      CompletableFuture<VirtualMachine> launchedVm,
+      TraceMetrics metrics)
+      throws IOException, VMStartException, InterruptedException {
+    VirtualMachine vm;
+    try {
+      vm = DebugTraceHelper.await(launchedVm);
+    } catch (IOException | VMStartException | InterruptedException | RuntimeException e) {
+      DebugTraceHelper.discard(launchedVm);
+      compilationResult.close();
+      throw e;
+    }
+
+    TraceSession session = new TraceSession(compilationResult, vm, budget, parsedSources, metrics);
+    try {
+      for (int line : breakPoints) {
+        session.addBreakpoint(line);
+      }
+      session.run();
+      return session;
+    } catch (InterruptedException | RuntimeException e) {
+      session.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Get where the program is.
+   *
+   * @return Where the program is paused, or that it has ended.
+   */
+  public Status status() {
+    return status;
+  }
+
+  /**
+   * Get the lines of the main source file that the program breaks at.
+   *
+   * @return The breakpoint lines, in ascending order.
+   */
+  public List<Integer> breakpoints() {
+    return List.copyOf(breakpoints.keySet());
+  }
+
+  /**
+   * Break at a line of the main source file from now on. The line doesn't have to be in a class
+   * that has been loaded yet.
+   *
+   * @param line The line to break at.
+   * @return True if the breakpoint was added, or false if there already was one.
+   */
+  public boolean addBreakpoint(int line) {
+    if (breakpoints.containsKey(line)) {
+      return false;
+    }
+    List<BreakpointRequest> requests = new ArrayList<>();
+    for (ReferenceType type : sourceClasses) {
+      arm(type, line).ifPresent(requests::add);
+    }
+    breakpoints.put(line, requests);
+    return true;
+  }
+
+  /**
+   * Stop breaking at a line of the main source file.
+   *
+   * @param line The line to stop breaking at.
+   * @return True if the breakpoint was removed, or false if there wasn't one.
+   */
+  public boolean removeBreakpoint(int line) {
+    List<BreakpointRequest> requests = breakpoints.remove(line);
+    if (requests == null) {
+      return false;
+    }
+    if (status instanceof Status.Paused) {
+      vm.eventRequestManager().deleteEventRequests(requests);
+    }
+    return true;
+  }
+
+  /**
+   * Let the program run until it reaches a breakpoint or ends.
+   *
+   * @return Where the program paused, or that it has ended.
+   * @throws IllegalStateException If the program has ended.
+   */
+  public Status resume() throws InterruptedException {
+    requirePaused();
+    return run();
+  }
+
+  /**
+   * Let the program run until it reaches another line of its own code, a breakpoint, or its end.
+   *
+   * @param depth How far to step.
+   * @return Where the program paused, or that it has ended.
+   * @throws IllegalStateException If the program has ended.
+   */
+  public Status step(StepDepth depth) throws InterruptedException {
+    requirePaused();
+    StepRequest stepRequest =
+        vm.eventRequestManager()
+            .createStepRequest(pausedThread, StepRequest.STEP_LINE, depth.jdiDepth);
+    for (String jdkPackage : DebugTraceHelper.JDK_PACKAGES) {
+      stepRequest.addClassExclusionFilter(jdkPackage);
+    }
+    stepRequest.addCountFilter(1);
+    stepRequest.setSuspendPolicy(EventRequest.SUSPEND_ALL);
+    stepRequest.enable();
+    return run();
+  }
+
+  /**
+   * Take a snapshot of the paused program's state.
+   *
+   * @param capture The part of the program's state to capture, or empty to capture all of it.
+   * @return The snapshot.
+   * @throws IllegalStateException If the program has ended.
+   */
+  public ExecutionSnapshot snapshot(Optional<CaptureSpec> capture)
+      throws IncompatibleThreadStateException, AbsentInformationException, ClassNotLoadedException {
+    Status.Paused paused = requirePaused();
+    TraceMetrics.SnapshotTimer timer = metrics.timeSnapshot(paused.line());
+    ExecutionSnapshot snapshot =
+        DebugTraceHelper.snapshotTheWorld(
+            pausedThread,
+            loadedClasses,
+            vmOutSink,
+            vmErrSink,
+            sourceIndex,
+            capture,
+            ThreadCapture.BREAKPOINT_THREAD);
+    timer.finish(snapshot);
+    return snapshot;
+  }
+
+  /**
+   * Take a shallow snapshot of the paused program's state, which only converts the objects within a
+   * few references of its stack frames and static fields, no matter how big its heap is. The
+   * objects past that are {@linkplain TraceValue.Unexpanded unexpanded}, and can be {@linkplain
+   * #fetch(long, int) fetched} until the program runs again.
+   *
+   * @param maxDepth The maximum number of references to follow from the stack frames and static
+   *     fields. At 0, only the objects that they refer to directly are converted.
+   * @return The snapshot.
+   * @throws IllegalStateException If the program has ended.
+   */
+  public ExecutionSnapshot shallowSnapshot(int maxDepth)
+      throws IncompatibleThreadStateException, AbsentInformationException, ClassNotLoadedException {
+    Status.Paused paused = requirePaused();
+    TraceMetrics.SnapshotTimer timer = metrics.timeSnapshot(paused.line());
+    ExecutionSnapshot snapshot =
+        DebugTraceHelper.snapshotShallow(
+            pausedThread, loadedClasses, vmOutSink, vmErrSink, sourceIndex, maxDepth, unexpanded);
+    timer.finish(snapshot);
+    return snapshot;
+  }
+
+  /**
+   * Convert an object that a shallow snapshot left unexpanded, along with the objects near it. The
+   * objects past those are left unexpanded in turn.
+   *
+   * @param uniqueId The unique ID of the unexpanded object.
+   * @param maxDepth The maximum number of references to follow from the object. At 0, only the
+   *     object itself is converted.
+   * @return The converted objects by unique ID.
+   * @throws IllegalArgumentException If the object isn't unexpanded, such as when it was already
+   *     fetched or the program ran since the snapshot.
+   * @throws IllegalStateException If the program has ended.
+   */
+  public Map<Long, TraceValue> fetch(long uniqueId, int maxDepth) {
+    requirePaused();
+    ObjectReference object = unexpanded.get(uniqueId);
+    if (object == null) {
+      throw new IllegalArgumentException(
+          "Object " + uniqueId + " isn't waiting to be fetched from a shallow snapshot.");
+    }
+    return DebugTraceHelper.expand(pausedThread, object, maxDepth, unexpanded);
+  }
+
+  /** Kill the program if it is still running, and delete its compiled classes. */
+  @Override
+  public void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    try {
+      vm.process().destroyForcibly();
+      vm.process().waitFor();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      metrics.addOutputBytes(watchdog.outputBytes());
+      compilationResult.close();
+    }
+  }
+
+  /**
+   * Make sure that the program is paused, so that it can be inspected or told to run.
+   *
+   * @return Where the program is paused.
+   * @throws IllegalStateException If the program has ended.
+   */
+  private Status.Paused requirePaused() {
+    if (status instanceof Status.Paused paused) {
+      return paused;
+    }
+    throw new IllegalStateException("The program has ended.");
+  }
+
+  /**
+   * Resume the program and handle its events until it pauses or ends.
+   *
+   * @return Where the program paused, or that it has ended.
+   */
+  private Status run() throws InterruptedException {
+    EventRequestManager eventRequestManager = vm.eventRequestManager();
+    // the objects can change or be collected once the program runs
+    unexpanded.values().forEach(ObjectReference::enableCollection);
+    unexpanded.clear();
+    if (pausedEvents != null) {
+      EventSet events = pausedEvents;
+      pausedEvents = null;
+      pausedThread = null;
+      events.resume();
+    }
+
+    watchdog.restartWallClock();
+    try {
+      while (true) {
+        Optional<TraceResult.Termination> termination = watchdog.check();
+        if (termination.isPresent()) {
+          return end(termination);
+        }
+
+        EventSet eventSet =
+            metrics.time(
+                TraceMetrics.Phase.EVENT_WAIT, () -> vm.eventQueue().remove(watchdog.pollMillis()));
+        if (eventSet == null) {
+          continue;
+        }
+
+        Location pauseLocation = null;
+        ThreadReference pauseThread = null;
+        for (Event event : eventSet) {
+          switch (event) {
+            case ClassPrepareEvent cpe -> prepare(cpe.referenceType());
+            case BreakpointEvent bpe -> {
+              if (bpe.request().getProperty(DebugTraceHelper.MAIN_ENTRY) != null) {
+                eventRequestManager.deleteEventRequest(bpe.request());
+              } else {
+                watchdog.countBreakpointHit();
+                metrics.countBreakpointHit();
+              }
+              pauseLocation = bpe.location();
+              pauseThread = bpe.thread();
+            }
+            case StepEvent se -> {
+              pauseLocation = se.location();
+              pauseThread = se.thread();
+            }
+            case VMDeathEvent vde -> {
+              return end(watchdog.checkExit(vm.process()));
+            }
+            case VMDisconnectEvent vde -> {
+              return end(watchdog.checkExit(vm.process()));
+            }
+            default -> {}
+          }
+        }
+
+        if (pauseLocation != null) {
+          // a step that was cut short by a breakpoint would otherwise still fire later
+          eventRequestManager.deleteEventRequests(eventRequestManager.stepRequests());
+          pausedEvents = eventSet;
+          pausedThread = pauseThread;
+          status = new Status.Paused(pauseLocation.lineNumber(), pauseLocation.method().name());
+          return status;
+        }
+        eventSet.resume();
+      }
+    } catch (VMDisconnectedException e) {
+      return end(watchdog.checkExit(vm.process()));
+    }
+  }
+
+  /**
+   * Arm the breakpoints and the main entry request that belong in a newly prepared class.
+   *
+   * @param type The class that was prepared.
+   */
+  private void prepare(ReferenceType type) {
+    if (!compilationResult.compiledClassNames().contains(type.name())) {
+      return;
+    }
+    loadedClasses.add(type);
+    if (DebugTraceHelper.isInSource(type, compilationResult.mainSourcePath())) {
+      sourceClasses.add(type);
+      breakpoints.forEach((line, requests) -> arm(type, line).ifPresent(requests::add));
+    }
+    if (type.name().equals(compilationResult.mainClass())) {
+      for (Method main : type.methodsByName("main", DebugTraceHelper.MAIN_JNI_SIGNATURE)) {
+        BreakpointRequest request =
+            vm.eventRequestManager().createBreakpointRequest(main.location());
+        request.putProperty(DebugTraceHelper.MAIN_ENTRY, true);
+        request.setSuspendPolicy(EventRequest.SUSPEND_ALL);
+        request.enable();
+      }
+    }
+  }
+
+  /**
+   * Break at the first location of a line in a class.
+   *
+   * @param type The class.
+   * @param line The line to break at.
+   * @return The enabled request, or empty if the line isn't in the class.
+   */
+  private Optional<BreakpointRequest> arm(ReferenceType type, int line) {
+    try {
+      Optional<Location> location =
+          type.allLineLocations().stream().filter(l -> l.lineNumber() == line).findFirst();
+      return location.map(
+          l -> {
+            BreakpointRequest request = vm.eventRequestManager().createBreakpointRequest(l);
+            // snapshots need the whole program to hold still while its state is read
+            request.setSuspendPolicy(EventRequest.SUSPEND_ALL);
+            request.enable();
+            return request;
+          });
+    } catch (AbsentInformationException e) {
+      return Optional.empty();
+    }
+  }
+
+  /**
+   * Kill the program, since it ended or exceeded its budget.
+   *
+   * @param termination Why the program was killed, or empty if it finished on its own.
+   * @return That the program has ended.
+   */
+  private Status end(Optional<TraceResult.Termination> termination) throws InterruptedException {
+    vm.process().destroyForcibly();
+    vm.process().waitFor();
+    pausedEvents = null;
+    pausedThread = null;
+    unexpanded.clear();
+    // breakpoints can still be changed, but there is nothing left to arm them in
+    sourceClasses.clear();
+    status = new Status.Ended(termination);
+    return status;
+  }
+}
@@ -159,10 +159,12 @@ public sealed interface TraceValue {
       ThreadReference mainThread,
       ArrayReference arrayReference,
       Optional<java.util.List<ObjectReference>> outEncounteredReferences) {
-    java.util.List<TraceValue> tvs = new ArrayList<>(arrayReference.length());
+    // one command reads every element
+    java.util.List<Value> elements = arrayReference.getValues();
+    java.util.List<TraceValue> tvs = new ArrayList<>(elements.size());
 
-    for (int i = 0; i < arrayReference.length(); i++) {
-      switch (arrayReference.getValue(i)) {
+    for (Value element : elements) {
+      switch (element) {
         case null -> tvs.add(new Null());
         case PrimitiveValue pv -> tvs.add(Primitive.fromJdiPrimitive(pv));
         case ObjectReference or -> {
@@ -453,4 +455,10 @@ public sealed interface TraceValue {
 
   /** A lambda with reconstructed implementation. */
   record Lambda(java.lang.String implementation) implements TraceValue {}
+
+  /**
+   * An object that was too far from a shallow snapshot's roots to be converted. Its contents can be
+   * fetched by its unique ID while the program stays paused.
+   */
+  record Unexpanded(java.lang.String classFqn) implements TraceValue {}
 }
@@ -0,0 +1,229 @@
+package cs1302.tracer.trace;
+
+import cs1302.tracer.trace.TraceResult.Reason;
+import cs1302.tracer.trace.TraceResult.Termination;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps track of the resources that a traced program has used and decides when the program has
+ * exceeded its {@link TraceBudget}.
+ */
+final class TraceWatchdog {
+
+  /**
+   * The longest time to wait for an event before checking the budget again, in milliseconds. This
+   * bounds how long a program that doesn't produce any events can run past its budget.
+   */
+  private static final long POLL_MILLIS = 100;
+
+  /**
+   * The status that a JVM started with {@code -XX:+ExitOnOutOfMemoryError} exits with when it runs
+   * out of memory.
+   */
+  private static final int OUT_OF_MEMORY_EXIT_STATUS = 3;
+
+  private final TraceBudget budget;
+
+  /**
+   * The value of {@link System#nanoTime()} when the wall-clock budget runs out. Only meaningful if
+   * there is a wall-clock budget.
+   */
+  private long deadline;
+
+  private final AtomicLong outputBytes = new AtomicLong();
+
+  private long breakpointHits = 0;
+
+  /**
+   * Start watching a program. The wall-clock budget starts counting down immediately.
+   *
+   * @param budget The program's budget.
+   */
+  TraceWatchdog(TraceBudget budget) {
+    this.budget = budget;
+    restartWallClock();
+  }
+
+  /**
+   * Give the program its whole wall-clock budget again, starting now. A trace session uses this
+   * each time it lets a paused program run, since the program doesn't run while it waits for its
+   * next command.
+   */
+  void restartWallClock() {
+    deadline = System.nanoTime() + budget.wallClock().map(Duration::toNanos).orElse(0L);
+  }
+
+  /**
+   * Get the options that a program's JVM must be started with to enforce its budget, after the ones
+   * of its launch profile.
+   *
+   * @param budget The program's budget.
+   * @return The JVM options.
+   */
+  static List<String> vmOptions(TraceBudget budget) {
+    List<String> options = new ArrayList<>(budget.launchProfile().vmOptions());
+    budget
+        .maxHeapSize()
+        .ifPresent(size -> options.addAll(List.of("-Xmx" + size, "-XX:+ExitOnOutOfMemoryError")));
+    return options;
+  }
+
+  /**
+   * Copy one of the program's output streams into a sink on a new thread, counting the bytes
+   * against the output budget. Output past the budget is read but discarded, so the program never
+   * blocks on a full pipe. Readers of the sink must synchronize on it.
+   *
+   * @param source The output stream of the program's process.
+   * @return The sink that the output is copied into.
+   */
+  ByteArrayOutputStream capture(InputStream source) {
+    long maxOutputBytes = budget.maxOutputBytes().orElse(Long.MAX_VALUE);
+    ByteArrayOutputStream sink = new ByteArrayOutputStream();
+    Thread.ofVirtual()
+        .start(
+            () -> {
+              byte[] buffer = new byte[8192];
+              try {
+                int read;
+                while ((read = source.read(buffer)) != -1) {
+                  long previousBytes = outputBytes.getAndAdd(read);
+                  int kept = (int) Math.min(read, Math.max(0, maxOutputBytes - previousBytes));
+                  if (kept > 0) {
+                    synchronized (sink) {
+                      sink.write(buffer, 0, kept);
+                    }
+                  }
+                }
+              } catch (IOException ioe) {
+                // the stream is closed when the program is killed
+              }
+            });
+    return sink;
+  }
+
+  /**
+   * Get the number of bytes that the program has printed so far, including output past the budget.
+   *
+   * @return The number of output bytes.
+   */
+  long outputBytes() {
+    return outputBytes.get();
+  }
+
+  /**
+   * Record how many bytes a program that doesn't print through its process's pipes, like one in a
+   * {@linkplain TenantHost shared JVM}, has printed so far.
+   *
+   * @param bytes The number of output bytes, including output past the budget.
+   */
+  void updateOutputBytes(long bytes) {
+    outputBytes.set(bytes);
+  }
+
+  /** Record that the program reached a breakpoint. */
+  void countBreakpointHit() {
+    breakpointHits++;
+  }
+
+  /**
+   * Get how long to wait for the program's next event before checking the budget again.
+   *
+   * @return The time to wait in milliseconds, which is always positive.
+   */
+  long pollMillis() {
+    if (budget.wallClock().isEmpty()) {
+      return POLL_MILLIS;
+    }
+    long remainingMillis = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+    return Math.max(1, Math.min(POLL_MILLIS, remainingMillis));
+  }
+
+  /**
+   * Check whether the program has exceeded its budget while it is running.
+   *
+   * @return Why the program should be killed, or empty if it is still within its budget. The
+   *     termination never has a last state.
+   */
+  Optional<Termination> check() {
+    if (budget.wallClock().isPresent() && System.nanoTime() - deadline >= 0) {
+      Duration wallClock = budget.wallClock().get();
+      return terminate(
+          Reason.WALL_CLOCK,
+          String.format(
+              "Stopped after running for more than %.1f seconds.", wallClock.toMillis() / 1000.0));
+    }
+    if (budget.maxBreakpointHits().isPresent()
+        && breakpointHits >= budget.maxBreakpointHits().getAsLong()) {
+      return terminate(
+          Reason.BREAKPOINT_HITS,
+          String.format("Stopped after reaching breakpoints %d times.", breakpointHits));
+    }
+    if (budget.maxOutputBytes().isPresent()
+        && outputBytes.get() > budget.maxOutputBytes().getAsLong()) {
+      return terminate(
+          Reason.OUTPUT,
+          String.format(
+              "Stopped after printing more than %d bytes of output.",
+              budget.maxOutputBytes().getAsLong()));
+    }
+    return Optional.empty();
+  }
+
+  /**
+   * Check whether a program that ended on its own did so because it exceeded its budget.
+   *
+   * @param process The program's process.
+   * @return Why the program ended, or empty if it ended normally. The termination never has a last
+   *     state.
+   */
+  Optional<Termination> checkExit(Process process) throws InterruptedException {
+    if (budget.maxHeapSize().isPresent()
+        && process.waitFor(POLL_MILLIS * 10, TimeUnit.MILLISECONDS)
+        && process.exitValue() == OUT_OF_MEMORY_EXIT_STATUS) {
+      return terminate(
+          Reason.HEAP,
+          String.format(
+              "Stopped after running out of memory with a maximum heap size of %s.",
+              budget.maxHeapSize().get()));
+    }
+    return checkOutputCutShort();
+  }
+
+  /**
+   * Check whether a program that ended on its own printed more than its output budget.
+   *
+   * @return Why the program's output was cut short, or empty if it wasn't. The termination never
+   *     has a last state.
+   */
+  Optional<Termination> checkOutputCutShort() {
+    if (budget.maxOutputBytes().isPresent()
+        && outputBytes.get() > budget.maxOutputBytes().getAsLong()) {
+      // the output budget is only checked between events, so the program might have finished
+      // before the check. its output was still cut short
+      return terminate(
+          Reason.OUTPUT,
+          String.format(
+              "Output was cut short after %d bytes.", budget.maxOutputBytes().getAsLong()));
+    }
+    return Optional.empty();
+  }
+
+  /**
+   * Create a termination without a last state.
+   *
+   * @param reason The budget that was exceeded.
+   * @param message A description of why the program was killed.
+   * @return The termination.
+   */
+  private static Optional<Termination> terminate(Reason reason, String message) {
+    return Optional.of(new Termination(reason, message, Optional.empty()));
+  }
+}
@@ -1,16 +1,60 @@
 package cs1302.tracer;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.github.javaparser.StaticJavaParser;
 import cs1302.tracer.App.CommandBase;
+import cs1302.tracer.serialize.PyTutorSerializer;
+import cs1302.tracer.trace.CaptureSpec;
+import cs1302.tracer.trace.DebugTraceHelper;
+import cs1302.tracer.trace.DebuggeeHostPool;
+import cs1302.tracer.trace.ExecutionSnapshot;
+import cs1302.tracer.trace.LaunchProfile;
+import cs1302.tracer.trace.ProgramInput;
+import cs1302.tracer.trace.SharedArchive;
+import cs1302.tracer.trace.ThreadCapture;
+import cs1302.tracer.trace.TraceBudget;
+import cs1302.tracer.trace.TraceMetrics;
+import cs1302.tracer.trace.TraceRecording;
+import cs1302.tracer.trace.TraceResult;
+import cs1302.tracer.trace.TraceSession;
+import cs1302.tracer.trace.TraceValue;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Function;
 import java.util.function.Supplier;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import javax.tools.ToolProvider;
+import org.json.JSONArray;
+import org.json.JSONObject;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 import org.skyscreamer.jsonassert.JSONAssert;
 import org.skyscreamer.jsonassert.JSONCompareMode;
 import picocli.CommandLine;
@@ -202,4 +246,1434 @@ public class AppTest {
 
     JSONAssert.assertEquals(expectedOutput, output, JSONCompareMode.STRICT_ORDER);
   }
+
+  /** Ensure that only the requested paths are captured when --capture is used. */
+  @Test
+  public void testCaptureRestrictsSnapshot() {
+    String testProgram =
+        """
+        public class Main {
+          static int count = 3;
+          public static void main(String[] args) {
+            Node list = new Node(1, new Node(2, new Node(3, null)));
+            int i = 5;
+            System.out.println(list.value + i);
+          }
+        }
+
+        class Node {
+          int value;
+          Node next;
+          Node(int value, Node next) { this.value = value; this.next = next; }
+        }
+        """;
+
+    String output =
+        executeCommand(
+                App.Trace::new,
+                testProgram,
+                "-b",
+                "6",
+                "--capture=6=list.next,i,Main.count",
+                "--capture-depth=0")
+            .get();
+
+    String expectedOutput =
+        """
+        {
+          "6": {
+            "trace": [
+              {
+                "ordered_globals": ["Main.count"],
+                "globals": {"Main.count": 3},
+                "stack_to_render": [
+                  {
+                    "ordered_varnames": ["list.next", "i"],
+                    "encoded_locals": {"i": 5}
+                  }
+                ]
+              }
+            ]
+          }
+        }
+        """;
+
+    JSONAssert.assertEquals(expectedOutput, output, JSONCompareMode.STRICT_ORDER);
+
+    // the second node is captured in full and the third is only a stub because of the depth limit
+    JSONObject heap =
+        new JSONObject(output)
+            .getJSONObject("6")
+            .getJSONArray("trace")
+            .getJSONObject(0)
+            .getJSONObject("heap");
+    assertEquals(2, heap.length());
+
+    // a path that starts with a name that doesn't exist is a mistake, not a capture of nothing
+    TraceOptions options =
+        TraceOptions.DEFAULT
+            .withBreakpoints(List.of(6))
+            .withCaptures(Map.of(6, CaptureSpec.parse("nosuch.next", 0)));
+    IllegalArgumentException e =
+        assertThrows(IllegalArgumentException.class, () -> new Tracer(options).trace(testProgram));
+    assertTrue(e.getMessage().contains("nosuch.next"), e.getMessage());
+  }
+
+  /** Ensure that hit policies select which times a breakpoint is snapshotted. */
+  @Test
+  public void testHitPolicySelectsHits() {
+    String testProgram =
+        """
+        public class Main {
+          public static void main(String[] args) {
+            int total = 0;
+            for (int i = 1; i <= 10; i++) {
+              total += i;
+            }
+          }
+        }
+        """;
+
+    String output =
+        executeCommand(
+                App.Trace::new,
+                testProgram,
+                "-b",
+                "5",
+                "--hits=5=every:3",
+                "--accumulate-breakpoints")
+            .get();
+
+    String expectedOutput =
+        """
+        {
+          "5": [
+            {"trace": [{"stack_to_render": [{"encoded_locals": {"i": 3}}]}]},
+            {"trace": [{"stack_to_render": [{"encoded_locals": {"i": 6}}]}]},
+            {"trace": [{"stack_to_render": [{"encoded_locals": {"i": 9}}]}]}
+          ]
+        }
+        """;
+
+    JSONAssert.assertEquals(expectedOutput, output, JSONCompareMode.STRICT_ORDER);
+  }
+
+  /**
+   * Ensure that the end of main is snapshotted when main returns early from a recursive program.
+   */
+  @Test
+  public void testMainEndSnapshotWithEarlyReturn() {
+    String testProgram =
+        """
+        public class Main {
+          static int fib(int n) {
+            return n < 2 ? n : fib(n - 1) + fib(n - 2);
+          }
+
+          public static void main(String[] args) {
+            int r = fib(15);
+            if (r > 100) {
+              return;
+            }
+            System.out.println("small");
+          }
+        }
+        """;
+
+    String output = executeCommand(App.Trace::new, testProgram, "--remove-main-args").get();
+
+    String expectedOutput =
+        """
+        {
+          "trace": [
+            {
+              "line": 9,
+              "stdout": "",
+              "stack_to_render": [{"encoded_locals": {"r": 610}}]
+            }
+          ]
+        }
+        """;
+
+    JSONAssert.assertEquals(expectedOutput, output, JSONCompareMode.STRICT_ORDER);
+  }
+
+  /** Ensure that breakpoints in different classes are all registered. */
+  @Test
+  public void testBreakpointsInMultipleClasses() {
+    String testProgram =
+        """
+        public class Main {
+          public static void main(String[] args) {
+            int a = 1;
+            Helper.go();
+            int b = 2;
+          }
+        }
+
+        class Helper {
+          static void go() {
+            int z = 9;
+            System.out.println(z);
+          }
+        }
+        """;
+
+    String output = executeCommand(App.Trace::new, testProgram, "-b", "12", "-b", "5").get();
+
+    String expectedOutput =
+        """
+        {
+          "5": {"trace": [{"line": 5}]},
+          "12": {"trace": [{"line": 12}]}
+        }
+        """;
+
+    JSONAssert.assertEquals(expectedOutput, output, JSONCompareMode.STRICT_ORDER);
+  }
+
+  /** Ensure that a program that never ends is stopped and the trace says why. */
+  @Test
+  public void testRunawayProgramStopped() {
+    String testProgram =
+        """
+        public class Main {
+          public static void main(String[] args) {
+            long n = 0;
+            while (true) {
+              n++;
+            }
+          }
+        }
+        """;
+
+    String output =
+        executeCommand(App.Trace::new, testProgram, "--remove-main-args", "--timeout", "1").get();
+
+    // the program's state where it was stopped comes before the reason it was stopped
+    JSONArray trace = new JSONObject(output).getJSONArray("trace");
+    assertEquals(2, trace.length());
+    assertEquals("step_line", trace.getJSONObject(0).getString("event"));
+    assertEquals("instruction_limit_reached", trace.getJSONObject(1).getString("event"));
+    assertEquals("wall_clock", trace.getJSONObject(1).getString("termination_reason"));
+  }
+
+  /** Ensure that a batch traces each program in a directory into its own file. */
+  @Test
+  public void testTraceBatchWritesOneTracePerProgram(@TempDir Path tempDir) throws IOException {
+    Path inputDir = Files.createDirectories(tempDir.resolve("in/student"));
+    for (String name : List.of("First", "Second")) {
+      Files.writeString(
+          inputDir.resolve(name + ".java"),
+          """
+          public class %s {
+            public static void main(String[] args) {
+              int x = %d;
+            }
+          }
+          """
+              .formatted(name, name.length()));
+    } // for
+
+    Path outputDir = tempDir.resolve("out");
+    int exitCode =
+        new CommandLine(new App.TraceBatch())
+            .execute("-o", outputDir.toString(), tempDir.resolve("in").toString());
+    assertEquals(0, exitCode);
+
+    for (String name : List.of("First", "Second")) {
+      String output = Files.readString(outputDir.resolve("student/" + name + ".json"));
+      String expectedOutput =
+          """
+          {"trace": [{"line": 4, "stack_to_render": [{"encoded_locals": {"x": %d}}]}]}
+          """
+              .formatted(name.length());
+      JSONAssert.assertEquals(expectedOutput, output, JSONCompareMode.STRICT_ORDER);
+    } // for
+  }
+
+  /** Ensure that one tracer can run several traces at once in the same JVM. */
+  @Test
+  public void testTracerRunsConcurrently() throws Exception {
+    Tracer tracer =
+        new Tracer(
+            TraceOptions.DEFAULT
+                .withBreakpoints(List.of(4))
+                .withSerializer(new PyTutorSerializer(true, false, false)));
+
+    List<Future<TraceResult>> traces = new ArrayList<>();
+    try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+      for (int i = 0; i < 4; i++) {
+        String testProgram =
+            """
+            public class Main {
+              public static void main(String[] args) {
+                int x = %d;
+                System.out.println(x);
+              }
+            }
+            """
+                .formatted(i);
+        traces.add(executor.submit(() -> tracer.trace(testProgram)));
+      } // for
+    } // try
+
+    for (int i = 0; i < traces.size(); i++) {
+      ExecutionSnapshot snapshot = traces.get(i).get().snapshots().get(4).getLast();
+      assertEquals(
+          new TraceValue.Primitive.Integer(i),
+          snapshot.stack().getLast().visibleVariables().getLast().value());
+    } // for
+  }
+
+  /** Ensure that one compiled program can be traced with many arguments and stdins at once. */
+  @Test
+  public void testTraceFansOutOverInputs() throws Exception {
+    String testProgram =
+        """
+        import java.util.Scanner;
+
+        public class Main {
+          public static void main(String[] args) {
+            Scanner in = new Scanner(System.in);
+            int total = 0;
+            while (in.hasNextInt()) {
+              total += in.nextInt();
+            }
+            System.out.print(String.join(",", args) + "=" + total);
+          }
+        }
+        """;
+    Tracer tracer = new Tracer(TraceOptions.DEFAULT);
+    List<ProgramInput> inputs =
+        List.of(
+            new ProgramInput(List.of("a"), "1 2 3"),
+            new ProgramInput(List.of("b", "c"), "40\n2\n"),
+            ProgramInput.NONE);
+
+    List<TraceResult> results = tracer.trace(testProgram, inputs, 2, new TraceMetrics());
+    List<String> expectedStdout = List.of("a=6", "b,c=42", "=0");
+    assertEquals(inputs.size(), results.size());
+    for (int i = 0; i < results.size(); i++) {
+      JSONObject serialized =
+          tracer.serialize(testProgram, inputs.get(i), results.get(i), new TraceMetrics());
+      assertEquals(inputs.get(i).stdin(), serialized.getString("stdin"));
+      assertEquals(
+          expectedStdout.get(i),
+          serialized.getJSONArray("trace").getJSONObject(0).getString("stdout"));
+    } // for
+
+    // different inputs are different traces
+    assertNotEquals(
+        TraceCache.key(testProgram, inputs.get(0), TraceOptions.DEFAULT),
+        TraceCache.key(testProgram, inputs.get(1), TraceOptions.DEFAULT));
+  }
+
+  /**
+   * Ensure that a program that doesn't compile while its JVMs are starting fails the trace without
+   * leaving those JVMs or its working directory behind.
+   */
+  @Test
+  public void testFailedCompilationStopsLaunchedJvms() throws Exception {
+    String testProgram =
+        """
+        public class Main {
+          public static void main(String[] args) {
+            int x = "not a number";
+          }
+        }
+        """;
+    Set<Long> debuggeesBefore = debuggees();
+    Set<Path> workingDirsBefore = workingDirs();
+    Tracer tracer = new Tracer(TraceOptions.DEFAULT);
+
+    IllegalArgumentException single =
+        assertThrows(IllegalArgumentException.class, () -> tracer.trace(testProgram));
+    assertTrue(single.getMessage().contains("incompatible types"), single.getMessage());
+    IllegalArgumentException batch =
+        assertThrows(
+            IllegalArgumentException.class,
+            () ->
+                tracer.trace(
+                    testProgram,
+                    List.of(ProgramInput.NONE, ProgramInput.NONE, ProgramInput.NONE),
+                    2,
+                    new TraceMetrics()));
+    assertTrue(batch.getMessage().contains("incompatible types"), batch.getMessage());
+
+    // the JVMs are killed as soon as they finish starting, which may be after the trace failed
+    long deadline = System.nanoTime() + Duration.ofSeconds(30).toNanos();
+    Set<Long> leftover = debuggees();
+    leftover.removeAll(debuggeesBefore);
+    while (!leftover.isEmpty() && System.nanoTime() < deadline) {
+      Thread.sleep(100);
+      leftover = debuggees();
+      leftover.removeAll(debuggeesBefore);
+    } // while
+    assertEquals(Set.of(), leftover);
+    Set<Path> leftoverDirs = workingDirs();
+    leftoverDirs.removeAll(workingDirsBefore);
+    assertEquals(Set.of(), leftoverDirs);
+  }
+
+  /**
+   * Ensure that programs traced in a shared JVM don't see each other's static fields, and that a
+   * program that exits the JVM gets a new one without affecting the next trace.
+   */
+  @Test
+  public void testSharedJvmsIsolatePrograms() throws Exception {
+    String testProgram =
+        """
+        public class Main {
+          static int runs = 0;
+
+          public static void main(String[] args) {
+            runs++;
+            System.out.print(args[0] + runs);
+            if (args[0].equals("exit")) {
+              System.exit(0);
+            }
+          }
+        }
+        """;
+    List<ProgramInput> inputs =
+        List.of(
+            new ProgramInput(List.of("a"), ""),
+            new ProgramInput(List.of("b"), ""),
+            new ProgramInput(List.of("exit"), ""),
+            new ProgramInput(List.of("c"), ""));
+    try (DebuggeeHostPool hosts = new DebuggeeHostPool(1, Optional.empty())) {
+      Tracer tracer = new Tracer(TraceOptions.DEFAULT.withBreakpoints(List.of(7)), hosts);
+
+      List<TraceResult> results = tracer.trace(testProgram, inputs, 1, new TraceMetrics());
+      List<String> expectedStdout = List.of("a1", "b1", "exit1", "c1");
+      for (int i = 0; i < results.size(); i++) {
+        ExecutionSnapshot snapshot = results.get(i).snapshots().get(7).getLast();
+        assertEquals(expectedStdout.get(i), new String(snapshot.stdout()));
+        assertEquals(
+            new TraceValue.Primitive.Integer(1),
+            snapshot.statics().getFirst().value(),
+            "static state");
+        // the host's own frames are left out
+        assertEquals(1, snapshot.stack().size());
+      } // for
+
+      // the first JVM ran every program until one exited it
+      assertEquals(2, hosts.hostsStarted());
+    } // try
+  }
+
+  /** Ensure that launch profiles tune the JVM and that auto picks one from the last run time. */
+  @Test
+  public void testLaunchProfilesTuneJvm() throws Exception {
+    String testProgram =
+        """
+        import java.lang.management.ManagementFactory;
+
+        public class Main {
+          public static void main(String[] args) {
+            System.out.print(ManagementFactory.getRuntimeMXBean().getInputArguments());
+          }
+        }
+        """;
+    Map<LaunchProfile, String> expectedOptions =
+        Map.of(
+            LaunchProfile.SHORT, "-XX:TieredStopAtLevel=1",
+            LaunchProfile.HEAVY, "-XX:+UseParallelGC",
+            LaunchProfile.AUTO, "-XX:TieredStopAtLevel=1");
+    for (Map.Entry<LaunchProfile, String> expected : expectedOptions.entrySet()) {
+      TraceBudget budget =
+          new TraceBudget(
+              Optional.empty(),
+              OptionalLong.empty(),
+              OptionalLong.empty(),
+              Optional.of("64m"),
+              expected.getKey());
+      TraceResult result = new Tracer(TraceOptions.DEFAULT.withBudget(budget)).trace(testProgram);
+      String vmOptions = new String(result.snapshots().get(-1).getLast().stdout());
+      assertTrue(vmOptions.contains(expected.getValue()), vmOptions);
+      // the budget's heap size wins over the profile's
+      assertTrue(vmOptions.contains("-Xmx64m"), vmOptions);
+    } // for
+
+    // programs that ran for a while get the full JIT, and the parallel collector if it helps
+    assertEquals(LaunchProfile.SHORT, LaunchProfile.AUTO.select(Optional.empty()));
+    assertEquals(
+        LaunchProfile.SHORT, LaunchProfile.AUTO.select(Optional.of(Duration.ofMillis(300))));
+    assertEquals(
+        Runtime.getRuntime().availableProcessors() > 1
+            ? LaunchProfile.HEAVY
+            : LaunchProfile.DEFAULT,
+        LaunchProfile.AUTO.select(Optional.of(Duration.ofSeconds(3))));
+    assertEquals(
+        LaunchProfile.DEFAULT, LaunchProfile.DEFAULT.select(Optional.of(Duration.ofSeconds(3))));
+  }
+
+  /**
+   * Ensure that the stacks of other platform and virtual threads are captured, and that objects
+   * they share with the breakpoint's thread are only output once.
+   */
+  @Test
+  public void testAllThreadsCaptured() {
+    String testProgram =
+        """
+        import java.util.concurrent.CountDownLatch;
+
+        public class Main {
+          static void work(int[] shared, CountDownLatch done) {
+            int length = shared.length;
+            try {
+              done.await();
+            } catch (InterruptedException e) {
+              return;
+            }
+          }
+
+          public static void main(String[] args) throws InterruptedException {
+            int[] shared = {1, 2, 3};
+            CountDownLatch done = new CountDownLatch(1);
+            Thread platform =
+                Thread.ofPlatform().name("platform-worker").start(() -> work(shared, done));
+            Thread virtual =
+                Thread.ofVirtual().name("virtual-worker").start(() -> work(shared, done));
+            while (platform.getState() != Thread.State.WAITING
+                || virtual.getState() != Thread.State.WAITING) {
+              Thread.sleep(1);
+            }
+            done.countDown();
+            platform.join();
+            virtual.join();
+          }
+        }
+        """;
+
+    JSONObject step =
+        new JSONObject(executeCommand(App.Trace::new, testProgram, "-b", "24", "--threads").get())
+            .getJSONObject("24")
+            .getJSONArray("trace")
+            .getJSONObject(0);
+    Object mainShared =
+        step.getJSONArray("stack_to_render")
+            .getJSONObject(0)
+            .getJSONObject("encoded_locals")
+            .get("shared");
+
+    JSONArray threads = step.getJSONArray("threads");
+    assertEquals(2, threads.length(), threads.toString());
+    for (int i = 0; i < threads.length(); i++) {
+      JSONObject thread = threads.getJSONObject(i);
+      String name = thread.getString("name");
+      assertEquals(name.equals("virtual-worker"), thread.getBoolean("virtual"), name);
+      assertEquals("WAITING", thread.getString("state"), name);
+      // only the program's own frames are kept: the lambda, and work on top of it
+      JSONArray stack = thread.getJSONArray("stack_to_render");
+      assertEquals(2, stack.length(), stack.toString());
+      JSONObject top = stack.getJSONObject(1);
+      assertEquals("work:7", top.getString("func_name"));
+      assertEquals(3, top.getJSONObject("encoded_locals").getInt("length"));
+      assertEquals(
+          mainShared.toString(), top.getJSONObject("encoded_locals").get("shared").toString());
+    } // for
+
+    JSONObject filtered =
+        new JSONObject(
+                executeCommand(
+                        App.Trace::new,
+                        testProgram,
+                        "-b",
+                        "24",
+                        "--threads",
+                        "--thread-filter",
+                        "virtual-.*")
+                    .get())
+            .getJSONObject("24")
+            .getJSONArray("trace")
+            .getJSONObject(0);
+    assertEquals(1, filtered.getJSONArray("threads").length());
+    assertEquals(
+        "virtual-worker", filtered.getJSONArray("threads").getJSONObject(0).getString("name"));
+
+    // only stopping the breakpoint's thread still snapshots it, but can't capture the others
+    JSONObject threadOnly =
+        new JSONObject(
+                executeCommand(App.Trace::new, testProgram, "-b", "24", "--suspend", "THREAD")
+                    .get())
+            .getJSONObject("24")
+            .getJSONArray("trace")
+            .getJSONObject(0);
+    assertEquals(24, threadOnly.getInt("line"));
+    assertTrue(!threadOnly.has("threads"));
+    assertThrows(
+        IllegalArgumentException.class,
+        () -> new ThreadCapture(true, Optional.empty(), ThreadCapture.SuspendPolicy.THREAD));
+  }
+
+  /**
+   * Ensure that a program that crashes is snapshotted where the exception was thrown, and that the
+   * exceptions it catches can be snapshotted instead.
+   */
+  @Test
+  public void testExceptionSnapshotted() throws Exception {
+    String testProgram =
+        """
+        import java.util.ArrayList;
+        import java.util.List;
+
+        public class Main {
+          static int pick(List<Integer> list, int i) {
+            return list.get(i);
+          }
+
+          public static void main(String[] args) {
+            List<Integer> list = new ArrayList<>(List.of(1, 2, 3));
+            try {
+              Integer.parseInt("x");
+            } catch (NumberFormatException e) {
+              System.out.println("caught");
+            }
+            int total = 0;
+            for (int i = 0; i <= list.size(); i++) {
+              total += pick(list, i);
+            }
+            System.out.println(total);
+          }
+        }
+        """;
+
+    // main never returns, so the trace is the crash. the JDK method that threw is left out
+    String output = executeCommand(App.Trace::new, testProgram, "--remove-main-args").get();
+    String expectedOutput =
+        """
+        {
+          "trace": [
+            {
+              "event": "exception",
+              "line": 6,
+              "stdout": "caught\\n",
+              "exception_caught": false,
+              "stack_to_render": [
+                {"func_name": "main:18", "encoded_locals": {"i": 3, "total": 6}},
+                {"func_name": "pick:6", "encoded_locals": {"i": 3}}
+              ]
+            }
+          ]
+        }
+        """;
+    JSONAssert.assertEquals(expectedOutput, output, JSONCompareMode.LENIENT);
+    JSONObject step = new JSONObject(output).getJSONArray("trace").getJSONObject(0);
+    assertEquals(
+        "java.lang.IndexOutOfBoundsException: Index 3 out of bounds for length 3",
+        step.getString("exception_msg"));
+    long exceptionId = step.getJSONArray("exception_value").getLong(1);
+    assertEquals(
+        "java.lang.IndexOutOfBoundsException",
+        step.getJSONObject("heap").getJSONArray(String.valueOf(exceptionId)).getString(1));
+
+    // the older entry point has no end of main to return
+    try (CompilationHelper.CompilationResult compilationResult =
+        CompilationHelper.compile(testProgram)) {
+      assertNull(DebugTraceHelper.trace(compilationResult, StaticJavaParser.parse(testProgram)));
+    }
+
+    // with breakpoints, the exception is a trace of its own
+    output =
+        executeCommand(App.Trace::new, testProgram, "-b", "16", "--exceptions", "CAUGHT").get();
+    expectedOutput =
+        """
+        {
+          "16": {"trace": [{"line": 16, "event": "step_line"}]},
+          "exception": {
+            "trace": [
+              {
+                "event": "exception",
+                "line": 12,
+                "exception_msg": "java.lang.NumberFormatException: For input string: \\"x\\"",
+                "exception_caught": true
+              }
+            ]
+          }
+        }
+        """;
+    JSONAssert.assertEquals(expectedOutput, output, JSONCompareMode.LENIENT);
+  }
+
+  /**
+   * Ensure that a crash is still snapshotted after the program has caught many exceptions, even in
+   * a shared JVM, whose host catches whatever escapes the program.
+   */
+  @Test
+  public void testCrashSnapshottedAfterManyCaughtExceptions() throws Exception {
+    String testProgram =
+        """
+        public class Main {
+          public static void main(String[] args) {
+            int bad = 0;
+            for (int i = 0; i < 100; i++) {
+              try {
+                Integer.parseInt("x" + i);
+              } catch (NumberFormatException e) {
+                bad++;
+              }
+            }
+            System.out.print(bad);
+            Object crash = null;
+            crash.toString();
+          }
+        }
+        """;
+    TraceResult ownJvm = new Tracer(TraceOptions.DEFAULT).trace(testProgram);
+    TraceResult sharedJvm;
+    try (DebuggeeHostPool hosts = new DebuggeeHostPool(1, Optional.empty())) {
+      sharedJvm = new Tracer(TraceOptions.DEFAULT, hosts).trace(testProgram);
+    } // try
+
+    for (TraceResult result : List.of(ownJvm, sharedJvm)) {
+      TraceResult.Thrown thrown = result.exception().orElseThrow();
+      assertEquals("java.lang.NullPointerException", thrown.typeName());
+      assertEquals(false, thrown.caught());
+      assertEquals(13, thrown.snapshot().stack().getLast().methodLine());
+      assertEquals("100", new String(thrown.snapshot().stdout()));
+    } // for
+  }
+
+  /** Ensure that lines are counted exactly up to the threshold, and sampled after that. */
+  @Test
+  public void testLineCounts() {
+    String testProgram =
+        """
+        public class Main {
+          static int square(int x) {
+            return x * x;
+          }
+
+          public static void main(String[] args) {
+            int total = 0;
+            for (int i = 0; i < 30; i++) {
+              total += square(i);
+            }
+            if (total < 0) {
+              System.out.println(total);
+            }
+          }
+        }
+        """;
+
+    // a loop's header runs once more than its body, to find that the loop is done
+    String output = executeCommand(App.Trace::new, testProgram, "--line-counts").get();
+    String expectedOutput =
+        """
+        {
+          "line_counts": {
+            "hits": {"3": 30, "7": 1, "8": 31, "9": 30, "11": 1, "12": 0, "14": 1},
+            "estimated": []
+          }
+        }
+        """;
+    JSONAssert.assertEquals(expectedOutput, output, JSONCompareMode.LENIENT);
+
+    // every 10th hit of the hot lines is counted, and each one counts for 10
+    output =
+        executeCommand(
+                App.Trace::new,
+                testProgram,
+                "--line-counts",
+                "--line-count-threshold",
+                "10",
+                "-b",
+                "11")
+            .get();
+    expectedOutput =
+        """
+        {
+          "11": {"trace": [{"line": 11}]},
+          "line_counts": {
+            "hits": {"3": 30, "7": 1, "8": 30, "9": 30, "11": 1, "12": 0, "14": 1},
+            "estimated": [3, 8, 9]
+          }
+        }
+        """;
+    JSONAssert.assertEquals(expectedOutput, output, JSONCompareMode.LENIENT);
+  }
+
+  /** Ensure that a loop that fits on one line is counted every time it goes around. */
+  @Test
+  public void testLineCountsFollowOneLineLoops() {
+    String testProgram =
+        """
+        import java.util.ArrayList;
+        import java.util.List;
+
+        public class Main {
+          public static void main(String[] args) {
+            List<Integer> big = new ArrayList<>();
+            for (int k = 0; k < 100; k++) big.add(k);
+            System.out.println(big.size());
+          }
+        }
+        """;
+
+    String output = executeCommand(App.Trace::new, testProgram, "--line-counts").get();
+    String expectedOutput =
+        """
+        {"line_counts": {"hits": {"6": 1, "7": 101, "8": 1}, "estimated": []}}
+        """;
+    JSONAssert.assertEquals(expectedOutput, output, JSONCompareMode.LENIENT);
+
+    output =
+        executeCommand(App.Trace::new, testProgram, "--line-counts", "--line-count-threshold", "10")
+            .get();
+    expectedOutput =
+        """
+        {"line_counts": {"hits": {"6": 1, "7": 100, "8": 1}, "estimated": [7]}}
+        """;
+    JSONAssert.assertEquals(expectedOutput, output, JSONCompareMode.LENIENT);
+  }
+
+  /** Ensure that concurrent requests for the same trace share one trace. */
+  @Test
+  public void testTraceCacheSharesIdenticalTraces() throws Exception {
+    String testProgram =
+        """
+        public class Main {
+          public static void main(String[] args) {
+            int x = 42;
+          }
+        }
+        """;
+    Tracer tracer = new Tracer(TraceOptions.DEFAULT);
+    TraceCache cache = new TraceCache(8, Optional.empty());
+
+    List<Future<TraceCache.CachedTrace>> traces = new ArrayList<>();
+    try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+      for (int i = 0; i < 3; i++) {
+        traces.add(executor.submit(() -> cache.getOrTrace(tracer, testProgram)));
+      } // for
+    } // try
+    traces.add(CompletableFuture.completedFuture(cache.getOrTrace(tracer, testProgram)));
+
+    // only one request should have actually traced the program
+    assertEquals(1, traces.stream().filter(t -> !t.resultNow().cached()).count());
+    for (Future<TraceCache.CachedTrace> trace : traces) {
+      assertEquals(traces.getFirst().resultNow().json(), trace.resultNow().json());
+    } // for
+  }
+
+  /** Ensure that the scheduler rejects traces once it is full or their deadline passes. */
+  @Test
+  public void testSchedulerRejectsWhenSaturated() throws Exception {
+    TraceScheduler scheduler = new TraceScheduler(1, 1);
+    CountDownLatch running = new CountDownLatch(1);
+    CompletableFuture<Void> release = new CompletableFuture<>();
+
+    try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+      Future<String> first =
+          executor.submit(
+              () ->
+                  scheduler.run(
+                      ChronoUnit.FOREVER.getDuration(),
+                      remaining -> {
+                        running.countDown();
+                        release.join();
+                        return "first";
+                      }));
+      running.await();
+
+      // a trace whose deadline passes while it's queued is rejected
+      assertThrows(
+          RejectedTraceException.class,
+          () -> scheduler.run(Duration.ofMillis(50), remaining -> "late"));
+
+      // the next trace waits in the queue, so the one after it finds the queue full
+      Future<String> second =
+          executor.submit(() -> scheduler.run(Duration.ofMinutes(1), remaining -> "second"));
+      while (scheduler.stats().queued() < 1) {
+        Thread.sleep(10);
+      } // while
+      RejectedTraceException rejected =
+          assertThrows(
+              RejectedTraceException.class,
+              () -> scheduler.run(Duration.ofMinutes(1), remaining -> "third"));
+      assertTrue(rejected.retryAfter().compareTo(Duration.ofSeconds(1)) >= 0);
+
+      release.complete(null);
+      assertEquals("first", first.get());
+      assertEquals("second", second.get());
+    } // try
+
+    TraceScheduler.Stats stats = scheduler.stats();
+    assertEquals(2, stats.admitted());
+    assertEquals(2, stats.rejected());
+    assertEquals(0, stats.running());
+    assertEquals(0, stats.queued());
+  }
+
+  /** Ensure that a trace's metrics count the work it did in each phase. */
+  @Test
+  public void testTraceMetricsCountWork() throws Exception {
+    String testProgram =
+        """
+        import java.util.ArrayList;
+        import java.util.List;
+
+        public class Main {
+          public static void main(String[] args) {
+            List<Integer> xs = new ArrayList<>();
+            for (int i = 0; i < 3; i++) {
+              xs.add(i);
+            }
+            System.out.print("done");
+          }
+        }
+        """;
+    TraceOptions options =
+        TraceOptions.DEFAULT.withBreakpoints(List.of(8)).withAccumulateBreakpoints(true);
+    Tracer tracer = new Tracer(options);
+    TraceMetrics metrics = new TraceMetrics();
+    tracer.serialize(testProgram, tracer.trace(testProgram, metrics), metrics);
+
+    assertEquals(3, metrics.breakpointHits());
+    assertEquals(3, metrics.snapshots());
+    assertEquals(4, metrics.outputBytes());
+    // every snapshot converts the list, which takes a toArray call in the debuggee
+    assertTrue(metrics.invokeMethodCommands() >= 3);
+    assertTrue(metrics.jdwpCommands() > metrics.invokeMethodCommands());
+    assertTrue(metrics.objectsVisited() >= 3);
+    for (TraceMetrics.Phase phase : TraceMetrics.Phase.values()) {
+      assertTrue(metrics.phaseDurations().get(phase).isPositive(), phase.name());
+    } // for
+  }
+
+  /** Ensure that a program compiled ahead of time is traced from its class files or its jar. */
+  @Test
+  public void testPrebuiltProgramSkipsCompilation(@TempDir Path tempDir) throws Exception {
+    Path sources = Files.createDirectories(tempDir.resolve("src/app/util"));
+    Path mainSource = tempDir.resolve("src/app/Main.java");
+    Files.writeString(
+        mainSource,
+        """
+        package app;
+
+        import app.util.Counter;
+
+        public class Main {
+          public static void main(String[] args) {
+            Counter counter = new Counter();
+            counter.add(2);
+            System.out.print(counter.total());
+          }
+        }
+        """);
+    Path counterSource = sources.resolve("Counter.java");
+    Files.writeString(
+        counterSource,
+        """
+        package app.util;
+
+        public class Counter {
+          private int total;
+
+          public void add(int n) {
+            total += n;
+          }
+
+          public int total() {
+            return total;
+          }
+        }
+        """);
+
+    Path classes = tempDir.resolve("classes");
+    int javacExitCode =
+        ToolProvider.getSystemJavaCompiler()
+            .run(
+                null,
+                null,
+                null,
+                "-g",
+                "-d",
+                classes.toString(),
+                mainSource.toString(),
+                counterSource.toString());
+    assertEquals(0, javacExitCode);
+    Path jar = tempDir.resolve("app.jar");
+    try (JarOutputStream out = new JarOutputStream(Files.newOutputStream(jar));
+        Stream<Path> classFiles = Files.walk(classes)) {
+      for (Path classFile : classFiles.filter(Files::isRegularFile).toList()) {
+        out.putNextEntry(new JarEntry(classes.relativize(classFile).toString().replace('\\', '/')));
+        Files.copy(classFile, out);
+        out.closeEntry();
+      } // for
+    }
+
+    for (Path entry : List.of(classes, jar)) {
+      CompilationHelper.CompilationResult compilationResult =
+          CompilationHelper.fromClassPath(List.of(entry), "app.Main");
+      assertEquals(Set.of("app.Main", "app.util.Counter"), compilationResult.compiledClassNames());
+      assertEquals("app/Main.java", compilationResult.mainSourcePath());
+      assertThrows(
+          IllegalArgumentException.class,
+          () -> CompilationHelper.fromClassPath(List.of(entry), "app.Missing"));
+    } // for
+
+    // the counter's source is only parsed once one of its methods is snapshotted, so a broken copy
+    // of it doesn't matter to a trace that only stops in main
+    Files.writeString(counterSource, "this isn't Java");
+
+    // the first step of the trace at line 9 holds the counter in main's frame
+    Function<JSONObject, String> counterClass =
+        trace -> {
+          JSONObject step = trace.getJSONObject("9").getJSONArray("trace").getJSONObject(0);
+          JSONArray counter =
+              step.getJSONArray("stack_to_render")
+                  .getJSONObject(0)
+                  .getJSONObject("encoded_locals")
+                  .getJSONArray("counter");
+          return step.getJSONObject("heap")
+              .getJSONArray(String.valueOf(counter.getLong(1)))
+              .getString(1);
+        };
+    Tracer tracer = new Tracer(TraceOptions.DEFAULT.withBreakpoints(List.of(9)));
+    PrebuiltProgram program =
+        new PrebuiltProgram(List.of(jar), "app.Main", List.of(tempDir.resolve("src")));
+    JSONObject trace =
+        tracer.serialize(
+            program.mainSource(), tracer.trace(program, ProgramInput.NONE, new TraceMetrics()));
+    assertEquals("app.util.Counter", counterClass.apply(trace));
+
+    PrintStream originalOut = System.out;
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    int exitCode;
+    try {
+      System.setOut(new PrintStream(output));
+      exitCode =
+          new CommandLine(new App.Trace())
+              .execute(
+                  "--class-path",
+                  classes.toString(),
+                  "--main-class",
+                  "app.Main",
+                  "--source-path",
+                  tempDir.resolve("src").toString(),
+                  "-b",
+                  "9");
+    } finally {
+      System.setOut(originalOut);
+    }
+    assertEquals(0, exitCode);
+    assertEquals("app.util.Counter", counterClass.apply(new JSONObject(output.toString())));
+
+    // tracing without javac leaves the program's own class files alone
+    assertTrue(Files.isRegularFile(classes.resolve("app/util/Counter.class")));
+    assertTrue(Files.isRegularFile(jar));
+  }
+
+  /** Ensure that a directory of source files is compiled together and traced. */
+  @Test
+  public void testSourceProjectCompilesEveryFile(@TempDir Path tempDir) throws Exception {
+    Path util = Files.createDirectories(tempDir.resolve("app/util"));
+    Files.writeString(
+        tempDir.resolve("app/Main.java"),
+        """
+        package app;
+
+        import app.util.Counter;
+
+        public class Main {
+          public static void main(String[] args) {
+            final Counter counter = new Counter();
+            counter.add(2);
+            System.out.print(counter.total());
+          }
+        }
+        """);
+    Files.writeString(
+        util.resolve("Counter.java"),
+        """
+        package app.util;
+
+        public class Counter {
+          private int total;
+
+          public void add(int n) {
+            total += n;
+          }
+
+          public int total() {
+            return total;
+          }
+        }
+        """);
+
+    SourceProject project = SourceProject.of(tempDir, Optional.empty());
+    assertEquals("app.Main", project.mainClass());
+    assertEquals("app/Main.java", project.mainSourcePath());
+
+    TraceOptions options = TraceOptions.DEFAULT.withBreakpoints(List.of(9));
+    Tracer tracer = new Tracer(options);
+    JSONObject frame =
+        tracer
+            .serialize(
+                project.mainSource(), tracer.trace(project, ProgramInput.NONE, new TraceMetrics()))
+            .getJSONObject("9")
+            .getJSONArray("trace")
+            .getJSONObject(0)
+            .getJSONArray("stack_to_render")
+            .getJSONObject(0);
+    assertTrue(frame.getJSONObject("locals_attrs").getJSONObject("counter").getBoolean("final"));
+  }
+
+  /** Ensure that a session steps through a live program and snapshots it on request. */
+  @Test
+  public void testSessionStepsAndSnapshotsLiveProgram() throws Exception {
+    String testProgram =
+        """
+        public class Main {
+          public static void main(String[] args) {
+            int total = 0;
+            for (int i = 0; i < 3; i++) {
+              total += i;
+            }
+            System.out.print(total);
+          }
+        }
+        """;
+    TraceOptions options = TraceOptions.DEFAULT;
+    try (TraceSession session =
+        new Tracer(options).startSession(testProgram, ProgramInput.NONE, new TraceMetrics())) {
+      SessionServer server = new SessionServer(session, testProgram, options.serializer());
+      Function<String, JSONObject> call =
+          request -> {
+            try {
+              return server.handle(request).orElseThrow();
+            } catch (InterruptedException e) {
+              throw new RuntimeException(e);
+            }
+          };
+
+      JSONAssert.assertEquals(
+          "{\"result\": {\"state\": \"paused\", \"line\": 3}}",
+          call.apply("{\"jsonrpc\": \"2.0\", \"id\": 1, \"method\": \"status\"}"),
+          JSONCompareMode.LENIENT);
+      call.apply(
+          "{\"jsonrpc\": \"2.0\", \"id\": 2, \"method\": \"addBreakpoint\", \"params\":"
+              + " {\"line\": 5}}");
+      call.apply("{\"jsonrpc\": \"2.0\", \"id\": 3, \"method\": \"continue\"}");
+      JSONAssert.assertEquals(
+          "{\"result\": {\"state\": \"paused\", \"line\": 5}}",
+          call.apply("{\"jsonrpc\": \"2.0\", \"id\": 4, \"method\": \"continue\"}"),
+          JSONCompareMode.LENIENT);
+      JSONObject snapshot =
+          call.apply("{\"jsonrpc\": \"2.0\", \"id\": 5, \"method\": \"snapshot\"}")
+              .getJSONObject("result");
+      JSONAssert.assertEquals(
+          "{\"i\": 1, \"total\": 0}",
+          snapshot
+              .getJSONArray("trace")
+              .getJSONObject(0)
+              .getJSONArray("stack_to_render")
+              .getJSONObject(0)
+              .getJSONObject("encoded_locals"),
+          JSONCompareMode.LENIENT);
+
+      call.apply(
+          "{\"jsonrpc\": \"2.0\", \"id\": 6, \"method\": \"removeBreakpoint\","
+              + " \"params\": {\"line\": 5}}");
+      JSONAssert.assertEquals(
+          "{\"result\": {\"state\": \"ended\"}}",
+          call.apply("{\"jsonrpc\": \"2.0\", \"id\": 7, \"method\": \"continue\"}"),
+          JSONCompareMode.LENIENT);
+      assertEquals(
+          SessionServer.PROGRAM_ERROR,
+          call.apply("{\"jsonrpc\": \"2.0\", \"id\": 8, \"method\": \"step\"}")
+              .getJSONObject("error")
+              .getInt("code"));
+    }
+  }
+
+  /** Ensure that a shallow snapshot leaves deep objects as stubs that can be fetched later. */
+  @Test
+  public void testShallowSnapshotFetchesDeeperObjects() throws Exception {
+    String testProgram =
+        """
+        public class Main {
+          Main next;
+
+          public static void main(String[] args) {
+            Main list = new Main();
+            list.next = new Main();
+            list.next.next = new Main();
+            System.out.print(list != null);
+          }
+        }
+        """;
+    TraceOptions options = TraceOptions.DEFAULT.withBreakpoints(List.of(8));
+    try (TraceSession session =
+        new Tracer(options).startSession(testProgram, ProgramInput.NONE, new TraceMetrics())) {
+      session.resume();
+      ExecutionSnapshot snapshot = session.shallowSnapshot(0);
+
+      // list is converted, but list.next is only a placeholder
+      long unexpandedId =
+          snapshot.heap().entrySet().stream()
+              .filter(e -> e.getValue() instanceof TraceValue.Unexpanded)
+              .map(Map.Entry::getKey)
+              .findFirst()
+              .orElseThrow();
+      assertEquals(
+          1,
+          snapshot.heap().values().stream()
+              .filter(v -> v instanceof TraceValue.Unexpanded)
+              .count());
+
+      Map<Long, TraceValue> fetched = session.fetch(unexpandedId, 0);
+      assertTrue(fetched.get(unexpandedId) instanceof TraceValue.Object);
+      assertEquals(
+          1, fetched.values().stream().filter(v -> v instanceof TraceValue.Unexpanded).count());
+      assertThrows(IllegalArgumentException.class, () -> session.fetch(unexpandedId, 0));
+    }
+  }
+
+  /** Ensure that a recording replays every step of a program without running it again. */
+  @Test
+  public void testRecordingReplaysEveryStep() throws Exception {
+    String testProgram =
+        """
+        import java.util.ArrayList;
+        import java.util.List;
+
+        public class Main {
+          static int[] squares = new int[3];
+          int count;
+
+          static int square(int x) {
+            int result = x * x;
+            return result;
+          }
+
+          public static void main(String[] args) {
+            Main main = new Main();
+            List<String> names = new ArrayList<>();
+            for (int i = 0; i < 3; i++) {
+              squares[i] = square(i);
+              main.count += i;
+              names.add("n" + i);
+              System.out.print(i);
+            }
+            names.remove(0);
+          }
+        }
+        """;
+    Tracer tracer = new Tracer(TraceOptions.DEFAULT);
+    TraceRecording everyStep = tracer.record(testProgram, ProgramInput.NONE, 1, new TraceMetrics());
+    TraceRecording checkpointed =
+        tracer.record(testProgram, ProgramInput.NONE, 5, new TraceMetrics());
+
+    // every step of the first recording is a full snapshot, so replaying the second from its
+    // checkpoints must give the same states, even though the objects' IDs differ between runs
+    assertEquals(everyStep.lines(), checkpointed.lines());
+    assertTrue(everyStep.steps() > 20);
+    for (int step = 0; step < everyStep.steps(); step++) {
+      assertEquals(
+          describe(everyStep.snapshot(step)),
+          describe(checkpointed.snapshot(step)),
+          "step " + step);
+    }
+    assertEquals("012", new String(checkpointed.snapshot(everyStep.steps() - 1).stdout()));
+    assertThrows(IllegalArgumentException.class, () -> checkpointed.snapshot(-1));
+  }
+
+  /**
+   * Ensure that a recording sees changes to arrays and lists that are nested in other objects, even
+   * when no checkpoint is taken after them.
+   */
+  @Test
+  public void testRecordingSeesNestedChanges() throws Exception {
+    String testProgram =
+        """
+        import java.util.ArrayList;
+        import java.util.List;
+
+        public class Main {
+          static class Node {
+            int[] data = new int[2];
+          }
+
+          static void fill(Node node, List<List<Integer>> rows) {
+            node.data[0] = 5;
+            rows.get(0).add(7);
+          }
+
+          public static void main(String[] args) {
+            Node node = new Node();
+            List<List<Integer>> rows = new ArrayList<>();
+            rows.add(new ArrayList<>());
+            for (int i = 0; i < 3; i++) {
+              node.data[1] = i;
+              rows.get(0).add(i);
+            }
+            fill(node, rows);
+          }
+        }
+        """;
+    Tracer tracer = new Tracer(TraceOptions.DEFAULT);
+    TraceRecording everyStep = tracer.record(testProgram, ProgramInput.NONE, 1, new TraceMetrics());
+    TraceRecording checkpointed =
+        tracer.record(testProgram, ProgramInput.NONE, 1000, new TraceMetrics());
+
+    assertEquals(everyStep.lines(), checkpointed.lines());
+    for (int step = 0; step < everyStep.steps(); step++) {
+      assertEquals(
+          describe(everyStep.snapshot(step)),
+          describe(checkpointed.snapshot(step)),
+          "step " + step);
+    }
+    String last = describe(checkpointed.snapshot(checkpointed.steps() - 1));
+    assertTrue(last.contains("data=int[][Integer[value=5], Integer[value=2]]"), last);
+    assertTrue(
+        last.contains(
+            "ArrayList[Integer[value=0], Integer[value=1], Integer[value=2], Integer[value=7]]"),
+        last);
+  }
+
+  /** Ensure that the warmup archive is created and mapped in by traced programs' JVMs. */
+  @Test
+  public void testWarmupArchiveIsUsed(@TempDir Path tempDir) throws Exception {
+    String previousDirectory = System.getProperty(SharedArchive.DIRECTORY_PROPERTY);
+    System.setProperty(SharedArchive.DIRECTORY_PROPERTY, tempDir.toString());
+    try {
+      Path archiveDir = SharedArchive.defaultDirectory();
+      assertTrue(archiveDir.startsWith(tempDir));
+      assertTrue(SharedArchive.load(archiveDir).isEmpty());
+      assertEquals(0, new CommandLine(new App.Warmup()).execute("--skip-tracer"));
+      SharedArchive archive = SharedArchive.load(archiveDir).get();
+      assertEquals(0, SharedArchive.runTraining(archive.trainingCommand(false)));
+
+      // the training program's own classes are only in the archive's top layer
+      List<String> command = new ArrayList<>(archive.trainingCommand(true));
+      command.add(command.size() - 1, "-Xlog:class+load=info");
+      Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+      process.getOutputStream().close();
+      String output = new String(process.getInputStream().readAllBytes());
+      assertEquals(0, process.waitFor());
+      assertTrue(
+          output.lines().anyMatch(l -> l.contains("CodeTracerWarmup ") && l.contains("top")),
+          output);
+
+      // a traced program turns on class load logging itself, since its JVM options are fixed, and
+      // then loads a class that only the training program's archive has
+      SharedArchive.reset();
+      String testProgram =
+          """
+          import java.lang.management.ManagementFactory;
+          import javax.management.ObjectName;
+
+          public class Main {
+            public static void main(String[] args) throws Exception {
+              ManagementFactory.getPlatformMBeanServer()
+                  .invoke(
+                      new ObjectName("com.sun.management:type=DiagnosticCommand"),
+                      "vmLog",
+                      new Object[] {new String[] {"output=stdout", "what=class+load=info"}},
+                      new String[] {String[].class.getName()});
+              new java.util.Scanner("1").nextInt();
+              System.out.println(ManagementFactory.getRuntimeMXBean().getInputArguments());
+              System.out.println(System.getProperty("java.class.path"));
+            }
+          }
+          """;
+      JSONArray trace =
+          new JSONObject(executeCommand(App.Trace::new, testProgram).get()).getJSONArray("trace");
+      String stdout = trace.getJSONObject(trace.length() - 1).getString("stdout");
+      assertTrue(stdout.contains("-XX:SharedArchiveFile=" + archive.archive()), stdout);
+      assertTrue(stdout.contains(archiveDir.resolve("debuggee.jar") + File.pathSeparator), stdout);
+      assertTrue(stdout.contains("java.util.Scanner source: shared objects file (top)"), stdout);
+    } finally {
+      if (previousDirectory == null) {
+        System.clearProperty(SharedArchive.DIRECTORY_PROPERTY);
+      } else {
+        System.setProperty(SharedArchive.DIRECTORY_PROPERTY, previousDirectory);
+      } // if
+      SharedArchive.reset();
+    } // try
+  }
+
+  /**
+   * Describe a snapshot without the IDs of its objects, which differ between runs.
+   *
+   * @param snapshot The snapshot.
+   * @return The description.
+   */
+  private static String describe(ExecutionSnapshot snapshot) {
+    StringBuilder description = new StringBuilder();
+    for (ExecutionSnapshot.StackSnapshot frame : snapshot.stack()) {
+      description.append(frame.methodName()).append(':').append(frame.methodLine()).append(' ');
+      for (ExecutionSnapshot.Field variable : frame.visibleVariables()) {
+        description
+            .append(variable.identifier())
+            .append('=')
+            .append(describe(variable.value(), snapshot.heap()))
+            .append(' ');
+      }
+      frame.thisObject().ifPresent(t -> description.append(describe(t.value(), snapshot.heap())));
+      description.append('\n');
+    }
+    snapshot.statics().stream()
+        .map(f -> f.identifier() + "=" + describe(f.value(), snapshot.heap()))
+        .sorted()
+        .forEach(f -> description.append(f).append('\n'));
+    return description.append(new String(snapshot.stdout())).toString();
+  }
+
+  /**
+   * Describe a value without the IDs of the objects that it refers to.
+   *
+   * @param value The value.
+   * @param heap The heap that the value's references point into.
+   * @return The description.
+   */
+  private static String describe(TraceValue value, Map<Long, TraceValue> heap) {
+    return switch (value) {
+      case TraceValue.Reference reference -> describe(heap.get(reference.uniqueId()), heap);
+      case TraceValue.Object object ->
+          object.classFqn()
+              + object.fields().stream()
+                  .map(f -> f.identifier() + "=" + describe(f.value(), heap))
+                  .toList();
+      case TraceValue.List list ->
+          list.typeName() + list.value().stream().map(v -> describe(v, heap)).toList();
+      case null -> "missing";
+      default -> value.toString();
+    };
+  }
+
+  /**
+   * Get the process IDs of this JVM's descendants that are being debugged.
+   *
+   * @return The process IDs.
+   */
+  private static Set<Long> debuggees() {
+    return ProcessHandle.current()
+        .descendants()
+        .filter(ProcessHandle::isAlive)
+        .filter(
+            p ->
+                p.info().arguments().stream()
+                    .flatMap(Arrays::stream)
+                    .anyMatch(arg -> arg.startsWith("-agentlib:jdwp")))
+        .map(ProcessHandle::pid)
+        .collect(Collectors.toCollection(HashSet::new));
+  }
+
+  /**
+   * Get the temporary directories that programs are compiled in.
+   *
+   * @return The directories.
+   */
+  private static Set<Path> workingDirs() throws IOException {
+    try (Stream<Path> files = Files.list(Path.of(System.getProperty("java.io.tmpdir")))) {
+      return files
+          .filter(f -> f.getFileName().toString().startsWith("code-tracer"))
+          .collect(Collectors.toCollection(HashSet::new));
+    }
+  }
 }